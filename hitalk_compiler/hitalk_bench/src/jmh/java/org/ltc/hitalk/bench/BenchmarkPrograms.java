@@ -0,0 +1,83 @@
+package org.ltc.hitalk.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * BenchmarkPrograms provides the classic Prolog benchmark programs, along with geo_parser, a parser of geography
+ * questions in the style of Chat-80, that stands in for the standard chat_parser benchmark. They are held as resources
+ * under <tt>bench/</tt>. Each program defines <tt>top/0</tt>, which runs the benchmark through once.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities
+ * <tr><td> Extract a benchmark program into a file that an engine can load.
+ * <tr><td> Read the text of a benchmark program.
+ * </table></pre>
+ */
+public final
+class BenchmarkPrograms {
+    /**
+     * The names of the benchmark programs.
+     */
+    public static final String[] NAMES = {"nrev", "queens", "crypt", "deriv", "poly", "tak", "zebra", "geo_parser"};
+
+    /**
+     * The goal that runs a benchmark program through once.
+     */
+    public static final String GOAL = "top";
+
+    private BenchmarkPrograms() {
+    }
+
+    /**
+     * Extracts a benchmark program into a temporary file.
+     *
+     * @param name The name of the program.
+     * @return The file holding the program, which is deleted when the JVM exits.
+     * @throws IOException If the program cannot be extracted.
+     */
+    public static File extract(String name) throws IOException {
+        File file = File.createTempFile(name, ".pl");
+        file.deleteOnExit();
+
+        try (InputStream in = open(name)) {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        return file;
+    }
+
+    /**
+     * Reads the text of a benchmark program.
+     *
+     * @param name The name of the program.
+     * @return The text of the program.
+     * @throws IOException If the program cannot be read.
+     */
+    public static String read(String name) throws IOException {
+        try (InputStream in = open(name)) {
+            byte[] buffer = new byte[8192];
+            StringBuilder text = new StringBuilder();
+
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                text.append(new String(buffer, 0, n, StandardCharsets.UTF_8));
+            }
+
+            return text.toString();
+        }
+    }
+
+    private static InputStream open(String name) throws IOException {
+        InputStream in = BenchmarkPrograms.class.getResourceAsStream("/bench/" + name + ".pl");
+
+        if (in == null) {
+            throw new IOException("No benchmark program named " + name + ".");
+        }
+
+        return in;
+    }
+}
@@ -0,0 +1,79 @@
+package org.ltc.hitalk.bench;
+
+import org.ltc.hitalk.gnu.prolog.term.AtomTerm;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+import org.ltc.hitalk.gnu.prolog.vm.Environment;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologCode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InterpreterBenchmark runs the classic Prolog benchmark programs on the {@link Interpreter}, which executes
+ * predicates compiled into interpreted byte code. Each program is loaded once, and each invocation runs its
+ * <tt>top/0</tt> goal through to its first solution.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Load a benchmark program into an environment. <td> {@link Environment}, {@link BenchmarkPrograms}.
+ * <tr><td> Time running the benchmark goal. <td> {@link Interpreter}.
+ * </table></pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public
+class InterpreterBenchmark {
+    /**
+     * The name of the benchmark program to run.
+     */
+    @Param({"nrev", "queens", "crypt", "deriv", "poly", "tak", "zebra", "geo_parser"})
+    public String program;
+
+    private Interpreter interpreter;
+
+    private Term goal;
+
+    /**
+     * Loads the benchmark program, and checks that its goal succeeds.
+     *
+     * @throws Exception If the program cannot be loaded, or its goal does not succeed.
+     */
+    @Setup(Level.Trial)
+    public void load() throws Exception {
+        Environment environment = new Environment();
+        environment.ensureLoaded(AtomTerm.get(BenchmarkPrograms.extract(program).getPath()));
+
+        interpreter = environment.createInterpreter();
+        environment.runInitialization(interpreter);
+
+        if (!environment.getLoadingErrors().isEmpty()) {
+            throw new IllegalStateException("Failed to load " + program + ": " + environment.getLoadingErrors().get(0));
+        }
+
+        goal = AtomTerm.get(BenchmarkPrograms.GOAL);
+
+        if (run() == PrologCode.Result.FAIL) {
+            throw new IllegalStateException("The benchmark goal of " + program + " failed.");
+        }
+    }
+
+    /**
+     * Runs the benchmark goal to its first solution.
+     *
+     * @return The result of the goal.
+     * @throws Exception If the goal raises an error.
+     */
+    @Benchmark
+    public PrologCode.Result run() throws Exception {
+        Interpreter.Goal prepared = interpreter.prepareGoal(goal);
+        PrologCode.Result result = interpreter.execute(prepared);
+
+        if (result == PrologCode.Result.SUCCESS) {
+            interpreter.stop(prepared);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+package org.ltc.hitalk.bench;
+
+import org.ltc.hitalk.gnu.prolog.io.ReadOptions;
+import org.ltc.hitalk.gnu.prolog.io.TermReader;
+import org.ltc.hitalk.gnu.prolog.vm.Environment;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ParserBenchmark measures the throughput of reading clauses from large Prolog source texts. The text is built from
+ * the benchmark programs, repeated until it holds the requested number of clauses, so that it has a realistic mix of
+ * operators, lists and nested structures.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Build a large source text. <td> {@link BenchmarkPrograms}.
+ * <tr><td> Time reading every clause from the text. <td> {@link TermReader}.
+ * </table></pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public
+class ParserBenchmark {
+    /**
+     * The approximate number of clauses in the source text.
+     */
+    @Param({"10000", "100000"})
+    public int clauses;
+
+    private Environment environment;
+
+    private String text;
+
+    /**
+     * Builds the source text.
+     *
+     * @throws Exception If the benchmark programs cannot be read.
+     */
+    @Setup(Level.Trial)
+    public void build() throws Exception {
+        environment = new Environment();
+
+        StringBuilder programs = new StringBuilder();
+        int perCopy = 0;
+
+        for (String name : BenchmarkPrograms.NAMES) {
+            String program = BenchmarkPrograms.read(name);
+            programs.append(program).append('\n');
+            perCopy += countClauses(program);
+        }
+
+        StringBuilder source = new StringBuilder();
+
+        for (int n = 0; n < clauses; n += perCopy) {
+            source.append(programs);
+        }
+
+        text = source.toString();
+    }
+
+    /**
+     * Reads every clause from the source text.
+     *
+     * @param blackhole Consumes the clauses read, so that reading them is not optimized away.
+     * @throws Exception If the text fails to parse.
+     */
+    @Benchmark
+    public void read(Blackhole blackhole) throws Exception {
+        TermReader reader = new TermReader(new StringReader(text), environment);
+        ReadOptions options = new ReadOptions(environment.getOperatorSet());
+
+        for (Object term = reader.readTerm(options); term != null; term = reader.readTerm(options)) {
+            blackhole.consume(term);
+        }
+    }
+
+    /**
+     * Counts the clauses in a program by their terminating full stops, which is close enough for sizing the text.
+     */
+    private static int countClauses(String program) {
+        int count = 0;
+
+        for (String line : program.split("\n")) {
+            String trimmed = line.trim();
+
+            if (!trimmed.startsWith("%") && trimmed.endsWith(".")) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+}
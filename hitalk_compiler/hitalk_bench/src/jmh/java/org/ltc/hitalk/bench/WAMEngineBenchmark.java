@@ -0,0 +1,193 @@
+package org.ltc.hitalk.bench;
+
+import org.ltc.hitalk.core.utils.HtSymbolTable;
+import org.ltc.hitalk.wam.compiler.HtFunctorName;
+import org.ltc.hitalk.wam.compiler.HtWAMLabel;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.Engine;
+import org.ltc.hitalk.wam.machine.HtWAMMemoryConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.REG_ADDR;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.STACK_ADDR;
+
+/**
+ * WAMEngineBenchmark compares the two execution engines of the WAM, the one that reads its code from the code buffer
+ * and the one that reads it from the decoded int array, on naive reverse. Both run the same byte code, which is
+ * assembled here by hand, so that the benchmark measures the engines and not the compiler.
+ * <p>
+ * <p/>A query leaves its frames behind on the stacks, so each invocation runs on a freshly reset machine.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Load naive reverse into a machine. <td> {@link HiTalkWAMResolvingJavaMachine}.
+ * <tr><td> Time reversing a list with each engine.
+ * </table></pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public
+class WAMEngineBenchmark {
+    private static final HtFunctorName NIL = new HtFunctorName("[]", 0);
+    private static final HtFunctorName ELEMENT = new HtFunctorName("x", 0);
+    private static final HtFunctorName APP = new HtFunctorName("app", 3);
+    private static final HtFunctorName NREV = new HtFunctorName("nrev", 2);
+
+    /**
+     * The engine to run the byte code with.
+     */
+    @Param({"RESOLVING", "DECODED"})
+    public Engine engine;
+
+    /**
+     * The length of the list to reverse.
+     */
+    @Param({"400"})
+    public int length;
+
+    private HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> machine;
+
+    /**
+     * Loads naive reverse into a fresh machine, and sets the query to reverse the list.
+     *
+     * @throws Exception If the code cannot be linked.
+     */
+    @Setup(Level.Invocation)
+    public void load() throws Exception {
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(engine, new HtSymbolTable<>(), HtWAMMemoryConfig.DEFAULT);
+
+        machine.addToDomain(predicate(APP, app()));
+        machine.addToDomain(predicate(NREV, nrev()));
+
+        HiTalkWAMCompiledQuery query = new HiTalkWAMCompiledQuery(Collections.emptyMap(), Collections.emptySet());
+        query.addInstructions(query(length));
+        machine.setQuery(query);
+    }
+
+    /**
+     * Reverses the list, running the query to its first solution.
+     *
+     * @return The number of solutions found.
+     */
+    @Benchmark
+    public long run() {
+        long solutions = machine.resolveEach(cursor -> false);
+
+        if (solutions != 1) {
+            throw new IllegalStateException("nrev/2 did not reverse the list.");
+        }
+
+        return solutions;
+    }
+
+    private HiTalkWAMCompiledPredicate predicate(HtFunctorName name, List<HiTalkWAMInstruction> instructions) {
+        HiTalkWAMCompiledPredicate predicate = new HiTalkWAMCompiledPredicate(machine.internFunctorName(name));
+        predicate.addInstructions(instructions);
+
+        return predicate;
+    }
+
+    /**
+     * <pre>
+     * app([], L, L).
+     * app([H|T], L, [H|R]) :- app(T, L, R).
+     * </pre>
+     */
+    private static List<HiTalkWAMInstruction> app() {
+        HtWAMLabel first = new HtWAMLabel(APP, 0);
+        HtWAMLabel second = new HtWAMLabel(APP, 1);
+        List<HiTalkWAMInstruction> code = new ArrayList<>();
+
+        code.add(new HiTalkWAMInstruction(first, TryMeElse, second));
+        code.add(new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 0, NIL));
+        code.add(new HiTalkWAMInstruction(GetVal, REG_ADDR, (byte) 1, (byte) 2));
+        code.add(new HiTalkWAMInstruction(Proceed));
+
+        code.add(new HiTalkWAMInstruction(second, TrustMe));
+        code.add(new HiTalkWAMInstruction(GetList, REG_ADDR, (byte) 0));
+        code.add(new HiTalkWAMInstruction(UnifyVar, REG_ADDR, (byte) 3));
+        code.add(new HiTalkWAMInstruction(UnifyVar, REG_ADDR, (byte) 0));
+        code.add(new HiTalkWAMInstruction(GetList, REG_ADDR, (byte) 2));
+        code.add(new HiTalkWAMInstruction(UnifyVal, REG_ADDR, (byte) 3));
+        code.add(new HiTalkWAMInstruction(UnifyVar, REG_ADDR, (byte) 2));
+        code.add(new HiTalkWAMInstruction(Execute, APP));
+
+        return code;
+    }
+
+    /**
+     * <pre>
+     * nrev([], []).
+     * nrev([H|T], R) :- nrev(T, RT), app(RT, [H], R).
+     * </pre>
+     */
+    private static List<HiTalkWAMInstruction> nrev() {
+        HtWAMLabel first = new HtWAMLabel(NREV, 0);
+        HtWAMLabel second = new HtWAMLabel(NREV, 1);
+        List<HiTalkWAMInstruction> code = new ArrayList<>();
+
+        code.add(new HiTalkWAMInstruction(first, TryMeElse, second));
+        code.add(new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 0, NIL));
+        code.add(new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 1, NIL));
+        code.add(new HiTalkWAMInstruction(Proceed));
+
+        code.add(new HiTalkWAMInstruction(second, TrustMe));
+        code.add(new HiTalkWAMInstruction(Allocate));
+        code.add(new HiTalkWAMInstruction(GetList, REG_ADDR, (byte) 0));
+        code.add(new HiTalkWAMInstruction(UnifyVar, STACK_ADDR, (byte) 0));
+        code.add(new HiTalkWAMInstruction(UnifyVar, REG_ADDR, (byte) 0));
+        code.add(new HiTalkWAMInstruction(GetVar, STACK_ADDR, (byte) 1, (byte) 1));
+        code.add(new HiTalkWAMInstruction(PutVar, STACK_ADDR, (byte) 2, (byte) 1));
+        code.add(new HiTalkWAMInstruction(Call, (byte) 3, NREV));
+        code.add(new HiTalkWAMInstruction(PutUnsafeVal, STACK_ADDR, (byte) 2, (byte) 0));
+        code.add(new HiTalkWAMInstruction(PutList, REG_ADDR, (byte) 1));
+        code.add(new HiTalkWAMInstruction(SetVal, STACK_ADDR, (byte) 0));
+        code.add(new HiTalkWAMInstruction(SetConstant, NIL));
+        code.add(new HiTalkWAMInstruction(PutVal, STACK_ADDR, (byte) 1, (byte) 2));
+        code.add(new HiTalkWAMInstruction(Deallocate));
+        code.add(new HiTalkWAMInstruction(Execute, APP));
+
+        return code;
+    }
+
+    /**
+     * <pre>
+     * ?- nrev([x, x, ..., x], R).
+     * </pre>
+     * The list is built from its end, taking turns between two registers for the list built so far.
+     */
+    private static List<HiTalkWAMInstruction> query(int length) {
+        List<HiTalkWAMInstruction> code = new ArrayList<>();
+        byte list = 10;
+
+        code.add(new HiTalkWAMInstruction(AllocateN, REG_ADDR, (byte) 0));
+        code.add(new HiTalkWAMInstruction(PutConstant, REG_ADDR, list, NIL));
+
+        for (int i = 0; i < length; i++) {
+            byte tail = list;
+            list = (byte) (21 - list);
+
+            code.add(new HiTalkWAMInstruction(PutList, REG_ADDR, list));
+            code.add(new HiTalkWAMInstruction(SetConstant, ELEMENT));
+            code.add(new HiTalkWAMInstruction(SetVal, REG_ADDR, tail));
+        }
+
+        code.add(new HiTalkWAMInstruction(PutVal, REG_ADDR, list, (byte) 0));
+        code.add(new HiTalkWAMInstruction(PutVar, REG_ADDR, (byte) 12, (byte) 1));
+        code.add(new HiTalkWAMInstruction(Call, (byte) 0, NREV));
+        code.add(new HiTalkWAMInstruction(Suspend));
+        code.add(new HiTalkWAMInstruction(Deallocate));
+
+        return code;
+    }
+}
@@ -0,0 +1,129 @@
+% Parsing English questions about geography, in the style of the front end of the Chat-80 question answering system.
+% This is a small grammar written for these benchmarks, not the standard chat_parser benchmark, so its timings are not
+% comparable with published chat_parser results. Words can be several parts of speech, and phrases can attach in
+% several places, so the parser backtracks heavily. Every parse of every question is found.
+
+top :- questions(Qs), parse_all(Qs).
+
+parse_all([]).
+parse_all([Q|Qs]) :- parses(Q), parse_all(Qs).
+
+parses(Q) :- question(_, Q, []), !, all_parses(Q).
+
+all_parses(Q) :- question(_, Q, []), fail.
+all_parses(_).
+
+questions([
+    [what, rivers, are, there, '?'],
+    [does, afghanistan, border, china, '?'],
+    [what, is, the, capital, of, upper_volta, '?'],
+    [which, country, borders, the, country, that, borders, china, '?'],
+    [which, rivers, flow, through, the, countries, that, border, the, black, sea, '?'],
+    [what, is, the, population, of, the, largest, country, in, asia, '?'],
+    [does, the, river, that, flows, through, egypt, flow, into, the, mediterranean, '?'],
+    [which, countries, border, the, countries, that, border, the, countries, that, border, india, '?'],
+    [what, is, the, largest, city, in, the, largest, country, in, europe, '?']
+]).
+
+% Questions.
+
+question(exists(N), S0, S) :-
+    wh(S0, S1), noun(N, plural, S1, [are, there, '?'|S]).
+question(yes_no(Subject, VP), [does|S0], S) :-
+    noun_phrase(Subject, _, S0, S1), verb_phrase(VP, infinitive, S1, ['?'|S]).
+question(what(NP), [what, is|S0], S) :-
+    noun_phrase(NP, singular, S0, ['?'|S]).
+question(which(N, Mods, VP), S0, S) :-
+    wh(S0, S1), noun(N, Num, S1, S2), modifiers(Mods, Num, S2, S3), verb_phrase(VP, Num, S3, ['?'|S]).
+
+wh([what|S], S).
+wh([which|S], S).
+
+% Noun phrases.
+
+noun_phrase(name(X), singular, S0, S) :-
+    proper_noun(X, S0, S).
+noun_phrase(np(D, As, N, Mods), Num, S0, S) :-
+    determiner(D, Num, S0, S1), adjectives(As, S1, S2), noun(N, Num, S2, S3), modifiers(Mods, Num, S3, S).
+
+determiner(the, _, [the|S], S).
+determiner(a, singular, [a|S], S).
+determiner(some, plural, [some|S], S).
+determiner(all, plural, S, S).
+
+adjectives([], S, S).
+adjectives([A|As], S0, S) :- adjective(A, S0, S1), adjectives(As, S1, S).
+
+modifiers([], _, S, S).
+modifiers([M|Ms], Num, S0, S) :- modifier(M, Num, S0, S1), modifiers(Ms, Num, S1, S).
+
+modifier(pp(P, NP), _, S0, S) :- preposition(P, S0, S1), noun_phrase(NP, _, S1, S).
+modifier(relative(VP), Num, [that|S0], S) :- verb_phrase(VP, Num, S0, S).
+
+% Verb phrases.
+
+verb_phrase(vp(V, Object, Mods), Num, S0, S) :-
+    verb(V, Num, transitive, S0, S1), noun_phrase(Object, _, S1, S2), verb_modifiers(Mods, S2, S).
+verb_phrase(vp(V, Mods), Num, S0, S) :-
+    verb(V, Num, intransitive, S0, S1), verb_modifiers(Mods, S1, S).
+
+verb_modifiers([], S, S).
+verb_modifiers([pp(P, NP)|Ms], S0, S) :-
+    preposition(P, S0, S1), noun_phrase(NP, _, S1, S2), verb_modifiers(Ms, S2, S).
+
+% The lexicon.
+
+noun(N, Num, [W|S], S) :- noun_form(W, N, Num).
+proper_noun(X, [X|S], S) :- proper(X).
+adjective(A, [A|S], S) :- adjective(A).
+preposition(P, [P|S], S) :- preposition(P).
+verb(V, Num, Kind, [W|S], S) :- verb_form(W, V, Num, Kind).
+
+noun_form(border, border, singular).
+noun_form(borders, border, plural).
+noun_form(capital, capital, singular).
+noun_form(capitals, capital, plural).
+noun_form(city, city, singular).
+noun_form(cities, city, plural).
+noun_form(country, country, singular).
+noun_form(countries, country, plural).
+noun_form(mediterranean, mediterranean, singular).
+noun_form(ocean, ocean, singular).
+noun_form(oceans, ocean, plural).
+noun_form(population, population, singular).
+noun_form(river, river, singular).
+noun_form(rivers, river, plural).
+noun_form(sea, sea, singular).
+noun_form(seas, sea, plural).
+
+proper(afghanistan).
+proper(asia).
+proper(china).
+proper(egypt).
+proper(europe).
+proper(india).
+proper(upper_volta).
+
+adjective(black).
+adjective(european).
+adjective(great).
+adjective(largest).
+
+preposition(in).
+preposition(into).
+preposition(of).
+preposition(through).
+preposition(with).
+
+verb_form(border, border, infinitive, transitive).
+verb_form(border, border, plural, transitive).
+verb_form(borders, border, singular, transitive).
+verb_form(contain, contain, infinitive, transitive).
+verb_form(contain, contain, plural, transitive).
+verb_form(contains, contain, singular, transitive).
+verb_form(flow, flow, infinitive, intransitive).
+verb_form(flow, flow, plural, intransitive).
+verb_form(flows, flow, singular, intransitive).
+verb_form(rise, rise, infinitive, intransitive).
+verb_form(rise, rise, plural, intransitive).
+verb_form(rises, rise, singular, intransitive).
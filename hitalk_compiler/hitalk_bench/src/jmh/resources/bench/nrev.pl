@@ -0,0 +1,12 @@
+% Naive reverse of a list of 30 elements, the classic measure of logical inferences per second.
+
+top :- range(1, 30, L), nrev(L, _).
+
+nrev([], []).
+nrev([H|T], R) :- nrev(T, RT), app(RT, [H], R).
+
+app([], L, L).
+app([H|T], L, [H|R]) :- app(T, L, R).
+
+range(N, N, [N]) :- !.
+range(M, N, [M|Ns]) :- M < N, M1 is M + 1, range(M1, N, Ns).
@@ -0,0 +1,24 @@
+% The first solution to the eight queens problem, by naive generate and test.
+
+top :- queens(8, _).
+
+queens(N, Qs) :- range(1, N, Ns), perm(Ns, Qs), safe(Qs).
+
+safe([]).
+safe([Q|Qs]) :- no_attack(Q, Qs, 1), safe(Qs).
+
+no_attack(_, [], _).
+no_attack(Q, [Q1|Qs], D) :-
+    Q =\= Q1 + D,
+    Q =\= Q1 - D,
+    D1 is D + 1,
+    no_attack(Q, Qs, D1).
+
+perm([], []).
+perm(L, [H|T]) :- sel(H, L, R), perm(R, T).
+
+sel(X, [X|T], T).
+sel(X, [H|T], [H|R]) :- sel(X, T, R).
+
+range(N, N, [N]) :- !.
+range(M, N, [M|Ns]) :- M < N, M1 is M + 1, range(M1, N, Ns).
@@ -0,0 +1,30 @@
+package org.ltc.hitalk.bench;
+
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.term.AtomTerm;
+import org.ltc.hitalk.gnu.prolog.vm.Environment;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologCode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that every benchmark program loads without errors and that its goal succeeds, so that the benchmarks time
+ * the programs running through rather than failing early.
+ */
+public class BenchmarkProgramsTest {
+    @Test
+    public void everyProgramRunsThrough() throws Exception {
+        for (String program : BenchmarkPrograms.NAMES) {
+            Environment environment = new Environment();
+            environment.ensureLoaded(AtomTerm.get(BenchmarkPrograms.extract(program).getPath()));
+
+            Interpreter interpreter = environment.createInterpreter();
+            environment.runInitialization(interpreter);
+
+            assertEquals(program, 0, environment.getLoadingErrors().size());
+            assertNotEquals(program, PrologCode.Result.FAIL, interpreter.runOnce(AtomTerm.get(BenchmarkPrograms.GOAL)));
+        }
+    }
+}
@@ -82,6 +82,7 @@
 //     private final Map <HtFunctorName, Predicate <HtFunctor>> builtIns = new HashMap <>();
      ///////////////////////////
      private HtEntityIdentifier entityCompiling;
+     private final List<HtEntityIdentifier> entitiesCompiled = new ArrayList<>();
      private IRelation lastRelation;
      private DirectiveClause lastDirective;
      private ITerm lastTerm;
@@ -849,6 +850,7 @@
              throw new ExecutionError(PERMISSION_ERROR, null);
          }
          entityCompiling = new HtEntityIdentifier(functor, OBJECT);
+         entitiesCompiled.add(entityCompiling);
          handleEntityRelations(functor, false);
 
          return true;
@@ -975,6 +977,7 @@
              throw new ExecutionError(PERMISSION_ERROR, null);
          }
          entityCompiling = new HtEntityIdentifier(functor, PROTOCOL);
+         entitiesCompiled.add(entityCompiling);
          handleEntityRelations(functor, false);
 
          return true;
@@ -1007,11 +1010,25 @@
              throw new ExecutionError(PERMISSION_ERROR, null);
          }
          entityCompiling = new HtEntityIdentifier(functor, CATEGORY);
+         entitiesCompiled.add(entityCompiling);
          handleEntityRelations(functor, false);
 
          return true;
      }
 
+     /**
+      * Provides the entities opened since the last call, and forgets them, so that each is recorded in the object file
+      * of the source that defines it.
+      *
+      * @return The entities opened since the last call, in the order they were opened.
+      */
+     public List<HtEntityIdentifier> takeEntitiesCompiled() {
+         List<HtEntityIdentifier> entities = new ArrayList<>(entitiesCompiled);
+         entitiesCompiled.clear();
+
+         return entities;
+     }
+
      public AtomicInteger getObjectCounter () {
          return objectCounter;
      }
@@ -0,0 +1,169 @@
+package org.ltc.hitalk.compiler.bktables;
+
+import org.ltc.hitalk.term.OpSymbolFunctor;
+import org.ltc.hitalk.term.OpSymbolFunctor.Fixity;
+
+import java.util.*;
+
+/**
+ * HtOperatorTableSnapshot is an immutable version of an operator table. Defining or removing an operator does not
+ * change a snapshot, but makes a new one with the next version number, copying the table; as operators are defined
+ * rarely and looked up for every atom the parser reads, the cost is all on the side of definition.
+ * <p>
+ * <p/>Operators are keyed by the interned atom id of their names, as provided by the interner of the parser. The
+ * operators are held in a small open addressed hash table on the atom ids, with a slot per fixity for each name, so
+ * that once a token has been interned, finding its operator of a fixity is a few array reads. The table is sized by
+ * the number of operator names; atom ids only grow as atoms are interned, so a table indexed by the ids themselves
+ * would grow with every atom the parser reads. The operators of each name are also held by fixity in a read only
+ * map, made once per version, for callers that want all of them.
+ * <p>
+ * <p/>As a snapshot never changes, any number of parser threads can share one without locking; a parser sees the
+ * operators as of the version it took, until it takes a new one.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Find the operator of an atom id and fixity in a hash table. <td> {@link OpSymbolFunctor}.
+ * <tr><td> Find the operators of an atom id by fixity.
+ * <tr><td> Make the next version of the table with an operator defined or removed.
+ * </table></pre>
+ */
+public final class HtOperatorTableSnapshot {
+    /**
+     * The number of slots per atom id, one for each fixity.
+     */
+    private static final int FIXITIES = Fixity.values().length;
+
+    /**
+     * The table with no operators defined.
+     */
+    public static final HtOperatorTableSnapshot EMPTY =
+            new HtOperatorTableSnapshot(0, new int[1], new OpSymbolFunctor[FIXITIES], Collections.emptyMap());
+
+    private final long version;
+    /**
+     * The atom ids of the names of the operators plus one, placed by hash, with zero for an empty entry. At least half
+     * of the entries are empty, so that a probe soon ends.
+     */
+    private final int[] names;
+    /**
+     * The operators of the names, by the entry of the name and the fixity.
+     */
+    private final OpSymbolFunctor[] slots;
+    private final Map<Integer, Map<Fixity, OpSymbolFunctor>> byName;
+
+    private HtOperatorTableSnapshot(long version,
+                                    int[] names,
+                                    OpSymbolFunctor[] slots,
+                                    Map<Integer, Map<Fixity, OpSymbolFunctor>> byName) {
+        this.version = version;
+        this.names = names;
+        this.slots = slots;
+        this.byName = byName;
+    }
+
+    /**
+     * @return The version of the table, which goes up by one with every change.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Provides the operator of an atom id and fixity.
+     *
+     * @param name   The interned atom id of the name of the operator.
+     * @param fixity The fixity of the operator.
+     * @return The operator, or <tt>null</tt> if there is none.
+     */
+    public OpSymbolFunctor getOperator(int name, Fixity fixity) {
+        return (name < 0) ? null : slots[find(names, name) * FIXITIES + fixity.ordinal()];
+    }
+
+    /**
+     * Provides the operators of an atom id by fixity.
+     *
+     * @param name The interned atom id of the name of the operators.
+     * @return The operators by fixity, read only and empty if there are none.
+     */
+    public Map<Fixity, OpSymbolFunctor> getOperators(int name) {
+        final Map<Fixity, OpSymbolFunctor> map = byName.get(name);
+        return map == null ? Collections.emptyMap() : map;
+    }
+
+    /**
+     * Makes the next version of the table, with an operator defined, replacing any operator of the same name and
+     * fixity.
+     *
+     * @param name The interned atom id of the name of the operator.
+     * @param op   The operator.
+     * @return The next version of the table.
+     */
+    public HtOperatorTableSnapshot with(int name, OpSymbolFunctor op) {
+        return with(name, op.getFixity(), op);
+    }
+
+    /**
+     * Makes the next version of the table, with an operator removed.
+     *
+     * @param name   The interned atom id of the name of the operator.
+     * @param fixity The fixity of the operator.
+     * @return The next version of the table.
+     */
+    public HtOperatorTableSnapshot without(int name, Fixity fixity) {
+        return (getOperator(name, fixity) == null) ? this : with(name, fixity, null);
+    }
+
+    private HtOperatorTableSnapshot with(int name, Fixity fixity, OpSymbolFunctor op) {
+        if (name < 0) {
+            throw new IllegalArgumentException("The name of an operator must be an interned atom id.");
+        }
+
+        final EnumMap<Fixity, OpSymbolFunctor> ops = new EnumMap<>(Fixity.class);
+        ops.putAll(getOperators(name));
+        if (op == null) {
+            ops.remove(fixity);
+        } else {
+            ops.put(fixity, op);
+        }
+        final Map<Integer, Map<Fixity, OpSymbolFunctor>> byName = new HashMap<>(this.byName);
+        if (ops.isEmpty()) {
+            byName.remove(name);
+        } else {
+            byName.put(name, Collections.unmodifiableMap(ops));
+        }
+
+        // The hash table is rebuilt from the names left, so the names with no operators do not stay in it.
+        int capacity = 1;
+        while (capacity < 2 * byName.size() + 1) {
+            capacity <<= 1;
+        }
+        final int[] names = new int[capacity];
+        final OpSymbolFunctor[] slots = new OpSymbolFunctor[capacity * FIXITIES];
+        for (Map.Entry<Integer, Map<Fixity, OpSymbolFunctor>> entry : byName.entrySet()) {
+            final int i = find(names, entry.getKey());
+            names[i] = entry.getKey() + 1;
+            for (Map.Entry<Fixity, OpSymbolFunctor> o : entry.getValue().entrySet()) {
+                slots[i * FIXITIES + o.getKey().ordinal()] = o.getValue();
+            }
+        }
+
+        return new HtOperatorTableSnapshot(version + 1, names, slots, Collections.unmodifiableMap(byName));
+    }
+
+    /**
+     * Finds the entry of an atom id in a hash table of names.
+     *
+     * @param names The atom ids of the names plus one, by hash, with at least one empty entry.
+     * @param name  The atom id to find.
+     * @return The entry of the atom id, or the empty entry where it would go.
+     */
+    private static int find(int[] names, int name) {
+        final int mask = names.length - 1;
+        int h = name * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & mask;
+        while (names[i] != 0 && names[i] != name + 1) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+}
@@ -43,9 +43,49 @@ public interface IOperatorTable extends IHitalkObject {
     /**
      * Sets the priority and associativity of a named operator in this table. This method may be used to remove
      * operators by some implementations, through a special setting of the priority value.
+     *
+     * @param name          The interned atom id of the name of the operator, see {@link #getName(String)}.
+     * @param textName      The text name of the operator.
+     * @param priority      The priority of the operator.
+     * @param associativity The associativity of the operator.
      */
     void setOperator(int name, String textName, int priority, Associativity associativity);
 
+    /**
+     * Interns the name of an operator as an atom id, the key that operators are looked up by. Parsers intern the
+     * image of a token once, and then look up each of its fixities by the id.
+     *
+     * @param textName The text name of the operator.
+     * @return The interned atom id of the name.
+     */
+    int getName(String textName);
+
+    /**
+     * Provides the operator of a name and fixity.
+     *
+     * @param name   The interned atom id of the name of the operator.
+     * @param fixity The fixity of the operator.
+     * @return The operator, or <tt>null</tt> if there is none.
+     */
+    OpSymbolFunctor getOperator(int name, Fixity fixity);
+
+    /**
+     * Checks if there is an operator of any fixity by a name.
+     *
+     * @param name The interned atom id of the name.
+     * @return <tt>true</tt> iff an operator is defined by the name.
+     */
+    boolean isOperator(int name);
+
+    /**
+     * Provides the priority of the operator of a name and associativity.
+     *
+     * @param name          The interned atom id of the name of the operator.
+     * @param associativity The associativity of the operator.
+     * @return The priority of the operator, or <tt>-1</tt> if there is none.
+     */
+    int getPriority(int name, Associativity associativity);
+
     /**
      * Checks the operator table for all possible operators matching a given name.
      *
@@ -570,7 +570,7 @@ class BaseApp
         public IOperatorTable getOpTable() {
             IOperatorTable table = (IOperatorTable) appContext.get(OP_TABLE);
             if (table == null) {
-                table = new PlDynamicOperatorParser();
+                table = new PlDynamicOperatorParser(getInterner());
                 setOpTable(table);
             }
 
@@ -23,9 +23,19 @@ import org.ltc.hitalk.gnu.prolog.vm.Environment;
 import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Module in database
+ * <p>
+ * A module may be read and updated from several threads. Looking up a
+ * predicate takes no lock. Updates are serialized on the module, and a clause
+ * update also holds the lock of its {@link Predicate}, so that listeners get
+ * the events of a predicate in the order of the updates. Listeners are called
+ * with these locks held, and so must not wait for a thread which could be
+ * waiting for them; in particular a listener must not take a lock which is
+ * held while locking a module or a predicate.
  *
  * @author Contantine A Plotnikov
  */
@@ -33,7 +43,7 @@ public class Module {
     /**
      * map from tag to predicates
      */
-    protected Map<CompoundTermTag, Predicate> tag2predicate = new HashMap<>();
+    protected Map<CompoundTermTag, Predicate> tag2predicate = new ConcurrentHashMap<>();
 
     /**
      * initialization
@@ -64,7 +74,7 @@ public class Module {
      * @param tag tag of this predicate
      * @return predicate defined in this module or null if predicate is not found
      */
-    public synchronized Predicate getDefinedPredicate(CompoundTermTag tag) {
+    public Predicate getDefinedPredicate(CompoundTermTag tag) {
         Predicate p = tag2predicate.get(tag);
         if (p == null) {
             return null;
@@ -120,20 +130,34 @@ public class Module {
         return tag2predicate.keySet();
     }
 
-    protected List<PredicateListener> predicateListeners = new ArrayList<>();
+    protected List<PredicateListener> predicateListeners = new CopyOnWriteArrayList<>();
 
     public synchronized void predicateUpdated(CompoundTermTag tag) {
-        PredicateUpdatedEvent evt = new PredicateUpdatedEvent(this, tag);
-        for (PredicateListener listener : new ArrayList<>(predicateListeners)) {
+        fire(new PredicateUpdatedEvent(this, tag));
+    }
+
+    /**
+     * notify listeners that a single clause of a predicate was added or removed
+     *
+     * @param tag    tag of the predicate
+     * @param kind   kind of the change
+     * @param clause the clause which was added or removed
+     */
+    public synchronized void predicateUpdated(CompoundTermTag tag, PredicateUpdatedEvent.Kind kind, Term clause) {
+        fire(new PredicateUpdatedEvent(this, tag, kind, clause));
+    }
+
+    protected void fire(PredicateUpdatedEvent evt) {
+        for (PredicateListener listener : predicateListeners) {
             listener.predicateUpdated(evt);
         }
     }
 
-    public synchronized void addPredicateListener(PredicateListener listener) {
+    public void addPredicateListener(PredicateListener listener) {
         predicateListeners.add(listener);
     }
 
-    public synchronized void removePredicateListener(PredicateListener listener) {
+    public void removePredicateListener(PredicateListener listener) {
         predicateListeners.remove(listener);
     }
 }
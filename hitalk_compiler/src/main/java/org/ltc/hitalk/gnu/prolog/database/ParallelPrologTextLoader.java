@@ -0,0 +1,482 @@
+package org.ltc.hitalk.gnu.prolog.database;
+
+import org.ltc.hitalk.gnu.prolog.io.OperatorSet;
+import org.ltc.hitalk.gnu.prolog.io.ParseException;
+import org.ltc.hitalk.gnu.prolog.io.TermReader;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+import org.ltc.hitalk.gnu.prolog.vm.Environment;
+import org.ltc.hitalk.term.io.HtSourceBuffer;
+
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a prolog text like {@link PrologTextLoader}, but parses the clauses of
+ * large files in parallel. It is used for files loaded while the
+ * parallel_consult flag is on. Only the parsing is parallel: the clauses are
+ * still added to the database one by one, on the loading thread.
+ *
+ * The text is scanned for the ends of its clauses first. The directives at the
+ * head of the file are processed as usual, then the rest of the file is split
+ * at clause ends into parts which are parsed in a fork-join pool, each by a
+ * {@link TermReader} of its own with a copy of the operators as of the end of
+ * the head. The clauses of the parts are added in source order, so the result
+ * is the same as loading the file sequentially.
+ *
+ * That only holds if no directive after the head changes how the rest of the
+ * file is read, so files with a directive after the first clause, files with
+ * few clauses and files which cannot be split safely are loaded sequentially.
+ */
+public class ParallelPrologTextLoader extends PrologTextLoader
+{
+	/** fewest clauses after the head worth splitting */
+	protected static final int MIN_CLAUSES = 4096;
+	/** parts per thread of the pool, to even out the work */
+	protected static final int PARTS_PER_THREAD = 4;
+	/** chars which make up symbol tokens */
+	protected static final String SYMBOL_CHARS = "+-*/\\^<>=~:.?@#&$";
+
+	/** position of the term being processed once the parts are parsed */
+	protected int currentLine;
+	protected int currentColumn;
+
+	/**
+	 * The terms read from one part of the text, in order, together with the
+	 * position of the reader after each of them. A term which could not be
+	 * parsed is kept as its {@link ParseException}.
+	 */
+	protected static class Part
+	{
+		final List<Object> items = new ArrayList<Object>();
+		int[] lines = new int[64];
+		int[] columns = new int[64];
+
+		void add(Object item, int line, int column)
+		{
+			int i = items.size();
+			if (i == lines.length)
+			{
+				lines = Arrays.copyOf(lines, i * 2);
+				columns = Arrays.copyOf(columns, i * 2);
+			}
+			items.add(item);
+			lines[i] = line;
+			columns[i] = column;
+		}
+	}
+
+	/**
+	 * The clauses found by {@link ParallelPrologTextLoader#scan(char[])}, as
+	 * the offsets of their first chars and the offsets after their end tokens.
+	 */
+	protected static class Clauses
+	{
+		int[] starts = new int[1024];
+		int[] ends = new int[1024];
+		int count;
+
+		void add(int start, int end)
+		{
+			if (count == starts.length)
+			{
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			starts[count] = start;
+			ends[count] = end;
+			count++;
+		}
+	}
+
+	public ParallelPrologTextLoader(PrologTextLoaderState prologTextLoaderState, Term root)
+	{
+		super(prologTextLoaderState);
+		rootFile = prologTextLoaderState.getInputName(root);
+		currentFile = rootFile;
+		char[] text;
+		try
+		{
+			text = readText(prologTextLoaderState.getInputStream(root), ENCODING);
+		}
+		catch (Exception ex)
+		{
+			logError("could not open file \'" + currentFile + "\': " + ex.getMessage());
+			return;
+		}
+		processText(text);
+	}
+
+	@Override
+	public int getCurrentLine()
+	{
+		return currentReader != null ? super.getCurrentLine() : currentLine;
+	}
+
+	@Override
+	public int getCurrentColumn()
+	{
+		return currentReader != null ? super.getCurrentColumn() : currentColumn;
+	}
+
+	/**
+	 * read the whole text of a file, decoding it in bulk through a
+	 * {@link HtSourceBuffer}, which maps files rather than reading them
+	 *
+	 * @param stream
+	 * @param charset
+	 *          encoding of the text
+	 * @return the chars of the text
+	 * @throws IOException
+	 */
+	protected static char[] readText(InputStream stream, Charset charset) throws IOException
+	{
+		HtSourceBuffer source = stream instanceof FileInputStream ? new HtSourceBuffer(
+				((FileInputStream) stream).getChannel(), charset) : new HtSourceBuffer(Channels.newChannel(stream), charset);
+		try
+		{
+			CharArrayWriter writer = new CharArrayWriter(HtSourceBuffer.BUFFER_SIZE);
+			while (source.fill())
+			{
+				writer.write(source.chars, source.pos, source.limit - source.pos);
+				source.pos = source.limit;
+			}
+			return writer.toCharArray();
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+
+	/**
+	 * process the text of the root file, in parallel if it can be split
+	 *
+	 * @param text
+	 */
+	protected void processText(char[] text)
+	{
+		Environment environment = prologTextLoaderState.getEnvironment();
+		prologTextLoaderState.beforeProcessFile(this);
+		Clauses clauses = scan(text);
+		int head = clauses == null ? -1 : countHead(text, clauses);
+		if (head < 0 || clauses.count - head < MIN_CLAUSES)
+		{
+			currentReader = new TermReader(new CharArrayReader(text), environment);
+			processTerms();
+		}
+		else
+		{
+			int headEnd = head == 0 ? 0 : clauses.ends[head - 1];
+			currentReader = new TermReader(new CharArrayReader(text, 0, headEnd), environment);
+			processTerms();
+			currentFile = rootFile;
+			processParts(text, clauses, head);
+		}
+		prologTextLoaderState.afterProcessFile(this);
+	}
+
+	/**
+	 * parse the clauses after the head in parallel, and process them in order
+	 *
+	 * @param text
+	 * @param clauses
+	 * @param head
+	 *          number of clauses in the head
+	 */
+	protected void processParts(final char[] text, Clauses clauses, int head)
+	{
+		final Environment environment = prologTextLoaderState.getEnvironment();
+		int body = clauses.count - head;
+		int count = Math.min(body / PARTS_PER_THREAD, ForkJoinPool.commonPool().getParallelism() * PARTS_PER_THREAD);
+		List<Future<Part>> futures = new ArrayList<Future<Part>>(count);
+		int line = 1;
+		int lineStart = 0;
+		int counted = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int first = head + (int) ((long) i * body / count);
+			int next = head + (int) ((long) (i + 1) * body / count);
+			final int from = first == 0 ? 0 : clauses.ends[first - 1];
+			// the last part also gets whatever follows the last clause end
+			final int to = i == count - 1 ? text.length : clauses.ends[next - 1];
+			for (; counted < from; counted++)
+			{
+				if (text[counted] == '\n')
+				{
+					line++;
+					lineStart = counted + 1;
+				}
+			}
+			final int fromLine = line;
+			final int fromColumn = from - lineStart + 1;
+			final OperatorSet operators = operatorSet.copy();
+			futures.add(ForkJoinPool.commonPool().submit(new Callable<Part>()
+			{
+				public Part call() throws Exception
+				{
+					return parse(new TermReader(new CharArrayReader(text, from, to - from), fromLine, fromColumn,
+							environment), operators);
+				}
+			}));
+		}
+		try
+		{
+			for (Future<Part> future : futures)
+			{
+				Part part = future.get();
+				for (int i = 0; i < part.items.size(); i++)
+				{
+					currentLine = part.lines[i];
+					currentColumn = part.columns[i];
+					Object item = part.items.get(i);
+					if (item instanceof ParseException)
+					{
+						logError((ParseException) item);
+					}
+					else
+					{
+						processTerm((Term) item);
+					}
+				}
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			logError("loading was interrupted");
+		}
+		catch (ExecutionException ex)
+		{
+			cancel(futures);
+			logError("could not read file \'" + currentFile + "\': " + ex.getCause().getMessage());
+		}
+	}
+
+	private static void cancel(List<Future<Part>> futures)
+	{
+		for (Future<Part> future : futures)
+		{
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * read all terms of a part
+	 *
+	 * @param reader
+	 * @param operators
+	 *          operators of the part, not shared with other readers
+	 * @return the terms read
+	 * @throws Exception
+	 */
+	protected static Part parse(TermReader reader, OperatorSet operators) throws Exception
+	{
+		Part part = new Part();
+		while (true)
+		{
+			Term term;
+			try
+			{
+				term = reader.readTerm(operators);
+			}
+			catch (ParseException ex)
+			{
+				part.add(ex, ex.getLine(), ex.getColumn());
+				continue;
+			}
+			if (term == null)
+			{
+				return part;
+			}
+			part.add(term, reader.getCurrentLine(), reader.getCurrentColumn());
+		}
+	}
+
+	/**
+	 * count the directives at the head of the text
+	 *
+	 * @param text
+	 * @param clauses
+	 * @return the number of directives before the first clause, or -1 if there
+	 *         is a directive after it
+	 */
+	protected static int countHead(char[] text, Clauses clauses)
+	{
+		int head = 0;
+		while (head < clauses.count && isDirective(text, clauses.starts[head]))
+		{
+			head++;
+		}
+		for (int i = head; i < clauses.count; i++)
+		{
+			if (isDirective(text, clauses.starts[i]))
+			{
+				return -1;
+			}
+		}
+		return head;
+	}
+
+	private static boolean isDirective(char[] text, int start)
+	{
+		return start + 1 < text.length && (text[start] == ':' || text[start] == '?') && text[start + 1] == '-';
+	}
+
+	/**
+	 * find the clauses of a text by looking for end tokens outside of quoted
+	 * items and comments
+	 *
+	 * @param text
+	 * @return the clauses, or null if a quoted item or comment is not closed
+	 */
+	protected static Clauses scan(char[] text)
+	{
+		Clauses clauses = new Clauses();
+		int n = text.length;
+		int start = -1;
+		int i = 0;
+		while (i < n)
+		{
+			char c = text[i];
+			if (c == '%')
+			{
+				while (i < n && text[i] != '\n')
+				{
+					i++;
+				}
+				continue;
+			}
+			if (c == '/' && i + 1 < n && text[i + 1] == '*')
+			{
+				i = indexOfCommentEnd(text, i + 2);
+				if (i < 0)
+				{
+					return null;
+				}
+				continue;
+			}
+			if (Character.isWhitespace(c))
+			{
+				i++;
+				continue;
+			}
+			if (start < 0)
+			{
+				start = i;
+			}
+			if (c == '\'' || c == '"' || c == '`')
+			{
+				i = skipQuoted(text, i);
+				if (i < 0)
+				{
+					return null;
+				}
+			}
+			else if (Character.isLetterOrDigit(c) || c == '_')
+			{
+				int j = i + 1;
+				while (j < n && (Character.isLetterOrDigit(text[j]) || text[j] == '_'))
+				{
+					j++;
+				}
+				i = c == '0' && j == i + 1 && j < n && text[j] == '\'' ? skipCharCode(text, j + 1) : j;
+			}
+			else if (SYMBOL_CHARS.indexOf(c) >= 0)
+			{
+				int j = i + 1;
+				while (j < n && SYMBOL_CHARS.indexOf(text[j]) >= 0 && !(text[j] == '/' && j + 1 < n && text[j + 1] == '*'))
+				{
+					j++;
+				}
+				if (c == '.' && j == i + 1 && (j == n || Character.isWhitespace(text[j]) || text[j] == '%'))
+				{
+					clauses.add(start, j);
+					start = -1;
+				}
+				i = j;
+			}
+			else
+			{
+				i++;
+			}
+		}
+		return clauses;
+	}
+
+	private static int indexOfCommentEnd(char[] text, int i)
+	{
+		for (; i + 1 < text.length; i++)
+		{
+			if (text[i] == '*' && text[i + 1] == '/')
+			{
+				return i + 2;
+			}
+		}
+		return -1;
+	}
+
+	private static int skipQuoted(char[] text, int i)
+	{
+		char quote = text[i++];
+		while (i < text.length)
+		{
+			char c = text[i];
+			if (c == '\\')
+			{
+				i += 2;
+			}
+			else if (c != quote)
+			{
+				i++;
+			}
+			else if (i + 1 < text.length && text[i + 1] == quote)
+			{
+				i += 2;
+			}
+			else
+			{
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private static int skipCharCode(char[] text, int i)
+	{
+		if (i >= text.length)
+		{
+			return i;
+		}
+		if (text[i] == '\\')
+		{
+			i++;
+			if (i < text.length && (text[i] == 'x' || Character.isDigit(text[i])))
+			{
+				// numeric escape, closed by a backslash
+				while (i < text.length && text[i] != '\\')
+				{
+					i++;
+				}
+			}
+			return i + 1;
+		}
+		if (text[i] == '\'' && i + 1 < text.length && text[i + 1] == '\'')
+		{
+			return i + 2;
+		}
+		return i + 1;
+	}
+}
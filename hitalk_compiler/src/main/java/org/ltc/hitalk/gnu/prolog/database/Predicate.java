@@ -65,6 +65,10 @@ public class Predicate
 	protected CompoundTermTag tag;
 	/** list of clauses for this predicate */
 	protected List<Term> clauses = synchronizedList(new ArrayList<>());
+	/** the clauses which were not removed, by identity */
+	protected Set<Term> liveClauses = Collections.newSetFromMap(new IdentityHashMap<>());
+	/** number of removed clauses still in the list of clauses */
+	protected int removedClauses;
 	/** flag which indicate that clauses was added for this predicate */
 	protected boolean propertiesLocked = false;
 	/** dynamic property of predicate */
@@ -95,10 +99,18 @@ public class Predicate
 	 * although it is a synchronized list you are getting a unmodifiable view of
 	 * that list.
 	 * 
+	 * Removed clauses are dropped from the list when it is next asked for, so
+	 * the list is only up to date when it is taken after the last change.
+	 * 
 	 * @return an unmodifiable list of the clauses of the {@link Predicate}
 	 * */
 	public synchronized List<Term> getClauses()
 	{
+		if (removedClauses > 0)
+		{
+			clauses.removeIf(clause -> !liveClauses.contains(clause));
+			removedClauses = 0;
+		}
 		return Collections.unmodifiableList(clauses);
 	}
 
@@ -211,7 +223,8 @@ public class Predicate
 		}
 		propertiesLocked = true;
 		clauses.add(clause);
-		module.predicateUpdated(tag);
+		liveClauses.add(clause);
+		module.predicateUpdated(tag, PredicateUpdatedEvent.Kind.CLAUSE_ADDED_LAST, clause);
 	}
 
 	/**
@@ -237,20 +250,30 @@ public class Predicate
 		{
 			clauses.add(0, clause);
 		}
-		module.predicateUpdated(tag);
+		liveClauses.add(clause);
+		module.predicateUpdated(tag, PredicateUpdatedEvent.Kind.CLAUSE_ADDED_FIRST, clause);
 	}
 
 	/**
-	 * Remove clause for predicate. This method remove first clause which is
-	 * identical to clause.
+	 * Remove clause for predicate. This method remove the clause which is the
+	 * very term passed, not merely an equal one. The clause is looked up by
+	 * identity rather than searched for, and is only dropped from the list of
+	 * clauses when the list is next asked for, so that retracting the clauses
+	 * of a predicate one by one does not shift the list on every clause.
 	 * 
 	 * @param clause
 	 *          a clause to remove
+	 * @return true if the clause was removed, false if it was not there
 	 */
-	public synchronized void removeClause(Term clause)
+	public synchronized boolean removeClause(Term clause)
 	{
-		clauses.remove(clause);
-		module.predicateUpdated(tag);
+		if (!liveClauses.remove(clause))
+		{
+			return false;
+		}
+		removedClauses++;
+		module.predicateUpdated(tag, PredicateUpdatedEvent.Kind.CLAUSE_REMOVED, clause);
+		return true;
 	}
 
 	/**
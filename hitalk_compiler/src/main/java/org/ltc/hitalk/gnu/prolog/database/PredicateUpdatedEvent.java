@@ -18,18 +18,45 @@
 package org.ltc.hitalk.gnu.prolog.database;
 
 import org.ltc.hitalk.gnu.prolog.term.CompoundTermTag;
+import org.ltc.hitalk.gnu.prolog.term.Term;
 
 /** event notifying about event with predicates */
 public class PredicateUpdatedEvent extends java.util.EventObject
 {
 	private static final long serialVersionUID = -7290433520091984961L;
 
+	/**
+	 * The kinds of change to a predicate
+	 */
+	public enum Kind
+	{
+		/** the predicate was defined, removed or changed as a whole */
+		REDEFINED,
+		/** a clause was added at the beginning of the predicate */
+		CLAUSE_ADDED_FIRST,
+		/** a clause was added at the end of the predicate */
+		CLAUSE_ADDED_LAST,
+		/** a clause was removed from the predicate */
+		CLAUSE_REMOVED
+	}
+
 	protected CompoundTermTag tag;
 
+	protected Kind kind;
+
+	protected transient Term clause;
+
 	protected PredicateUpdatedEvent(Module module, CompoundTermTag tag)
+	{
+		this(module, tag, Kind.REDEFINED, null);
+	}
+
+	protected PredicateUpdatedEvent(Module module, CompoundTermTag tag, Kind kind, Term clause)
 	{
 		super(module);
 		this.tag = tag;
+		this.kind = kind;
+		this.clause = clause;
 	}
 
 	/**
@@ -42,6 +69,27 @@ public class PredicateUpdatedEvent extends java.util.EventObject
 		return tag;
 	}
 
+	/**
+	 * get kind of change to the predicate
+	 * 
+	 * @return the kind of change to the predicate
+	 */
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	/**
+	 * get clause which was added or removed
+	 * 
+	 * @return the clause which was added or removed, or null if the predicate
+	 *         was changed as a whole
+	 */
+	public Term getClause()
+	{
+		return clause;
+	}
+
 	/**
 	 * get module of changed predicate
 	 * 
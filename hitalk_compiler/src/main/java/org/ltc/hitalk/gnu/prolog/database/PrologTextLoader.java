@@ -28,6 +28,8 @@ import org.ltc.hitalk.gnu.prolog.vm.TermConstants;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Stack;
 
 import static org.ltc.hitalk.gnu.prolog.database.Predicate.TYPE.BUILT_IN;
@@ -58,6 +60,8 @@ public class PrologTextLoader
 	protected OperatorSet operatorSet = new OperatorSet();
 	/** prolog text loader state */
 	protected PrologTextLoaderState prologTextLoaderState;
+	/** encoding of the files loaded, whatever the platform default is */
+	public static final Charset ENCODING = StandardCharsets.UTF_8;
 
 	// tags used in loader
 	public static final CompoundTermTag includeTag = CompoundTermTag.get("include", 1);
@@ -92,7 +96,7 @@ public class PrologTextLoader
 		currentFile = rootFile;
 		try
 		{
-			currentReader = new TermReader(new InputStreamReader(prologTextLoaderState.getInputStream(root)),
+			currentReader = new TermReader(new InputStreamReader(prologTextLoaderState.getInputStream(root), ENCODING),
 					prologTextLoaderState.getEnvironment());
 		}
 		catch (Exception ex)
@@ -191,6 +195,15 @@ public class PrologTextLoader
 	protected void processFile()
 	{
 		prologTextLoaderState.beforeProcessFile(this);
+		processTerms();
+		prologTextLoaderState.afterProcessFile(this);
+	}
+
+	/**
+	 * read and process terms until the end of the root file
+	 */
+	protected void processTerms()
+	{
 		while (currentReader != null)
 		{
 			Term term;
@@ -208,87 +221,100 @@ public class PrologTextLoader
 			{
 				processEof();
 			}
-			else if (term instanceof AtomTerm)
+			else
+			{
+				processTerm(term);
+			}
+		}
+	}
+
+	/**
+	 * process a clause or directive
+	 * 
+	 * @param term
+	 *          the term read
+	 */
+	protected void processTerm(Term term)
+	{
+		if (term instanceof AtomTerm)
+		{
+			processClause(term);
+		}
+		else if (term instanceof CompoundTerm)
+		{
+			CompoundTerm cterm = (CompoundTerm) term;
+			if (cterm.tag != TermConstants.directiveTag)
 			{
 				processClause(term);
 			}
-			else if (term instanceof CompoundTerm)
+			else
 			{
-				CompoundTerm cterm = (CompoundTerm) term;
-				if (cterm.tag != TermConstants.directiveTag)
+				if (!(cterm.args[0] instanceof CompoundTerm))
 				{
-					processClause(term);
+					logError("invalid directive term");
+					return;
 				}
-				else
+				CompoundTerm dirTerm = (CompoundTerm) cterm.args[0];
+				CompoundTermTag dirTag = dirTerm.tag;
+				if (dirTag == includeTag)
 				{
-					if (!(cterm.args[0] instanceof CompoundTerm))
-					{
-						logError("invalid directive term");
-						continue;
-					}
-					CompoundTerm dirTerm = (CompoundTerm) cterm.args[0];
-					CompoundTermTag dirTag = dirTerm.tag;
-					if (dirTag == includeTag)
-					{
-						processIncludeDirective(dirTerm.args[0]);
-					}
-					else if (dirTag == multifileTag)
-					{
-						processMultifileDirective(dirTerm.args[0]);
-					}
-					else if (dirTag == dynamicTag)
-					{
-						processDynamicDirective(dirTerm.args[0]);
-					}
-					else if (dirTag == discontiguousTag)
-					{
-						processDiscontiguousDirective(dirTerm.args[0]);
-					}
-					else if (dirTag == opTag)
-					{
-						processOpDirective(dirTerm.args[0], dirTerm.args[1], dirTerm.args[2]);
-					}
-					else if (dirTag == char_conversionTag)
-					{
-						processCharConversionDirective(dirTerm.args[0], dirTerm.args[1]);
-					}
-					else if (dirTag == initializationTag)
-					{
-						processInitializationDirective(dirTerm.args[0]);
-					}
-					else if (dirTag == ensure_loadedTag)
-					{
-						processEnsureLoadedDirective(dirTerm.args[0]);
-					}
-					else if (dirTag == set_prolog_flagTag)
-					{
-						processSetPrologFlagDirective(dirTerm.args[0], dirTerm.args[1]);
-					}
-					else if (dirTag == externalTag)
-					{
-						processExternalDirective(dirTerm.args[0], dirTerm.args[1]);
-					}
-					else if (dirTag == controlTag)
-					{
-						processControlDirective(dirTerm.args[0], dirTerm.args[1]);
-					}
-					else if (dirTag == build_inTag)
-					{
-						processBuildInDirective(dirTerm.args[0], dirTerm.args[1]);
-					}
-					else
-					{// treat it as a goal to run at runtime not in ISO but common
-						// (NONISO)
-						processInitializationDirective(dirTerm);
-					}
+					processIncludeDirective(dirTerm.args[0]);
+				}
+				else if (dirTag == multifileTag)
+				{
+					processMultifileDirective(dirTerm.args[0]);
+				}
+				else if (dirTag == dynamicTag)
+				{
+					processDynamicDirective(dirTerm.args[0]);
+				}
+				else if (dirTag == discontiguousTag)
+				{
+					processDiscontiguousDirective(dirTerm.args[0]);
+				}
+				else if (dirTag == opTag)
+				{
+					processOpDirective(dirTerm.args[0], dirTerm.args[1], dirTerm.args[2]);
+				}
+				else if (dirTag == char_conversionTag)
+				{
+					processCharConversionDirective(dirTerm.args[0], dirTerm.args[1]);
+				}
+				else if (dirTag == initializationTag)
+				{
+					processInitializationDirective(dirTerm.args[0]);
+				}
+				else if (dirTag == ensure_loadedTag)
+				{
+					processEnsureLoadedDirective(dirTerm.args[0]);
+				}
+				else if (dirTag == set_prolog_flagTag)
+				{
+					processSetPrologFlagDirective(dirTerm.args[0], dirTerm.args[1]);
+				}
+				else if (dirTag == externalTag)
+				{
+					processExternalDirective(dirTerm.args[0], dirTerm.args[1]);
+				}
+				else if (dirTag == controlTag)
+				{
+					processControlDirective(dirTerm.args[0], dirTerm.args[1]);
+				}
+				else if (dirTag == build_inTag)
+				{
+					processBuildInDirective(dirTerm.args[0], dirTerm.args[1]);
+				}
+				else
+				{// treat it as a goal to run at runtime not in ISO but common
+					// (NONISO)
+					processInitializationDirective(dirTerm);
 				}
-			}
-			else
-			{
-				logError("term is not a clause or directive");
 			}
 		}
-		prologTextLoaderState.afterProcessFile(this);
+		else
+		{
+			logError("term is not a clause or directive");
+		}
 	}
 
 	protected void processSetPrologFlagDirective(Term arg0, Term arg1)
@@ -469,7 +495,7 @@ public class PrologTextLoader
 		try
 		{
 			prologTextLoaderState.beforeIncludeFile(this, argument);
-			TermReader reader = new TermReader(new InputStreamReader(prologTextLoaderState.getInputStream(argument)),
+			TermReader reader = new TermReader(new InputStreamReader(prologTextLoaderState.getInputStream(argument), ENCODING),
 					prologTextLoaderState.getEnvironment());
 			readerStack.push(currentReader);
 			fileStack.push(currentFile);
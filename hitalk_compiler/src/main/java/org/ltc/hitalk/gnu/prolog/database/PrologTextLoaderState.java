@@ -378,7 +378,14 @@ public class PrologTextLoaderState implements PrologTextLoaderListener, HasEnvir
 		if (!loadedFiles.contains(getInputName(term)))
 		{
 			loadedFiles.add(getInputName(term));
-			new PrologTextLoader(this, term);
+			if (getEnvironment().getPrologFlag(Environment.parallelConsultAtom) == Environment.onAtom)
+			{
+				new ParallelPrologTextLoader(this, term);
+			}
+			else
+			{
+				new PrologTextLoader(this, term);
+			}
 		}
 	}
 
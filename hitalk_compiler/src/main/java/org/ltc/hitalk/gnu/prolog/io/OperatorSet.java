@@ -18,6 +18,7 @@
 package org.ltc.hitalk.gnu.prolog.io;
 
 import org.ltc.hitalk.gnu.prolog.io.Operator.SPECIFIER;
+import org.ltc.hitalk.gnu.prolog.term.AtomTerm;
 import org.ltc.hitalk.gnu.prolog.term.CompoundTermTag;
 
 import java.util.*;
@@ -25,35 +26,179 @@ import java.util.*;
 /**
  * Stores the current {@link Operator Operators}.
  * 
+ * The operators are kept in an immutable table, which is replaced by a new
+ * version when an operator is added or removed. Lookups read the current
+ * version without locking, so parsers in several threads can share one set,
+ * and a copy of the set shares the table until either of them changes.
+ * 
+ * The table is keyed by the {@link AtomTerm#id id} of the atom naming the
+ * operator, in a small open addressed hash table with a prefix and an
+ * infix/postfix slot for each name, so that looking an atom up is a few array
+ * reads. Atom ids are global and never reused, so an array indexed by the ids
+ * themselves would grow with every atom ever made rather than with the
+ * operators.
  */
 final public class OperatorSet
 {
-	static class OperatorLevel
+	/** slot of prefix operators */
+	static final int FX = 0;
+	/** slot of infix and postfix operators */
+	static final int XF = 1;
+	/** number of slots of each atom */
+	static final int SLOTS = 2;
+
+	/**
+	 * A version of the operators. Neither the table nor the arrays in it change
+	 * once the table is published.
+	 */
+	static final class Table
 	{
-		OperatorLevel(int p)
+		static final Table EMPTY = new Table(0, new int[1], new Operator[SLOTS], new int[0]);
+
+		final long version;
+		/**
+		 * the ids of the names of the operators plus one, by hash, with zero for
+		 * an empty entry. At least half of the entries are empty.
+		 */
+		final int[] names;
+		/**
+		 * operators of the names, in the {@link OperatorSet#FX} and
+		 * {@link OperatorSet#XF} slots of the entry of their name
+		 */
+		final Operator[] ops;
+		/** priorities of the operators, ascending */
+		final int[] levels;
+
+		Table(long version, int[] names, Operator[] ops, int[] levels)
+		{
+			this.version = version;
+			this.names = names;
+			this.ops = ops;
+			this.levels = levels;
+		}
+
+		/**
+		 * get the entry of a name
+		 * 
+		 * @param id
+		 *          id of the name
+		 * @return the entry of the name, or the empty entry where it would go
+		 */
+		int find(int id)
+		{
+			int mask = names.length - 1;
+			int i = hash(id) & mask;
+			while (names[i] != 0 && names[i] != id + 1)
+			{
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		Operator get(AtomTerm name, int slot)
 		{
-			priority = p;
-			// usage = 0;
+			return ops[find(name.id) * SLOTS + slot];
 		}
 
-		int priority;
-		// int usage;
+		/**
+		 * make the next version of the table with a slot of a name set
+		 * 
+		 * @param name
+		 * @param slot
+		 * @param op
+		 *          operator to set or null to clear the slot
+		 * @param levels
+		 *          priorities of the next version
+		 * @return the next version
+		 */
+		Table with(AtomTerm name, int slot, Operator op, int[] levels)
+		{
+			Operator[] entry = new Operator[SLOTS];
+			System.arraycopy(ops, find(name.id) * SLOTS, entry, 0, SLOTS);
+			entry[slot] = op;
+			// the names left with no operators are dropped, so the table is rebuilt
+			int count = entry[FX] != null || entry[XF] != null ? 1 : 0;
+			for (int i = 0; i < names.length; i++)
+			{
+				if (names[i] != 0 && names[i] != name.id + 1)
+				{
+					count++;
+				}
+			}
+			int capacity = 1;
+			while (capacity < 2 * count + 1)
+			{
+				capacity <<= 1;
+			}
+			Table table = new Table(version + 1, new int[capacity], new Operator[capacity * SLOTS], levels);
+			for (int i = 0; i < names.length; i++)
+			{
+				if (names[i] != 0 && names[i] != name.id + 1)
+				{
+					table.put(names[i] - 1, ops, i * SLOTS);
+				}
+			}
+			if (entry[FX] != null || entry[XF] != null)
+			{
+				table.put(name.id, entry, 0);
+			}
+			return table;
+		}
+
+		/**
+		 * add a name to a table which is not published yet
+		 */
+		private void put(int id, Operator[] from, int offset)
+		{
+			int i = find(id);
+			names[i] = id + 1;
+			System.arraycopy(from, offset, ops, i * SLOTS, SLOTS);
+		}
+
+		private static int hash(int id)
+		{
+			int h = id * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	volatile Table table = Table.EMPTY;
+
+	public Operator lookupXf(AtomTerm value)
+	{
+		return lookup(value, XF);
+	}
+
+	public Operator lookupFx(AtomTerm value)
+	{
+		return lookup(value, FX);
 	}
 
-	List<OperatorLevel> priorityLevels = new ArrayList<>();
-	Map<String, Operator> xfOps = new HashMap<>();
-	Map<String, Operator> fxOps = new HashMap<>();
+	public Operator lookupXf(String value)
+	{
+		return lookupXf(AtomTerm.get(value));
+	}
 
-	public synchronized Operator lookupXf(String value)
+	public Operator lookupFx(String value)
 	{
-		Operator op = xfOps.get(value);
-		return op != null ? op :Operator.nonOperator;
+		return lookupFx(AtomTerm.get(value));
 	}
 
-	public synchronized Operator lookupFx(String value)
+	private Operator lookup(AtomTerm value, int slot)
 	{
-		Operator op = fxOps.get(value);
-		return op != null ? op :Operator.nonOperator;
+		Operator op = table.get(value, slot);
+		return op != null ? op : Operator.nonOperator;
+	}
+
+	/**
+	 * get the version of the operators, which changes whenever an operator is
+	 * added or removed
+	 * 
+	 * @return the version of the operators
+	 */
+	public long getVersion()
+	{
+		return table.version;
 	}
 
 	/**
@@ -61,35 +206,71 @@ final public class OperatorSet
 	 * 
 	 * @return all the operators currently in the set
 	 */
-	public synchronized Set<Operator> getOperators()
+	public Set<Operator> getOperators()
 	{
 		Set<Operator> rc = new HashSet<Operator>();
-		rc.addAll(fxOps.values());
-		rc.addAll(xfOps.values());
+		for (Operator op : table.ops)
+		{
+			if (op != null)
+			{
+				rc.add(op);
+			}
+		}
 		return rc;
 	}
 
 	/**
-	 * remove operator from operator set
+	 * get the slot of operators of a specifier
 	 * 
 	 * @param specifier
-	 * @param name
+	 * @return the slot, or -1 for none
 	 */
-	public synchronized void remove(SPECIFIER specifier, String name)
+	private static int slotOf(SPECIFIER specifier)
 	{
 		switch (specifier)
 		{
 			case fx:
 			case fy:
-				fxOps.remove(name);
-				break;
+				return FX;
 			case xf:
 			case yf:
 			case xfx:
 			case xfy:
 			case yfx:
-				xfOps.remove(name);
-				break;
+				return XF;
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * publish the next version of the operators with a slot of a name set
+	 * 
+	 * @param name
+	 * @param slot
+	 * @param op
+	 *          operator to set or null to clear the slot
+	 * @param levels
+	 *          priorities of the next version
+	 */
+	private void put(AtomTerm name, int slot, Operator op, int[] levels)
+	{
+		table = table.with(name, slot, op, levels);
+	}
+
+	/**
+	 * remove operator from operator set
+	 * 
+	 * @param specifier
+	 * @param name
+	 */
+	public synchronized void remove(SPECIFIER specifier, String name)
+	{
+		int slot = slotOf(specifier);
+		AtomTerm atom = AtomTerm.get(name);
+		if (slot >= 0 && table.get(atom, slot) != null)
+		{
+			put(atom, slot, null, table.levels);
 		}
 	}
 
@@ -103,87 +284,65 @@ final public class OperatorSet
 	 */
 	public synchronized Operator add(int priority, SPECIFIER specifier, String name)
 	{
-		int i, n = priorityLevels.size();
-		// System.out.println(name+" prio:" + priority+ " priolvs:"+n);
-		OperatorLevel ol = null;
-		int nlv = 0;
-		for (i = n - 1; i >= 0; i--)
-		{
-			ol = priorityLevels.get(i);
-			if (ol.priority == priority)
-			{
-				nlv = i;
-				break;
-			}
-			else if (ol.priority < priority)
-			{
-				nlv = i + 1;
-				ol = new OperatorLevel(priority);
-				if (nlv == n) // w/a
-				{
-					priorityLevels.add(ol);
-				}
-				else
-				{
-					priorityLevels.add(nlv, ol);
-				}
-				break;
-			}
-		}
+		int[] levels = table.levels;
+		int i = Arrays.binarySearch(levels, priority);
 		if (i < 0)
 		{
-			nlv = 0;
-			ol = new OperatorLevel(priority);
-			if (priorityLevels.size() == 0) // w/a
-			{
-				priorityLevels.add(ol);
-			}
-			else
-			{
-				priorityLevels.add(nlv, ol);
-			}
+			i = -i - 1;
+			int[] newLevels = new int[levels.length + 1];
+			System.arraycopy(levels, 0, newLevels, 0, i);
+			newLevels[i] = priority;
+			System.arraycopy(levels, i, newLevels, i + 1, levels.length - i);
+			levels = newLevels;
 		}
-		// ol.usage++;
 
 		Operator op = new Operator(name, specifier, priority);
 
-		switch (specifier)
+		int slot = slotOf(specifier);
+		if (slot >= 0)
 		{
-			case fx:
-			case fy:
-				fxOps.put(name, op);
-				break;
-			case xf:
-			case yf:
-			case xfx:
-			case xfy:
-			case yfx:
-				xfOps.put(name, op);
-				break;
+			// the tag of the operator keeps its atom, and so the id of the atom
+			put(op.tag.functor, slot, op, levels);
+		}
+		else if (levels != table.levels)
+		{
+			table = new Table(table.version + 1, table.names, table.ops, levels);
 		}
 		return op;
 	}
 
-	public synchronized int getNextLevel(int priority)
+	/**
+	 * copy the operator set, for a reader which should not see later changes.
+	 * The copy shares the current version of the operators, so it is cheap.
+	 * 
+	 * @return a new operator set with the same operators
+	 */
+	public OperatorSet copy()
+	{
+		OperatorSet set = new OperatorSet(false);
+		set.table = table;
+		return set;
+	}
+
+	public int getNextLevel(int priority)
 	{
-		int i, n = priorityLevels.size();
-		for (i = n - 1; i >= 0; i--)
+		int[] levels = table.levels;
+		for (int i = levels.length - 1; i >= 0; i--)
 		{
-			int p = (priorityLevels.get(i)).priority;
-			if (p <= priority)
+			if (levels[i] <= priority)
 			{
-				return p;
+				return levels[i];
 			}
 		}
 		return 0;
 	}
 
-	public synchronized int getCommaLevel()
+	public int getCommaLevel()
 	{
 		return 1000;
 	}
 
-	public synchronized int getMaxLevel()
+	public int getMaxLevel()
 	{
 		return 1200;
 	}
@@ -252,14 +411,14 @@ final public class OperatorSet
 		add(100, SPECIFIER.xfx, "@");
 	}
 
-	public synchronized Operator getOperatorForTag(CompoundTermTag tag)
+	public Operator getOperatorForTag(CompoundTermTag tag)
 	{
 		if (tag.arity == 1)
 		{
-			Operator op = lookupFx(tag.functor.value);
+			Operator op = lookupFx(tag.functor);
 			if (op ==Operator.nonOperator)
 			{
-				op = lookupXf(tag.functor.value);
+				op = lookupXf(tag.functor);
 			}
 			if (op.tag != tag)
 			{
@@ -269,7 +428,7 @@ final public class OperatorSet
 		}
 		if (tag.arity == 2)
 		{
-			Operator op = lookupXf(tag.functor.value);
+			Operator op = lookupXf(tag.functor);
 			if (op.tag != tag)
 			{
 				op =Operator.nonOperator;
@@ -186,6 +186,10 @@ public class TermWriter extends PrintWriter
 		{
 			displayInteger(options, (IntegerTerm) term);
 		}
+		else if (term instanceof BigIntegerTerm)
+		{
+			displayBigInteger(options, (BigIntegerTerm) term);
+		}
 		else if (term instanceof FloatTerm)
 		{
 			displayFloat(options, (FloatTerm) term);
@@ -383,6 +387,19 @@ public class TermWriter extends PrintWriter
 		print(term.value);
 	}
 
+	/**
+	 * display integer term too large for 32 bits
+	 * 
+	 * @param options
+	 *          current write options
+	 * @param term
+	 *          integer term to write
+	 */
+	protected void displayBigInteger(WriteOptions options, BigIntegerTerm term)
+	{
+		print(term.value.toString());
+	}
+
 	/**
 	 * display variable term
 	 * 
@@ -446,8 +463,8 @@ public class TermWriter extends PrintWriter
 
 	protected static boolean isOperator(OperatorSet set, AtomTerm term)
 	{
-		Operator fxOp = set.lookupFx(term.value);
-		Operator xfOp = set.lookupXf(term.value);
+		Operator fxOp = set.lookupFx(term);
+		Operator xfOp = set.lookupXf(term);
 		return fxOp != Operator.nonOperator || xfOp != Operator.nonOperator;
 	}
 
@@ -343,12 +343,12 @@ public class TermParser implements TermParserConstants {
                 while (true) {
                     Token tk = getToken(1);
                     if ((tk.kind == INTEGER_TOKEN || tk.kind == FLOAT_NUMBER_TOKEN) && tk.image.charAt(0) == '-') {
-                        if (options.operatorSet.lookupXf("-") == Operator.nonOperator) {
+                        if (options.operatorSet.lookupXf(CompoundTermTag.minus2.functor) == Operator.nonOperator) {
                             break;
                         }
                         if (tk.kind == INTEGER_TOKEN) {
                             jj_consume_token(INTEGER_TOKEN);
-                            t1 = createTerm(CompoundTermTag.minus2, t1, IntegerTerm.get(-IntegerTerm.get(tk.image).value));
+                            t1 = createTerm(CompoundTermTag.minus2, t1, BigIntegerTerm.negate(BigIntegerTerm.parse(tk.image)));
                         } else {
                             jj_consume_token(FLOAT_NUMBER_TOKEN);
                             t1 = createTerm(CompoundTermTag.minus2, t1, new FloatTerm(-new FloatTerm(tk.image).value));
@@ -533,11 +533,11 @@ public class TermParser implements TermParserConstants {
         throw new Error("Missing return statement in function");
     }
 
-    final public IntegerTerm integer() throws ParseException {
+    final public NumericTerm integer() throws ParseException {
         jj_consume_token(INTEGER_TOKEN);
         {
             if (true) {
-                return IntegerTerm.get(token.image);
+                return BigIntegerTerm.parse(token.image);
             }
         }
         throw new Error("Missing return statement in function");
@@ -17,8 +17,7 @@
  */
 package org.ltc.hitalk.gnu.prolog.term;
 
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Atom term. The objects of this class represent prolog atoms. This
@@ -32,7 +31,21 @@ public class AtomTerm extends AtomicTerm
 	private static final long serialVersionUID = -7013961090908432585L;
 
 	/** a map from string to atom */
-	private final static Map<String, AtomTerm> string2atom = new WeakHashMap<>();
+	private final static WeakInternTable<String, AtomTerm> string2atom = new WeakInternTable<String, AtomTerm>(1024);
+
+	/** source of the ids of atoms */
+	private final static AtomicInteger ids = new AtomicInteger();
+
+	/** atoms of one character in the Latin-1 range, by character */
+	private final static AtomTerm[] char2atom = new AtomTerm[256];
+
+	static
+	{
+		for (char ch = 0; ch < char2atom.length; ch++)
+		{
+			char2atom[ch] = get(String.valueOf(ch));
+		}
+	}
 
 	/**
 	 * get atom term
@@ -43,20 +56,14 @@ public class AtomTerm extends AtomicTerm
 	 */
 	public static AtomTerm get(String s)
 	{
-		synchronized (string2atom)
+		AtomTerm atom = string2atom.get(s);
+		if (atom == null)
 		{
-			AtomTerm atom = string2atom.get(s);
-			if (atom == null)
-			{
-				atom = new AtomTerm(s);
-				string2atom.put(s, atom);
-			}
-			return atom;
+			atom = string2atom.intern(s, new AtomTerm(s));
 		}
+		return atom;
 	}
 
-	private static StringBuffer chbu = new StringBuffer(1);
-
 	/**
 	 * get atom term
 	 * 
@@ -66,12 +73,11 @@ public class AtomTerm extends AtomicTerm
 	 */
 	public static final AtomTerm get(char ch)
 	{
-		synchronized (chbu)
+		if (ch < char2atom.length)
 		{
-			chbu.setLength(0);
-			chbu.append(ch);
-			return get(chbu.toString());
+			return char2atom[ch];
 		}
+		return get(String.valueOf(ch));
 	}
 
 	/**
@@ -88,6 +94,15 @@ public class AtomTerm extends AtomicTerm
 	/** value of atom */
 	final public String value;
 
+	/**
+	 * id of atom, small and distinct for each atom, so that tables keyed by atoms
+	 * can be arrays. An atom which is collected and interned again gets a new id.
+	 */
+	final public transient int id;
+
+	/** tags with this atom as functor, see {@link CompoundTermTag#get(AtomTerm, int)} */
+	transient volatile CompoundTermTag[] tags;
+
 	/**
 	 * a constructor.
 	 * 
@@ -97,6 +112,7 @@ public class AtomTerm extends AtomicTerm
 	protected AtomTerm(String value) // constructor is private to package
 	{
 		this.value = value;
+		this.id = ids.getAndIncrement();
 	}
 
 	/**
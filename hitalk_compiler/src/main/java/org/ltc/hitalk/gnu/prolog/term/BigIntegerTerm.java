@@ -0,0 +1,211 @@
+package org.ltc.hitalk.gnu.prolog.term;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Integer term for values outside the 32bit range of {@link IntegerTerm}.
+ * Integers are always normalized: a value which fits in 32 bits is an
+ * {@link IntegerTerm}, anything else is a BigIntegerTerm. So the small
+ * integer path never sees this class, and two integers are equal exactly when
+ * they are of the same class with equal values. Use the <code>valueOf</code>
+ * methods rather than the constructor to keep them normalized.
+ */
+public class BigIntegerTerm extends NumericTerm
+{
+	private static final long serialVersionUID = -1437250372717435213L;
+
+	private static final BigInteger MIN_INT = BigInteger.valueOf(Integer.MIN_VALUE);
+	private static final BigInteger MAX_INT = BigInteger.valueOf(Integer.MAX_VALUE);
+
+	/** value of integer */
+	public final BigInteger value;
+
+	/**
+	 * a constructor
+	 *
+	 * @param value
+	 *          value of term, which must not fit in 32 bits
+	 */
+	protected BigIntegerTerm(BigInteger value)
+	{
+		this.value = value;
+	}
+
+	/**
+	 * get integer term equal to value
+	 *
+	 * @param value
+	 * @return an {@link IntegerTerm} if value fits in 32 bits, a BigIntegerTerm
+	 *         otherwise
+	 */
+	public static NumericTerm valueOf(long value)
+	{
+		if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+		{
+			return IntegerTerm.get((int) value);
+		}
+		return new BigIntegerTerm(BigInteger.valueOf(value));
+	}
+
+	/**
+	 * get integer term equal to value
+	 *
+	 * @param value
+	 * @return an {@link IntegerTerm} if value fits in 32 bits, a BigIntegerTerm
+	 *         otherwise
+	 */
+	public static NumericTerm valueOf(BigInteger value)
+	{
+		if (value.compareTo(MIN_INT) >= 0 && value.compareTo(MAX_INT) <= 0)
+		{
+			return IntegerTerm.get(value.intValue());
+		}
+		return new BigIntegerTerm(value);
+	}
+
+	/**
+	 * get integer term equal to the integer part of a float
+	 *
+	 * @param value
+	 *          finite float value
+	 * @return the integer term
+	 */
+	public static NumericTerm valueOf(double value)
+	{
+		if (value >= -0x1p63 && value < 0x1p63)
+		{
+			return valueOf((long) value);
+		}
+		return valueOf(new BigDecimal(value).toBigInteger());
+	}
+
+	/**
+	 * get integer term using string value, with the syntax of
+	 * {@link IntegerTerm#get(String)} but any number of digits
+	 *
+	 * @param str
+	 *          value of integer term
+	 * @return new integer term
+	 * @throws IllegalArgumentException
+	 *           when str could not be converted to integer
+	 */
+	public static NumericTerm parse(String str)
+	{
+		try
+		{
+			return IntegerTerm.get(str);
+		}
+		catch (IllegalArgumentException ex)
+		{
+			// too large for 32 bits, or not an integer at all
+		}
+		try
+		{
+			boolean negative = str.charAt(0) == '-';
+			String digits = negative ? str.substring(1) : str;
+			int radix = 10;
+			if (digits.length() > 2 && digits.charAt(0) == '0')
+			{
+				switch (digits.charAt(1))
+				{
+					case 'b':
+					case 'B':
+						radix = 2;
+						break;
+					case 'o':
+					case 'O':
+						radix = 8;
+						break;
+					case 'x':
+					case 'X':
+						radix = 16;
+						break;
+					default:
+						throw new IllegalArgumentException("argument should be integer number");
+				}
+				digits = digits.substring(2);
+			}
+			BigInteger value = new BigInteger(digits, radix);
+			return valueOf(negative ? value.negate() : value);
+		}
+		catch (NumberFormatException ex)
+		{
+			throw new IllegalArgumentException("argument should be integer number");
+		}
+	}
+
+	/**
+	 * negate an integer term
+	 *
+	 * @param term
+	 *          an {@link IntegerTerm} or a BigIntegerTerm
+	 * @return the negated integer term
+	 */
+	public static NumericTerm negate(Term term)
+	{
+		if (term instanceof IntegerTerm)
+		{
+			return valueOf(-(long) ((IntegerTerm) term).value);
+		}
+		return valueOf(((BigIntegerTerm) term).value.negate());
+	}
+
+	/**
+	 * get the value of an integer term
+	 *
+	 * @param term
+	 *          an {@link IntegerTerm} or a BigIntegerTerm
+	 * @return the value
+	 */
+	public static BigInteger toBigInteger(Term term)
+	{
+		if (term instanceof IntegerTerm)
+		{
+			return BigInteger.valueOf(((IntegerTerm) term).value);
+		}
+		return ((BigIntegerTerm) term).value;
+	}
+
+	/**
+	 * compare two integer terms
+	 *
+	 * @param t1
+	 *          an {@link IntegerTerm} or a BigIntegerTerm
+	 * @param t2
+	 *          an {@link IntegerTerm} or a BigIntegerTerm
+	 * @return negative, zero or positive as t1 is less than, equal to or greater
+	 *         than t2
+	 */
+	public static int compare(Term t1, Term t2)
+	{
+		if (t1 instanceof IntegerTerm && t2 instanceof IntegerTerm)
+		{
+			return Integer.compare(((IntegerTerm) t1).value, ((IntegerTerm) t2).value);
+		}
+		return toBigInteger(t1).compareTo(toBigInteger(t2));
+	}
+
+	/**
+	 * get type of term
+	 *
+	 * @return type of term
+	 */
+	@Override
+	public int getTermType()
+	{
+		return INTEGER;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return value.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return obj instanceof BigIntegerTerm && value.equals(((BigIntegerTerm) obj).value);
+	}
+}
@@ -17,7 +17,8 @@
  */
 package org.ltc.hitalk.gnu.prolog.term;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * A tag of compound term such as foo/2. A tag consists of functor and arity.
@@ -30,8 +31,9 @@ final public class CompoundTermTag implements java.io.Serializable
 {
 	private static final long serialVersionUID = -208937166475321367L;
 
-	/** atom to rag map */
-	private static final Map<AtomTerm, List<CompoundTermTag>> atom2tag = new WeakHashMap<AtomTerm, List<CompoundTermTag>>();
+	/** updater of the tags of an atom */
+	private static final AtomicReferenceFieldUpdater<AtomTerm, CompoundTermTag[]> atomTags = AtomicReferenceFieldUpdater
+			.newUpdater(AtomTerm.class, CompoundTermTag[].class, "tags");
 
 	// some standard tags
 	/** comma tag */
@@ -119,30 +121,34 @@ final public class CompoundTermTag implements java.io.Serializable
 	 */
 	public static CompoundTermTag get(AtomTerm functor, int arity)
 	{
-		synchronized (atom2tag)
+		// the tags of an atom are kept on the atom, and replaced as a whole when a
+		// tag is added, so that looking up a tag takes no lock
+		CompoundTermTag tg = null;
+		while (true)
 		{
-			List<CompoundTermTag> ctgs = atom2tag.get(functor);
-			CompoundTermTag tg;
+			CompoundTermTag[] ctgs = functor.tags;
+			int length = 0;
 			if (ctgs != null)
 			{
-				Iterator<CompoundTermTag> e = ctgs.iterator();
-				while (e.hasNext())
+				for (CompoundTermTag t : ctgs)
 				{
-					tg = e.next();
-					if (tg.arity == arity)
+					if (t.arity == arity)
 					{
-						return tg;
+						return t;
 					}
 				}
+				length = ctgs.length;
+			}
+			if (tg == null)
+			{
 				tg = new CompoundTermTag(functor, arity);
-				ctgs.add(tg);
+			}
+			CompoundTermTag[] newTags = ctgs == null ? new CompoundTermTag[1] : Arrays.copyOf(ctgs, length + 1);
+			newTags[length] = tg;
+			if (atomTags.compareAndSet(functor, ctgs, newTags))
+			{
 				return tg;
 			}
-			tg = new CompoundTermTag(functor, arity);
-			ctgs = new ArrayList<CompoundTermTag>();
-			ctgs.add(tg);
-			atom2tag.put(functor, ctgs);
-			return tg;
 		}
 	}
 
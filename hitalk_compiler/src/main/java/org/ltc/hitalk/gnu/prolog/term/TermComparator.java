@@ -101,9 +101,7 @@ public class TermComparator implements Comparator<Term>
 					return 0;
 				}
 			case Term.INTEGER:
-				IntegerTerm it1 = (IntegerTerm) t1;
-				IntegerTerm it2 = (IntegerTerm) t2;
-				return it1.value - it2.value;
+				return BigIntegerTerm.compare(t1, t2);
 			case Term.ATOM:
 				AtomTerm at1 = (AtomTerm) t1;
 				AtomTerm at2 = (AtomTerm) t2;
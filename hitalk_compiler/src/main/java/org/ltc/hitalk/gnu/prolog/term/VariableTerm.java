@@ -62,6 +62,12 @@ public class VariableTerm extends Term {
      */
     public String name = null;
 
+    /**
+     * Mark of the interpreter which created the variable, used to skip trailing
+     * its bindings, see {@link org.ltc.hitalk.gnu.prolog.vm.Interpreter#createVariable()}
+     */
+    public long trailMark;
+
     /**
      * clone the object using clone context
      *
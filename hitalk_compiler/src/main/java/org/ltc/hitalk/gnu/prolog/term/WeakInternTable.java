@@ -0,0 +1,105 @@
+package org.ltc.hitalk.gnu.prolog.term;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent table of interned objects. Lookups of objects already in the table
+ * take no lock, and two threads interning equal keys at the same time always
+ * get the same object. The objects are held weakly, so an object which is no
+ * longer used anywhere may be collected, and a later lookup of its key interns
+ * a new one; the entries of collected objects are removed from the table as new
+ * objects are interned.
+ *
+ * @param <K>
+ *          type of keys
+ * @param <V>
+ *          type of interned objects
+ */
+final class WeakInternTable<K, V>
+{
+	/**
+	 * An entry of the table, which remembers its key so that it can be removed
+	 * once its object is collected.
+	 */
+	private static final class Entry<K, V> extends WeakReference<V>
+	{
+		final K key;
+
+		Entry(K key, V value, ReferenceQueue<V> queue)
+		{
+			super(value, queue);
+			this.key = key;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Entry<K, V>> map;
+	private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+
+	/**
+	 * a constructor
+	 *
+	 * @param initialCapacity
+	 *          expected number of objects
+	 */
+	WeakInternTable(int initialCapacity)
+	{
+		map = new ConcurrentHashMap<K, Entry<K, V>>(initialCapacity);
+	}
+
+	/**
+	 * get the object interned for the key
+	 *
+	 * @param key
+	 * @return the interned object or null if there is none
+	 */
+	V get(K key)
+	{
+		Entry<K, V> entry = map.get(key);
+		return entry == null ? null : entry.get();
+	}
+
+	/**
+	 * intern an object unless an object is already interned for its key
+	 *
+	 * @param key
+	 * @param value
+	 *          the new object
+	 * @return the object interned for the key, which is value unless another
+	 *         object was interned for it first
+	 */
+	V intern(K key, V value)
+	{
+		expunge();
+		Entry<K, V> entry = new Entry<K, V>(key, value, queue);
+		while (true)
+		{
+			Entry<K, V> old = map.putIfAbsent(key, entry);
+			if (old == null)
+			{
+				return value;
+			}
+			V oldValue = old.get();
+			if (oldValue != null)
+			{
+				return oldValue;
+			}
+			// the old object was collected
+			if (map.replace(key, old, entry))
+			{
+				return value;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void expunge()
+	{
+		Entry<K, V> entry;
+		while ((entry = (Entry<K, V>) queue.poll()) != null)
+		{
+			map.remove(entry.key, entry);
+		}
+	}
+}
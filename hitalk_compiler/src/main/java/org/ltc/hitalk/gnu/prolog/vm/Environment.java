@@ -22,19 +22,35 @@ import org.ltc.hitalk.gnu.prolog.database.*;
 import org.ltc.hitalk.gnu.prolog.io.*;
 import org.ltc.hitalk.gnu.prolog.term.*;
 import org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result;
+import org.ltc.hitalk.gnu.prolog.vm.builtins.allsolutions.Predicate_parallel_findall;
+import org.ltc.hitalk.gnu.prolog.vm.builtins.database.Predicate_asserta;
+import org.ltc.hitalk.gnu.prolog.vm.builtins.database.Predicate_assertz;
+import org.ltc.hitalk.gnu.prolog.vm.builtins.database.Predicate_retract;
+import org.ltc.hitalk.gnu.prolog.vm.builtins.debug.Predicate_nospy;
+import org.ltc.hitalk.gnu.prolog.vm.builtins.debug.Predicate_spy;
 import org.ltc.hitalk.gnu.prolog.vm.builtins.io.Predicate_ensure_loaded;
+import org.ltc.hitalk.gnu.prolog.vm.interpreter.DynamicPredicateCode;
 import org.ltc.hitalk.gnu.prolog.vm.interpreter.InterpretedCodeCompiler;
 
 import java.io.*;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.SUCCESS;
 import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.SUCCESS_LAST;
 
 /**
  * this class represent prolog processor.
+ *
+ * An environment may be shared by any number of {@link Interpreter
+ * interpreters}, each used from its own thread. Looking up the code of a
+ * predicate, reading flags and resolving streams take no lock; loading code,
+ * changing flags and opening or closing streams are serialized on the
+ * environment. The current input and output streams are kept per thread, so
+ * that see/tell style I/O in one query does not redirect the others.
  */
 public class Environment implements PredicateListener
 {
@@ -45,7 +61,9 @@ public class Environment implements PredicateListener
 	/** predicate which used instead of real code when predicate is not defined */
 	protected PrologCode undefinedPredicate;
 	/** PredicateTag to code mapping */
-	protected Map<CompoundTermTag, PrologCode> tag2code = new HashMap<CompoundTermTag, PrologCode>();
+	protected Map<CompoundTermTag, PrologCode> tag2code = new ConcurrentHashMap<CompoundTermTag, PrologCode>();
+	/** number of predicate updates so far, to detect updates during loading */
+	protected final AtomicLong predicateUpdates = new AtomicLong();
 
 	// TODO move into TermConstants, possibly consider using enums.
 	// flag atoms
@@ -57,6 +75,8 @@ public class Environment implements PredicateListener
 	public final static AtomTerm onAtom = AtomTerm.get("on");
 	public final static AtomTerm offAtom = AtomTerm.get("off");
 	public final static AtomTerm debugAtom = AtomTerm.get("debug");
+	public final static AtomTerm traceAllAtom = AtomTerm.get("trace_all");
+	public final static AtomTerm parallelConsultAtom = AtomTerm.get("parallel_consult");
 	public final static AtomTerm unknownAtom = AtomTerm.get("unknown");
 	public final static AtomTerm errorAtom = AtomTerm.get("error");
 	public final static AtomTerm warningAtom = AtomTerm.get("warning");
@@ -146,7 +166,7 @@ public class Environment implements PredicateListener
 	public final static AtomTerm modifyAtom = AtomTerm.get("modify");
 	public final static CompoundTermTag plusTag = CompoundTermTag.get("+", 2);
 	/** atom to flag */
-	protected Map<AtomTerm, Term> atom2flag = new HashMap<AtomTerm, Term>();
+	protected Map<AtomTerm, Term> atom2flag = new ConcurrentHashMap<AtomTerm, Term>();
 	protected Set<AtomTerm> changableFlags = new HashSet<AtomTerm>();
 
 	/** constructor of environment, it loads builtins to database at start. */
@@ -171,6 +191,7 @@ public class Environment implements PredicateListener
 		CompoundTerm term = new CompoundTerm(AtomTerm.get("resource"), new Term[] { AtomTerm
 				.get("/gnu/prolog/vm/builtins/builtins.pro") });
 		ensureLoaded(term);
+		initBuiltIns();
 		// set flags for environment
 		createNewPrologFlag(boundedAtom, TermConstants.trueAtom, false);
 		createNewPrologFlag(TermConstants.maxIntegerAtom, maxIntegerTerm, false);
@@ -178,6 +199,10 @@ public class Environment implements PredicateListener
 		createNewPrologFlag(integerRoundingFunctionAtom, downAtom, false);
 		createNewPrologFlag(charConversionAtom, offAtom, true);
 		createNewPrologFlag(debugAtom, offAtom, true);
+		// while on, debugging traces every predicate rather than only the spied ones
+		createNewPrologFlag(traceAllAtom, onAtom, true);
+		// parse large consulted files in parallel, the clauses are still added in order on one thread
+		createNewPrologFlag(parallelConsultAtom, offAtom, true);
 		// we can't have a Term with an arity higher than the available memory
 		long maxMemory = Runtime.getRuntime().maxMemory();
 		IntegerTerm maxArity = (maxMemory < maxIntegerTerm.value) ? IntegerTerm.get((int) maxMemory) : maxIntegerTerm;
@@ -190,6 +215,43 @@ public class Environment implements PredicateListener
 		EnvInitializer.runInitializers(this);
 	}
 
+	/**
+	 * define the builtins which are not declared in builtins.pro
+	 */
+	protected void initBuiltIns()
+	{
+		defineBuiltIn(CompoundTermTag.get("parallel_findall", 3), Predicate_parallel_findall.class);
+		defineBuiltIn(CompoundTermTag.get("asserta", 1), Predicate_asserta.class);
+		defineBuiltIn(CompoundTermTag.get("assertz", 1), Predicate_assertz.class);
+		defineBuiltIn(CompoundTermTag.get("assert", 1), Predicate_assertz.class);
+		defineBuiltIn(CompoundTermTag.get("retract", 1), Predicate_retract.class);
+		defineBuiltIn(CompoundTermTag.get("spy", 1), Predicate_spy.class);
+		defineBuiltIn(CompoundTermTag.get("nospy", 1), Predicate_nospy.class);
+	}
+
+	/**
+	 * define a builtin predicate implemented by a java class, unless the
+	 * predicate is already defined
+	 * 
+	 * @param tag
+	 *          tag of the predicate
+	 * @param cls
+	 *          class of the code of the predicate
+	 */
+	public void defineBuiltIn(CompoundTermTag tag, Class<? extends PrologCode> cls)
+	{
+		Module module = getModule();
+		synchronized (module)
+		{
+			if (module.getDefinedPredicate(tag) == null)
+			{
+				Predicate p = module.createDefinedPredicate(tag);
+				p.setType(Predicate.TYPE.BUILT_IN);
+				p.setJavaClassName(cls.getName());
+			}
+		}
+	}
+
 	protected void createTextLoader()
 	{
 		prologTextLoaderState = new PrologTextLoaderState(this);
@@ -274,7 +336,7 @@ public class Environment implements PredicateListener
 	 * 
 	 * @return copy of current state of flags for this environment
 	 */
-	public synchronized Map<AtomTerm, Term> getPrologFlags()
+	public Map<AtomTerm, Term> getPrologFlags()
 	{
 		return new HashMap<AtomTerm, Term>(atom2flag);
 	}
@@ -286,7 +348,7 @@ public class Environment implements PredicateListener
 	 *          the flag to get the value of
 	 * @return the value of the flag
 	 */
-	public synchronized Term getPrologFlag(AtomTerm term)
+	public Term getPrologFlag(AtomTerm term)
 	{
 		return atom2flag.get(term);
 	}
@@ -359,6 +421,20 @@ public class Environment implements PredicateListener
 				PrologException.domainError(flagValueAtom, new CompoundTerm(plusTag, flag, newValue));
 			}
 		}
+		else if (flag == traceAllAtom)
+		{
+			if (newValue != onAtom && newValue != offAtom)
+			{
+				PrologException.domainError(flagValueAtom, new CompoundTerm(plusTag, flag, newValue));
+			}
+		}
+		else if (flag == parallelConsultAtom)
+		{
+			if (newValue != onAtom && newValue != offAtom)
+			{
+				PrologException.domainError(flagValueAtom, new CompoundTerm(plusTag, flag, newValue));
+			}
+		}
 		else if (flag == TermConstants.maxArityAtom)
 		{
 			if (!(newValue instanceof IntegerTerm))
@@ -385,6 +461,66 @@ public class Environment implements PredicateListener
 			PrologException.permissionError(modifyAtom, TermConstants.flagAtom, flag);
 		}
 		atom2flag.put(flag, newValue);
+		if (flag == debugAtom)
+		{
+			debugging = newValue == onAtom;
+		}
+		else if (flag == traceAllAtom)
+		{
+			tracingAll = newValue == onAtom;
+		}
+	}
+
+	/** true if the debug flag is on, read by interpreted code on every entry */
+	protected volatile boolean debugging;
+	/** true if the trace_all flag is on, so all predicates are traced */
+	protected volatile boolean tracingAll = true;
+	/** predicates traced while debugging when not all of them are */
+	protected volatile Set<CompoundTermTag> tracedTags = Collections.emptySet();
+
+	/**
+	 * check if the debug flag is on. When it is off, interpreted code does not
+	 * report to the {@link Interpreter#getTracer() tracer} at all.
+	 * 
+	 * @return true if the debug flag is on
+	 */
+	public boolean isDebugging()
+	{
+		return debugging;
+	}
+
+	/**
+	 * check if calls to a predicate are traced while debugging
+	 * 
+	 * @param tag
+	 * @return true if the trace_all flag is on, or the predicate is set to be
+	 *         traced
+	 */
+	public boolean isTraced(CompoundTermTag tag)
+	{
+		return tracingAll || tracedTags.contains(tag);
+	}
+
+	/**
+	 * set if calls to a predicate are traced while debugging and the trace_all
+	 * flag is off. This takes effect on the next call, without reloading any
+	 * code.
+	 * 
+	 * @param tag
+	 * @param traced
+	 */
+	public synchronized void setTraced(CompoundTermTag tag, boolean traced)
+	{
+		Set<CompoundTermTag> tags = new HashSet<CompoundTermTag>(tracedTags);
+		if (traced)
+		{
+			tags.add(tag);
+		}
+		else
+		{
+			tags.remove(tag);
+		}
+		tracedTags = tags;
 	}
 
 	public List<PrologTextLoaderError> getLoadingErrors()
@@ -469,7 +605,17 @@ public class Environment implements PredicateListener
 			}
 			case USER_DEFINED:
 			{
-				PrologCode code = InterpretedCodeCompiler.compile(p.getClauses());
+				PrologCode code;
+				// no clause may be added between taking the clauses and the event of
+				// the change being delivered to the dynamic code
+				synchronized (p)
+				{
+					code = p.isDynamic() ? new DynamicPredicateCode(tag, p.getClauses()) : null;
+				}
+				if (code == null)
+				{
+					code = InterpretedCodeCompiler.compile(p.getClauses());
+				}
 				code.install(this);
 				return code;
 			}
@@ -490,26 +636,49 @@ public class Environment implements PredicateListener
 	}
 
 	/**
-	 * get prolog code
+	 * get prolog code. Code which is already loaded is returned without taking
+	 * a lock.
 	 * 
 	 * @param tag
 	 * @return the {@link PrologCode} for the tag
 	 * @throws PrologException
 	 */
-	public synchronized PrologCode getPrologCode(CompoundTermTag tag) throws PrologException
+	public PrologCode getPrologCode(CompoundTermTag tag) throws PrologException
 	{
 		PrologCode code = tag2code.get(tag);
 		if (code == null)
 		{
+			code = loadAndCachePrologCode(tag);
+		}
+		return code;
+	}
+
+	protected synchronized PrologCode loadAndCachePrologCode(CompoundTermTag tag) throws PrologException
+	{
+		while (true)
+		{
+			PrologCode code = tag2code.get(tag);
+			if (code != null)
+			{
+				return code;
+			}
+			long updates = predicateUpdates.get();
 			code = loadPrologCode(tag);
 			tag2code.put(tag, code);
+			// an update delivered while loading may have missed the code, which is
+			// then out of date; updates delivered from now on will find it
+			if (predicateUpdates.get() == updates)
+			{
+				return code;
+			}
+			tag2code.remove(tag, code);
 		}
-		return code;
 	}
 
 	protected Map<CompoundTermTag, List<PrologCodeListenerRef>> tag2listeners = new HashMap<CompoundTermTag, List<PrologCodeListenerRef>>();
 	protected ReferenceQueue<? super PrologCodeListener> prologCodeListenerReferenceQueue = new ReferenceQueue<PrologCodeListener>();
 
+	/** must be called with the lock on tag2listeners held */
 	protected void pollPrologCodeListeners()
 	{
 		PrologCodeListenerRef ref;
@@ -543,16 +712,19 @@ public class Environment implements PredicateListener
 	 * @param tag
 	 * @param listener
 	 */
-	public synchronized void addPrologCodeListener(CompoundTermTag tag, PrologCodeListener listener)
+	public void addPrologCodeListener(CompoundTermTag tag, PrologCodeListener listener)
 	{
-		pollPrologCodeListeners();
-		List<PrologCodeListenerRef> list = tag2listeners.get(tag);
-		if (list == null)
+		synchronized (tag2listeners)
 		{
-			list = new ArrayList<PrologCodeListenerRef>();
-			tag2listeners.put(tag, list);
+			pollPrologCodeListeners();
+			List<PrologCodeListenerRef> list = tag2listeners.get(tag);
+			if (list == null)
+			{
+				list = new ArrayList<PrologCodeListenerRef>();
+				tag2listeners.put(tag, list);
+			}
+			list.add(new PrologCodeListenerRef(prologCodeListenerReferenceQueue, listener, tag));
 		}
-		list.add(new PrologCodeListenerRef(prologCodeListenerReferenceQueue, listener, tag));
 	}
 
 	/**
@@ -561,59 +733,76 @@ public class Environment implements PredicateListener
 	 * @param tag
 	 * @param listener
 	 */
-	public synchronized void removePrologCodeListener(CompoundTermTag tag, PrologCodeListener listener)
+	public void removePrologCodeListener(CompoundTermTag tag, PrologCodeListener listener)
 	{
-		pollPrologCodeListeners();
-		List<PrologCodeListenerRef> list = tag2listeners.get(tag);
-		if (list != null)
+		synchronized (tag2listeners)
 		{
-			ListIterator<PrologCodeListenerRef> i = list.listIterator();
-			while (i.hasNext())
+			pollPrologCodeListeners();
+			List<PrologCodeListenerRef> list = tag2listeners.get(tag);
+			if (list != null)
 			{
-				PrologCodeListenerRef ref = i.next();
-				PrologCodeListener lst = ref.get();
-				if (lst == null)
-				{
-					i.remove();
-				}
-				else if (lst == listener)
+				ListIterator<PrologCodeListenerRef> i = list.listIterator();
+				while (i.hasNext())
 				{
-					i.remove();
-					return;
+					PrologCodeListenerRef ref = i.next();
+					PrologCodeListener lst = ref.get();
+					if (lst == null)
+					{
+						i.remove();
+					}
+					else if (lst == listener)
+					{
+						i.remove();
+						return;
+					}
 				}
 			}
 		}
 	}
 
-	public synchronized void predicateUpdated(PredicateUpdatedEvent evt)
+	/**
+	 * Called by the module with the locks of the module and of the updated
+	 * predicate held, which keeps the events of a predicate in order. It takes
+	 * no lock on the environment, as loading code takes the locks of the
+	 * predicates while holding it.
+	 */
+	public void predicateUpdated(PredicateUpdatedEvent evt)
 	{
+		predicateUpdates.incrementAndGet();
+		// dynamic code takes single clause changes in place, so callers keep it
+		PrologCode dynamic = tag2code.get(evt.getTag());
+		if (dynamic instanceof DynamicPredicateCode && ((DynamicPredicateCode) dynamic).update(evt))
+		{
+			return;
+		}
 		Object code = tag2code.remove(evt.getTag());
-		pollPrologCodeListeners();
 		if (code == null) // if code was not loaded yet
 		{
 			return;
 		}
 		CompoundTermTag tag = evt.getTag();
-		List<PrologCodeListenerRef> list = tag2listeners.get(tag);
-		if (list != null)
+		PrologCodeListener listener = null;
+		synchronized (tag2listeners)
 		{
-			PrologCodeUpdatedEvent uevt = new PrologCodeUpdatedEvent(this, tag);
-			ListIterator<PrologCodeListenerRef> i = list.listIterator();
-			while (i.hasNext())
+			pollPrologCodeListeners();
+			List<PrologCodeListenerRef> list = tag2listeners.get(tag);
+			if (list != null)
 			{
-				PrologCodeListenerRef ref = i.next();
-				PrologCodeListener lst = ref.get();
-				if (lst == null)
-				{
-					i.remove();
-				}
-				else
+				ListIterator<PrologCodeListenerRef> i = list.listIterator();
+				while (listener == null && i.hasNext())
 				{
-					lst.prologCodeUpdated(uevt);
-					return;
+					listener = i.next().get();
+					if (listener == null)
+					{
+						i.remove();
+					}
 				}
 			}
 		}
+		if (listener != null)
+		{
+			listener.prologCodeUpdated(new PrologCodeUpdatedEvent(this, tag));
+		}
 	}
 
 	private static InputStream defaultInputStream;
@@ -656,11 +845,13 @@ public class Environment implements PredicateListener
 	// IO support
 	protected PrologStream userInput;
 	protected PrologStream userOutput;
-	protected PrologStream currentInput;
-	protected PrologStream currentOutput;
+	/** current input of each thread, user input until set */
+	protected final ThreadLocal<PrologStream> currentInput = new ThreadLocal<PrologStream>();
+	/** current output of each thread, user output until set */
+	protected final ThreadLocal<PrologStream> currentOutput = new ThreadLocal<PrologStream>();
 
 	protected List<PrologStream> openStreams = new ArrayList<PrologStream>();
-	protected Map<AtomTerm, PrologStream> alias2stream = new HashMap<AtomTerm, PrologStream>();
+	protected Map<AtomTerm, PrologStream> alias2stream = new ConcurrentHashMap<AtomTerm, PrologStream>();
 
 	public OperatorSet getOperatorSet()
 	{
@@ -701,34 +892,58 @@ public class Environment implements PredicateListener
 		}
 	}
 
-	public synchronized PrologStream getUserInput() throws PrologException
+	public PrologStream getUserInput() throws PrologException
 	{
 		return userInput;
 	}
 
-	public synchronized PrologStream getUserOutput() throws PrologException
+	public PrologStream getUserOutput() throws PrologException
 	{
 		return userOutput;
 	}
 
-	public synchronized PrologStream getCurrentInput() throws PrologException
+	/**
+	 * get the current input of the calling thread. A current input closed by
+	 * another thread falls back to user input, as it does in the closing thread.
+	 * 
+	 * @return the current input
+	 * @throws PrologException
+	 */
+	public PrologStream getCurrentInput() throws PrologException
 	{
-		return currentInput;
+		PrologStream stream = currentInput.get();
+		if (stream == null || stream.isClosed())
+		{
+			return userInput;
+		}
+		return stream;
 	}
 
-	public synchronized PrologStream getCurrentOutput() throws PrologException
+	/**
+	 * get the current output of the calling thread. A current output closed by
+	 * another thread falls back to user output, as it does in the closing thread.
+	 * 
+	 * @return the current output
+	 * @throws PrologException
+	 */
+	public PrologStream getCurrentOutput() throws PrologException
 	{
-		return currentOutput;
+		PrologStream stream = currentOutput.get();
+		if (stream == null || stream.isClosed())
+		{
+			return userOutput;
+		}
+		return stream;
 	}
 
-	public synchronized void setCurrentInput(PrologStream stream) throws PrologException
+	public void setCurrentInput(PrologStream stream) throws PrologException
 	{
-		currentInput = stream;
+		currentInput.set(stream);
 	}
 
-	public synchronized void setCurrentOutput(PrologStream stream) throws PrologException
+	public void setCurrentOutput(PrologStream stream) throws PrologException
 	{
-		currentOutput = stream;
+		currentOutput.set(stream);
 	}
 
 	public synchronized Map<PrologStream, List<Term>> getStreamProperties() throws PrologException
@@ -745,7 +960,7 @@ public class Environment implements PredicateListener
 		return map;
 	}
 
-	public synchronized PrologStream resolveStream(Term stream_or_alias) throws PrologException
+	public PrologStream resolveStream(Term stream_or_alias) throws PrologException
 	{
 		stream_or_alias = stream_or_alias.dereference();
 		if (stream_or_alias instanceof VariableTerm)
@@ -905,13 +1120,13 @@ public class Environment implements PredicateListener
 			alias2stream.remove(alias);
 		}
 		openStreams.remove(stream);
-		if (currentInput == stream)
+		if (currentInput.get() == stream)
 		{
-			currentInput = userInput;
+			currentInput.set(userInput);
 		}
-		if (currentOutput == stream)
+		if (currentOutput.get() == stream)
 		{
-			currentOutput = userOutput;
+			currentOutput.set(userOutput);
 		}
 		return true;
 	}
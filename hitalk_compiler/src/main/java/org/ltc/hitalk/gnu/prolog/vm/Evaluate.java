@@ -21,6 +21,7 @@ import org.ltc.hitalk.gnu.prolog.database.Pair;
 import org.ltc.hitalk.gnu.prolog.term.*;
 import org.ltc.hitalk.gnu.prolog.vm.builtins.arithmetics.Predicate_is;
 
+import java.math.BigInteger;
 import java.util.Random;
 
 /**
@@ -78,22 +79,27 @@ public class Evaluate
 
 	public final static AtomTerm floatAtom = AtomTerm.get("float");
 
-	private static void zeroDivizor() throws PrologException
+	/** most bits of an integer built by a shift */
+	public final static int MAX_SHIFT_BITS = 1 << 24;
+	/** shift counts past this are taken as this, which gives the same result */
+	private final static BigInteger MAX_SHIFT_COUNT = BigInteger.valueOf(1L << 62);
+
+	static void zeroDivizor() throws PrologException
 	{
 		PrologException.evalutationError(TermConstants.zeroDivizorAtom);
 	}
 
-	private static void intOverflow() throws PrologException
+	static void intOverflow() throws PrologException
 	{
 		PrologException.evalutationError(TermConstants.intOverflowAtom);
 	}
 
-	private static void floatOverflow() throws PrologException
+	static void floatOverflow() throws PrologException
 	{
 		PrologException.evalutationError(TermConstants.floatOverflowAtom);
 	}
 
-	private static void undefined() throws PrologException
+	static void undefined() throws PrologException
 	{
 		PrologException.evalutationError(TermConstants.undefinedAtom);
 	}
@@ -143,6 +149,10 @@ public class Evaluate
 		{
 			return term;
 		}
+		else if (term instanceof BigIntegerTerm)
+		{
+			return term;
+		}
 		else if (term instanceof VariableTerm)
 		{
 			PrologException.instantiationError();
@@ -158,6 +168,10 @@ public class Evaluate
 			{
 				args[i] = evaluate(sargs[i].dereference());
 			}
+			if (hasBigInteger(args))
+			{
+				return evaluateBig(tag, args);
+			}
 			if (tag == add2) // ***************************************
 			{
 				Term arg0 = args[0];
@@ -167,11 +181,7 @@ public class Evaluate
 					IntegerTerm i0 = (IntegerTerm) arg0;
 					IntegerTerm i1 = (IntegerTerm) arg1;
 					long res = (long) i0.value + (long) i1.value;
-					if (res > Integer.MAX_VALUE || res < Integer.MIN_VALUE)
-					{
-						intOverflow();
-					}
-					return IntegerTerm.get((int) res);
+					return BigIntegerTerm.valueOf(res);
 				}
 				else if (arg0 instanceof FloatTerm && arg1 instanceof IntegerTerm)
 				{
@@ -216,11 +226,7 @@ public class Evaluate
 					IntegerTerm i0 = (IntegerTerm) arg0;
 					IntegerTerm i1 = (IntegerTerm) arg1;
 					long res = (long) i0.value - (long) i1.value;
-					if (res > Integer.MAX_VALUE || res < Integer.MIN_VALUE)
-					{
-						intOverflow();
-					}
-					return IntegerTerm.get((int) res);
+					return BigIntegerTerm.valueOf(res);
 				}
 				else if (arg0 instanceof FloatTerm && arg1 instanceof IntegerTerm)
 				{
@@ -265,11 +271,7 @@ public class Evaluate
 					IntegerTerm i0 = (IntegerTerm) arg0;
 					IntegerTerm i1 = (IntegerTerm) arg1;
 					long res = (long) i0.value * (long) i1.value;
-					if (res > Integer.MAX_VALUE || res < Integer.MIN_VALUE)
-					{
-						intOverflow();
-					}
-					return IntegerTerm.get((int) res);
+					return BigIntegerTerm.valueOf(res);
 				}
 				else if (arg0 instanceof FloatTerm && arg1 instanceof IntegerTerm)
 				{
@@ -323,8 +325,8 @@ public class Evaluate
 				{
 					zeroDivizor();
 				}
-				int res = i0.value / i1.value;
-				return IntegerTerm.get(res);
+				long res = (long) i0.value / i1.value;
+				return BigIntegerTerm.valueOf(res);
 			}
 			else if (tag == div2) // ***************************************
 			{
@@ -391,11 +393,7 @@ public class Evaluate
 				if (arg0 instanceof IntegerTerm)
 				{
 					IntegerTerm i0 = (IntegerTerm) arg0;
-					if (i0.value == Integer.MIN_VALUE)
-					{
-						intOverflow();
-					}
-					return IntegerTerm.get(-i0.value);
+					return BigIntegerTerm.valueOf(-(long) i0.value);
 				}
 				else if (arg0 instanceof FloatTerm)
 				{
@@ -414,11 +412,7 @@ public class Evaluate
 				if (arg0 instanceof IntegerTerm)
 				{
 					IntegerTerm i0 = (IntegerTerm) arg0;
-					if (i0.value == Integer.MIN_VALUE)
-					{
-						intOverflow();
-					}
-					return IntegerTerm.get(Math.abs(i0.value));
+					return BigIntegerTerm.valueOf(Math.abs((long) i0.value));
 				}
 				else if (arg0 instanceof FloatTerm)
 				{
@@ -521,11 +515,11 @@ public class Evaluate
 				{
 					FloatTerm f0 = (FloatTerm) arg0;
 					double res = Math.floor(f0.value);
-					if (res < Integer.MIN_VALUE || res > Integer.MAX_VALUE)
+					if (Double.isInfinite(res) || Double.isNaN(res))
 					{
 						intOverflow();
 					}
-					return IntegerTerm.get((int) Math.round(res));
+					return BigIntegerTerm.valueOf(res);
 				}
 			}
 			else if (tag == truncate1) // ***************************************
@@ -540,11 +534,11 @@ public class Evaluate
 					FloatTerm f0 = (FloatTerm) arg0;
 					int sign = f0.value >= 0 ? 1 : -1;
 					double res = sign * Math.floor(Math.abs(f0.value));
-					if (res < Integer.MIN_VALUE || res > Integer.MAX_VALUE)
+					if (Double.isInfinite(res) || Double.isNaN(res))
 					{
 						intOverflow();
 					}
-					return IntegerTerm.get((int) Math.round(res));
+					return BigIntegerTerm.valueOf(res);
 				}
 			}
 			else if (tag == round1) // ***************************************
@@ -558,11 +552,11 @@ public class Evaluate
 				{
 					FloatTerm f0 = (FloatTerm) arg0;
 					double res = Math.floor(f0.value + 0.5);
-					if (res < Integer.MIN_VALUE || res > Integer.MAX_VALUE)
+					if (Double.isInfinite(res) || Double.isNaN(res))
 					{
 						intOverflow();
 					}
-					return IntegerTerm.get((int) Math.round(res));
+					return BigIntegerTerm.valueOf(res);
 				}
 			}
 			else if (tag == ceiling1) // ***************************************
@@ -576,11 +570,11 @@ public class Evaluate
 				{
 					FloatTerm f0 = (FloatTerm) arg0;
 					double res = -Math.floor(-f0.value);
-					if (res < Integer.MIN_VALUE || res > Integer.MAX_VALUE)
+					if (Double.isInfinite(res) || Double.isNaN(res))
 					{
 						intOverflow();
 					}
-					return IntegerTerm.get((int) Math.round(res));
+					return BigIntegerTerm.valueOf(res);
 				}
 			}
 			else if (tag == power2) // ***************************************
@@ -705,7 +699,11 @@ public class Evaluate
 				typeTestInt(arg1);
 				IntegerTerm i0 = (IntegerTerm) arg0;
 				IntegerTerm i1 = (IntegerTerm) arg1;
-				int res = i0.value >> i1.value;
+				if (i1.value < 0)
+				{
+					return shift(BigInteger.valueOf(i0.value), -(long) i1.value);
+				}
+				int res = i0.value >> Math.min(i1.value, 31);
 				return IntegerTerm.get(res);
 			}
 			else if (tag == blshift2) // ***************************************
@@ -716,8 +714,15 @@ public class Evaluate
 				typeTestInt(arg1);
 				IntegerTerm i0 = (IntegerTerm) arg0;
 				IntegerTerm i1 = (IntegerTerm) arg1;
-				int res = i0.value << i1.value;
-				return IntegerTerm.get(res);
+				if (i1.value < 0)
+				{
+					return IntegerTerm.get(i0.value >> Math.min(-(long) i1.value, 31));
+				}
+				if (i1.value < 32)
+				{
+					return BigIntegerTerm.valueOf((long) i0.value << i1.value);
+				}
+				return shift(BigInteger.valueOf(i0.value), i1.value);
 			}
 			else if (tag == band2) // ***************************************
 			{
@@ -784,6 +789,190 @@ public class Evaluate
 		return null; // fake return
 	}
 
+	private static boolean hasBigInteger(Term[] args)
+	{
+		for (Term arg : args)
+		{
+			if (arg instanceof BigIntegerTerm)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isIntegerFunction(CompoundTermTag tag)
+	{
+		return tag == intdiv2 || tag == rem2 || tag == mod2 || tag == brshift2 || tag == blshift2 || tag == band2
+				|| tag == bor2 || tag == bnot1;
+	}
+
+	private static long shiftCount(BigInteger count)
+	{
+		return count.max(MAX_SHIFT_COUNT.negate()).min(MAX_SHIFT_COUNT).longValue();
+	}
+
+	/**
+	 * shift an integer left, or right for a negative count
+	 * 
+	 * @param value
+	 * @param count
+	 *          no more than 2^62 either way
+	 * @return the shifted value
+	 * @throws PrologException
+	 *           a representation error if the result would have more than
+	 *           {@link #MAX_SHIFT_BITS} bits
+	 */
+	private static Term shift(BigInteger value, long count) throws PrologException
+	{
+		if (count <= 0)
+		{
+			// shifting right by more than the bit length leaves 0 or -1
+			return BigIntegerTerm.valueOf(value.shiftRight((int) Math.min(-count, Integer.MAX_VALUE)));
+		}
+		if (value.signum() != 0 && value.bitLength() + count > MAX_SHIFT_BITS)
+		{
+			PrologException.representationError(TermConstants.maxIntegerAtom);
+		}
+		return BigIntegerTerm.valueOf(value.shiftLeft((int) Math.min(count, MAX_SHIFT_BITS)));
+	}
+
+	private static Term toFloat(BigInteger value) throws PrologException
+	{
+		double res = value.doubleValue();
+		if (Double.isInfinite(res))
+		{
+			floatOverflow();
+		}
+		return new FloatTerm(res);
+	}
+
+	/**
+	 * evaluate a function of already evaluated arguments, one of which is too
+	 * large for 32 bits
+	 * 
+	 * @param tag
+	 * @param args
+	 * @return the value of the function
+	 * @throws PrologException
+	 */
+	static Term evaluateBig(CompoundTermTag tag, Term[] args) throws PrologException
+	{
+		for (Term arg : args)
+		{
+			if (arg instanceof FloatTerm)
+			{
+				if (isIntegerFunction(tag))
+				{
+					PrologException.typeError(TermConstants.integerAtom, arg);
+				}
+				// mixed with floats, the integers are converted to floats
+				Term[] fargs = new Term[args.length];
+				for (int i = 0; i < args.length; i++)
+				{
+					fargs[i] = args[i] instanceof BigIntegerTerm ? toFloat(((BigIntegerTerm) args[i]).value) : args[i];
+				}
+				return evaluate(new CompoundTerm(tag, fargs));
+			}
+		}
+		BigInteger b0 = BigIntegerTerm.toBigInteger(args[0]);
+		BigInteger b1 = args.length > 1 ? BigIntegerTerm.toBigInteger(args[1]) : null;
+		if (tag == add2)
+		{
+			return BigIntegerTerm.valueOf(b0.add(b1));
+		}
+		else if (tag == sub2)
+		{
+			return BigIntegerTerm.valueOf(b0.subtract(b1));
+		}
+		else if (tag == mul2)
+		{
+			return BigIntegerTerm.valueOf(b0.multiply(b1));
+		}
+		else if (tag == intdiv2 || tag == rem2 || tag == mod2)
+		{
+			if (b1.signum() == 0)
+			{
+				zeroDivizor();
+			}
+			if (tag == intdiv2)
+			{
+				return BigIntegerTerm.valueOf(b0.divide(b1));
+			}
+			if (tag == rem2)
+			{
+				return BigIntegerTerm.valueOf(b0.remainder(b1));
+			}
+			BigInteger res = b0.mod(b1.abs());
+			if (b1.signum() < 0 && res.signum() != 0)
+			{
+				res = res.add(b1);
+			}
+			return BigIntegerTerm.valueOf(res);
+		}
+		else if (tag == neg1)
+		{
+			return BigIntegerTerm.valueOf(b0.negate());
+		}
+		else if (tag == abs1)
+		{
+			return BigIntegerTerm.valueOf(b0.abs());
+		}
+		else if (tag == sign1)
+		{
+			return IntegerTerm.get(b0.signum() >= 0 ? 1 : -1);
+		}
+		else if (tag == float1)
+		{
+			return toFloat(b0);
+		}
+		else if (tag == brshift2)
+		{
+			return shift(b0, -shiftCount(b1));
+		}
+		else if (tag == blshift2)
+		{
+			return shift(b0, shiftCount(b1));
+		}
+		else if (tag == band2)
+		{
+			return BigIntegerTerm.valueOf(b0.and(b1));
+		}
+		else if (tag == bor2)
+		{
+			return BigIntegerTerm.valueOf(b0.or(b1));
+		}
+		else if (tag == bnot1)
+		{
+			return BigIntegerTerm.valueOf(b0.not());
+		}
+		else if (tag == intpart1 || tag == fractpart1 || tag == floor1 || tag == truncate1 || tag == round1
+				|| tag == ceiling1)
+		{
+			PrologException.typeError(floatAtom, args[0]);
+		}
+		else if (tag == random1)
+		{
+			if (b0.signum() <= 0)
+			{
+				undefined();
+			}
+			BigInteger res;
+			synchronized (random)
+			{
+				res = new BigInteger(b0.bitLength() + 8, random).mod(b0);
+			}
+			return BigIntegerTerm.valueOf(res);
+		}
+		// functions of floats
+		Term[] fargs = new Term[args.length];
+		for (int i = 0; i < args.length; i++)
+		{
+			fargs[i] = toFloat(BigIntegerTerm.toBigInteger(args[i]));
+		}
+		return evaluate(new CompoundTerm(tag, fargs));
+	}
+
 	/**
 	 * Test the term for an integer term
 	 * 
@@ -23,8 +23,10 @@ import org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result;
 import org.ltc.hitalk.gnu.prolog.vm.interpreter.Predicate_call;
 import org.ltc.hitalk.gnu.prolog.vm.interpreter.Tracer;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.FAIL;
 import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.SUCCESS_LAST;
@@ -33,7 +35,8 @@ import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.SUCCESS_LAST;
  * This class represent interpreter, it should be used only from one thread If
  * you need to use interpreter from two threads,
  * {@link Environment#createInterpreter() create new interpreter from
- * Environment}
+ * Environment}. Any number of interpreters may run at the same time against the
+ * program loaded in one {@link Environment}.
  */
 
 public final class Interpreter implements HasEnvironment {
@@ -95,6 +98,23 @@ public final class Interpreter implements HasEnvironment {
         return tracer;
     }
 
+    /**
+     * Evaluator of arithmetic expressions, created on first use
+     */
+    private PrimitiveEvaluator evaluator;
+
+    /**
+     * get the arithmetic evaluator of this interpreter
+     *
+     * @return the evaluator, which like the interpreter may only be used from one thread
+     */
+    public PrimitiveEvaluator getEvaluator() {
+        if (evaluator == null) {
+            evaluator = new PrimitiveEvaluator();
+        }
+        return evaluator;
+    }
+
     @Deprecated
     public Object putContext(String key, Object contextValue) {
         return context.put(key, contextValue);
@@ -112,6 +132,14 @@ public final class Interpreter implements HasEnvironment {
     private int backtrackInfoAmount = 0;
     private int backtrackInfoMax = backtrackInfoStack.length;
 
+    /**
+     * The trail mark and the trail length when each backtrack information was
+     * pushed, which is what the trail is trimmed back to once everything above
+     * it is cut away
+     */
+    private long[] backtrackInfoMarks = new long[PAGESIZE];
+    private int[] backtrackInfoTrail = new int[PAGESIZE];
+
     /**
      * push backtrack information
      *
@@ -123,7 +151,11 @@ public final class Interpreter implements HasEnvironment {
             System.arraycopy(backtrackInfoStack, 0, tmp, 0, backtrackInfoAmount);
             backtrackInfoStack = tmp;
             backtrackInfoMax += GROWSIZE;
+            backtrackInfoMarks = Arrays.copyOf(backtrackInfoMarks, backtrackInfoMax);
+            backtrackInfoTrail = Arrays.copyOf(backtrackInfoTrail, backtrackInfoMax);
         }
+        backtrackInfoMarks[backtrackInfoAmount] = trailMark;
+        backtrackInfoTrail[backtrackInfoAmount] = trailAmount;
         backtrackInfoStack[backtrackInfoAmount++] = bi;
     }
 
@@ -150,6 +182,19 @@ public final class Interpreter implements HasEnvironment {
             backtrackInfoStack[i] = null;
         }
         backtrackInfoAmount = pos + 1;
+        trimTrail();
+    }
+
+    /**
+     * pop the backtrack information a call pushed on entry, when the call exits
+     * without leaving a choice point behind
+     *
+     * @return the popped top backtrack information
+     */
+    public BacktrackInfo popDeterministicBacktrackInfo() {
+        BacktrackInfo rc = popBacktrackInfo();
+        trimTrail();
+        return rc;
     }
 
     /**
@@ -161,16 +206,191 @@ public final class Interpreter implements HasEnvironment {
         return backtrackInfoStack[backtrackInfoAmount - 1];
     }
 
+    // Term array pool methods
+
+    private static final Term[] EMPTY_TERM_ARRAY = new Term[0];
+    private static final int POOLED_ARRAY_SIZES = 64;
+    private static final int POOLED_ARRAYS_PER_SIZE = 1024;
+
+    private final Term[][][] freeTermArrays = new Term[POOLED_ARRAY_SIZES][][];
+    private final int[] freeTermArrayAmount = new int[POOLED_ARRAY_SIZES];
+
+    /**
+     * get an array of terms for arguments or an environment, reusing one that
+     * was released before if there is one
+     *
+     * @param size the size of the array
+     * @return an array of the size, with all elements null
+     */
+    public Term[] acquireTermArray(int size) {
+        if (size == 0) {
+            return EMPTY_TERM_ARRAY;
+        }
+        if (size < POOLED_ARRAY_SIZES && freeTermArrayAmount[size] > 0) {
+            Term[][] free = freeTermArrays[size];
+            Term[] rc = free[--freeTermArrayAmount[size]];
+            free[freeTermArrayAmount[size]] = null;
+            return rc;
+        }
+        return new Term[size];
+    }
+
+    /**
+     * release an array acquired by {@link #acquireTermArray(int)}. The caller
+     * must make sure that nothing, such as backtrack information, still refers
+     * to the array.
+     *
+     * @param array the array to release
+     */
+    public void releaseTermArray(Term[] array) {
+        int size = array.length;
+        if (size == 0 || size >= POOLED_ARRAY_SIZES) {
+            return;
+        }
+        Term[][] free = freeTermArrays[size];
+        int amount = freeTermArrayAmount[size];
+        if (free == null) {
+            free = new Term[16][];
+            freeTermArrays[size] = free;
+        } else if (amount == free.length) {
+            if (amount == POOLED_ARRAYS_PER_SIZE) {
+                return;
+            }
+            Term[][] tmp = new Term[amount * 2][];
+            System.arraycopy(free, 0, tmp, 0, amount);
+            free = tmp;
+            freeTermArrays[size] = free;
+        }
+        Arrays.fill(array, null);
+        free[freeTermArrayAmount[size]++] = array;
+    }
+
+    // Entry backtrack information pool methods
+
+    private static final int POOLED_ENTRY_BACKTRACK_INFOS = 1024;
+
+    private BacktrackInfo[] freeEntryBacktrackInfos = new BacktrackInfo[16];
+    private int freeEntryBacktrackInfoAmount = 0;
+
+    /**
+     * get the backtrack information that a call pushes on entry, reusing one
+     * that was released before if there is one, so that calls which exit
+     * without leaving a choice point behind do not allocate it
+     *
+     * @return a released backtrack information with its undo position set to
+     *         the entry undo position, or null if there is none, in which case
+     *         the caller creates it
+     */
+    public BacktrackInfo reuseEntryBacktrackInfo() {
+        if (freeEntryBacktrackInfoAmount == 0) {
+            return null;
+        }
+        BacktrackInfo rc = freeEntryBacktrackInfos[--freeEntryBacktrackInfoAmount];
+        freeEntryBacktrackInfos[freeEntryBacktrackInfoAmount] = null;
+        rc.undoPosition = getEntryUndoPosition();
+        return rc;
+    }
+
+    /**
+     * release the backtrack information a call pushed on entry, once the call
+     * has popped it for the last time. The caller must make sure that nothing,
+     * such as the backtrack information of a redo, still refers to it.
+     *
+     * @param bi the backtrack information to release
+     */
+    public void releaseEntryBacktrackInfo(BacktrackInfo bi) {
+        if (freeEntryBacktrackInfoAmount == freeEntryBacktrackInfos.length) {
+            if (freeEntryBacktrackInfoAmount == POOLED_ENTRY_BACKTRACK_INFOS) {
+                return;
+            }
+            freeEntryBacktrackInfos = Arrays.copyOf(freeEntryBacktrackInfos, freeEntryBacktrackInfoAmount * 2);
+        }
+        freeEntryBacktrackInfos[freeEntryBacktrackInfoAmount++] = bi;
+    }
+
     // Undo Stack methods
 
     /**
-     * get current undo position
+     * Trail of changes to undo on backtracking. A variable binding is recorded
+     * as the variable itself, anything else as its {@link UndoData}, so that
+     * recording a binding is a single store into the array.
+     */
+    private Object[] trail = new Object[PAGESIZE];
+    private int trailAmount = 0;
+
+    /**
+     * Number of interpreters created, which keeps the trail marks of different
+     * interpreters apart
+     */
+    private static final AtomicLong interpreterCount = new AtomicLong();
+
+    /**
+     * Advanced every time a choice point or another undo position that later
+     * code may undo to is taken. A variable created by {@link #createVariable()}
+     * records the mark current at its creation.
+     */
+    private long trailMark = interpreterCount.incrementAndGet() << 40;
+
+    /**
+     * Mark of the most recent undo position which is still live. A variable with
+     * a mark from this one up to {@link #trailMark} is newer than every undo
+     * position, so no undo will ever need to reset it and its binding is not
+     * trailed. Cutting choice points away lowers it again.
+     */
+    private long liveMark = trailMark;
+
+    /**
+     * Mark and trail length of the last undo position taken by
+     * {@link #getUndoPosition()}. The code which took it may still undo to it,
+     * and it is not on the backtrack stack, so trimming never goes below it.
+     */
+    private long floorMark = trailMark;
+    private int floorPosition = 0;
+
+    /**
+     * create a new variable for code running in this interpreter. Binding it
+     * costs nothing on the trail until the next choice point is taken.
+     *
+     * @return the new variable
+     */
+    public VariableTerm createVariable() {
+        VariableTerm variable = new VariableTerm();
+        variable.trailMark = trailMark;
+        return variable;
+    }
+
+    /**
+     * get current undo position, for code which undoes to it by itself rather
+     * than through backtrack information
      *
      * @return the current undo position
      */
     public int getUndoPosition() {
-        undoPositionAsked = true;
-        return undoDataAmount;
+        liveMark = floorMark = ++trailMark;
+        floorPosition = trailAmount;
+        return trailAmount;
+    }
+
+    /**
+     * get current undo position for a choice point, which is pushed as
+     * backtrack information before anything else runs
+     *
+     * @return the current undo position
+     */
+    public int getChoicePointUndoPosition() {
+        liveMark = ++trailMark;
+        return trailAmount;
+    }
+
+    /**
+     * get current undo position for entering a call. Undoing to it resets what
+     * the call bound of the variables which predate the last choice point; the
+     * others are unreachable once execution backtracks to that choice point.
+     *
+     * @return the current undo position
+     */
+    public int getEntryUndoPosition() {
+        return trailAmount;
     }
 
     /**
@@ -179,13 +399,23 @@ public final class Interpreter implements HasEnvironment {
      * @param position
      */
     public void undo(int position) {
-        // System.err.println("undo "+position+" current="+undoData_amount);
-        for (int i = undoDataAmount - 1; i >= position; i--) {
-            undoData[i].undo();
-            undoData[i] = null;
+        Object[] trail = this.trail;
+        for (int i = trailAmount - 1; i >= position; i--) {
+            Object entry = trail[i];
+            if (entry instanceof VariableTerm) {
+                ((VariableTerm) entry).value = null;
+            } else {
+                ((UndoData) entry).undo();
+            }
+            trail[i] = null;
+        }
+        if (position < trailAmount) {
+            trailAmount = position;
+            // give back the memory of a trail which only grew for a deep computation
+            if (trail.length > PAGESIZE && position < trail.length / 4) {
+                this.trail = Arrays.copyOf(trail, Math.max(PAGESIZE, trail.length / 2));
+            }
         }
-        undoDataAmount = position;
-        undoPositionAsked = true;
     }
 
     /**
@@ -194,16 +424,14 @@ public final class Interpreter implements HasEnvironment {
      * @param variable
      */
     public void addVariableUndo(VariableTerm variable) {
-        if (undoPositionAsked || !(undoData[undoDataAmount - 1] instanceof VariableUndoData)) {
-            addSpecialUndo(new VariableUndoData());
+        long mark = variable.trailMark;
+        if (mark >= liveMark && mark <= trailMark) {
+            return;
         }
-        if (variablesAmount == variables.length) {
-            VariableTerm[] tmp = new VariableTerm[GROWSIZE + variables.length];
-            System.arraycopy(variables, 0, tmp, 0, variablesAmount);
-            variables = tmp;
+        if (trailAmount == trail.length) {
+            growTrail();
         }
-        variables[variablesAmount] = variable;
-        variablesAmount++;
+        trail[trailAmount++] = variable;
     }
 
     /**
@@ -212,37 +440,48 @@ public final class Interpreter implements HasEnvironment {
      * @param undoDatum
      */
     public void addSpecialUndo(UndoData undoDatum) {
-        if (undoDataAmount == undoData.length) {
-            UndoData[] tmp = new UndoData[GROWSIZE + undoData.length];
-            System.arraycopy(undoData, 0, tmp, 0, undoDataAmount);
-            undoData = tmp;
+        if (trailAmount == trail.length) {
+            growTrail();
         }
-        undoData[undoDataAmount] = undoDatum;
-        undoDataAmount++;
+        trail[trailAmount++] = undoDatum;
     }
 
-    protected VariableTerm[] variables = new VariableTerm[PAGESIZE];
-    protected int variablesAmount = 0;
-
-    private UndoData[] undoData = new UndoData[PAGESIZE];
-    private int undoDataAmount = 0;
-    private boolean undoPositionAsked = true;
-
-    private class VariableUndoData implements UndoData
-            // maybe later this class will be pooled
-    {
-        private final int startPosion;
+    private void growTrail() {
+        trail = Arrays.copyOf(trail, trail.length * 2);
+    }
 
-        protected VariableUndoData() {
-            startPosion = variablesAmount;
+    /**
+     * lower the live mark to the top backtrack information left, and drop the
+     * trailed bindings of variables newer than it, which no undo needs to reset
+     * any more
+     */
+    private void trimTrail() {
+        long mark = floorMark;
+        int from = floorPosition;
+        int top = backtrackInfoAmount - 1;
+        if (top >= 0) {
+            mark = Math.max(mark, backtrackInfoMarks[top]);
+            from = Math.max(from, backtrackInfoTrail[top]);
         }
-
-        public void undo() {
-            for (int i = variablesAmount - 1; i >= startPosion; i--) {
-                variables[i].value = null;
-                variables[i] = null;
+        if (mark >= liveMark) {
+            return;
+        }
+        liveMark = mark;
+        Object[] trail = this.trail;
+        int to = from;
+        for (int i = from; i < trailAmount; i++) {
+            Object entry = trail[i];
+            if (entry instanceof VariableTerm) {
+                long variableMark = ((VariableTerm) entry).trailMark;
+                if (variableMark >= mark && variableMark <= trailMark) {
+                    continue;
+                }
             }
-            variablesAmount = startPosion;
+            trail[to++] = entry;
+        }
+        if (to < trailAmount) {
+            Arrays.fill(trail, to, trailAmount, null);
+            trailAmount = to;
         }
     }
 
@@ -296,6 +535,10 @@ public final class Interpreter implements HasEnvironment {
                 if (ct1.value != ct2.value) {
                     rc = FAIL;
                 }
+            } else if (t1 instanceof BigIntegerTerm /* && t2 instanceof BigIntegerTerm */) {
+                if (!((BigIntegerTerm) t1).value.equals(((BigIntegerTerm) t2).value)) {
+                    rc = FAIL;
+                }
             } else if (t1 instanceof JavaObjectTerm /* && t2 instanceof JavaObjectTerm */) {
                 JavaObjectTerm ct1 = (JavaObjectTerm) t1;
                 JavaObjectTerm ct2 = (JavaObjectTerm) t2;
@@ -318,11 +561,16 @@ public final class Interpreter implements HasEnvironment {
      * @throws PrologException
      */
     public Result unify(Term t1, Term t2) throws PrologException {
-        int undoPos = getUndoPosition();
+        // no variable is created whilst unifying, so trailing every binding is
+        // enough to undo a failed unification, and nothing outlives the call
+        long mark = liveMark;
+        liveMark = trailMark + 1;
+        int undoPos = trailAmount;
         Result rc = simpleUnify(t1, t2);
         if (rc == FAIL) {
             undo(undoPos);
         }
+        liveMark = mark;
         return rc;
     }
 
@@ -362,15 +610,13 @@ public final class Interpreter implements HasEnvironment {
         public Map<String, Object> rContext;
 
         public BacktrackInfo[] rBacktrackInfoStack;
+        public long[] rBacktrackInfoMarks;
+        public int[] rBacktrackInfoTrail;
         public int rBacktrackInfoAmount;
         public int rBacktrackInfoMax;
 
-        public VariableTerm[] rVariables;
-        public int rVariablesAmount;
-
-        public UndoData[] rUndoData;
-        public int rUndoDataAmount;
-        public boolean rUndoPositionAsked;
+        public Object[] rTrail;
+        public int rTrailAmount;
 
         public Goal rCurrentGoal;
     }
@@ -398,13 +644,12 @@ public final class Interpreter implements HasEnvironment {
             rp = new ReturnPoint();
             rp.rContext = context;
             rp.rBacktrackInfoStack = backtrackInfoStack.clone();
+            rp.rBacktrackInfoMarks = backtrackInfoMarks.clone();
+            rp.rBacktrackInfoTrail = backtrackInfoTrail.clone();
             rp.rBacktrackInfoAmount = backtrackInfoAmount;
             rp.rBacktrackInfoMax = backtrackInfoMax;
-            rp.rVariables = variables.clone();
-            rp.rVariablesAmount = variablesAmount;
-            rp.rUndoData = undoData.clone();
-            rp.rUndoDataAmount = undoDataAmount;
-            rp.rUndoPositionAsked = undoPositionAsked;
+            rp.rTrail = trail.clone();
+            rp.rTrailAmount = trailAmount;
             rp.rCurrentGoal = currentGoal;
         }
         currentGoal = new Goal(term);
@@ -508,13 +753,16 @@ public final class Interpreter implements HasEnvironment {
             returnPoints.remove(rp.rCurrentGoal);// garbage collect
             context = rp.rContext;
             backtrackInfoStack = rp.rBacktrackInfoStack;
+            backtrackInfoMarks = rp.rBacktrackInfoMarks;
+            backtrackInfoTrail = rp.rBacktrackInfoTrail;
             backtrackInfoAmount = rp.rBacktrackInfoAmount;
             backtrackInfoMax = rp.rBacktrackInfoMax;
-            variables = rp.rVariables;
-            undoData = rp.rUndoData;
-            undoDataAmount = rp.rUndoDataAmount;
-            undoPositionAsked = rp.rUndoPositionAsked;
+            trail = rp.rTrail;
+            trailAmount = rp.rTrailAmount;
             currentGoal = rp.rCurrentGoal;
+            // the goal being returned to may undo to anything taken before
+            liveMark = floorMark = ++trailMark;
+            floorPosition = trailAmount;
         }
     }
 
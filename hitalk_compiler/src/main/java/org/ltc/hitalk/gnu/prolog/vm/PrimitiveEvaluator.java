@@ -0,0 +1,482 @@
+package org.ltc.hitalk.gnu.prolog.vm;
+
+import org.ltc.hitalk.gnu.prolog.term.*;
+
+import java.math.BigInteger;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Evaluates arithmetic expressions on primitive values. Intermediate results
+ * are kept in a long or a double slot rather than boxed into terms, and the
+ * functor of each compound is mapped to a dense opcode once and switched on,
+ * so only the final result of {@link #evaluate(Term)} is boxed and
+ * {@link #compare(Term, Term)} boxes nothing at all.
+ *
+ * The common integer and float operations are evaluated here with exactly the
+ * results and errors of {@link Evaluate}. Everything else, and every case
+ * which is an error, is handed to {@link Evaluate}. Integer operations are done
+ * on the long slot while they do not overflow it; an operation which would, or
+ * which has an operand too large for it, is done by {@link Evaluate} on
+ * {@link BigIntegerTerm}s.
+ *
+ * An evaluator keeps its slots in fields, so each {@link Interpreter} has its
+ * own, see {@link Interpreter#getEvaluator()}.
+ */
+public final class PrimitiveEvaluator
+{
+	/** result of {@link #compare(Term, Term)} if the first value is less */
+	public static final int LESS = -1;
+	/** result of {@link #compare(Term, Term)} if the values are equal */
+	public static final int EQUAL = 0;
+	/** result of {@link #compare(Term, Term)} if the first value is greater */
+	public static final int GREATER = 1;
+	/** result of {@link #compare(Term, Term)} if a value is not a number */
+	public static final int UNORDERED = 2;
+
+	private static final int OP_ADD = 0;
+	private static final int OP_SUB = 1;
+	private static final int OP_MUL = 2;
+	private static final int OP_INTDIV = 3;
+	private static final int OP_DIV = 4;
+	private static final int OP_REM = 5;
+	private static final int OP_MOD = 6;
+	private static final int OP_NEG = 7;
+	private static final int OP_ABS = 8;
+	private static final int OP_FLOAT = 9;
+	private static final int OP_RSHIFT = 10;
+	private static final int OP_LSHIFT = 11;
+	private static final int OP_AND = 12;
+	private static final int OP_OR = 13;
+	private static final int OP_NOT = 14;
+
+	private static final Map<CompoundTermTag, Integer> opcodes = new IdentityHashMap<CompoundTermTag, Integer>();
+
+	static
+	{
+		opcodes.put(Evaluate.add2, OP_ADD);
+		opcodes.put(Evaluate.sub2, OP_SUB);
+		opcodes.put(Evaluate.mul2, OP_MUL);
+		opcodes.put(Evaluate.intdiv2, OP_INTDIV);
+		opcodes.put(Evaluate.div2, OP_DIV);
+		opcodes.put(Evaluate.rem2, OP_REM);
+		opcodes.put(Evaluate.mod2, OP_MOD);
+		opcodes.put(Evaluate.neg1, OP_NEG);
+		opcodes.put(Evaluate.abs1, OP_ABS);
+		opcodes.put(Evaluate.float1, OP_FLOAT);
+		opcodes.put(Evaluate.brshift2, OP_RSHIFT);
+		opcodes.put(Evaluate.blshift2, OP_LSHIFT);
+		opcodes.put(Evaluate.band2, OP_AND);
+		opcodes.put(Evaluate.bor2, OP_OR);
+		opcodes.put(Evaluate.bnot1, OP_NOT);
+	}
+
+	private static final int KIND_INT = 0;
+	private static final int KIND_BIG = 1;
+	private static final int KIND_FLOAT = 2;
+
+	/** kind of the value, one of the KIND_ constants */
+	private int kind;
+	/** the value if it is an integer which fits in 64 bits */
+	private long intValue;
+	/** the value if it is an integer which does not fit in 64 bits */
+	private BigInteger bigValue;
+	/** the value if it is a float */
+	private double floatValue;
+
+	PrimitiveEvaluator()
+	{}
+
+	/**
+	 * evaluate an expression
+	 *
+	 * @param term
+	 *          the expression
+	 * @return the value of the expression
+	 * @throws PrologException
+	 *           as {@link Evaluate#evaluate(Term)}
+	 */
+	public Term evaluate(Term term) throws PrologException
+	{
+		eval(term);
+		return box();
+	}
+
+	/**
+	 * evaluate and compare two expressions
+	 *
+	 * @param term0
+	 * @param term1
+	 * @return {@link #LESS}, {@link #EQUAL}, {@link #GREATER} or
+	 *         {@link #UNORDERED}
+	 * @throws PrologException
+	 *           as {@link Evaluate#evaluate(Term)}
+	 */
+	public int compare(Term term0, Term term1) throws PrologException
+	{
+		eval(term0);
+		int k0 = kind;
+		long i0 = intValue;
+		BigInteger b0 = bigValue;
+		double d0 = floatValue;
+		eval(term1);
+		if (k0 == KIND_INT && kind == KIND_INT)
+		{
+			return i0 < intValue ? LESS : i0 > intValue ? GREATER : EQUAL;
+		}
+		if (k0 != KIND_FLOAT && kind != KIND_FLOAT)
+		{
+			int res = toBigInteger(k0, i0, b0).compareTo(toBigInteger(kind, intValue, bigValue));
+			return res < 0 ? LESS : res > 0 ? GREATER : EQUAL;
+		}
+		double a = toDouble(k0, i0, b0, d0);
+		double b = toDouble(kind, intValue, bigValue, floatValue);
+		return a < b ? LESS : a > b ? GREATER : a == b ? EQUAL : UNORDERED;
+	}
+
+	private static BigInteger toBigInteger(int kind, long intValue, BigInteger bigValue)
+	{
+		return kind == KIND_BIG ? bigValue : BigInteger.valueOf(intValue);
+	}
+
+	private static double toDouble(int kind, long intValue, BigInteger bigValue, double floatValue)
+	{
+		switch (kind)
+		{
+			case KIND_INT:
+				return intValue;
+			case KIND_BIG:
+				return bigValue.doubleValue();
+			default:
+				return floatValue;
+		}
+	}
+
+	private static Term box(int kind, long intValue, BigInteger bigValue, double floatValue)
+	{
+		switch (kind)
+		{
+			case KIND_INT:
+				return BigIntegerTerm.valueOf(intValue);
+			case KIND_BIG:
+				return BigIntegerTerm.valueOf(bigValue);
+			default:
+				return new FloatTerm(floatValue);
+		}
+	}
+
+	private Term box()
+	{
+		return box(kind, intValue, bigValue, floatValue);
+	}
+
+	private void setInt(long value)
+	{
+		kind = KIND_INT;
+		intValue = value;
+	}
+
+	private void setBig(BigInteger value)
+	{
+		if (value.bitLength() < 64)
+		{
+			setInt(value.longValue());
+		}
+		else
+		{
+			kind = KIND_BIG;
+			bigValue = value;
+		}
+	}
+
+	private void setFloat(double value) throws PrologException
+	{
+		if (value == Double.POSITIVE_INFINITY || value == Double.NEGATIVE_INFINITY)
+		{
+			Evaluate.floatOverflow();
+		}
+		kind = KIND_FLOAT;
+		floatValue = value;
+	}
+
+	private void unbox(Term term)
+	{
+		if (term instanceof IntegerTerm)
+		{
+			setInt(((IntegerTerm) term).value);
+		}
+		else if (term instanceof BigIntegerTerm)
+		{
+			setBig(((BigIntegerTerm) term).value);
+		}
+		else
+		{
+			kind = KIND_FLOAT;
+			floatValue = ((FloatTerm) term).value;
+		}
+	}
+
+	private void eval(Term term) throws PrologException
+	{
+		term = term.dereference();
+		if (term instanceof IntegerTerm)
+		{
+			setInt(((IntegerTerm) term).value);
+			return;
+		}
+		if (term instanceof FloatTerm)
+		{
+			kind = KIND_FLOAT;
+			floatValue = ((FloatTerm) term).value;
+			return;
+		}
+		if (term instanceof BigIntegerTerm)
+		{
+			setBig(((BigIntegerTerm) term).value);
+			return;
+		}
+		if (term instanceof CompoundTerm)
+		{
+			CompoundTerm ct = (CompoundTerm) term;
+			Integer op = opcodes.get(ct.tag);
+			if (op != null && evalCompound(op.intValue(), ct))
+			{
+				return;
+			}
+		}
+		// functions not handled here and all errors
+		unbox(Evaluate.evaluate(term));
+	}
+
+	/**
+	 * evaluate a compound expression
+	 *
+	 * @param op
+	 *          the opcode of the functor
+	 * @param ct
+	 *          the expression
+	 * @return false if the types of the arguments are wrong, so that
+	 *         {@link Evaluate} has to report the error
+	 * @throws PrologException
+	 */
+	private boolean evalCompound(int op, CompoundTerm ct) throws PrologException
+	{
+		Term[] args = ct.args;
+		eval(args[0]);
+		int k0 = kind;
+		long i0 = intValue;
+		BigInteger b0 = bigValue;
+		double d0 = floatValue;
+		boolean f0 = k0 == KIND_FLOAT;
+		if (args.length == 1)
+		{
+			if (k0 == KIND_BIG)
+			{
+				return evalBig(ct.tag, box());
+			}
+			switch (op)
+			{
+				case OP_NEG:
+					if (f0)
+					{
+						setFloat(-d0);
+					}
+					else if (i0 == Long.MIN_VALUE)
+					{
+						return evalBig(ct.tag, box());
+					}
+					else
+					{
+						setInt(-i0);
+					}
+					return true;
+				case OP_ABS:
+					if (f0)
+					{
+						setFloat(Math.abs(d0));
+					}
+					else if (i0 == Long.MIN_VALUE)
+					{
+						return evalBig(ct.tag, box());
+					}
+					else
+					{
+						setInt(Math.abs(i0));
+					}
+					return true;
+				case OP_FLOAT:
+					if (!f0)
+					{
+						setFloat(i0);
+					}
+					return true;
+				case OP_NOT:
+					if (f0)
+					{
+						return false;
+					}
+					setInt(~i0);
+					return true;
+				default:
+					return false;
+			}
+		}
+		eval(args[1]);
+		int k1 = kind;
+		long i1 = intValue;
+		double d1 = floatValue;
+		boolean f1 = k1 == KIND_FLOAT;
+		if (k0 == KIND_BIG || k1 == KIND_BIG)
+		{
+			return evalBig(ct.tag, box(k0, i0, b0, d0), box());
+		}
+		switch (op)
+		{
+			case OP_ADD:
+				if (!f0 && !f1)
+				{
+					long res = i0 + i1;
+					// overflow if both operands have the sign the result has not
+					if (((i0 ^ res) & (i1 ^ res)) < 0)
+					{
+						return evalBig(ct.tag, box(k0, i0, b0, d0), box());
+					}
+					setInt(res);
+				}
+				else
+				{
+					setFloat((f0 ? d0 : i0) + (f1 ? d1 : i1));
+				}
+				return true;
+			case OP_SUB:
+				if (!f0 && !f1)
+				{
+					long res = i0 - i1;
+					if (((i0 ^ i1) & (i0 ^ res)) < 0)
+					{
+						return evalBig(ct.tag, box(k0, i0, b0, d0), box());
+					}
+					setInt(res);
+				}
+				else
+				{
+					setFloat((f0 ? d0 : i0) - (f1 ? d1 : i1));
+				}
+				return true;
+			case OP_MUL:
+				if (!f0 && !f1)
+				{
+					long res;
+					try
+					{
+						res = Math.multiplyExact(i0, i1);
+					}
+					catch (ArithmeticException ex)
+					{
+						return evalBig(ct.tag, box(k0, i0, b0, d0), box());
+					}
+					setInt(res);
+				}
+				else
+				{
+					setFloat((f0 ? d0 : i0) * (f1 ? d1 : i1));
+				}
+				return true;
+			case OP_DIV:
+			{
+				double divisor = f1 ? d1 : i1;
+				if (divisor == 0)
+				{
+					Evaluate.zeroDivizor();
+				}
+				double res = (f0 ? d0 : i0) / divisor;
+				if (Double.isInfinite(res))
+				{
+					Evaluate.floatOverflow();
+				}
+				kind = KIND_FLOAT;
+				floatValue = res;
+				return true;
+			}
+			default:
+				break;
+		}
+		if (f0 || f1)
+		{
+			return false;
+		}
+		switch (op)
+		{
+			case OP_INTDIV:
+				if (i1 == 0)
+				{
+					Evaluate.zeroDivizor();
+				}
+				if (i0 == Long.MIN_VALUE && i1 == -1)
+				{
+					return evalBig(ct.tag, box(k0, i0, b0, d0), box());
+				}
+				setInt(i0 / i1);
+				return true;
+			case OP_REM:
+				if (i1 == 0)
+				{
+					Evaluate.zeroDivizor();
+				}
+				setInt(i1 == -1 ? 0 : i0 % i1);
+				return true;
+			case OP_MOD:
+				if (i1 == 0)
+				{
+					Evaluate.zeroDivizor();
+				}
+				setInt(i1 == -1 ? 0 : Math.floorMod(i0, i1));
+				return true;
+			case OP_RSHIFT:
+				if (i1 < 0)
+				{
+					return evalBig(ct.tag, box(k0, i0, b0, d0), box());
+				}
+				setInt(i0 >> Math.min(i1, 63));
+				return true;
+			case OP_LSHIFT:
+				if (i1 < 0)
+				{
+					setInt(i0 >> Math.min(-i1, 63));
+					return true;
+				}
+				// shift on the long slot only if no bits are shifted out
+				if (i1 >= 63 || (i0 << i1) >> i1 != i0)
+				{
+					return evalBig(ct.tag, box(k0, i0, b0, d0), box());
+				}
+				setInt(i0 << i1);
+				return true;
+			case OP_AND:
+				setInt(i0 & i1);
+				return true;
+			case OP_OR:
+				setInt(i0 | i1);
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * evaluate a function of integer arguments whose result may not fit in 64
+	 * bits
+	 *
+	 * @param tag
+	 *          the functor
+	 * @param args
+	 *          the values of the arguments
+	 * @return true
+	 * @throws PrologException
+	 */
+	private boolean evalBig(CompoundTermTag tag, Term... args) throws PrologException
+	{
+		unbox(Evaluate.evaluateBig(tag, args));
+		return true;
+	}
+}
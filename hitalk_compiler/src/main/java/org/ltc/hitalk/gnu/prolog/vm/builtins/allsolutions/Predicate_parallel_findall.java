@@ -0,0 +1,438 @@
+package org.ltc.hitalk.gnu.prolog.vm.builtins.allsolutions;
+
+import org.ltc.hitalk.gnu.prolog.database.Predicate;
+import org.ltc.hitalk.gnu.prolog.database.PredicateListener;
+import org.ltc.hitalk.gnu.prolog.database.PredicateUpdatedEvent;
+import org.ltc.hitalk.gnu.prolog.io.PrologStream;
+import org.ltc.hitalk.gnu.prolog.term.*;
+import org.ltc.hitalk.gnu.prolog.vm.*;
+import org.ltc.hitalk.gnu.prolog.vm.interpreter.InterpretedCodeCompiler;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.*;
+
+/**
+ * parallel_findall/3, which finds the same list as findall/3, in the same
+ * order, but runs parts of the goal in parallel.
+ *
+ * The clauses of the called predicate are split into contiguous parts, and the
+ * goal is run against each part by an {@link Interpreter} of its own in a
+ * fork-join pool, all sharing the {@link Environment}. Each part appends its
+ * solutions straight onto a list of its own. Once every part is done, the
+ * lists of the parts are linked in clause order and unified with the result,
+ * so that, as with findall/3, an error raised by any part is raised even if
+ * the result would not have matched, and the error raised is that of the
+ * first part in clause order.
+ *
+ * The code of the parts is compiled on the first call of a predicate and kept
+ * until the predicate is updated; the interpreters which run the parts are
+ * kept for later calls. The parts run with the current input and output of
+ * the caller.
+ *
+ * This is only the same as findall/3 if the clauses do not depend on each other
+ * running in order, so it is opt-in. Predicates which cannot be split this
+ * way, such as builtins, predicates with few clauses and predicates with a cut
+ * at clause level, are run by {@link Predicate_findall#findall}.
+ */
+public class Predicate_parallel_findall extends ExecuteOnlyCode implements PredicateListener
+{
+	/** fewest clauses worth splitting */
+	protected static final int MIN_CLAUSES = 64;
+	/** parts per thread of the pool, to even out the work */
+	protected static final int PARTS_PER_THREAD = 4;
+	/** the parts of a predicate which is not split */
+	protected static final PrologCode[] UNSPLIT = new PrologCode[0];
+
+	static final CompoundTermTag pairTag = CompoundTermTag.get("-", 2);
+
+	/**
+	 * The solutions found by one part, as a list whose last tail is filled in
+	 * when the parts are linked.
+	 */
+	protected static class Solutions
+	{
+		/** first cell of the list, or null if there were no solutions */
+		CompoundTerm first;
+		/** last cell of the list */
+		CompoundTerm last;
+
+		void add(Term solution)
+		{
+			CompoundTerm cell = CompoundTerm.getList(solution, TermConstants.emptyListAtom);
+			if (first == null)
+			{
+				first = cell;
+			}
+			else
+			{
+				last.args[1] = cell;
+			}
+			last = cell;
+		}
+	}
+
+	/** the compiled parts of each predicate called so far, until it is updated */
+	protected final Map<CompoundTermTag, PrologCode[]> tag2parts = new ConcurrentHashMap<CompoundTermTag, PrologCode[]>();
+	/** count of predicate updates, to tell if one overlapped the compiling of parts */
+	protected final AtomicLong predicateUpdates = new AtomicLong();
+	/** interpreters free to run parts */
+	protected final Queue<Interpreter> interpreters = new ConcurrentLinkedQueue<Interpreter>();
+	/** environment the code is installed in */
+	protected Environment environment;
+
+	@Override
+	public Result execute(Interpreter interpreter, boolean backtrackMode, Term[] args) throws PrologException
+	{
+		Predicate_findall.checkList(args[2]);
+		return parallelFindall(interpreter, args[0], args[1], args[2]);
+	}
+
+	/**
+	 * find all solutions of a goal, splitting the work over a fork-join pool if
+	 * the goal allows it, and unify them with a list
+	 *
+	 * @param interpreter
+	 *          interpreter in which context code is executed
+	 * @param template
+	 * @param goal
+	 * @param list
+	 *          the list to unify the instances of the template with
+	 * @return either SUCCESS_LAST or FAIL
+	 * @throws PrologException
+	 */
+	public Result parallelFindall(Interpreter interpreter, Term template, Term goal, Term list) throws PrologException
+	{
+		PrologCode[] parts = getParts(goal.dereference());
+		if (parts == UNSPLIT)
+		{
+			List<Term> solutions = new ArrayList<Term>();
+			Predicate_findall.findall(interpreter, false, template, goal, solutions);
+			return interpreter.unify(list, CompoundTerm.getList(solutions));
+		}
+		final PrologStream input = environment.getCurrentInput();
+		final PrologStream output = environment.getCurrentOutput();
+		List<Future<Solutions>> futures = new ArrayList<Future<Solutions>>(parts.length);
+		for (final PrologCode part : parts)
+		{
+			// each part binds a copy of its own, made here while the caller waits
+			final CompoundTerm pair = (CompoundTerm) new CompoundTerm(pairTag, template, goal).clone();
+			futures.add(ForkJoinPool.commonPool().submit(new Callable<Solutions>()
+			{
+				public Solutions call() throws Exception
+				{
+					return solve(part, pair.args[0], pair.args[1].dereference(), input, output);
+				}
+			}));
+		}
+		try
+		{
+			Term result = TermConstants.emptyListAtom;
+			// linked from the last part back, once all of them are done
+			for (int i = futures.size() - 1; i >= 0; i--)
+			{
+				Solutions solutions = futures.get(i).get();
+				if (solutions.first != null)
+				{
+					solutions.last.args[1] = result;
+					result = solutions.first;
+				}
+			}
+			return interpreter.unify(list, result);
+		}
+		catch (InterruptedException ex)
+		{
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			PrologException.systemError(ex);
+		}
+		catch (ExecutionException ex)
+		{
+			// the error of the first part in clause order, as findall/3 would raise
+			Throwable cause = firstError(futures, ex.getCause());
+			cancel(futures);
+			if (cause instanceof PrologException)
+			{
+				throw (PrologException) cause;
+			}
+			PrologException.systemError(cause);
+		}
+		return FAIL; // fake return
+	}
+
+	private static void cancel(List<Future<Solutions>> futures)
+	{
+		for (Future<Solutions> future : futures)
+		{
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * get the error of the first part in clause order which raised one, waiting
+	 * for the parts before it which are still running
+	 *
+	 * @param futures
+	 *          the parts
+	 * @param error
+	 *          an error raised by one of the parts
+	 * @return the error of the first part which raised one
+	 */
+	private static Throwable firstError(List<Future<Solutions>> futures, Throwable error)
+	{
+		for (Future<Solutions> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (ExecutionException ex)
+			{
+				return ex.getCause();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				return error;
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * get the compiled parts of the predicate called by a goal, compiling them
+	 * on the first call. Parts which are already compiled are returned without
+	 * taking a lock.
+	 *
+	 * @param goal
+	 *          dereferenced goal
+	 * @return the parts, or {@link #UNSPLIT} if the goal cannot be split
+	 * @throws PrologException
+	 */
+	protected PrologCode[] getParts(Term goal) throws PrologException
+	{
+		CompoundTermTag tag;
+		if (goal instanceof AtomTerm)
+		{
+			tag = CompoundTermTag.get((AtomTerm) goal, 0);
+		}
+		else if (goal instanceof CompoundTerm)
+		{
+			tag = ((CompoundTerm) goal).tag;
+		}
+		else
+		{
+			return UNSPLIT;
+		}
+		PrologCode[] parts = tag2parts.get(tag);
+		if (parts == null)
+		{
+			parts = loadParts(tag);
+		}
+		return parts;
+	}
+
+	protected synchronized PrologCode[] loadParts(CompoundTermTag tag) throws PrologException
+	{
+		while (true)
+		{
+			PrologCode[] parts = tag2parts.get(tag);
+			if (parts != null)
+			{
+				return parts;
+			}
+			long updates = predicateUpdates.get();
+			List<List<Term>> split = split(environment, tag);
+			parts = split == null ? UNSPLIT : new PrologCode[split.size()];
+			for (int i = 0; i < parts.length; i++)
+			{
+				parts[i] = InterpretedCodeCompiler.compile(split.get(i));
+				parts[i].install(environment);
+			}
+			tag2parts.put(tag, parts);
+			// an update delivered while compiling may have missed the parts, which
+			// are then out of date; updates delivered from now on will find them
+			if (predicateUpdates.get() == updates)
+			{
+				return parts;
+			}
+			if (tag2parts.remove(tag, parts))
+			{
+				uninstall(parts);
+			}
+		}
+	}
+
+	private void uninstall(PrologCode[] parts)
+	{
+		for (PrologCode part : parts)
+		{
+			part.uninstall(environment);
+		}
+	}
+
+	/**
+	 * Called by the module with the locks of the module and of the updated
+	 * predicate held, so it only drops the parts of the predicate.
+	 */
+	public void predicateUpdated(PredicateUpdatedEvent evt)
+	{
+		predicateUpdates.incrementAndGet();
+		PrologCode[] parts = tag2parts.remove(evt.getTag());
+		if (parts != null)
+		{
+			uninstall(parts);
+		}
+	}
+
+	@Override
+	public void install(Environment env)
+	{
+		environment = env;
+		env.getModule().addPredicateListener(this);
+	}
+
+	@Override
+	public void uninstall(Environment env)
+	{
+		env.getModule().removePredicateListener(this);
+		for (CompoundTermTag tag : tag2parts.keySet())
+		{
+			PrologCode[] parts = tag2parts.remove(tag);
+			if (parts != null)
+			{
+				uninstall(parts);
+			}
+		}
+		interpreters.clear();
+	}
+
+	/**
+	 * split the clauses of the predicate called by a goal into parts
+	 *
+	 * @param environment
+	 * @param tag
+	 *          tag of the predicate
+	 * @return the parts, or null if the predicate cannot be split
+	 */
+	protected static List<List<Term>> split(Environment environment, CompoundTermTag tag)
+	{
+		Predicate p = environment.getModule().getDefinedPredicate(tag);
+		if (p == null || p.getType() != Predicate.TYPE.USER_DEFINED)
+		{
+			return null;
+		}
+		List<Term> clauses;
+		// the clauses as of the call, which is the logical update view
+		synchronized (p)
+		{
+			clauses = new ArrayList<Term>(p.getClauses());
+		}
+		if (clauses.size() < MIN_CLAUSES)
+		{
+			return null;
+		}
+		for (Term clause : clauses)
+		{
+			clause = clause.dereference();
+			if (clause instanceof CompoundTerm && ((CompoundTerm) clause).tag == TermConstants.clauseTag
+					&& hasCut(((CompoundTerm) clause).args[1]))
+			{
+				return null;
+			}
+		}
+		int count = Math.min(clauses.size(), ForkJoinPool.commonPool().getParallelism() * PARTS_PER_THREAD);
+		List<List<Term>> parts = new ArrayList<List<Term>>(count);
+		for (int i = 0; i < count; i++)
+		{
+			parts.add(clauses.subList(i * clauses.size() / count, (i + 1) * clauses.size() / count));
+		}
+		return parts;
+	}
+
+	/**
+	 * check if a clause body has a cut which would cut away the later clauses
+	 *
+	 * @param body
+	 * @return true if it has such a cut
+	 */
+	protected static boolean hasCut(Term body)
+	{
+		body = body.dereference();
+		if (body == TermConstants.cutAtom)
+		{
+			return true;
+		}
+		if (body instanceof CompoundTerm)
+		{
+			CompoundTerm ct = (CompoundTerm) body;
+			if (ct.tag == TermConstants.conjunctionTag || ct.tag == TermConstants.disjunctionTag
+					|| ct.tag == TermConstants.ifTag)
+			{
+				return hasCut(ct.args[0]) || hasCut(ct.args[1]);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * find all solutions of a goal against the code of some of the clauses of
+	 * its predicate, with the current streams of the caller
+	 *
+	 * @param code
+	 *          the code of the clauses to run the goal against
+	 * @param template
+	 * @param goal
+	 *          dereferenced goal, an atom or a compound term
+	 * @param input
+	 *          current input of the caller
+	 * @param output
+	 *          current output of the caller
+	 * @return the solutions
+	 * @throws Exception
+	 *           raised by the code, which the caller turns into a system error
+	 *           unless it is a {@link PrologException}
+	 */
+	protected Solutions solve(PrologCode code, Term template, Term goal, PrologStream input, PrologStream output)
+			throws Exception
+	{
+		Solutions solutions = new Solutions();
+		Term[] args = goal instanceof CompoundTerm ? ((CompoundTerm) goal).args : new Term[0];
+		Interpreter interpreter = interpreters.poll();
+		if (interpreter == null)
+		{
+			interpreter = environment.createInterpreter();
+		}
+		// pool threads are shared, so their own streams are put back afterwards
+		PrologStream threadInput = environment.getCurrentInput();
+		PrologStream threadOutput = environment.getCurrentOutput();
+		environment.setCurrentInput(input);
+		environment.setCurrentOutput(output);
+		int undoPosition = interpreter.getUndoPosition();
+		Interpreter.Goal g = interpreter.prepareGoal(goal);
+		try
+		{
+			Result rc = code.execute(interpreter, false, args);
+			while (rc != FAIL)
+			{
+				solutions.add((Term) template.clone());
+				if (rc == SUCCESS_LAST)
+				{
+					break;
+				}
+				rc = code.execute(interpreter, true, args);
+			}
+		}
+		finally
+		{
+			interpreter.stop(g);
+			interpreter.undo(undoPosition);
+			interpreters.offer(interpreter);
+			environment.setCurrentInput(threadInput);
+			environment.setCurrentOutput(threadOutput);
+		}
+		return solutions;
+	}
+}
@@ -18,7 +18,6 @@
 package org.ltc.hitalk.gnu.prolog.vm.builtins.arithmetics;
 
 import org.ltc.hitalk.gnu.prolog.term.Term;
-import org.ltc.hitalk.gnu.prolog.vm.Evaluate;
 import org.ltc.hitalk.gnu.prolog.vm.ExecuteOnlyCode;
 import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
 import org.ltc.hitalk.gnu.prolog.vm.PrologException;
@@ -33,6 +32,6 @@ public class Predicate_is extends ExecuteOnlyCode
 	public Result execute(Interpreter interpreter, boolean backtrackMode, Term[] args)
 			throws PrologException
 	{
-		return interpreter.unify(args[0], Evaluate.evaluate(args[1]));
+		return interpreter.unify(args[0], interpreter.getEvaluator().evaluate(args[1]));
 	}
 }
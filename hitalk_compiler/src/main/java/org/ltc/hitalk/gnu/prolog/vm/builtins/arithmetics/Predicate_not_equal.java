@@ -17,12 +17,10 @@
  */
 package org.ltc.hitalk.gnu.prolog.vm.builtins.arithmetics;
 
-import org.ltc.hitalk.gnu.prolog.term.FloatTerm;
-import org.ltc.hitalk.gnu.prolog.term.IntegerTerm;
 import org.ltc.hitalk.gnu.prolog.term.Term;
-import org.ltc.hitalk.gnu.prolog.vm.Evaluate;
 import org.ltc.hitalk.gnu.prolog.vm.ExecuteOnlyCode;
 import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrimitiveEvaluator;
 import org.ltc.hitalk.gnu.prolog.vm.PrologException;
 
 /**
@@ -35,32 +33,6 @@ public class Predicate_not_equal extends ExecuteOnlyCode
 	public Result execute(Interpreter interpreter, boolean backtrackMode, Term[] args)
 			throws PrologException
 	{
-		Term arg0 = Evaluate.evaluate(args[0]);
-		Term arg1 = Evaluate.evaluate(args[1]);
-		if (arg0 instanceof IntegerTerm && arg1 instanceof IntegerTerm)
-		{
-			IntegerTerm i0 = (IntegerTerm) arg0;
-			IntegerTerm i1 = (IntegerTerm) arg1;
-			return i0.value != i1.value ? SUCCESS_LAST : FAIL;
-		}
-		else if (arg0 instanceof FloatTerm && arg1 instanceof IntegerTerm)
-		{
-			FloatTerm f0 = (FloatTerm) arg0;
-			IntegerTerm i1 = (IntegerTerm) arg1;
-			return f0.value != i1.value ? SUCCESS_LAST : FAIL;
-		}
-		else if (arg0 instanceof IntegerTerm && arg1 instanceof FloatTerm)
-		{
-			IntegerTerm i0 = (IntegerTerm) arg0;
-			FloatTerm f1 = (FloatTerm) arg1;
-			return i0.value != f1.value ? SUCCESS_LAST : FAIL;
-		}
-		else if (arg0 instanceof FloatTerm && arg1 instanceof FloatTerm)
-		{
-			FloatTerm f0 = (FloatTerm) arg0;
-			FloatTerm f1 = (FloatTerm) arg1;
-			return f0.value != f1.value ? SUCCESS_LAST : FAIL;
-		}
-		return FAIL;
+		return interpreter.getEvaluator().compare(args[0], args[1]) != PrimitiveEvaluator.EQUAL ? SUCCESS_LAST : FAIL;
 	}
 }
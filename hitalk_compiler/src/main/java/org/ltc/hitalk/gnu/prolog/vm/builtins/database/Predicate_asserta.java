@@ -0,0 +1,17 @@
+package org.ltc.hitalk.gnu.prolog.vm.builtins.database;
+
+import org.ltc.hitalk.gnu.prolog.database.Predicate;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+
+/**
+ * asserta(@clause), which adds a copy of the clause before the clauses of its
+ * predicate
+ */
+public class Predicate_asserta extends Predicate_assertz
+{
+	@Override
+	protected void addClause(Predicate p, Term clause)
+	{
+		p.addClauseFirst(clause);
+	}
+}
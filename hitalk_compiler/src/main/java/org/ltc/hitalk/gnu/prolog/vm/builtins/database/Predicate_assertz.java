@@ -0,0 +1,140 @@
+package org.ltc.hitalk.gnu.prolog.vm.builtins.database;
+
+import org.ltc.hitalk.gnu.prolog.database.Module;
+import org.ltc.hitalk.gnu.prolog.database.Predicate;
+import org.ltc.hitalk.gnu.prolog.term.AtomTerm;
+import org.ltc.hitalk.gnu.prolog.term.CompoundTerm;
+import org.ltc.hitalk.gnu.prolog.term.CompoundTermTag;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+import org.ltc.hitalk.gnu.prolog.term.VariableTerm;
+import org.ltc.hitalk.gnu.prolog.vm.ExecuteOnlyCode;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologException;
+import org.ltc.hitalk.gnu.prolog.vm.TermConstants;
+
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.SUCCESS_LAST;
+
+/**
+ * assertz(@clause), which adds a copy of the clause after the clauses of its
+ * predicate. The predicate is created dynamic if it is not defined yet, and
+ * code running calls to it goes on seeing the clauses it started with.
+ */
+public class Predicate_assertz extends ExecuteOnlyCode
+{
+	@Override
+	public Result execute(Interpreter interpreter, boolean backtrackMode, Term[] args) throws PrologException
+	{
+		Term clause = (Term) args[0].dereference().clone();
+		Predicate p = getDynamicPredicate(interpreter, clause, true);
+		Term prepared;
+		try
+		{
+			prepared = Predicate.prepareClause(clause);
+		}
+		catch (IllegalArgumentException ex)
+		{
+			PrologException.typeError(TermConstants.callableAtom, getBody(clause));
+			return null;
+		}
+		addClause(p, prepared);
+		return SUCCESS_LAST;
+	}
+
+	/**
+	 * add the prepared clause to the predicate
+	 *
+	 * @param p
+	 *          the predicate
+	 * @param clause
+	 *          the clause to add
+	 */
+	protected void addClause(Predicate p, Term clause)
+	{
+		p.addClauseLast(clause);
+	}
+
+	/**
+	 * get the head of a clause
+	 *
+	 * @param clause
+	 * @return the head of the clause
+	 */
+	static Term getHead(Term clause)
+	{
+		if (clause instanceof CompoundTerm && ((CompoundTerm) clause).tag == TermConstants.clauseTag)
+		{
+			return ((CompoundTerm) clause).args[0].dereference();
+		}
+		return clause;
+	}
+
+	/**
+	 * get the body of a clause
+	 *
+	 * @param clause
+	 * @return the body of the clause, true for a fact
+	 */
+	static Term getBody(Term clause)
+	{
+		if (clause instanceof CompoundTerm && ((CompoundTerm) clause).tag == TermConstants.clauseTag)
+		{
+			return ((CompoundTerm) clause).args[1].dereference();
+		}
+		return TermConstants.trueAtom;
+	}
+
+	/**
+	 * get the dynamic predicate of the head of a clause
+	 *
+	 * @param interpreter
+	 * @param clause
+	 *          the clause
+	 * @param create
+	 *          true if the predicate is created when it is not defined yet
+	 * @return the predicate, or null if it is not defined and not created
+	 * @throws PrologException
+	 *           if the head is not callable, or the predicate is not dynamic
+	 */
+	static Predicate getDynamicPredicate(Interpreter interpreter, Term clause, boolean create) throws PrologException
+	{
+		Term head = getHead(clause);
+		CompoundTermTag tag = null;
+		if (head instanceof VariableTerm)
+		{
+			PrologException.instantiationError();
+		}
+		else if (head instanceof AtomTerm)
+		{
+			tag = CompoundTermTag.get((AtomTerm) head, 0);
+		}
+		else if (head instanceof CompoundTerm)
+		{
+			tag = ((CompoundTerm) head).tag;
+		}
+		else
+		{
+			PrologException.typeError(TermConstants.callableAtom, head);
+		}
+		Module module = interpreter.getEnvironment().getModule();
+		synchronized (module)
+		{
+			Predicate p = module.getDefinedPredicate(tag);
+			if (p == null)
+			{
+				if (!create)
+				{
+					return null;
+				}
+				p = module.createDefinedPredicate(tag);
+				p.setType(Predicate.TYPE.USER_DEFINED);
+				p.setDynamic();
+			}
+			else if (p.getType() != Predicate.TYPE.USER_DEFINED || !p.isDynamic())
+			{
+				PrologException.permissionError(TermConstants.modifyAtom, TermConstants.staticProcedureAtom,
+						tag.getPredicateIndicator());
+			}
+			return p;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package org.ltc.hitalk.gnu.prolog.vm.builtins.database;
+
+import org.ltc.hitalk.gnu.prolog.database.Predicate;
+import org.ltc.hitalk.gnu.prolog.term.CompoundTerm;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+import org.ltc.hitalk.gnu.prolog.vm.BacktrackInfo;
+import org.ltc.hitalk.gnu.prolog.vm.ExecuteOnlyCode;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologException;
+import org.ltc.hitalk.gnu.prolog.vm.TermConstants;
+import org.ltc.hitalk.gnu.prolog.vm.interpreter.DynamicPredicateCode;
+import org.ltc.hitalk.gnu.prolog.vm.interpreter.DynamicPredicateCode.Clause;
+
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.*;
+
+/**
+ * retract(+clause), which removes the first clause unifying with the clause,
+ * and the next ones on backtracking. The clauses tried are those of the
+ * predicate when the call started, and a clause which is removed by someone
+ * else in the meantime is skipped.
+ *
+ * The clauses are walked in the chain of the dynamic code of the predicate,
+ * as a call to the predicate walks them, rather than in a copy of the list of
+ * clauses, and a clause removed since the call started is told by the
+ * generation it was removed in, without unifying it first.
+ */
+public class Predicate_retract extends ExecuteOnlyCode
+{
+	private static class RetractBacktrackInfo extends BacktrackInfo
+	{
+		RetractBacktrackInfo(int undoPosition)
+		{
+			super(undoPosition, -1);
+		}
+
+		Predicate predicate;
+		/** generation in which the call was started */
+		long generation;
+		/** next clause to try */
+		Clause clause;
+		Term pattern;
+	}
+
+	@Override
+	public Result execute(Interpreter interpreter, boolean backtrackMode, Term[] args) throws PrologException
+	{
+		RetractBacktrackInfo bi;
+		if (backtrackMode)
+		{
+			bi = (RetractBacktrackInfo) interpreter.popBacktrackInfo();
+			bi.undo(interpreter);
+		}
+		else
+		{
+			Term clause = args[0].dereference();
+			Predicate p = Predicate_assertz.getDynamicPredicate(interpreter, clause, false);
+			if (p == null)
+			{
+				return FAIL;
+			}
+			// the code of a dynamic predicate is always dynamic code
+			DynamicPredicateCode code = (DynamicPredicateCode) interpreter.getEnvironment().getPrologCode(p.getTag());
+			bi = new RetractBacktrackInfo(interpreter.getChoicePointUndoPosition());
+			bi.predicate = p;
+			bi.generation = code.getGeneration();
+			bi.clause = code.firstVisible(bi.generation);
+			bi.pattern = new CompoundTerm(TermConstants.clauseTag, Predicate_assertz.getHead(clause),
+					Predicate_assertz.getBody(clause));
+		}
+		while (bi.clause != null)
+		{
+			Clause stored = bi.clause;
+			bi.clause = stored.nextVisible(bi.generation);
+			if (stored.isRemoved())
+			{
+				continue;
+			}
+			if (interpreter.unify(bi.pattern, (Term) stored.getTerm().clone()) == FAIL)
+			{
+				continue;
+			}
+			if (!bi.predicate.removeClause(stored.getTerm()))
+			{
+				// removed since it was checked
+				bi.undo(interpreter);
+				continue;
+			}
+			if (bi.clause != null)
+			{
+				interpreter.pushBacktrackInfo(bi);
+				return SUCCESS;
+			}
+			return SUCCESS_LAST;
+		}
+		return FAIL;
+	}
+}
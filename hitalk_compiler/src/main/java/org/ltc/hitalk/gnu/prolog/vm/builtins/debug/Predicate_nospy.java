@@ -0,0 +1,14 @@
+package org.ltc.hitalk.gnu.prolog.vm.builtins.debug;
+
+/**
+ * nospy(+predicate_indicator), which undoes spy/1, so calls to the predicate
+ * are only traced while the trace_all flag is on
+ */
+public class Predicate_nospy extends Predicate_spy
+{
+	@Override
+	protected boolean isTraced()
+	{
+		return false;
+	}
+}
@@ -0,0 +1,57 @@
+package org.ltc.hitalk.gnu.prolog.vm.builtins.debug;
+
+import org.ltc.hitalk.gnu.prolog.term.CompoundTerm;
+import org.ltc.hitalk.gnu.prolog.term.CompoundTermTag;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+import org.ltc.hitalk.gnu.prolog.term.VariableTerm;
+import org.ltc.hitalk.gnu.prolog.vm.ExecuteOnlyCode;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologException;
+import org.ltc.hitalk.gnu.prolog.vm.TermConstants;
+
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.SUCCESS_LAST;
+
+/**
+ * spy(+predicate_indicator), which has calls to the predicate traced while
+ * debugging, also when the trace_all flag is off
+ */
+public class Predicate_spy extends ExecuteOnlyCode
+{
+	@Override
+	public Result execute(Interpreter interpreter, boolean backtrackMode, Term[] args) throws PrologException
+	{
+		interpreter.getEnvironment().setTraced(getTag(args[0]), isTraced());
+		return SUCCESS_LAST;
+	}
+
+	/**
+	 * @return true if the predicate is to be traced, false if not
+	 */
+	protected boolean isTraced()
+	{
+		return true;
+	}
+
+	/**
+	 * get the tag of a predicate indicator
+	 *
+	 * @param pi
+	 * @return the tag
+	 * @throws PrologException
+	 *           if the term is not a predicate indicator
+	 */
+	static CompoundTermTag getTag(Term pi) throws PrologException
+	{
+		pi = pi.dereference();
+		if (pi instanceof VariableTerm)
+		{
+			PrologException.instantiationError();
+		}
+		if (!CompoundTermTag.isPredicateIndicator(pi))
+		{
+			PrologException.typeError(TermConstants.predicateIndicatorAtom, pi);
+		}
+		// pi is a CompoundTerm as isPredicateIndicator checks that
+		return CompoundTermTag.get((CompoundTerm) pi);
+	}
+}
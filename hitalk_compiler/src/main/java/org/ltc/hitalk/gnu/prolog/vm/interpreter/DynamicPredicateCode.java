@@ -0,0 +1,416 @@
+package org.ltc.hitalk.gnu.prolog.vm.interpreter;
+
+import org.ltc.hitalk.gnu.prolog.database.PredicateUpdatedEvent;
+import org.ltc.hitalk.gnu.prolog.term.CompoundTermTag;
+import org.ltc.hitalk.gnu.prolog.term.JavaObjectTerm;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+import org.ltc.hitalk.gnu.prolog.vm.BacktrackInfo;
+import org.ltc.hitalk.gnu.prolog.vm.Environment;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologCode;
+import org.ltc.hitalk.gnu.prolog.vm.PrologException;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.*;
+
+/**
+ * Code for a dynamic predicate. Clauses are kept in a chain and compiled one at
+ * a time, so that adding or removing a clause only touches that clause instead
+ * of recompiling the whole predicate.
+ *
+ * Every change advances the generation of the predicate. A clause records the
+ * generation it was added in and the generation it was removed in, and a call
+ * only sees the clauses which were alive in the generation current when it
+ * started. This gives the logical update view of ISO Prolog (7.5.4): clauses
+ * added while a call is running are not seen by it, and clauses removed while
+ * it is running are still tried. A removed clause is unlinked from the chain
+ * but keeps its link to the next clause, so running calls can step past it.
+ *
+ * The clauses are changed by assert and retract through the events of the
+ * {@link org.ltc.hitalk.gnu.prolog.database.Predicate Predicate}, and a
+ * removed clause is looked up by identity, as it is the very term the
+ * predicate holds. retract walks the chain itself, as a call does, and skips
+ * the clauses already removed by their generation. The arguments of a call are taken from the interpreter and given back
+ * once the call ends for the last time.
+ */
+public class DynamicPredicateCode implements PrologCode
+{
+	/**
+	 * A clause in the chain.
+	 */
+	public static class Clause
+	{
+		/** the clause term */
+		protected final Term term;
+		/** generation in which the clause was added */
+		protected final long born;
+		/** generation in which the clause was removed */
+		protected volatile long died = Long.MAX_VALUE;
+		/** next clause in the chain */
+		protected volatile Clause next;
+		/** previous clause in the chain */
+		protected Clause prev;
+		/** compiled code of the clause, or null if not compiled yet */
+		protected PrologCode code;
+
+		protected Clause(Term term, long born)
+		{
+			this.term = term;
+			this.born = born;
+		}
+
+		/**
+		 * check if the clause is seen by a call started in the generation
+		 *
+		 * @param generation
+		 * @return true if the clause was alive in the generation
+		 */
+		protected boolean isVisible(long generation)
+		{
+			return born <= generation && generation < died;
+		}
+
+		/**
+		 * get the clause term
+		 *
+		 * @return the very term the predicate holds
+		 */
+		public Term getTerm()
+		{
+			return term;
+		}
+
+		/**
+		 * check if the clause was removed, in any generation
+		 *
+		 * @return true if the clause was removed
+		 */
+		public boolean isRemoved()
+		{
+			return died != Long.MAX_VALUE;
+		}
+
+		/**
+		 * get the next clause in the chain seen by a call
+		 *
+		 * @param generation
+		 *          the generation the call was started in
+		 * @return the next visible clause or null if there is none
+		 */
+		public Clause nextVisible(long generation)
+		{
+			return DynamicPredicateCode.nextVisible(next, generation);
+		}
+	}
+
+	/**
+	 * Backtrack info of a call to a dynamic predicate.
+	 */
+	protected static class DynamicBacktrackInfo extends BacktrackInfo
+	{
+		/** undo position at the start of the call */
+		protected final int startUndoPosition;
+		/** generation in which the call was started */
+		protected final long generation;
+		/** arguments of the call followed by the cut point */
+		protected final Term[] args;
+		/** clause currently tried */
+		protected Clause clause;
+		/** backtrack info of the current clause if it can be redone */
+		protected BacktrackInfo clauseInfo;
+		/** true if the current clause cut away the remaining clauses */
+		protected boolean committed;
+
+		protected DynamicBacktrackInfo(int startUndoPosition, long generation, Term[] args)
+		{
+			super(-1, -1);
+			this.startUndoPosition = startUndoPosition;
+			this.generation = generation;
+			this.args = args;
+		}
+	}
+
+	/** tag of the predicate */
+	protected final CompoundTermTag tag;
+	/** environment the code is installed in */
+	protected Environment environment;
+	/** first clause in the chain */
+	protected volatile Clause first;
+	/** last clause in the chain */
+	protected Clause last;
+	/** current generation of the predicate */
+	protected volatile long generation;
+	/** the clauses in the chain by their terms */
+	protected final Map<Term, Clause> term2clause = new IdentityHashMap<Term, Clause>();
+
+	/**
+	 * a constructor
+	 *
+	 * @param tag
+	 *          tag of the predicate
+	 * @param clauses
+	 *          the clauses of the predicate
+	 */
+	public DynamicPredicateCode(CompoundTermTag tag, List<Term> clauses)
+	{
+		this.tag = tag;
+		synchronized (clauses)
+		{
+			for (Term clause : clauses)
+			{
+				link(new Clause(clause, 0), false);
+			}
+		}
+	}
+
+	/**
+	 * apply a change of a single clause to the chain
+	 *
+	 * @param evt
+	 *          the predicate updated event
+	 * @return true if the change was applied, false if the predicate has to be
+	 *         reloaded
+	 */
+	public synchronized boolean update(PredicateUpdatedEvent evt)
+	{
+		switch (evt.getKind())
+		{
+			case CLAUSE_ADDED_FIRST:
+				link(new Clause(evt.getClause(), generation + 1), true);
+				break;
+			case CLAUSE_ADDED_LAST:
+				link(new Clause(evt.getClause(), generation + 1), false);
+				break;
+			case CLAUSE_REMOVED:
+				if (!unlink(evt.getClause(), generation + 1))
+				{
+					return false;
+				}
+				break;
+			default:
+				return false;
+		}
+		generation++;
+		return true;
+	}
+
+	protected void link(Clause clause, boolean atFirst)
+	{
+		term2clause.put(clause.term, clause);
+		if (first == null)
+		{
+			last = clause;
+			first = clause;
+		}
+		else if (atFirst)
+		{
+			clause.next = first;
+			first.prev = clause;
+			first = clause;
+		}
+		else
+		{
+			clause.prev = last;
+			last.next = clause;
+			last = clause;
+		}
+	}
+
+	protected boolean unlink(Term term, long died)
+	{
+		Clause clause = term2clause.remove(term);
+		if (clause == null)
+		{
+			return false;
+		}
+		clause.died = died;
+		// the removed clause keeps its next link for the calls still on it
+		if (clause.prev == null)
+		{
+			first = clause.next;
+		}
+		else
+		{
+			clause.prev.next = clause.next;
+		}
+		if (clause.next == null)
+		{
+			last = clause.prev;
+		}
+		else
+		{
+			clause.next.prev = clause.prev;
+		}
+		return true;
+	}
+
+	/**
+	 * get the current generation of the predicate, in which a call starting
+	 * now is
+	 *
+	 * @return the current generation
+	 */
+	public long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * get the first clause seen by a call
+	 *
+	 * @param generation
+	 *          the generation the call was started in
+	 * @return the first visible clause or null if there is none
+	 */
+	public Clause firstVisible(long generation)
+	{
+		return nextVisible(first, generation);
+	}
+
+	/**
+	 * get the first clause from this one on seen by a call
+	 *
+	 * @param clause
+	 * @param generation
+	 *          the generation the call was started in
+	 * @return the first visible clause or null if there is none
+	 */
+	protected static Clause nextVisible(Clause clause, long generation)
+	{
+		while (clause != null && !clause.isVisible(generation))
+		{
+			clause = clause.next;
+		}
+		return clause;
+	}
+
+	/**
+	 * get the code of the clause, compiling it on the first call
+	 *
+	 * @param clause
+	 * @return the code of the clause
+	 * @throws PrologException
+	 */
+	protected PrologCode getCode(Clause clause) throws PrologException
+	{
+		synchronized (clause)
+		{
+			if (clause.code == null)
+			{
+				PrologCode code = InterpretedCodeCompiler.compileDynamicClause(clause.term);
+				code.install(environment);
+				clause.code = code;
+			}
+			return clause.code;
+		}
+	}
+
+	public Result execute(Interpreter interpreter, boolean backtrackMode, Term[] args) throws Exception
+	{
+		DynamicBacktrackInfo bi;
+		Clause clause;
+		boolean redo = false;
+		if (backtrackMode)
+		{
+			bi = (DynamicBacktrackInfo) interpreter.popBacktrackInfo();
+			if (bi.clauseInfo != null)
+			{
+				clause = bi.clause;
+				redo = true;
+			}
+			else
+			{
+				interpreter.undo(bi.startUndoPosition);
+				clause = nextVisible(bi.clause.next, bi.generation);
+			}
+		}
+		else
+		{
+			Term[] cargs = interpreter.acquireTermArray(args.length + 1);
+			System.arraycopy(args, 0, cargs, 0, args.length);
+			cargs[args.length] = new JavaObjectTerm(interpreter.peekBacktrackInfo());
+			bi = new DynamicBacktrackInfo(interpreter.getChoicePointUndoPosition(), generation, cargs);
+			clause = nextVisible(first, bi.generation);
+		}
+		while (clause != null)
+		{
+			bi.clause = clause;
+			// a clause level cut pops everything down to the cut point, and so this
+			// info too
+			if (!bi.committed)
+			{
+				interpreter.pushBacktrackInfo(bi);
+			}
+			if (redo)
+			{
+				interpreter.pushBacktrackInfo(bi.clauseInfo);
+			}
+			bi.clauseInfo = null;
+			Result rc = getCode(clause).execute(interpreter, redo, bi.args);
+			redo = false;
+			if (rc == SUCCESS)
+			{
+				bi.clauseInfo = interpreter.popBacktrackInfo();
+			}
+			if (!bi.committed)
+			{
+				if (interpreter.peekBacktrackInfo() == bi)
+				{
+					interpreter.popBacktrackInfo();
+				}
+				else
+				{
+					bi.committed = true;
+				}
+			}
+			if (rc == FAIL)
+			{
+				if (bi.committed)
+				{
+					interpreter.releaseTermArray(bi.args);
+					return FAIL;
+				}
+				clause = nextVisible(clause.next, bi.generation);
+				continue;
+			}
+			if (rc == SUCCESS || !bi.committed && nextVisible(clause.next, bi.generation) != null)
+			{
+				interpreter.pushBacktrackInfo(bi);
+				return SUCCESS;
+			}
+			interpreter.releaseTermArray(bi.args);
+			return SUCCESS_LAST;
+		}
+		interpreter.releaseTermArray(bi.args);
+		return FAIL;
+	}
+
+	public synchronized void install(Environment env)
+	{
+		environment = env;
+	}
+
+	public synchronized void uninstall(Environment env)
+	{
+		for (Clause clause = first; clause != null; clause = clause.next)
+		{
+			synchronized (clause)
+			{
+				if (clause.code != null)
+				{
+					clause.code.uninstall(env);
+					clause.code = null;
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "dynamic " + tag + " generation " + generation;
+	}
+}
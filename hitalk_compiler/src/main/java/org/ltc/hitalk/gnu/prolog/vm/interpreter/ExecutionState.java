@@ -110,7 +110,7 @@ public enum ExecutionState {
 	 */
 	public CallBacktrackInfo getCallBacktrackInfo(int codePosition, Term args[], PrologCode code, CompoundTermTag tag)
 	{
-		return new CallBacktrackInfo(interpreter.getUndoPosition(), codePosition, args, code, tag);
+		return new CallBacktrackInfo(interpreter.getChoicePointUndoPosition(), codePosition, args, code, tag);
 	}
 
 	/**
@@ -121,7 +121,7 @@ public enum ExecutionState {
 	 */
 	public RetryBacktrackInfo getRetryBacktrackInfo(int retryPosition)
 	{
-		return new RetryBacktrackInfo(interpreter.getUndoPosition(), retryPosition);
+		return new RetryBacktrackInfo(interpreter.getChoicePointUndoPosition(), retryPosition);
 	}
 
 	/**
@@ -173,7 +173,7 @@ public enum ExecutionState {
 	 */
 	public LeaveBacktrackInfo getLeaveBacktrackInfo()
 	{
-		return new LeaveBacktrackInfo(interpreter.getUndoPosition(), this);
+		return new LeaveBacktrackInfo(interpreter.getChoicePointUndoPosition(), this);
 	}
 
 	/**
@@ -183,6 +183,6 @@ public enum ExecutionState {
 	 */
 	public EnterBacktrackInfo getEnterBacktrackInfo()
 	{
-		return new EnterBacktrackInfo(interpreter.getUndoPosition());
+		return new EnterBacktrackInfo(interpreter.getEntryUndoPosition());
 	}
 }
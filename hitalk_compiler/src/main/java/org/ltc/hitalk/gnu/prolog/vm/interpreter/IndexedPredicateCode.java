@@ -0,0 +1,271 @@
+package org.ltc.hitalk.gnu.prolog.vm.interpreter;
+
+import org.ltc.hitalk.gnu.prolog.term.*;
+import org.ltc.hitalk.gnu.prolog.vm.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.*;
+
+/**
+ * Code for a predicate indexed on its first argument. A call switches on the
+ * type and atom or functor of its dereferenced first argument to the code
+ * compiled from only those clauses whose heads could match it, in their
+ * original order. A call which selects a single clause this way leaves no
+ * backtrack info behind. Calls with an unbound first argument run the code of
+ * the whole predicate.
+ *
+ * The code for each key is compiled when it is first called, as fact tables
+ * may have very many keys which are never all used. Calls look up the code
+ * without locking; a missing bucket is compiled by the calling thread, and
+ * only published under a short lock, so that concurrent calls are not
+ * serialized by a compilation.
+ *
+ * Floats are not indexed, as unification compares them with a tolerance
+ * which no key could follow.
+ */
+public class IndexedPredicateCode implements PrologCode
+{
+	/**
+	 * Backtrack info of an indexed call, which remembers which code was
+	 * selected, as the first argument may since have been bound by it.
+	 */
+	protected static class IndexBacktrackInfo extends BacktrackInfo
+	{
+		/** the selected code */
+		protected final PrologCode code;
+		/** the backtrack info of the selected code */
+		protected final BacktrackInfo codeInfo;
+
+		protected IndexBacktrackInfo(PrologCode code, BacktrackInfo codeInfo)
+		{
+			super(-1, -1);
+			this.code = code;
+			this.codeInfo = codeInfo;
+		}
+	}
+
+	/** the clauses of the predicate */
+	protected final List<Term> clauses;
+	/** code of the whole predicate */
+	protected final PrologCode allCode;
+	/** keys of the first arguments of the clause heads, null for variables */
+	protected final Object[] clauseKeys;
+	/** keys found in the clause heads */
+	protected final Set<Object> keys = new HashSet<Object>();
+	/** code for each key found in the clause heads */
+	protected final Map<Object, PrologCode> keyCodes = new ConcurrentHashMap<Object, PrologCode>();
+	/** code for keys not found in the clause heads, or null if not compiled yet */
+	protected volatile PrologCode otherCode;
+	/** environment the code is installed in, guarded by this */
+	protected Environment environment;
+
+	/**
+	 * a constructor
+	 *
+	 * @param clauses
+	 *          clauses of the predicate
+	 * @param allCode
+	 *          code compiled from all of the clauses
+	 */
+	public IndexedPredicateCode(List<Term> clauses, PrologCode allCode)
+	{
+		this.clauses = clauses;
+		this.allCode = allCode;
+		clauseKeys = new Object[clauses.size()];
+		for (int i = 0; i < clauseKeys.length; i++)
+		{
+			clauseKeys[i] = getKey(getFirstArgument(clauses.get(i)));
+			if (clauseKeys[i] != null)
+			{
+				keys.add(clauseKeys[i]);
+			}
+		}
+	}
+
+	/**
+	 * check if indexing the clauses on their first argument would select fewer
+	 * clauses for some calls
+	 *
+	 * @param clauses
+	 * @return true if the clauses are worth indexing
+	 */
+	public static boolean isIndexable(List<Term> clauses)
+	{
+		if (clauses.size() < 2 || getFirstArgument(clauses.get(0)) == null)
+		{
+			return false;
+		}
+		Set<Object> keys = new HashSet<Object>();
+		for (Term clause : clauses)
+		{
+			Object key = getKey(getFirstArgument(clause));
+			if (key != null)
+			{
+				keys.add(key);
+			}
+		}
+		return keys.size() > 1;
+	}
+
+	/**
+	 * get the first argument of the head of a clause
+	 *
+	 * @param clause
+	 * @return the first argument or null if the head has no arguments
+	 */
+	protected static Term getFirstArgument(Term clause)
+	{
+		Term head = clause.dereference();
+		if (head instanceof CompoundTerm && ((CompoundTerm) head).tag == TermConstants.clauseTag)
+		{
+			head = ((CompoundTerm) head).args[0].dereference();
+		}
+		if (head instanceof CompoundTerm)
+		{
+			return ((CompoundTerm) head).args[0].dereference();
+		}
+		return null;
+	}
+
+	/**
+	 * get the key a term is indexed under
+	 *
+	 * @param term
+	 *          dereferenced term
+	 * @return the atom, the boxed integer or the functor of the term, or null if
+	 *         it cannot be indexed
+	 */
+	protected static Object getKey(Term term)
+	{
+		if (term instanceof AtomTerm)
+		{
+			return term;
+		}
+		else if (term instanceof CompoundTerm)
+		{
+			return ((CompoundTerm) term).tag;
+		}
+		else if (term instanceof IntegerTerm)
+		{
+			return Integer.valueOf(((IntegerTerm) term).value);
+		}
+		else if (term instanceof BigIntegerTerm)
+		{
+			return ((BigIntegerTerm) term).value;
+		}
+		return null;
+	}
+
+	/**
+	 * get the code for calls with the key, compiling it on the first call
+	 *
+	 * @param key
+	 * @return the code for the key
+	 * @throws PrologException
+	 */
+	protected PrologCode getCode(Object key) throws PrologException
+	{
+		PrologCode code = keyCodes.get(key);
+		if (code != null)
+		{
+			return code;
+		}
+		boolean known = keys.contains(key);
+		if (!known)
+		{
+			code = otherCode;
+			if (code != null)
+			{
+				return code;
+			}
+		}
+		List<Term> selected = new ArrayList<Term>();
+		for (int i = 0; i < clauseKeys.length; i++)
+		{
+			if (clauseKeys[i] == null || clauseKeys[i].equals(key))
+			{
+				selected.add(clauses.get(i));
+			}
+		}
+		code = InterpretedCodeCompiler.compile(selected);
+		synchronized (this)
+		{
+			// another call may have compiled the same bucket meanwhile
+			PrologCode published = known ? keyCodes.get(key) : otherCode;
+			if (published != null)
+			{
+				return published;
+			}
+			if (environment != null)
+			{
+				code.install(environment);
+			}
+			if (known)
+			{
+				keyCodes.put(key, code);
+			}
+			else
+			{
+				otherCode = code;
+			}
+		}
+		return code;
+	}
+
+	public Result execute(Interpreter interpreter, boolean backtrackMode, Term[] args) throws Exception
+	{
+		PrologCode code;
+		if (backtrackMode)
+		{
+			IndexBacktrackInfo bi = (IndexBacktrackInfo) interpreter.popBacktrackInfo();
+			interpreter.pushBacktrackInfo(bi.codeInfo);
+			code = bi.code;
+		}
+		else
+		{
+			Object key = getKey(args[0].dereference());
+			code = key == null ? allCode : getCode(key);
+		}
+		Result rc = code.execute(interpreter, backtrackMode, args);
+		if (rc == SUCCESS)
+		{
+			interpreter.pushBacktrackInfo(new IndexBacktrackInfo(code, interpreter.popBacktrackInfo()));
+		}
+		return rc;
+	}
+
+	public synchronized void install(Environment env)
+	{
+		environment = env;
+		allCode.install(env);
+		for (PrologCode code : keyCodes.values())
+		{
+			code.install(env);
+		}
+		if (otherCode != null)
+		{
+			otherCode.install(env);
+		}
+	}
+
+	public synchronized void uninstall(Environment env)
+	{
+		allCode.uninstall(env);
+		for (PrologCode code : keyCodes.values())
+		{
+			code.uninstall(env);
+		}
+		if (otherCode != null)
+		{
+			otherCode.uninstall(env);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "indexed " + allCode;
+	}
+}
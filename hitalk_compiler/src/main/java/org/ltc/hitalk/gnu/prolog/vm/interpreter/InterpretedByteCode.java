@@ -308,7 +308,13 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
         int currentPosition;
         BacktrackInfo bi = backtrackMode ? interpreter.popBacktrackInfo() : null;
         BacktrackInfo cur_bi = null;
-        Term[] pds = new Term[16];
+        // the frame arrays and the entry backtrack info come from the interpreter
+        // and go back to it when the code returns for the last time, so
+        // determinate calls do not allocate them
+        Term[] pds = interpreter.acquireTermArray(16);
+        // read once per entry, so that calls pay nothing for the tracer while
+        // debugging is off
+        final boolean debugging = interpreter.getEnvironment().isDebugging();
         int pdsSize = 0;
         int pdsMaxSize = pds.length;
         final int pdsInc = 16;
@@ -325,7 +331,10 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
         } else
         // else create new execution state
         {
-            startBacktrackInfo = new EnterBacktrackInfo(interpreter.getUndoPosition());
+            startBacktrackInfo = interpreter.reuseEntryBacktrackInfo();
+            if (startBacktrackInfo == null) {
+                startBacktrackInfo = new EnterBacktrackInfo(interpreter.getEntryUndoPosition());
+            }
             interpreter.pushBacktrackInfo(startBacktrackInfo);
             currentPosition = 0;
         }
@@ -338,6 +347,8 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
                         cur_bi = interpreter.popBacktrackInfo();
                         cur_bi.undo(interpreter);
                         if (cur_bi instanceof EnterBacktrackInfo) {
+                            interpreter.releaseEntryBacktrackInfo(cur_bi);
+                            releaseFrame(interpreter, environment, pds);
                             return FAIL;
                         } else {
                             currentPosition = cur_bi.codePosition;
@@ -350,9 +361,9 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
                         case IALLOCATE: {
                             int sz = ((instructions[currentPosition + 1] & 255) << 8) + (instructions[currentPosition + 2] & 255);
                             int rs = ((instructions[currentPosition + 3] & 255) << 8) + (instructions[currentPosition + 4] & 255);
-                            environment = new Term[sz];
+                            environment = interpreter.acquireTermArray(sz);
                             for (int i = rs; i < sz; i++) {
-                                environment[i] = new VariableTerm();
+                                environment[i] = interpreter.createVariable();
                             }
                             currentPosition += 5;
                             continue interpreter_loop;
@@ -371,7 +382,7 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
                                 int cd = ((instructions[currentPosition + 1] & 255) << 8) + (instructions[currentPosition + 2] & 255);
                                 tag = tags[cd];
                                 int arity = tag.arity;
-                                cargs = new Term[arity];
+                                cargs = interpreter.acquireTermArray(arity);
                                 for (int i = arity - 1; i >= 0; i--) {
                                     cargs[i] = pds[--pdsSize].dereference(); // pop argument from
                                     // stack
@@ -382,33 +393,42 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
                                     code = interpreter.getEnvironment().getPrologCode(tag);
                                     predicateCodes[cd] = code;
                                 }
+                                if (exceptionHandlers.length != 0 && isCatchGoal(currentPosition)) {
+                                    // the handler runs with the bindings of the goal undone, and
+                                    // only the trail undoes them
+                                    interpreter.getChoicePointUndoPosition();
+                                }
                             }
-                            interpreter.getTracer().traceEvent(backtrackMode ? TraceLevel.REDO : TraceLevel.CALL, interpreter, tag,
-                                    cargs);
                             Result rc;
-                            try {
+                            if (debugging && interpreter.getEnvironment().isTraced(tag)) {
+                                Tracer tracer = interpreter.getTracer();
+                                tracer.traceEvent(backtrackMode ? TraceLevel.REDO : TraceLevel.CALL, interpreter, tag, cargs);
+                                try {
+                                    rc = code.execute(interpreter, backtrackMode, cargs);
+                                } finally {
+                                    tracer.decreaseDepth();
+                                }
+                                tracer.traceEvent(rc == FAIL ? TraceLevel.FAIL : TraceLevel.EXIT, interpreter, tag, cargs);
+                            } else {
                                 rc = code.execute(interpreter, backtrackMode, cargs);
-                            } finally {
-                                interpreter.getTracer().decreaseDepth();
                             }
                             switch (rc) {
                                 case SUCCESS_LAST:
-                                    interpreter.getTracer().traceEvent(TraceLevel.EXIT, interpreter, tag, cargs);
+                                    interpreter.releaseTermArray(cargs);
                                     backtrackMode = false;
                                     break;
                                 case SUCCESS:
-                                    interpreter.getTracer().traceEvent(TraceLevel.EXIT, interpreter, tag, cargs);
                                     if (backtrackMode) {
-                                        cur_bi.undoPosition = interpreter.getUndoPosition();
+                                        cur_bi.undoPosition = interpreter.getChoicePointUndoPosition();
                                         interpreter.pushBacktrackInfo(cur_bi);
                                     } else {
-                                        interpreter.pushBacktrackInfo(new CallBacktrackInfo(interpreter.getUndoPosition(), currentPosition,
+                                        interpreter.pushBacktrackInfo(new CallBacktrackInfo(interpreter.getChoicePointUndoPosition(), currentPosition,
                                                 cargs, code, tag));
                                     }
                                     backtrackMode = false;
                                     break;
                                 case FAIL:
-                                    interpreter.getTracer().traceEvent(TraceLevel.FAIL, interpreter, tag, cargs);
+                                    interpreter.releaseTermArray(cargs);
                                     backtrackMode = true;
                             }
                             currentPosition += 3;
@@ -435,7 +455,7 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
                                 pdsMaxSize += pdsInc;
                                 pds = tmp;
                             }
-                            pds[pdsSize++] = new VariableTerm();
+                            pds[pdsSize++] = interpreter.createVariable();
                             currentPosition++;
                             continue interpreter_loop;
                         }
@@ -522,7 +542,8 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
                         case IRETURN: {
                             if (startBacktrackInfo == interpreter.peekBacktrackInfo()) {
                                 // code cannot be rexecuted
-                                interpreter.popBacktrackInfo();
+                                interpreter.releaseEntryBacktrackInfo(interpreter.popDeterministicBacktrackInfo());
+                                releaseFrame(interpreter, environment, pds);
                                 return SUCCESS_LAST;
                             } else {
                                 LeaveByteCodeBacktrackInfo lbi;
@@ -532,6 +553,7 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
                                     lbi = new LeaveByteCodeBacktrackInfo(environment, startBacktrackInfo);
                                 }
                                 interpreter.pushBacktrackInfo(lbi);
+                                interpreter.releaseTermArray(pds);
                                 return SUCCESS;
                             }
                         }
@@ -572,7 +594,7 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
                         case ITRY_ME_ELSE: {
                             int rp = ((instructions[currentPosition + 1] & 255) << 8) +
                                       (instructions[currentPosition + 2] & 255);
-                            cur_bi = new BacktrackInfo(interpreter.getUndoPosition(), rp);
+                            cur_bi = new BacktrackInfo(interpreter.getChoicePointUndoPosition(), rp);
                             interpreter.pushBacktrackInfo(cur_bi);
                             currentPosition += 3;
                             cur_bi = null;
@@ -620,11 +642,42 @@ public class InterpretedByteCode implements PrologCode, PrologCodeListener {
                 interpreter.popBacktrackInfoUntil(startBacktrackInfo);
                 cur_bi = interpreter.popBacktrackInfo();
                 cur_bi.undo(interpreter);
+                interpreter.releaseEntryBacktrackInfo(cur_bi);
                 throw ex;
             }
         }
     }
 
+    /**
+     * check whether the call at the position calls the goal of a catch/3
+     *
+     * @param position position of the call instruction
+     * @return true if an exception handler covers the call
+     */
+    private boolean isCatchGoal(int position) {
+        for (ExceptionHandlerInfo eh : exceptionHandlers) {
+            if (eh.startPosition < position && position < eh.endPosition) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * give the arrays of a frame which can no longer be re-executed back to the
+     * interpreter
+     *
+     * @param interpreter
+     * @param environment the environment of the frame, or null if none was allocated
+     * @param pds         the stack of the frame
+     */
+    private static void releaseFrame(Interpreter interpreter, Term[] environment, Term[] pds) {
+        if (environment != null) {
+            interpreter.releaseTermArray(environment);
+        }
+        interpreter.releaseTermArray(pds);
+    }
+
     /**
      * this method is called when prolog code was updated
      */
@@ -68,6 +68,11 @@ public class InterpretedCodeCompiler {
 	protected List<Integer> cutPositionStack = new ArrayList<>();
 	/** clauses to compile */
 	protected List<Term> passedClauses;
+	/**
+	 * true if the cut point is passed as an extra argument after the arguments
+	 * of the head rather than saved on entry
+	 */
+	protected boolean cutFromArgument;
 
 	/**
 	 * a constructor
@@ -459,10 +464,34 @@ public class InterpretedCodeCompiler {
 	{
 		synchronized (passedClauses)
 		{
-			return new InterpretedCodeCompiler(passedClauses).compilePredicate();
+			PrologCode code = new InterpretedCodeCompiler(passedClauses).compilePredicate();
+			if (IndexedPredicateCode.isIndexable(passedClauses))
+			{
+				return new IndexedPredicateCode(new ArrayList<Term>(passedClauses), code);
+			}
+			return code;
 		}
 	}
 
+	/**
+	 * compile a single clause of a dynamic predicate to interpreted code. The
+	 * code takes one argument more than the head of the clause, which must be a
+	 * {@link JavaObjectTerm} holding the backtrack info to cut back to, so that
+	 * a cut in the clause also cuts away the remaining clauses of the predicate.
+	 * 
+	 * @param clause
+	 *          clause passed to compiler
+	 * @return instance of interpreted code
+	 * @throws PrologException
+	 * @see DynamicPredicateCode
+	 */
+	public static PrologCode compileDynamicClause(Term clause) throws PrologException
+	{
+		InterpretedCodeCompiler compiler = new InterpretedCodeCompiler(Collections.singletonList(clause));
+		compiler.cutFromArgument = true;
+		return compiler.compilePredicate();
+	}
+
 	/**
 	 * compile set of clauses to interpreted code
 	 * 
@@ -513,7 +542,15 @@ public class InterpretedCodeCompiler {
 			// predicate prefix
 			iAllocate(environmentSize, numberOfReserved);
 			int envPos = allocReserved();
-			iSaveCut(envPos);
+			if (cutFromArgument)
+			{
+				iPushArgument(getHeadArity(clauses.get(0)));
+				iStoreEnvironment(envPos);
+			}
+			else
+			{
+				iSaveCut(envPos);
+			}
 			pushCutPosition(envPos);
 			// compile clauses
 			n = clauses.size();
@@ -554,6 +591,21 @@ public class InterpretedCodeCompiler {
 		// return new InterpretedCode(codeTag, instr, ehs);
 	}
 
+	/**
+	 * get arity of the head of clause
+	 * 
+	 * @param clause
+	 * @return the arity of the head of the clause
+	 */
+	static int getHeadArity(Term clause)
+	{
+		if (clause instanceof CompoundTerm && ((CompoundTerm) clause).tag == TermConstants.clauseTag)
+		{
+			clause = ((CompoundTerm) clause).args[0].dereference();
+		}
+		return clause instanceof CompoundTerm ? ((CompoundTerm) clause).tag.arity : 0;
+	}
+
 	/**
 	 * get index of variable in environment
 	 * 
@@ -143,23 +143,15 @@ HtPrologParser extends TermParser {
     }
 
     /**
-     * Interns an operators name as a name of appropriate arity for the operators fixity, and sets the operator in
-     * the operator table.
+     * Interns an operators name as an atom id, the key of the operator table, and sets the operator in the operator
+     * table.
      *
      * @param operatorName The name of the operator to create.
      * @param priority     The priority of the operator, zero unsets it.
      * @param assoc        The operators assoc.
      */
     protected void op(String operatorName, int priority, Associativity assoc) {
-        int arity;
-        if ((assoc == xfy) || (assoc == yfx) || (assoc == xfx)) {
-            arity = 2;
-        } else {
-            arity = 1;
-        }
-
-        int name = getInterner().internFunctorName(operatorName, arity);
-        getOptable().setOperator(name, operatorName, priority, assoc);
+        getOptable().setOperator(getOptable().getName(operatorName), operatorName, priority, assoc);
     }
 
     /**
@@ -600,10 +592,29 @@ HtPrologParser extends TermParser {
      * @return
      */
     public boolean isOperator(PlToken token) {
-        final String name = token.getImage();
-        final Set<OpSymbolFunctor> ops = appContext.getOpTable().getOperators(name);
+        return getOptable().isOperator(operatorName(token));
+    }
 
-        return ops.stream().anyMatch(op -> op.getTextName().equals(name));
+    /**
+     * Provides the name of a token as an operator, so that its operators of each fixity can be looked up in the
+     * operator table by array reads, without looking the image of the token up again.
+     *
+     * @param token The token.
+     * @return The interned atom id of the image of the token, or <tt>-1</tt> if the token cannot be an operator.
+     */
+    protected int operatorName(PlToken token) {
+        switch (token.kind) {
+            case TK_ATOM:
+            case TK_SYMBOLIC_NAME:
+            case TK_QUOTED_NAME:
+            case TK_COMMA:
+            case TK_SEMICOLON:
+            case TK_COLON:
+            case TK_CONS:
+                return getOptable().getName(token.image);
+            default:
+                return -1;
+        }
     }
 
     /**
@@ -632,11 +643,12 @@ HtPrologParser extends TermParser {
         if (currPriority == 0) {
             return exprA0(rDelim);
         }
-        if (isOperator(token)) {
-            int priorityFX = getOptable().getPriority(token.image, fx);
-            int priorityFY = getOptable().getPriority(token.image, fy);
-            int priorityHX = getOptable().getPriority(token.image, hx);
-            int priorityHY = getOptable().getPriority(token.image, hy);
+        final int name = operatorName(token);
+        if (getOptable().isOperator(name)) {
+            int priorityFX = getOptable().getPriority(name, fx);
+            int priorityFY = getOptable().getPriority(name, fy);
+            int priorityHX = getOptable().getPriority(name, hx);
+            int priorityHY = getOptable().getPriority(name, hy);
             if (priorityFY == 0) {
                 priorityFY = -1;
             }
@@ -745,9 +757,13 @@ HtPrologParser extends TermParser {
         OpSymbolFunctor leftSide = exprB(currPriority, rDelim);
         //{op(yfx,n) exprA(n-1) | op(yf,n)}*
         PlToken t = readToken();
-        for (; isOperator(t); t = readToken()) {
-            int priorityYFX = getOptable().getPriority(t.image, yfx);
-            int priorityYF = getOptable().getPriority(t.image, yf);
+        for (; ; t = readToken()) {
+            final int name = operatorName(t);
+            if (!getOptable().isOperator(name)) {
+                break;
+            }
+            int priorityYFX = getOptable().getPriority(name, yfx);
+            int priorityYF = getOptable().getPriority(name, yf);
 
             //YF and YFX has a higher priority than the left side expr and less then top limit
             // if (YF < leftSide.priority && YF > OperatorManager.OP_HIGH) YF = -1;
@@ -812,10 +828,14 @@ HtPrologParser extends TermParser {
         OpSymbolFunctor left = (OpSymbolFunctor) parseLeftSide(currPriority, rDelim);
         //2.left is followed by either priorityXFX, priorityXFY or xf operators, parse these
         PlToken operator = readToken();
-        for (; isOperator(operator); operator = readToken()) {
-            int priorityXFX = getOptable().getPriority(operator.image, xfx);
-            int priorityXFY = getOptable().getPriority(operator.image, fx);
-            int priorityXF = getOptable().getPriority(operator.image, xf);
+        for (; ; operator = readToken()) {
+            final int name = operatorName(operator);
+            if (!getOptable().isOperator(name)) {
+                break;
+            }
+            int priorityXFX = getOptable().getPriority(name, xfx);
+            int priorityXFY = getOptable().getPriority(name, fx);
+            int priorityXF = getOptable().getPriority(name, xf);
             //check that no operator has a priority higher than permitted
             //or a lower priority than the left side expression
             if (priorityXFX > currPriority || priorityXFX < MIN_PRIORITY) {
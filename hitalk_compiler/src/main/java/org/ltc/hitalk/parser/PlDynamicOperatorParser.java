@@ -17,6 +17,8 @@ package org.ltc.hitalk.parser;
 
 import com.thesett.common.util.Queue;
 import com.thesett.common.util.StackQueue;
+import org.ltc.hitalk.compiler.IVafInterner;
+import org.ltc.hitalk.compiler.bktables.HtOperatorTableSnapshot;
 import org.ltc.hitalk.compiler.bktables.IOperatorTable;
 import org.ltc.hitalk.term.CandidateOperator;
 import org.ltc.hitalk.term.ITerm;
@@ -218,6 +220,8 @@ public class PlDynamicOperatorParser implements IOperatorTable {
     public static final int OP_HIGH = 1200;
     public static final int OP_LOW = 1;
 
+    private static final Fixity[] FIXITIES = Fixity.values();
+
     /**
      * Encodes the possible symbols that this parser accepts.
      */
@@ -341,9 +345,24 @@ public class PlDynamicOperatorParser implements IOperatorTable {
     private ITerm nextTerm;
 
     /**
-     * Holds the table of defined operators by name and fixity.
+     * Holds the current version of the table of defined operators by name and fixity. Versions are replaced as a whole
+     * when an operator is set, so that lookups take no lock.
+     */
+    private volatile HtOperatorTableSnapshot operators = HtOperatorTableSnapshot.EMPTY;
+
+    /**
+     * The interner that the names of operators are interned as atom ids by.
      */
-    private final Map<String, EnumMap<Fixity, OpSymbolFunctor>> operators = new HashMap<>();
+    private final IVafInterner interner;
+
+    /**
+     * Creates an empty operator table, for operators with names interned by an interner.
+     *
+     * @param interner The interner that the parser and the tokenizer intern atoms with.
+     */
+    public PlDynamicOperatorParser(IVafInterner interner) {
+        this.interner = interner;
+    }
 
     /**
      * Parses a flat list of terms, which are literals, variables, functors, or operators into a tree in such a way that
@@ -395,12 +414,12 @@ public class PlDynamicOperatorParser implements IOperatorTable {
      * an infix is not already defined with the same name, and similarly for infix operators when a postfix operator is
      * already defined.
      *
-     * @param name          The interned name of the operator to set in the table.
+     * @param name          The interned atom id of the name of the operator to set in the table.
      * @param textName      The text name of the operator to set in the table.
      * @param priority      The priority of the operator. Zero removes the operator.
      * @param associativity The associativity of the operator.
      */
-    public void setOperator(int name, String textName, int priority, Associativity associativity) {
+    public synchronized void setOperator(int name, String textName, int priority, Associativity associativity) {
         // Check that the name of the operator is valid.
 
         // Check that the priority of the operator is valid.
@@ -408,14 +427,8 @@ public class PlDynamicOperatorParser implements IOperatorTable {
             OpSymbolFunctor opSymbol = new OpSymbolFunctor(textName, associativity.arity, associativity, priority, null, null);//fixme
 
             // Consult the defined operators to see if there are any already defined that match the name of the
-            // new definition, otherwise a map of operators by fixity needs to be created.
-            EnumMap<Fixity, OpSymbolFunctor> operatorMap = operators.get(textName);
-
-            // Check if the priority is non-zero in which case the operator is being added or redefined.
-            if (operatorMap == null) {
-                operatorMap = new EnumMap<>(Fixity.class);
-                operators.put(textName, operatorMap);
-            }
+            // new definition.
+            Map<Fixity, OpSymbolFunctor> operatorMap = operators.getOperators(name);
 
             // Check if the operators fixity to see if further rules regarding simultaneous definition of post and
             // infix operators need to be applied.
@@ -433,10 +446,21 @@ public class PlDynamicOperatorParser implements IOperatorTable {
                 }
             }
 
-            // Add the operator to the table replacing any previous definition of the same fixity.
-            operatorMap.put(opSymbol.getFixity(), opSymbol);
+            // Add the operator to the next version of the table replacing any previous definition of the same fixity.
+            operators = operators.with(name, opSymbol);
         } else if (priority == 0) {
-            priority = -1;
+            // Remove the operator of the same fixity, taking post and infix as one.
+            switch (associativity) {
+                case fx:
+                case fy:
+                case hx:
+                case hy:
+                    operators = operators.without(name, Pre);
+                    break;
+                default:
+                    operators = operators.without(name, Post).without(name, In);
+                    break;
+            }
         } else {
             throw new IllegalArgumentException("Operator priority must be between 0 and 1200 inclusive.");
         }
@@ -445,12 +469,67 @@ public class PlDynamicOperatorParser implements IOperatorTable {
     /**
      * Checks the operator table for all possible operators matching a given name.
      *
-     * @param name The interned name of the operator to find.
+     * @param name The name of the operator to find.
      * @return An array of matching operators, or <tt>null</tt> if none can be found.
      */
     public Map<Fixity, OpSymbolFunctor> getOperatorsMatchingNameByFixity(String name) {
-        final EnumMap<Fixity, OpSymbolFunctor> map = operators.get(name);
-        return map == null ? Collections.emptyMap() : map;
+        return operators.getOperators(getName(name));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getName(String textName) {
+        return interner.internFunctorName(textName, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public OpSymbolFunctor getOperator(int name, Fixity fixity) {
+        return operators.getOperator(name, fixity);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isOperator(int name) {
+        for (Fixity fixity : FIXITIES) {
+            if (operators.getOperator(name, fixity) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getPriority(int name, Associativity associativity) {
+        final OpSymbolFunctor op = operators.getOperator(name, fixityOf(associativity));
+        return (op == null || op.getAssociativity() != associativity) ? -1 : op.getPriority();
+    }
+
+    /**
+     * Provides the fixity of operators of an associativity.
+     *
+     * @param associativity The associativity.
+     * @return The fixity.
+     */
+    private static Fixity fixityOf(Associativity associativity) {
+        switch (associativity) {
+            case fx:
+            case fy:
+            case hx:
+            case hy:
+                return Pre;
+            case xf:
+            case yf:
+                return Post;
+            default:
+                return In;
+        }
     }
 
     /**
@@ -486,8 +565,7 @@ public class PlDynamicOperatorParser implements IOperatorTable {
      */
     @Override
     public int getPriority(String image, Associativity associativity) {
-        OpSymbolFunctor symbol = filter(getOperators(image), associativity);
-        return symbol == null ? -1 : symbol.getPriority();
+        return getPriority(getName(image), associativity);
     }
 
     public Set<OpSymbolFunctor> getOperators(String name, int arity) {
@@ -497,16 +575,6 @@ public class PlDynamicOperatorParser implements IOperatorTable {
         return ops;
     }
 
-    private OpSymbolFunctor filter(Set<OpSymbolFunctor> operators, Associativity associativity) {
-        for (OpSymbolFunctor symbol : operators) {
-            if (symbol.getAssociativity() == associativity) {
-                return symbol;
-            }
-        }
-
-        return null;
-    }
-
     OpSymbolFunctor getOperator(String name, Associativity associativity) {
         for (OpSymbolFunctor op : getOperators(name)) {
             if (op.getAssociativity() == associativity) {
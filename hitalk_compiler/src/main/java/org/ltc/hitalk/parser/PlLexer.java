@@ -387,7 +387,7 @@ public class PlLexer extends TokenSource implements PropertyChangeListener {
      * @return
      */
     private boolean isValidOperator(String s) {
-        return !optable.getOperators(s).isEmpty();
+        return optable.isOperator(optable.getName(s));
     }
 
     /**
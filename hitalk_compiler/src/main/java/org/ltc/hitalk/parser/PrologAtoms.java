@@ -99,6 +99,8 @@ interface PrologAtoms {
     String THREAD_LOCAL = "thread_local";
     String THREAD_INITIALIZATION = "thread_initialization";
     String VOLATILE = "volatile";
+    String TERM_EXPANSION = "term_expansion";
+    String GOAL_EXPANSION = "goal_expansion";
     String RDIV = "rdiv";
     String DIV = "div";
     String COMMA_ = COMMA;
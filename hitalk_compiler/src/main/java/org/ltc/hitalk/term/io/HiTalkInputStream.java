@@ -11,6 +11,7 @@ import java.beans.PropertyChangeListener;
 import java.io.*;
 import java.nio.CharBuffer;
 import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
@@ -24,7 +25,8 @@ import static java.nio.file.Files.newInputStream;
 import static java.nio.file.StandardOpenOption.READ;
 
 /**
- *
+ * The chars of the stream are read through a {@link HtSourceBuffer}, which memory-maps files and decodes them in bulk.
+ * The lexer may scan the decoded chars of {@link #getSource()} directly instead of reading them one at a time.
  */
 public class HiTalkInputStream extends HiTalkStream implements Readable {
 
@@ -34,7 +36,7 @@ public class HiTalkInputStream extends HiTalkStream implements Readable {
 //    private final int bufferSize;
 
     protected InputStream inputStream;
-    protected PushbackReader pushbackReader;
+    protected HtSourceBuffer source;
     private int bof;
     private PlLexer tokenSource;
 
@@ -42,10 +44,6 @@ public class HiTalkInputStream extends HiTalkStream implements Readable {
         return bof;
     }
 
-    private int reads;
-    private int lineNumber;
-    private int colNumber;
-    private LineNumberReader reader;
     private int offset;
 
     /**
@@ -132,11 +130,11 @@ public class HiTalkInputStream extends HiTalkStream implements Readable {
      * @throws ReadOnlyBufferException if cb is a read only buffer
      */
     public int read(@NotNull CharBuffer cb) throws IOException {
-        return -1;
+        return source.read(cb);
     }
 
     public int getReads() {
-        return reads;
+        return (int) source.getOffset();
     }
 
     /**
@@ -146,8 +144,7 @@ public class HiTalkInputStream extends HiTalkStream implements Readable {
      * @throws IOException
      */
     public int read() throws IOException {
-        reads++;
-        return pushbackReader.read();
+        return source.read();
     }
 
     /**
@@ -160,10 +157,7 @@ public class HiTalkInputStream extends HiTalkStream implements Readable {
      *                     or if some other I/O error occurs
      */
     public void unread(int c) throws IOException {
-        if (reads-- < 0) {
-            throw new IllegalStateException("reads == " + reads);
-        }
-        pushbackReader.unread(c);
+        source.unread();
     }
 
     /**
@@ -188,6 +182,7 @@ public class HiTalkInputStream extends HiTalkStream implements Readable {
      */
     public void close() throws IOException {
         super.close();
+        source.close();
         inputStream.close();
         isOpen = false;
     }
@@ -229,12 +224,14 @@ public class HiTalkInputStream extends HiTalkStream implements Readable {
      * @throws IOException if an I/O error occurs.
      */
     public void readLine() throws IOException {
-        setColNumber(0);
-        reader.readLine();
+        source.skipLine();
     }
 
-    public LineNumberReader getReader() {
-        return reader;
+    /**
+     * @return The buffer the chars of this stream are decoded into.
+     */
+    public HtSourceBuffer getSource() {
+        return source;
     }
 
     /**
@@ -245,8 +242,10 @@ public class HiTalkInputStream extends HiTalkStream implements Readable {
         channel = inputStream instanceof FileInputStream ?
                 ((FileInputStream) inputStream).getChannel() :
                 (FileChannel) newByteChannel(path, READ);
-        reader = new LineNumberReader(new BufferedReader(new InputStreamReader(inputStream), defaultBufSize));
-        pushbackReader = new PushbackReader(reader, 4);
+        final Charset charset = getCharset() == null ? defaultEncoding : getCharset();
+        source = inputStream instanceof FileInputStream ?
+                new HtSourceBuffer(channel, charset) :
+                new HtSourceBuffer(Channels.newChannel(inputStream), charset);
     }
 
     /**
@@ -348,19 +347,11 @@ public class HiTalkInputStream extends HiTalkStream implements Readable {
     }
 
     public int getLineNumber() {
-        return lineNumber;
-    }
-
-    public void setLineNumber(int lineNumber) {
-        this.lineNumber = lineNumber;
+        return source.getLineNumber();
     }
 
     public int getColNumber() {
-        return colNumber;
-    }
-
-    public void setColNumber(int colNumber) {
-        this.colNumber = colNumber;
+        return source.getColumnNumber();
     }
 
     public boolean isBOFNotPassed() {
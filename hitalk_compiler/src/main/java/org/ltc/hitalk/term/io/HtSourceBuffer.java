@@ -0,0 +1,342 @@
+package org.ltc.hitalk.term.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * HtSourceBuffer holds the decoded text of a source as a flat array of chars, to be scanned by index. Files are
+ * memory-mapped a window at a time and decoded in bulk into one reusable char array, other sources are read through
+ * their channel in blocks. The text is decoded ahead into the array as the cursor reaches its end, keeping only a few
+ * chars behind the cursor for pushback, so that even very large files are read in constant memory.
+ * <p>
+ * The scanner works on {@link #chars} from {@link #pos} up to {@link #limit} directly, and calls {@link #fill()} when it
+ * reaches the limit. Line and column numbers are not kept per char, but counted from the offsets when asked for.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Decode a source in bulk into a flat char array.
+ * <tr><td> Provide an index based cursor over the decoded chars.
+ * <tr><td> Provide the line and column of the cursor on demand.
+ * </table></pre>
+ */
+public class HtSourceBuffer implements Closeable {
+    /**
+     * The size of the windows a file is mapped in.
+     */
+    public static final int MAP_SIZE = 64 << 20;
+
+    /**
+     * The number of chars decoded at a time.
+     */
+    public static final int BUFFER_SIZE = 64 << 10;
+
+    /**
+     * The number of chars kept behind the cursor, so that they can be pushed back.
+     */
+    public static final int PUSHBACK = 4;
+
+    /**
+     * The decoded chars. The chars from {@link #pos} up to {@link #limit} are not read yet.
+     */
+    public char[] chars;
+
+    /**
+     * The index of the next char to read.
+     */
+    public int pos;
+
+    /**
+     * The index after the last decoded char.
+     */
+    public int limit;
+
+    private final CharBuffer charBuffer;
+    private final CharsetDecoder decoder;
+
+    private final FileChannel file;
+    private final int mapSize;
+    private final ReadableByteChannel channel;
+    private ByteBuffer bytes;
+    private long mapped;
+    private boolean endOfInput;
+    private boolean flushed;
+
+    /**
+     * The number of chars before the first char in the array.
+     */
+    private long charsBefore;
+    /**
+     * The number of lines ended before the first char in the array.
+     */
+    private int linesBefore;
+    /**
+     * The column of the first char in the array.
+     */
+    private int columnBefore;
+    /**
+     * The char before the first char in the array, to tell if a line feed there ends a line of its own.
+     */
+    private char charBefore;
+    /**
+     * The index up to which lines have been counted, and what was counted.
+     */
+    private int countedPos;
+    private int countedLines;
+    private int countedLineStart = -1;
+
+    /**
+     * Creates a buffer over a file, which is memory-mapped.
+     *
+     * @param file    The file to read.
+     * @param charset The encoding of the file.
+     */
+    public HtSourceBuffer(FileChannel file, Charset charset) {
+        this(file, MAP_SIZE, null, charset);
+    }
+
+    /**
+     * Creates a buffer over a file, which is memory-mapped in windows of the specified size.
+     *
+     * @param file    The file to read.
+     * @param charset The encoding of the file.
+     * @param mapSize The size of the windows the file is mapped in.
+     */
+    HtSourceBuffer(FileChannel file, Charset charset, int mapSize) {
+        this(file, mapSize, null, charset);
+    }
+
+    /**
+     * Creates a buffer over a channel, which is read in blocks.
+     *
+     * @param channel The channel to read.
+     * @param charset The encoding of the channel.
+     */
+    public HtSourceBuffer(ReadableByteChannel channel, Charset charset) {
+        this(null, 0, channel, charset);
+    }
+
+    private HtSourceBuffer(FileChannel file, int mapSize, ReadableByteChannel channel, Charset charset) {
+        this.file = file;
+        this.mapSize = mapSize;
+        this.channel = channel;
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars = new char[BUFFER_SIZE + PUSHBACK];
+        charBuffer = CharBuffer.wrap(chars);
+        if (file == null) {
+            bytes = ByteBuffer.allocate(BUFFER_SIZE);
+            bytes.flip();
+        }
+    }
+
+    /**
+     * Decodes more chars into the array, moving the chars kept behind the cursor to its start.
+     *
+     * @return <tt>true</tt> iff there are chars to read.
+     * @throws IOException If the source cannot be read.
+     */
+    public boolean fill() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        int keep = Math.min(PUSHBACK, pos);
+        int discard = pos - keep;
+        if (discard > 0) {
+            countLines(discard);
+            linesBefore = countedLines;
+            columnBefore = countedLineStart < 0 ? columnBefore + discard : discard - countedLineStart - 1;
+            charsBefore += discard;
+            charBefore = chars[discard - 1];
+            System.arraycopy(chars, discard, chars, 0, keep);
+            pos = keep;
+            limit = keep;
+            resetCount();
+        }
+        while (limit == pos) {
+            charBuffer.limit(chars.length).position(limit);
+            if (hasBytes()) {
+                CoderResult result = decoder.decode(bytes, charBuffer, false);
+                limit = charBuffer.position();
+                if (limit > pos || !(result.isUnderflow() && endOfInput)) {
+                    continue;
+                }
+                // only an incomplete char is left at the end of the source
+            }
+            if (!flushed) {
+                decoder.decode(bytes == null ? ByteBuffer.allocate(0) : bytes, charBuffer, true);
+                decoder.flush(charBuffer);
+                flushed = true;
+            }
+            limit = charBuffer.position();
+            return limit > pos;
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure there are bytes to decode, mapping the next window of the file or reading the next block.
+     *
+     * @return <tt>false</tt> at the end of the source.
+     */
+    private boolean hasBytes() throws IOException {
+        if (endOfInput) {
+            return bytes != null && bytes.hasRemaining();
+        }
+        if (bytes != null && bytes.remaining() >= 4) {
+            return true;
+        }
+        if (file != null) {
+            // start the next window at the first byte not decoded yet, which may be inside a char
+            long start = bytes == null ? 0 : mapped - bytes.remaining();
+            long size = Math.min(mapSize, file.size() - start);
+            bytes = file.map(READ_ONLY, start, size);
+            mapped = start + size;
+            endOfInput = mapped >= file.size();
+        } else {
+            bytes.compact();
+            endOfInput = channel.read(bytes) < 0;
+            bytes.flip();
+        }
+        return bytes.hasRemaining() || !endOfInput;
+    }
+
+    /**
+     * Reads the next char.
+     *
+     * @return The char, or <tt>-1</tt> at the end of the source.
+     * @throws IOException If the source cannot be read.
+     */
+    public int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return chars[pos++];
+    }
+
+    /**
+     * Reads chars into a buffer, as many as it has room for and are decoded already, or fewer at the end of the source.
+     *
+     * @param dst The buffer to read into.
+     * @return The number of chars read, or <tt>-1</tt> at the end of the source.
+     * @throws IOException If the source cannot be read.
+     */
+    public int read(CharBuffer dst) throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), limit - pos);
+        dst.put(chars, pos, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Pushes back the last char read.
+     *
+     * @throws IllegalStateException If more chars are pushed back than are kept behind the cursor.
+     */
+    public void unread() {
+        if (pos == 0) {
+            throw new IllegalStateException("Pushback buffer is full.");
+        }
+        pos--;
+    }
+
+    /**
+     * Skips the rest of the current line, and its terminator.
+     *
+     * @throws IOException If the source cannot be read.
+     */
+    public void skipLine() throws IOException {
+        while (pos < limit || fill()) {
+            char c = chars[pos++];
+            if (c == '\n') {
+                return;
+            }
+            if (c == '\r') {
+                if ((pos < limit || fill()) && chars[pos] == '\n') {
+                    pos++;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of chars read so far.
+     */
+    public long getOffset() {
+        return charsBefore + pos;
+    }
+
+    /**
+     * @return The line of the cursor, counting from zero.
+     */
+    public int getLineNumber() {
+        countLines(pos);
+        return countedLines;
+    }
+
+    /**
+     * @return The column of the cursor, counting from zero.
+     */
+    public int getColumnNumber() {
+        countLines(pos);
+        return countedLineStart < 0 ? columnBefore + pos : pos - countedLineStart - 1;
+    }
+
+    /**
+     * Counts the lines ended before an index, going on from where the last count stopped if it is not past the index.
+     * A line is ended by a line feed, a carriage return, or both, which are counted once, at the carriage return.
+     */
+    private void countLines(int index) {
+        if (index < countedPos) {
+            resetCount();
+        }
+        char[] chars = this.chars;
+        for (int i = countedPos; i < index; i++) {
+            char c = chars[i];
+            if (c == '\r') {
+                countedLines++;
+                countedLineStart = i;
+            } else if (c == '\n') {
+                if ((i == 0 ? charBefore : chars[i - 1]) != '\r') {
+                    countedLines++;
+                }
+                countedLineStart = i;
+            }
+        }
+        countedPos = index;
+    }
+
+    private void resetCount() {
+        countedPos = 0;
+        countedLines = linesBefore;
+        countedLineStart = -1;
+    }
+
+    /**
+     * Closes the source.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public void close() throws IOException {
+        bytes = null;
+        if (file != null) {
+            file.close();
+        } else {
+            channel.close();
+        }
+    }
+}
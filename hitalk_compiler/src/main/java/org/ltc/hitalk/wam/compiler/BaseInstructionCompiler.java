@@ -30,6 +30,10 @@ import org.ltc.hitalk.parser.Directive;
 import org.ltc.hitalk.parser.HtClause;
 import org.ltc.hitalk.parser.HtPrologParser;
 import org.ltc.hitalk.parser.HtSourceCodeException;
+import org.ltc.hitalk.term.ITerm;
+import org.ltc.hitalk.term.ListTerm;
+import org.ltc.hitalk.wam.compiler.builtins.HtConjunction;
+import org.ltc.hitalk.wam.compiler.builtins.HtDisjunction;
 import org.ltc.hitalk.wam.compiler.hitalk.*;
 import org.ltc.hitalk.wam.compiler.prolog.ICompilerObserver;
 import org.ltc.hitalk.wam.compiler.prolog.IPrologBuiltIn;
@@ -64,6 +68,12 @@ public abstract class BaseInstructionCompiler<T extends HtClause, P, Q, PC exten
         QC extends HiTalkWAMCompiledQuery>
         extends BaseCompiler<T, P, Q, PC, QC> {
 
+    /**
+     * The minimum number of clauses a predicate must have, for first argument indexing to be compiled for it. Below
+     * this, a linear scan through the clauses is as quick as hashing.
+     */
+    public static final int MIN_INDEXED_CLAUSES = 4;
+
     protected ICompilerObserver<P, Q> observer;
     protected final PrologDefaultBuiltIn defaultBuiltIn;
 
@@ -207,6 +217,9 @@ public abstract class BaseInstructionCompiler<T extends HtClause, P, Q, PC exten
             IFunctor goal = (IFunctor) expressions.getHead(i);
             boolean isFirstBody = i == 0;
 
+            // All permanent variables of a query are preserved, including across the calls within control constructs.
+            getSymbolTable().put(goal.getSymbolKey(), SYMKEY_PERM_VARS_REMAINING, numPermanentVars);
+
             // Select a non-default built-in implementation to compile the functor with, if it is a built-in.
             IPrologBuiltIn builtIn = goal instanceof IPrologBuiltIn ? (IPrologBuiltIn) goal : defaultBuiltIn;
 
@@ -312,13 +325,16 @@ public abstract class BaseInstructionCompiler<T extends HtClause, P, Q, PC exten
      * @param isLast            <tt>true</tt> iff the clause is the last in the predicate.
      * @param multipleClauses   <tt>true</tt> iff the predicate contains >1 clause.
      * @param clauseNumber      The position of the clause within the predicate.
+     * @param indexed           <tt>true</tt> iff the predicate is indexed, and the clause needs a label just after its
+     *                          choice point instruction, for the indexes to jump to.
      */
     protected void compileClause(T clause,
                                  P compiledPredicate,
                                  boolean isFirst,
                                  boolean isLast,
                                  boolean multipleClauses,
-                                 int clauseNumber) throws Exception {
+                                 int clauseNumber,
+                                 boolean indexed) throws Exception {
         // Used to build up the compiled clause in.
         HiTalkWAMCompiledClause result = new HiTalkWAMCompiledClause(clause.getHead(), clause.getBody(),
                 (HiTalkWAMCompiledPredicate) compiledPredicate);
@@ -385,6 +401,11 @@ public abstract class BaseInstructionCompiler<T extends HtClause, P, Q, PC exten
             preFixInstructions.add(new HiTalkWAMInstruction(entryLabel, TrustMe));
         }
 
+        // The indexes jump past the choice point instructions, straight into the clause.
+        if (indexed) {
+            preFixInstructions.add(new HiTalkWAMInstruction(bodyLabel(fn, clauseNumber), NoOp));
+        }
+
         // Generate the prefix code for the clause.
         // Rules may chain multiple, so require stack frames to preserve registers across calls.
         // Facts are always leafs so can use the global continuation point register to return from calls.
@@ -558,17 +579,31 @@ public abstract class BaseInstructionCompiler<T extends HtClause, P, Q, PC exten
         }
 
         // Roll up the permanent variable remaining counts from the counts of last position of occurrence and
-        // store the count of permanent variables remaining against the body.
+        // store the count of permanent variables remaining against the body. Control constructs make calls of their
+        // own, part way through which the variables that last occur in them are still live, so they only trim down to
+        // the variables live on entry to them.
         int permVarsRemaining = 0;
 
         for (int i = permVarsRemainingCount.length - 1; i >= 0; i--) {
-            getSymbolTable().put(clause.getBody().getHead(i).getSymbolKey(),
+            ITerm body = clause.getBody().getHead(i);
+
+            getSymbolTable().put(body.getSymbolKey(),
                     SYMKEY_PERM_VARS_REMAINING,
-                    permVarsRemaining);
+                    isControlConstruct(body) ? (permVarsRemaining + permVarsRemainingCount[i]) : permVarsRemaining);
             permVarsRemaining += permVarsRemainingCount[i];
         }
     }
 
+    /**
+     * Checks if a body functor is a control construct, which compiles calls to the goals within it in place.
+     *
+     * @param body The body functor to check.
+     * @return <tt>true</tt> iff the body functor is a disjunction or conjunction.
+     */
+    private boolean isControlConstruct(ITerm body) {
+        return (body instanceof HtDisjunction) || (body instanceof HtConjunction);
+    }
+
     private boolean isCutLevelVariable(VariableTerm variable) {
         return false;
     }
@@ -586,6 +621,23 @@ public abstract class BaseInstructionCompiler<T extends HtClause, P, Q, PC exten
             int current = 0;
             boolean multipleClauses = size > 1;
 
+            // Build the indexes, if the predicate is worth indexing, before the clauses are consumed. The demand driven
+            // index covers any arguments that the first argument index does not, and goes in front of it.
+            boolean indexed = isIndexable(clauses);
+            SizeableList<HiTalkWAMInstruction> index = new SizeableLinkedList<>();
+            HtWAMClauseIndex clauseIndex = null;
+
+            if (needsClauseIndex(clauses, indexed)) {
+                clauseIndex = createClauseIndex(clauses, indexed);
+                index.add(new HiTalkWAMInstruction(clauseIndex, clauseLabels(clauses)));
+            }
+
+            if (indexed) {
+                index.addAll(compileIndex(clauses));
+            }
+
+            boolean jumpsToClauses = indexed || (clauseIndex != null);
+
             // Used to build up the compiled predicate in.
             P result = null;
 
@@ -594,10 +646,14 @@ public abstract class BaseInstructionCompiler<T extends HtClause, P, Q, PC exten
 
                 if (result == null) {
                     result = createResult(clause.getHead().getName());
+
+                    ((HiTalkWAMCompiledPredicate) result).addInstructions(index);
+                    ((HiTalkWAMCompiledPredicate) result).setClauseIndex(clauseIndex);
                 }
 
                 // Compile the single clause, adding it to the parent compiled predicate.
-                compileClause(clause, result, current == 0, current >= (size - 1), multipleClauses, current);
+                compileClause(clause, result, current == 0, current >= (size - 1), multipleClauses, current,
+                        jumpsToClauses);
                 current++;
             }
 
@@ -617,6 +673,299 @@ public abstract class BaseInstructionCompiler<T extends HtClause, P, Q, PC exten
         scope++;
     }
 
+    /**
+     * Checks whether a predicate should have a first argument index compiled for it. It must have enough clauses to
+     * make it worthwhile, and at least one clause must have a constant, structure or list as its first argument, for
+     * the index to tell the clauses apart by. Clauses with any other first argument are reached on every branch of the
+     * index.
+     *
+     * @param clauses The clauses of the predicate.
+     * @return <tt>true</tt> iff the predicate should be indexed.
+     * @throws Exception If the functor names cannot be resolved.
+     */
+    protected boolean isIndexable(List<T> clauses) throws Exception {
+        if ((clauses.size() < MIN_INDEXED_CLAUSES) || (clauses.get(0).getHead().getArity() == 0)) {
+            return false;
+        }
+
+        for (T clause : clauses) {
+            ITerm argument = clause.getHead().getArgument(0);
+
+            if ((indexKey(interner, argument) != null) || isListCell(argument)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Provides the key that an index files an argument of a clause head under, which is the name of the argument when
+     * it is an atom or a structure. Any other argument, a variable, a number or a list, has no key, and can match any
+     * value that the index is looked up on.
+     *
+     * @param interner The interner holding the name of the argument.
+     * @param argument The argument of a clause head.
+     * @return The key of the argument, or <tt>null</tt> if it has none.
+     * @throws Exception If the functor name cannot be resolved.
+     */
+    static HtFunctorName indexKey(IVafInterner interner, ITerm argument) throws Exception {
+        return (argument instanceof IFunctor) ? interner.getFunctorFunctorName((IFunctor) argument) : null;
+    }
+
+    /**
+     * Checks whether an argument of a clause head is a list cell, which a first argument index reaches through its
+     * list branch.
+     *
+     * @param argument The argument of a clause head.
+     * @return <tt>true</tt> iff the argument is a non empty list.
+     */
+    static boolean isListCell(ITerm argument) {
+        return (argument instanceof ListTerm) && !((ListTerm) argument).isNil();
+    }
+
+    /**
+     * Checks whether a predicate should have a demand driven index over its arguments. It must have enough clauses to
+     * make it worthwhile, and an argument that the first argument index does not already cover.
+     *
+     * @param clauses The clauses of the predicate.
+     * @param indexed <tt>true</tt> iff the predicate has a first argument index.
+     * @return <tt>true</tt> iff the predicate should have a demand driven index.
+     */
+    protected boolean needsClauseIndex(List<T> clauses, boolean indexed) {
+        return (clauses.size() >= MIN_INDEXED_CLAUSES) && (clauses.get(0).getHead().getArity() > (indexed ? 1 : 0));
+    }
+
+    /**
+     * Creates the demand driven index over the arguments of a predicate, recording the functor of every argument of
+     * every clause. Nothing is indexed until the predicate is called.
+     *
+     * @param clauses The clauses of the predicate.
+     * @param indexed <tt>true</tt> iff the predicate has a first argument index.
+     * @return The demand driven index.
+     * @throws Exception If the functor names cannot be resolved.
+     */
+    protected HtWAMClauseIndex createClauseIndex(List<T> clauses, boolean indexed) throws Exception {
+        HtFunctorName[][] keys = new HtFunctorName[clauses.size()][];
+
+        for (int i = 0; i < clauses.size(); i++) {
+            IFunctor head = clauses.get(i).getHead();
+            keys[i] = new HtFunctorName[head.getArity()];
+
+            for (int arg = 0; arg < head.getArity(); arg++) {
+                keys[i][arg] = indexKey(interner, head.getArgument(arg));
+            }
+        }
+
+        return new HtWAMClauseIndex(keys, indexed);
+    }
+
+    /**
+     * Provides the labels that indexes jump to, to enter each clause of a predicate.
+     *
+     * @param clauses The clauses of the predicate.
+     * @return The labels of the clauses.
+     * @throws Exception If the functor names cannot be resolved.
+     */
+    private HtWAMLabel[] clauseLabels(List<T> clauses) throws Exception {
+        HtFunctorName fn = interner.getFunctorFunctorName(clauses.get(0).getHead());
+        HtWAMLabel[] labels = new HtWAMLabel[clauses.size()];
+
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = bodyLabel(fn, i);
+        }
+
+        return labels;
+    }
+
+    /**
+     * Compiles a first argument index for a predicate. The index is placed at the entry point of the predicate, ahead
+     * of the clauses, and looks like:
+     *
+     * <pre>
+     *       switch_on_term C0, Lcon, Llis, Lstr
+     * Lcon: switch_on_const {a: C1', b: B0, ...} default: C4'
+     * Lstr: switch_on_struc {a/0: C1', f/2: B1, ...} default: B2
+     * B0:   try C2'
+     *       retry C4'
+     *       trust C7'
+     * ...
+     * C0:   try_me_else C1
+     * C0':  ...
+     * </pre>
+     *
+     * <p/>An unbound first argument falls through onto the usual chain of choice points over all of the clauses. A
+     * bound first argument is looked up in a hash table, keyed on its name or functor, and jumps straight into the only
+     * clause that can match it, past its choice point instruction, or into a block that tries all the clauses that can
+     * match it, without creating a choice point when only one clause matches. A constant can be represented either as
+     * an atom or as a structure of arity zero on the heap, so clauses on constants appear in both tables.
+     *
+     * <p/>Clauses whose first argument has no key, such as a variable or a number, can match anything, so they are
+     * merged in order into every branch, and make up the branch taken when a value is not in a table, which fails when
+     * there are none. A list cell goes to the clauses on lists. Lists may also be compiled as structures, so the clauses
+     * on lists are part of the branch taken on a structure that is not in the table too.
+     *
+     * @param clauses The clauses of the predicate.
+     * @return The instructions implementing the index.
+     * @throws Exception If the functor names cannot be resolved.
+     */
+    protected SizeableList<HiTalkWAMInstruction> compileIndex(List<T> clauses) throws Exception {
+        HtFunctorName[] keys = new HtFunctorName[clauses.size()];
+        boolean[] lists = new boolean[clauses.size()];
+
+        for (int i = 0; i < clauses.size(); i++) {
+            ITerm argument = clauses.get(i).getHead().getArgument(0);
+            keys[i] = indexKey(interner, argument);
+            lists[i] = isListCell(argument);
+        }
+
+        return compileIndex(interner.getFunctorFunctorName(clauses.get(0).getHead()), keys, lists);
+    }
+
+    /**
+     * Compiles a first argument index for a predicate, from the keys of the first arguments of its clauses, as laid out
+     * by {@link #compileIndex(List)}.
+     *
+     * @param fn    The name of the predicate.
+     * @param keys  The key of the first argument of each clause, <tt>null</tt> for one that can match anything.
+     * @param lists Whether the first argument of each clause is a list cell.
+     * @return The instructions implementing the index.
+     */
+    static SizeableList<HiTalkWAMInstruction> compileIndex(HtFunctorName fn, HtFunctorName[] keys, boolean[] lists) {
+        Map<HtFunctorName, List<Integer>> constants = new LinkedHashMap<>();
+        Map<HtFunctorName, List<Integer>> structures = new LinkedHashMap<>();
+        List<Integer> any = new ArrayList<>();
+        List<Integer> unkeyed = new ArrayList<>();
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) {
+                unkeyed.add(i);
+
+                if (!lists[i]) {
+                    any.add(i);
+                }
+            } else {
+                if (keys[i].getArity() == 0) {
+                    constants.put(keys[i], new ArrayList<>());
+                }
+
+                structures.put(keys[i], new ArrayList<>());
+            }
+        }
+
+        // Group the clauses by the functor of their first argument, keeping them in order, with the clauses that can
+        // match anything in every group.
+        for (int i = 0; i < keys.length; i++) {
+            boolean matchesAny = (keys[i] == null) && !lists[i];
+
+            for (Map.Entry<HtFunctorName, List<Integer>> group : constants.entrySet()) {
+                if (matchesAny || group.getKey().equals(keys[i])) {
+                    group.getValue().add(i);
+                }
+            }
+
+            for (Map.Entry<HtFunctorName, List<Integer>> group : structures.entrySet()) {
+                if (matchesAny || group.getKey().equals(keys[i])) {
+                    group.getValue().add(i);
+                }
+            }
+        }
+
+        HtWAMLabel chainLabel = new HtWAMLabel(fn, 0);
+        HtWAMLabel constLabel = new HtWAMLabel(fn.getName() + "_con", fn.getArity(), 0);
+        HtWAMLabel strucLabel = new HtWAMLabel(fn.getName() + "_str", fn.getArity(), 0);
+
+        SizeableList<HiTalkWAMInstruction> result = new SizeableLinkedList<>();
+        SizeableList<HiTalkWAMInstruction> blocks = new SizeableLinkedList<>();
+
+        Map<HtFunctorName, HtWAMLabel> constTable = compileIndexTable(fn, constants, keys.length, blocks);
+        Map<HtFunctorName, HtWAMLabel> strucTable = compileIndexTable(fn, structures, keys.length, blocks);
+        HtWAMLabel constDefault = compileIndexBranch(fn, any, keys.length, blocks);
+        HtWAMLabel unkeyedLabel = compileIndexBranch(fn, unkeyed, keys.length, blocks);
+
+        // A list cell with no clauses to go to runs down the chain, as there is no way to fail from switch_on_term.
+        HtWAMLabel listLabel = (unkeyedLabel == null) ? chainLabel : unkeyedLabel;
+
+        result.add(new HiTalkWAMInstruction(null, chainLabel, constLabel, listLabel, strucLabel));
+        result.add(new HiTalkWAMInstruction(constLabel, SwitchOnConst, constTable, constDefault));
+        result.add(new HiTalkWAMInstruction(strucLabel, SwitchOnStruc, strucTable, unkeyedLabel));
+        result.addAll(blocks);
+
+        return result;
+    }
+
+    /**
+     * Builds the entries of an index table, adding a block of try, retry, trust instructions for each key that matches
+     * more than one clause.
+     *
+     * @param fn         The name of the predicate.
+     * @param groups     The clause numbers matching each key.
+     * @param numClauses The number of clauses in the predicate.
+     * @param blocks     The list to add the try, retry, trust blocks to.
+     * @return The mapping from keys to the labels to jump to.
+     */
+    private static Map<HtFunctorName, HtWAMLabel> compileIndexTable(HtFunctorName fn,
+                                                                   Map<HtFunctorName, List<Integer>> groups,
+                                                                   int numClauses,
+                                                                   SizeableList<HiTalkWAMInstruction> blocks) {
+        Map<HtFunctorName, HtWAMLabel> table = new LinkedHashMap<>();
+
+        for (Map.Entry<HtFunctorName, List<Integer>> group : groups.entrySet()) {
+            table.put(group.getKey(), compileIndexBranch(fn, group.getValue(), numClauses, blocks));
+        }
+
+        return table;
+    }
+
+    /**
+     * Provides the label of a branch of an index, that tries a set of clauses in order. A single clause is jumped into
+     * directly, all of the clauses are tried by the usual chain of choice points, and any other set of clauses by a
+     * block of try, retry, trust instructions.
+     *
+     * @param fn         The name of the predicate.
+     * @param matching   The numbers of the clauses to try, in order.
+     * @param numClauses The number of clauses in the predicate.
+     * @param blocks     The list to add the try, retry, trust block to.
+     * @return The label of the branch, or <tt>null</tt> if there are no clauses to try.
+     */
+    private static HtWAMLabel compileIndexBranch(HtFunctorName fn, List<Integer> matching, int numClauses,
+                                                 SizeableList<HiTalkWAMInstruction> blocks) {
+        if (matching.isEmpty()) {
+            return null;
+        } else if (matching.size() == 1) {
+            return bodyLabel(fn, matching.get(0));
+        } else if (matching.size() == numClauses) {
+            return new HtWAMLabel(fn, 0);
+        }
+
+        HtWAMLabel blockLabel = new HtWAMLabel(fn.getName() + "_blk", fn.getArity(), blocks.size());
+
+        for (int i = 0; i < matching.size(); i++) {
+            HtWAMLabel clauseLabel = bodyLabel(fn, matching.get(i));
+
+            if (i == 0) {
+                blocks.add(new HiTalkWAMInstruction(blockLabel, Try, clauseLabel));
+            } else if (i < matching.size() - 1) {
+                blocks.add(new HiTalkWAMInstruction(null, Retry, clauseLabel));
+            } else {
+                blocks.add(new HiTalkWAMInstruction(null, Trust, clauseLabel));
+            }
+        }
+
+        return blockLabel;
+    }
+
+    /**
+     * Creates the label that the index uses to jump into a clause, just past its choice point instruction.
+     *
+     * @param fn           The name of the predicate.
+     * @param clauseNumber The position of the clause within the predicate.
+     * @return The label of the clause body.
+     */
+    private static HtWAMLabel bodyLabel(HtFunctorName fn, int clauseNumber) {
+        return new HtWAMLabel(fn.getName() + "_cls", fn.getArity(), clauseNumber);
+    }
+
     private P createResult(int name) {
         return (P) new HiTalkWAMCompiledPredicate(name);
     }
@@ -0,0 +1,342 @@
+package org.ltc.hitalk.wam.compiler;
+
+import org.ltc.hitalk.compiler.IVafInterner;
+import org.ltc.hitalk.gnu.prolog.io.TermWriter;
+import org.ltc.hitalk.parser.Directive;
+import org.ltc.hitalk.parser.HtClause;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.ltc.hitalk.parser.Directive.DirectiveKind.DK_OP;
+import static org.ltc.hitalk.parser.PrologAtoms.GOAL_EXPANSION;
+import static org.ltc.hitalk.parser.PrologAtoms.TERM_EXPANSION;
+
+/**
+ * HtDependencyGraph records what each predicate of a compilation depends on, so that a rebuild can recompile only the
+ * predicates whose inputs have changed, and take the code of all others from the object file of the previous build.
+ * <p>
+ * <p/>The inputs of a predicate are the files its clauses were read from, which includes included files, its clauses
+ * as read and expanded, the operator declarations in effect where it is first defined, and the term and goal expansion
+ * hooks defined before it. Clauses are hashed in their written form, with variables numbered in order of appearance,
+ * so that the hash does not depend on the names of variables or on the layout of the source. All of the inputs are
+ * folded into one hash per predicate, which is stored with the code of the predicate in the object file.
+ * <p>
+ * <p/>Operator declarations and expansion hooks are tracked in the order they appear, so a predicate depends only on
+ * those seen before its first clause; a change to them invalidates the predicates after them, but not those before.
+ * <p>
+ * <p/>As the clauses of a predicate need not be contiguous, nothing can be known to be unchanged until all of the
+ * source has been read. The graph is sealed on the first question about what is unchanged, after which the hashes are
+ * final and no more clauses can be added; the precompiler therefore reads the whole source first, and only then passes
+ * on the clauses of changed predicates to be compiled.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Record the files, clauses, operators and expansion hooks each predicate depends on.
+ * <tr><td> Provide a content hash of the inputs of each predicate.
+ * <tr><td> Tell which predicates are unchanged since a previous build. <td> {@link HtObjectFile}.
+ * </table></pre>
+ */
+public class HtDependencyGraph {
+    /**
+     * The inputs of one predicate.
+     */
+    public static class Node {
+        private final HtFunctorName name;
+        private final Set<Path> files = new LinkedHashSet<>();
+        private final MessageDigest clauses = newDigest();
+        private final byte[] operators;
+        private final byte[] hooks;
+        private byte[] inputs;
+        private int size;
+
+        Node(HtFunctorName name, byte[] operators, byte[] hooks) {
+            this.name = name;
+            this.operators = operators;
+            this.hooks = hooks;
+        }
+
+        public HtFunctorName getName() {
+            return name;
+        }
+
+        /**
+         * @return The files the clauses of the predicate were read from.
+         */
+        public Set<Path> getFiles() {
+            return files;
+        }
+
+        /**
+         * @return The number of clauses of the predicate.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return The hash of all of the inputs of the predicate.
+         * @throws IllegalStateException If the graph has not been sealed yet, and more clauses may still be added.
+         */
+        public byte[] getInputs() {
+            if (inputs == null) {
+                throw new IllegalStateException("The inputs of " + name.name + '/' + name.arity + " are not final.");
+            }
+
+            return inputs;
+        }
+
+        private void add(Path file, byte[] text) {
+            if (inputs != null) {
+                throw new IllegalStateException("Clause added to " + name.name + '/' + name.arity + " after sealing.");
+            }
+            files.add(file);
+            clauses.update(text);
+            clauses.update((byte) 0);
+            size++;
+        }
+
+        private void seal() {
+            if (inputs == null) {
+                MessageDigest digest = newDigest();
+                for (Path file : files) {
+                    digest.update(file.toString().getBytes(UTF_8));
+                }
+                digest.update(operators);
+                digest.update(hooks);
+                digest.update(clauses.digest());
+                inputs = digest.digest();
+            }
+        }
+    }
+
+    private final IVafInterner interner;
+
+    /**
+     * The object file of the previous build, <tt>null</tt> if there is none.
+     */
+    private final HtObjectFile previous;
+
+    private boolean sealed;
+
+    /**
+     * The predicates in order of definition, by name and arity.
+     */
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+
+    /**
+     * The predicate of each clause added, by identity.
+     */
+    private final Map<HtClause, Node> clauseNodes = new IdentityHashMap<>();
+
+    /**
+     * The files read, in the order they were first read from.
+     */
+    private final Set<Path> files = new LinkedHashSet<>();
+
+    /**
+     * The running hashes of the operator declarations and of the expansion hooks seen so far.
+     */
+    private final MessageDigest operators = newDigest();
+    private final MessageDigest hooks = newDigest();
+
+    /**
+     * @param interner The interner that the names of predicates are interned in.
+     * @param previous The object file of the previous build, may be <tt>null</tt>.
+     */
+    public HtDependencyGraph(IVafInterner interner, HtObjectFile previous) {
+        this.interner = interner;
+        this.previous = previous;
+    }
+
+    /**
+     * @param interner The interner that the names of predicates are interned in.
+     */
+    public HtDependencyGraph(IVafInterner interner) {
+        this(interner, null);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HtObjectFile.HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Provides the current value of a running hash, leaving it running.
+     */
+    private static byte[] snapshot(MessageDigest digest) {
+        try {
+            return ((MessageDigest) digest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds a clause, as read and expanded, in the order of the source.
+     *
+     * @param clause The clause.
+     * @param file   The file the clause was read from.
+     * @throws Exception If the name of the clause cannot be found.
+     */
+    public void addClause(HtClause clause, Path file) throws Exception {
+        if (sealed) {
+            throw new IllegalStateException("Clause added after sealing.");
+        }
+        files.add(file);
+        byte[] text = textOf(clause).getBytes(UTF_8);
+        if (clause instanceof Directive) {
+            if (((Directive) clause).getKind() == DK_OP) {
+                operators.update(text);
+            }
+            return;
+        }
+
+        HtFunctorName name = nameOf(clause);
+        if ((name.name.equals(TERM_EXPANSION) || name.name.equals(GOAL_EXPANSION)) && name.arity == 2) {
+            hooks.update(text);
+        }
+
+        String key = name.name + '/' + name.arity;
+        Node node = nodes.get(key);
+        if (node == null) {
+            node = new Node(name, snapshot(operators), snapshot(hooks));
+            nodes.put(key, node);
+        }
+        node.add(file, text);
+        clauseNodes.put(clause, node);
+    }
+
+    /**
+     * Provides the name and arity of the predicate that a clause belongs to.
+     *
+     * @param clause The clause, which is not a directive.
+     * @return The name of its predicate.
+     * @throws Exception If the name of the clause cannot be found.
+     */
+    protected HtFunctorName nameOf(HtClause clause) throws Exception {
+        return interner.getDeinternedFunctorName(clause.getHead().getName());
+    }
+
+    /**
+     * Provides the written form of a clause, which is what is hashed.
+     *
+     * @param clause The clause.
+     * @return The clause written with its variables numbered in order of appearance.
+     */
+    protected String textOf(HtClause clause) {
+        return TermWriter.toString(clause);
+    }
+
+    /**
+     * Ends the adding of clauses, and fixes the hash of the inputs of every predicate. Sealing a sealed graph does
+     * nothing.
+     */
+    public void seal() {
+        if (!sealed) {
+            for (Node node : nodes.values()) {
+                node.seal();
+            }
+            sealed = true;
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> iff no more clauses can be added.
+     */
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * @return The files read, which the whole compilation depends on.
+     */
+    public Set<Path> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return The predicates defined, in order of definition.
+     */
+    public Collection<Node> getNodes() {
+        return nodes.values();
+    }
+
+    /**
+     * Provides the inputs of a predicate.
+     *
+     * @param name The name of the predicate.
+     * @return The inputs of the predicate, or <tt>null</tt> if it is not defined.
+     */
+    public Node getNode(HtFunctorName name) {
+        return nodes.get(name.name + '/' + name.arity);
+    }
+
+    /**
+     * Tells whether the predicate of a clause has the same inputs as in the previous build, in which case its code can
+     * be taken from the object file of that build instead of compiling the clause. Seals the graph, so it must only be
+     * asked once all of the source has been read.
+     *
+     * @param clause A clause added to this graph.
+     * @return <tt>true</tt> iff the clause need not be compiled.
+     */
+    public boolean isUnchanged(HtClause clause) {
+        seal();
+        Node node = clauseNodes.get(clause);
+
+        return (node != null) && (getUnchanged(node) != null);
+    }
+
+    /**
+     * Provides the code of a predicate from the previous build, if its inputs have not changed since. Seals the graph.
+     *
+     * @param node The inputs of the predicate.
+     * @return The code of the predicate from the previous build, or <tt>null</tt> if it has to be compiled.
+     */
+    public HtObjectFile.Predicate getUnchanged(Node node) {
+        seal();
+        if (previous == null) {
+            return null;
+        }
+        HtObjectFile.Predicate predicate = previous.getPredicate(node.getName());
+
+        return ((predicate != null) && Arrays.equals(predicate.getInputs(), node.getInputs())) ? predicate : null;
+    }
+
+    /**
+     * Takes the code of the unchanged predicates from the previous build into a new object file, and records the
+     * inputs of all of the predicates and the files read in it. Seals the graph.
+     *
+     * @param current The object file of this build, holding the predicates compiled by it.
+     * @return The predicates taken from the previous build, which still have to be linked.
+     * @throws IOException If a file read cannot be hashed.
+     */
+    public List<HtObjectFile.Predicate> update(HtObjectFile current) throws IOException {
+        seal();
+        List<HtObjectFile.Predicate> reused = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            HtObjectFile.Predicate predicate = current.getPredicate(node.getName());
+            if (predicate == null) {
+                predicate = getUnchanged(node);
+                if (predicate == null) {
+                    continue;
+                }
+                current.addPredicate(predicate);
+                reused.add(predicate);
+            }
+            predicate.setInputs(node.getInputs());
+        }
+        for (Path file : files) {
+            current.addDependency(file);
+        }
+
+        return reused;
+    }
+}
@@ -0,0 +1,656 @@
+package org.ltc.hitalk.wam.compiler;
+
+import com.thesett.aima.logic.fol.LinkageException;
+import org.ltc.hitalk.compiler.IVafInterner;
+import org.ltc.hitalk.entities.HtEntityKind;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+import org.ltc.hitalk.wam.machine.HiTalkWAMMachine;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * HtObjectFile is the binary object form (<tt>.hto</tt>) of a compiled source file, which can be loaded into a machine
+ * without lexing, parsing, expanding or compiling the source again.
+ * <p>
+ * <p/>An object file holds the instruction listings of the compiled predicates and of the queries and directives of
+ * the source, in the order they appear in it, the symbol table of the functor names and labels that the instructions
+ * refer to, the entities defined by the source, and the content hashes of the source files that it was compiled from.
+ * Instructions refer to functors and labels by their index into the symbol table of the file, never by a name interned
+ * in a particular machine or by a code address; these are the relocations of the code, which are resolved when it is
+ * linked into a machine by interning the symbols and emitting the instructions.
+ * <p>
+ * <p/>The file starts with a magic number and a format version. A file with another version, or compiled from sources
+ * which have changed since, is not loaded, and the sources are compiled again instead. Files are read through a memory
+ * mapping.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Write compiled predicates to a versioned binary file. <td> {@link HiTalkWAMInstruction}.
+ * <tr><td> Keep a symbol table of the functor names and labels used by the code.
+ * <tr><td> Record the sources the code was compiled from, and tell whether they have changed.
+ * <tr><td> Keep the hash of the inputs of each predicate, for incremental rebuilds. <td> {@link HtDependencyGraph}.
+ * <tr><td> Keep the compiled queries and directives, to be run again when the code is loaded.
+ *     <td> {@link HiTalkWAMCompiledQuery}.
+ * <tr><td> Link the code into a machine. <td> {@link HiTalkWAMMachine}.
+ * </table></pre>
+ */
+public class HtObjectFile {
+    /**
+     * The extension of object files.
+     */
+    public static final String EXTENSION = ".hto";
+
+    /**
+     * The magic number at the start of an object file, "HTO" and a zero byte.
+     */
+    public static final int MAGIC = 0x48544f00;
+
+    /**
+     * The version of the format, to be bumped whenever the format or the instruction set changes.
+     */
+    public static final int VERSION = 3;
+
+    /**
+     * The algorithm the content hashes of sources are computed with.
+     */
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * A source file that the code was compiled from, and the hash of its content at the time.
+     */
+    public static class Dependency {
+        private final Path path;
+        private final byte[] hash;
+
+        public Dependency(Path path, byte[] hash) {
+            this.path = path;
+            this.hash = hash;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         * @return <tt>true</tt> iff the source still exists with the same content.
+         */
+        public boolean isUpToDate() {
+            try {
+                return Files.isRegularFile(path) && Arrays.equals(hash, HtObjectFile.hash(path));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * An entity defined by the source.
+     */
+    public static class Entity {
+        private final HtFunctorName name;
+        private final HtEntityKind kind;
+
+        public Entity(HtFunctorName name, HtEntityKind kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        public HtFunctorName getName() {
+            return name;
+        }
+
+        public HtEntityKind getKind() {
+            return kind;
+        }
+    }
+
+    /**
+     * A compiled predicate, by name, with its instruction listing and the hash of the inputs it was compiled from.
+     */
+    public static class Predicate {
+        private final HtFunctorName name;
+        private final List<HiTalkWAMInstruction> instructions;
+        private byte[] inputs = new byte[0];
+
+        public Predicate(HtFunctorName name, List<HiTalkWAMInstruction> instructions) {
+            this.name = name;
+            this.instructions = instructions;
+        }
+
+        public HtFunctorName getName() {
+            return name;
+        }
+
+        public List<HiTalkWAMInstruction> getInstructions() {
+            return instructions;
+        }
+
+        /**
+         * @return The hash of the inputs the predicate was compiled from, see {@link HtDependencyGraph}.
+         */
+        public byte[] getInputs() {
+            return inputs;
+        }
+
+        public void setInputs(byte[] inputs) {
+            this.inputs = inputs;
+        }
+    }
+
+    /**
+     * A compiled query or directive, with its instruction listing and the names of its variables.
+     */
+    public static class Query {
+        private final List<HiTalkWAMInstruction> instructions;
+        private final Map<Byte, String> varNames;
+        private final Set<String> freeVarNames;
+
+        public Query(List<HiTalkWAMInstruction> instructions, Map<Byte, String> varNames, Set<String> freeVarNames) {
+            this.instructions = instructions;
+            this.varNames = varNames;
+            this.freeVarNames = freeVarNames;
+        }
+
+        public List<HiTalkWAMInstruction> getInstructions() {
+            return instructions;
+        }
+
+        /**
+         * @return The names of the variables of the query, by the register they are held in.
+         */
+        public Map<Byte, String> getVarNames() {
+            return varNames;
+        }
+
+        /**
+         * @return The names of the variables of the query that are not anonymous or bound.
+         */
+        public Set<String> getFreeVarNames() {
+            return freeVarNames;
+        }
+
+        /**
+         * Rebuilds the compiled query, interning the names of its variables.
+         *
+         * @param interner The interner to intern the variable names in.
+         * @return The compiled query.
+         */
+        public HiTalkWAMCompiledQuery toCompiledQuery(IVafInterner interner) {
+            Map<Byte, Integer> names = new LinkedHashMap<>();
+            for (Map.Entry<Byte, String> entry : varNames.entrySet()) {
+                names.put(entry.getKey(), interner.internVariableName(entry.getValue()));
+            }
+            Set<Integer> free = new LinkedHashSet<>();
+            for (String name : freeVarNames) {
+                free.add(interner.internVariableName(name));
+            }
+
+            HiTalkWAMCompiledQuery query = new HiTalkWAMCompiledQuery(names, free);
+            query.addInstructions(instructions);
+
+            return query;
+        }
+    }
+
+    private final List<Dependency> dependencies = new ArrayList<>();
+    private final List<Entity> entities = new ArrayList<>();
+    private final List<Predicate> predicates = new ArrayList<>();
+    private final Map<String, Predicate> predicatesByName = new HashMap<>();
+    private final List<Query> queries = new ArrayList<>();
+
+    /**
+     * The symbol table, and the index of each symbol in it by name and arity.
+     */
+    private final List<HtFunctorName> symbols = new ArrayList<>();
+    private final Map<String, Integer> symbolIndexes = new HashMap<>();
+
+    /**
+     * The labels read so far, by symbol and id, so that all references to a label share one label object.
+     */
+    private final Map<Long, HtWAMLabel> labels = new HashMap<>();
+
+    /**
+     * Provides the path of the object file for a source file, which is next to it with the extension replaced.
+     *
+     * @param source The path of the source file.
+     * @return The path of the object file.
+     */
+    public static Path objectPathFor(Path source) {
+        String name = source.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+
+        return source.resolveSibling(((dot > 0) ? name.substring(0, dot) : name) + EXTENSION);
+    }
+
+    /**
+     * Computes the content hash of a file.
+     *
+     * @param path The file.
+     * @return The hash of its content.
+     * @throws IOException If the file cannot be read.
+     */
+    public static byte[] hash(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * Records a source file that the code is compiled from, with the hash of its current content.
+     *
+     * @param path The source file.
+     * @throws IOException If the file cannot be read.
+     */
+    public void addDependency(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath().normalize();
+        dependencies.add(new Dependency(absolute, hash(absolute)));
+    }
+
+    /**
+     * @return The source files that the code was compiled from.
+     */
+    public List<Dependency> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Tells whether all of the source files that the code was compiled from still have the same content.
+     *
+     * @return <tt>true</tt> iff the object file can be used instead of compiling its sources.
+     */
+    public boolean isUpToDate() {
+        if (dependencies.isEmpty()) {
+            return false;
+        }
+        for (Dependency dependency : dependencies) {
+            if (!dependency.isUpToDate()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Records an entity defined by the source.
+     *
+     * @param name The name of the entity.
+     * @param kind The kind of the entity.
+     */
+    public void addEntity(HtFunctorName name, HtEntityKind kind) {
+        symbolIndex(name);
+        entities.add(new Entity(name, kind));
+    }
+
+    /**
+     * @return The entities defined by the source.
+     */
+    public List<Entity> getEntities() {
+        return entities;
+    }
+
+    /**
+     * Adds a compiled predicate.
+     *
+     * @param predicate The compiled predicate.
+     * @param interner  The interner that the name of the predicate is interned in.
+     */
+    public void addPredicate(HiTalkWAMCompiledPredicate predicate, IVafInterner interner) {
+        HtFunctorName name = interner.getDeinternedFunctorName(predicate.getName());
+        addPredicate(new Predicate(name, new ArrayList<>(predicate.getInstructions())));
+    }
+
+    /**
+     * Adds a compiled predicate, such as one taken from the object file of a previous build.
+     *
+     * @param predicate The compiled predicate.
+     */
+    public void addPredicate(Predicate predicate) {
+        predicates.add(predicate);
+        predicatesByName.put(predicate.getName().name + '/' + predicate.getName().arity, predicate);
+    }
+
+    /**
+     * Provides a compiled predicate by name.
+     *
+     * @param name The name of the predicate.
+     * @return The compiled predicate, or <tt>null</tt> if there is none by that name.
+     */
+    public Predicate getPredicate(HtFunctorName name) {
+        return predicatesByName.get(name.name + '/' + name.arity);
+    }
+
+    /**
+     * @return The compiled predicates.
+     */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * Adds a compiled query or directive, after those added so far.
+     *
+     * @param query    The compiled query.
+     * @param interner The interner that the names of the variables of the query are interned in.
+     */
+    public void addQuery(HiTalkWAMCompiledQuery query, IVafInterner interner) {
+        Map<Byte, String> varNames = new LinkedHashMap<>();
+        if (query.getVarNames() != null) {
+            for (Map.Entry<Byte, Integer> entry : query.getVarNames().entrySet()) {
+                varNames.put(entry.getKey(), interner.getVariableName(entry.getValue()));
+            }
+        }
+        Set<String> freeVarNames = new LinkedHashSet<>();
+        if (query.getNonAnonymousFreeVariables() != null) {
+            for (int name : query.getNonAnonymousFreeVariables()) {
+                freeVarNames.add(interner.getVariableName(name));
+            }
+        }
+
+        queries.add(new Query(new ArrayList<>(query.getInstructions()), varNames, freeVarNames));
+    }
+
+    /**
+     * @return The compiled queries and directives, in the order they appear in the source.
+     */
+    public List<Query> getQueries() {
+        return queries;
+    }
+
+    /**
+     * Provides the index of a functor name in the symbol table, adding it if it is not there yet.
+     *
+     * @param name The functor name.
+     * @return The index of the functor name.
+     */
+    public int symbolIndex(HtFunctorName name) {
+        String key = name.name + '/' + name.arity;
+        Integer index = symbolIndexes.get(key);
+        if (index == null) {
+            index = symbols.size();
+            symbols.add(name);
+            symbolIndexes.put(key, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Provides a functor name from the symbol table.
+     *
+     * @param index The index of the functor name.
+     * @return The functor name.
+     * @throws IOException If there is no such symbol.
+     */
+    public HtFunctorName symbol(int index) throws IOException {
+        if (index < 0 || index >= symbols.size()) {
+            throw new IOException("Symbol " + index + " is out of range.");
+        }
+
+        return symbols.get(index);
+    }
+
+    /**
+     * Writes a label, as its symbol and id.
+     *
+     * @param out   The output to write to.
+     * @param label The label.
+     * @throws IOException If the label cannot be written.
+     */
+    public void writeLabel(DataOutput out, HtWAMLabel label) throws IOException {
+        out.writeInt(symbolIndex(new HtFunctorName(label.name, label.arity)));
+        out.writeInt(label.getId());
+    }
+
+    /**
+     * Reads a label written by {@link #writeLabel(DataOutput, HtWAMLabel)}.
+     *
+     * @param in The buffer to read from.
+     * @return The label.
+     * @throws IOException If the label is not valid.
+     */
+    public HtWAMLabel readLabel(ByteBuffer in) throws IOException {
+        int symbol = in.getInt();
+        int id = in.getInt();
+        long key = ((long) symbol << 32) | (id & 0xffffffffL);
+        HtWAMLabel label = labels.get(key);
+        if (label == null) {
+            HtFunctorName parent = symbol(symbol);
+            label = new HtWAMLabel(parent.name, parent.arity, id);
+            labels.put(key, label);
+        }
+
+        return label;
+    }
+
+    /**
+     * Links the compiled predicates into a machine, interning their names and emitting their code.
+     *
+     * @param machine The machine to link into.
+     * @throws LinkageException If the code cannot be linked into the machine.
+     */
+    public void link(HiTalkWAMMachine machine) throws LinkageException {
+        link(machine, predicates);
+    }
+
+    /**
+     * Links some of the compiled predicates into a machine.
+     *
+     * @param machine    The machine to link into.
+     * @param predicates The predicates to link.
+     * @throws LinkageException If the code cannot be linked into the machine.
+     */
+    public static void link(HiTalkWAMMachine machine, Collection<Predicate> predicates) throws LinkageException {
+        for (Predicate predicate : predicates) {
+            HiTalkWAMCompiledPredicate compiled =
+                    new HiTalkWAMCompiledPredicate(machine.internFunctorName(predicate.getName()));
+            compiled.addInstructions(predicate.getInstructions());
+            for (HiTalkWAMInstruction instruction : predicate.getInstructions()) {
+                if (instruction.getClauseIndex() != null) {
+                    compiled.setClauseIndex(instruction.getClauseIndex());
+                }
+            }
+            machine.emitCode(compiled);
+        }
+    }
+
+    /**
+     * Writes the object file.
+     *
+     * @param path The path to write to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(Path path) throws IOException {
+        // The code goes first, so that all of the symbols it uses are in the table before the table is written.
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        DataOutputStream codeOut = new DataOutputStream(code);
+        codeOut.writeInt(predicates.size());
+        for (Predicate predicate : predicates) {
+            codeOut.writeInt(symbolIndex(predicate.getName()));
+            codeOut.writeInt(predicate.getInputs().length);
+            codeOut.write(predicate.getInputs());
+            codeOut.writeInt(predicate.getInstructions().size());
+            for (HiTalkWAMInstruction instruction : predicate.getInstructions()) {
+                instruction.writeTo(codeOut, this);
+            }
+        }
+        codeOut.writeInt(queries.size());
+        for (Query query : queries) {
+            codeOut.writeInt(query.getInstructions().size());
+            for (HiTalkWAMInstruction instruction : query.getInstructions()) {
+                instruction.writeTo(codeOut, this);
+            }
+            codeOut.writeInt(query.getVarNames().size());
+            for (Map.Entry<Byte, String> entry : query.getVarNames().entrySet()) {
+                codeOut.writeByte(entry.getKey());
+                writeString(codeOut, entry.getValue());
+            }
+            codeOut.writeInt(query.getFreeVarNames().size());
+            for (String name : query.getFreeVarNames()) {
+                writeString(codeOut, name);
+            }
+        }
+        codeOut.flush();
+
+        // Write to a temporary file first, so that a reader never sees a partly written object file.
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(dependencies.size());
+            for (Dependency dependency : dependencies) {
+                writeString(out, dependency.getPath().toString());
+                out.writeInt(dependency.getHash().length);
+                out.write(dependency.getHash());
+            }
+
+            out.writeInt(symbols.size());
+            for (HtFunctorName symbol : symbols) {
+                writeString(out, symbol.name);
+                out.writeInt(symbol.arity);
+            }
+
+            out.writeInt(entities.size());
+            for (Entity entity : entities) {
+                out.writeInt(symbolIndex(entity.getName()));
+                writeString(out, entity.getKind().name());
+            }
+
+            code.writeTo(out);
+        }
+        Files.move(temp, path, REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads an object file.
+     *
+     * @param path The path to read from.
+     * @return The object file, or <tt>null</tt> if there is no such file or it is of another format version.
+     * @throws IOException If the file cannot be read, or is not a valid object file.
+     */
+    public static HtObjectFile read(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            in = channel.map(READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+
+            HtObjectFile file = new HtObjectFile();
+
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                Path dependency = Paths.get(readString(in));
+                byte[] hash = new byte[in.getInt()];
+                in.get(hash);
+                file.dependencies.add(new Dependency(dependency, hash));
+            }
+
+            count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                file.symbolIndex(new HtFunctorName(name, in.getInt()));
+            }
+
+            count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                HtFunctorName name = file.symbol(in.getInt());
+                file.entities.add(new Entity(name, HtEntityKind.valueOf(readString(in))));
+            }
+
+            count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                HtFunctorName name = file.symbol(in.getInt());
+                byte[] inputs = new byte[in.getInt()];
+                in.get(inputs);
+                int length = in.getInt();
+                List<HiTalkWAMInstruction> instructions = new ArrayList<>(length);
+                for (int j = 0; j < length; j++) {
+                    instructions.add(HiTalkWAMInstruction.readFrom(in, file));
+                }
+                Predicate predicate = new Predicate(name, instructions);
+                predicate.setInputs(inputs);
+                file.addPredicate(predicate);
+            }
+
+            count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                int length = in.getInt();
+                List<HiTalkWAMInstruction> instructions = new ArrayList<>(length);
+                for (int j = 0; j < length; j++) {
+                    instructions.add(HiTalkWAMInstruction.readFrom(in, file));
+                }
+                Map<Byte, String> varNames = new LinkedHashMap<>();
+                int names = in.getInt();
+                for (int j = 0; j < names; j++) {
+                    byte register = in.get();
+                    varNames.put(register, readString(in));
+                }
+                Set<String> freeVarNames = new LinkedHashSet<>();
+                names = in.getInt();
+                for (int j = 0; j < names; j++) {
+                    freeVarNames.add(readString(in));
+                }
+                file.queries.add(new Query(instructions, varNames, freeVarNames));
+            }
+
+            return file;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Object file " + path + " is not valid.", e);
+        }
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,370 @@
+package org.ltc.hitalk.wam.compiler;
+
+import org.ltc.hitalk.compiler.IVafInterner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HtWAMClauseIndex is a demand driven index over all of the arguments of a predicate. The compiler records the functor
+ * of every argument of every clause, but no index is built until the predicate is called. On every call the machine
+ * reports which arguments are bound, and the index keeps count of how often each argument is bound. Once an argument
+ * has been seen bound often enough, and it is the most selective of the arguments bound on the call, an index on it is
+ * built, as SWI-Prolog and YAP do. Arguments that are rarely bound are never indexed, so only call patterns that are
+ * actually used cost memory.
+ * <p>
+ * <p/>An index on an argument maps each key, the name of a constant or the encoded functor of a structure, onto the
+ * clauses that can match it, which are the clauses with that key in the argument plus those with a variable in it. The
+ * code to branch into those clauses is compiled by the machine the first time each key is looked up, and cached here.
+ * <p>
+ * <p/>The first argument is usually covered by the static switch_on_term index, in which case it is left to that.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Hold the functor of each argument of each clause of a predicate. <td> {@link IVafInterner}.
+ * <tr><td> Keep statistics on the call modes of the predicate.
+ * <tr><td> Choose the most selective bound argument to index on.
+ * <tr><td> Build and cache indexes and compiled branches on demand.
+ * </table></pre>
+ */
+public
+class HtWAMClauseIndex {
+    /**
+     * The maximum number of arguments that are considered for indexing, so that bound arguments fit in a mask.
+     */
+    public static final int MAX_INDEXED_ARGS = 32;
+
+    /**
+     * The number of calls with an argument bound, before an index on it is built.
+     */
+    public static final int BUILD_THRESHOLD = 8;
+
+    /**
+     * The key of an argument that is a variable, or that cannot be indexed, and so matches every key.
+     */
+    public static final int NO_KEY = -1;
+
+    /**
+     * The branch of a key that has not been compiled yet.
+     */
+    public static final int UNCOMPILED = -1;
+
+    /**
+     * The functors of the arguments of the clauses, <tt>null</tt> where an argument cannot be indexed.
+     */
+    private final HtFunctorName[][] clauseKeys;
+
+    /**
+     * <tt>true</tt> iff the first argument is indexed by the compiled switch_on_term index.
+     */
+    private final boolean firstArgumentIndexed;
+
+    /**
+     * The number of clauses in the predicate.
+     */
+    private final int numClauses;
+
+    /**
+     * The number of arguments considered for indexing.
+     */
+    private final int numArgs;
+
+    /**
+     * The encoded keys of the clauses, by argument and then clause.
+     */
+    private int[][] keys;
+
+    /**
+     * The expected number of clauses to try, when calling with an argument bound.
+     */
+    private double[] expected;
+
+    /**
+     * The number of calls made to the predicate.
+     */
+    private long calls;
+
+    /**
+     * The number of calls made to the predicate with each argument bound.
+     */
+    private final long[] bound;
+
+    /**
+     * The clauses matching each key, by argument. <tt>null</tt> for an argument that is not indexed yet.
+     */
+    private final List<Map<Integer, int[]>> buckets;
+
+    /**
+     * The clauses matching any key that no clause has, by argument.
+     */
+    private final int[][] defaultBuckets;
+
+    /**
+     * The code addresses of the compiled branches for each key, by argument.
+     */
+    private final List<Map<Integer, Integer>> branches;
+
+    /**
+     * The code address of the compiled branch for any key that no clause has, by argument.
+     */
+    private final int[] defaultBranches;
+
+    /**
+     * Creates an index over the clauses of a predicate.
+     *
+     * @param clauseKeys           The functor of each argument of each clause, <tt>null</tt> where the argument is a
+     *                             variable or cannot otherwise be indexed.
+     * @param firstArgumentIndexed <tt>true</tt> iff the first argument is indexed by switch_on_term.
+     */
+    public HtWAMClauseIndex(HtFunctorName[][] clauseKeys, boolean firstArgumentIndexed) {
+        this.clauseKeys = clauseKeys;
+        this.firstArgumentIndexed = firstArgumentIndexed;
+
+        numClauses = clauseKeys.length;
+        numArgs = (numClauses == 0) ? 0 : Math.min(clauseKeys[0].length, MAX_INDEXED_ARGS);
+
+        bound = new long[numArgs];
+        buckets = new ArrayList<>(numArgs);
+        branches = new ArrayList<>(numArgs);
+        defaultBuckets = new int[numArgs][];
+        defaultBranches = new int[numArgs];
+
+        for (int arg = 0; arg < numArgs; arg++) {
+            buckets.add(null);
+            branches.add(null);
+        }
+    }
+
+    /**
+     * Interns the keys of the clauses into the form the machine uses, a constant name or an encoded functor, and works
+     * out how selective each argument is. This must be done before the index is used.
+     *
+     * @param interner The interner of the machine that the predicate is linked into.
+     */
+    public void link(IVafInterner interner) {
+        keys = new int[numArgs][numClauses];
+        expected = new double[numArgs];
+
+        for (int arg = 0; arg < numArgs; arg++) {
+            Map<Integer, Boolean> distinct = new HashMap<>();
+            int variables = 0;
+
+            for (int clause = 0; clause < numClauses; clause++) {
+                HtFunctorName fn = clauseKeys[clause][arg];
+
+                if (fn == null) {
+                    keys[arg][clause] = NO_KEY;
+                    variables++;
+                } else {
+                    int key = (fn.getArity() << 24) | (interner.internFunctorName(fn) & 0x00ffffff);
+                    keys[arg][clause] = key;
+                    distinct.put(key, Boolean.TRUE);
+                }
+            }
+
+            expected[arg] = distinct.isEmpty() ?
+                    numClauses :
+                    variables + ((double) (numClauses - variables) / distinct.size());
+        }
+    }
+
+    /**
+     * Records a call to the predicate, and chooses the argument to index it on. An argument that has no index yet but
+     * has been bound on enough calls has its index built.
+     *
+     * @param boundMask A bit mask of the arguments that are bound on the call, to a constant or a structure.
+     * @return The argument to index the call on, or <tt>-1</tt> if no index is worth using.
+     */
+    public int selectArgument(int boundMask) {
+        calls++;
+
+        int best = -1;
+
+        for (int arg = 0; arg < numArgs; arg++) {
+            if ((boundMask & (1 << arg)) == 0) {
+                continue;
+            }
+
+            bound[arg]++;
+
+            if (((arg == 0) && firstArgumentIndexed) || (expected[arg] >= numClauses)) {
+                continue;
+            }
+
+            if ((buckets.get(arg) == null) && (bound[arg] < BUILD_THRESHOLD)) {
+                continue;
+            }
+
+            if ((best == -1) || (expected[arg] < expected[best])) {
+                best = arg;
+            }
+        }
+
+        if ((best != -1) && (buckets.get(best) == null)) {
+            build(best);
+        }
+
+        return best;
+    }
+
+    /**
+     * Provides the compiled branch for a key.
+     *
+     * @param arg The argument that is indexed on.
+     * @param key The key of the argument on the call.
+     * @return The code address of the branch, <tt>0</tt> if no clause can match, or {@link #UNCOMPILED} if the branch
+     * has not been compiled yet.
+     */
+    public int getBranch(int arg, int key) {
+        if (!buckets.get(arg).containsKey(key)) {
+            return defaultBranches[arg];
+        }
+
+        Integer branch = branches.get(arg).get(key);
+
+        return (branch == null) ? UNCOMPILED : branch;
+    }
+
+    /**
+     * Caches the compiled branch for a key.
+     *
+     * @param arg    The argument that is indexed on.
+     * @param key    The key of the argument on the call.
+     * @param branch The code address of the branch, <tt>0</tt> if no clause can match.
+     */
+    public void setBranch(int arg, int key, int branch) {
+        if (!buckets.get(arg).containsKey(key)) {
+            defaultBranches[arg] = branch;
+        } else {
+            branches.get(arg).put(key, branch);
+        }
+    }
+
+    /**
+     * Provides the clauses that can match a key, in order.
+     *
+     * @param arg The argument that is indexed on.
+     * @param key The key of the argument on the call.
+     * @return The positions of the clauses within the predicate that can match the key.
+     */
+    public int[] getBucket(int arg, int key) {
+        int[] bucket = buckets.get(arg).get(key);
+
+        return (bucket == null) ? defaultBuckets[arg] : bucket;
+    }
+
+    /**
+     * @return The functor of each argument of each clause, <tt>null</tt> where the argument cannot be indexed.
+     */
+    public HtFunctorName[][] getClauseKeys() {
+        return clauseKeys;
+    }
+
+    /**
+     * @return <tt>true</tt> iff the first argument is indexed by switch_on_term.
+     */
+    public boolean isFirstArgumentIndexed() {
+        return firstArgumentIndexed;
+    }
+
+    /**
+     * @return The number of arguments considered for indexing.
+     */
+    public int getNumArgs() {
+        return numArgs;
+    }
+
+    /**
+     * @return The number of clauses in the predicate.
+     */
+    public int getNumClauses() {
+        return numClauses;
+    }
+
+    /**
+     * @return The number of calls made to the predicate.
+     */
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * Provides the number of calls made to the predicate with an argument bound.
+     *
+     * @param arg The argument.
+     * @return The number of calls made to the predicate with the argument bound.
+     */
+    public long getBoundCount(int arg) {
+        return bound[arg];
+    }
+
+    /**
+     * Reports whether an index has been built on an argument.
+     *
+     * @param arg The argument.
+     * @return <tt>true</tt> iff an index has been built on the argument.
+     */
+    public boolean isIndexed(int arg) {
+        return buckets.get(arg) != null;
+    }
+
+    /**
+     * Builds the index on an argument. Clauses with a variable in the argument are merged into every bucket, keeping
+     * the clauses in order, and are the whole of the bucket for keys that no clause has.
+     *
+     * @param arg The argument to index on.
+     */
+    private void build(int arg) {
+        int[] argKeys = keys[arg];
+        Map<Integer, List<Integer>> keyed = new HashMap<>();
+        int[] variables = new int[numClauses];
+        int numVariables = 0;
+
+        for (int clause = 0; clause < numClauses; clause++) {
+            if (argKeys[clause] == NO_KEY) {
+                variables[numVariables++] = clause;
+            } else {
+                keyed.computeIfAbsent(argKeys[clause], k -> new ArrayList<>()).add(clause);
+            }
+        }
+
+        variables = Arrays.copyOf(variables, numVariables);
+
+        Map<Integer, int[]> index = new HashMap<>(keyed.size() * 2);
+
+        for (Map.Entry<Integer, List<Integer>> entry : keyed.entrySet()) {
+            index.put(entry.getKey(), merge(entry.getValue(), variables));
+        }
+
+        defaultBuckets[arg] = variables;
+        defaultBranches[arg] = UNCOMPILED;
+        branches.set(arg, new HashMap<>());
+        buckets.set(arg, index);
+    }
+
+    /**
+     * Merges two ascending lists of clause positions.
+     *
+     * @param keyed     The clauses with a key.
+     * @param variables The clauses with a variable.
+     * @return The merged clause positions.
+     */
+    private static int[] merge(List<Integer> keyed, int[] variables) {
+        int[] result = new int[keyed.size() + variables.length];
+        int i = 0;
+        int j = 0;
+
+        for (int k = 0; k < result.length; k++) {
+            if ((j == variables.length) || ((i < keyed.size()) && (keyed.get(i) < variables[j]))) {
+                result[k] = keyed.get(i++);
+            } else {
+                result[k] = variables[j++];
+            }
+        }
+
+        return result;
+    }
+}
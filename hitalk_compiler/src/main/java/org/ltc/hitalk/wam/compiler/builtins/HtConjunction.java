@@ -34,11 +34,18 @@ public class HtConjunction extends HiTalkBaseBuiltIn {
 
         ListTerm expressions = functor.getArgs();
 
+        // The calls within the construct only trim the environment down to the permanent variables live on entry
+        // to it, as the variables that last occur within it may be needed by calls later on within it.
+        Integer permVarsLive = (Integer) defaultBuiltIn.getSymbolTable().get(functor.getSymbolKey(),
+                SYMKEY_PERM_VARS_REMAINING);
+        int permVarsRemaining = (permVarsLive == null) ? 0 : permVarsLive;
+
         for (final ITerm iTerm : expressions.getHeads()) {
             IFunctor expression = (IFunctor) iTerm;
 
-            Integer permVarsRemaining =
-                    (Integer) defaultBuiltIn.getSymbolTable().get(expression.getSymbolKey(), SYMKEY_PERM_VARS_REMAINING);
+            // Nested constructs are inside this one, so have the same variables live on entry to them.
+            defaultBuiltIn.getSymbolTable().put(expression.getSymbolKey(), SYMKEY_PERM_VARS_REMAINING,
+                    permVarsRemaining);
 
             // Select a non-default built-in implementation to compile the functor with, if it is a built-in.
             IPrologBuiltIn builtIn;
@@ -54,8 +61,7 @@ public class HtConjunction extends HiTalkBaseBuiltIn {
             result.addAll(instructions);
 
             // Call the body. The number of permanent variables remaining is specified for BaseApp trimming.
-            instructions = builtIn.compileBodyCall(expression, false, false, false,
-                    0 /*permVarsRemaining*/);
+            instructions = builtIn.compileBodyCall(expression, false, false, false, permVarsRemaining);
             result.addAll(instructions);
         }
 
@@ -71,6 +71,12 @@
             List<ITerm> expressions = new ArrayList<>();
             gatherDisjunctions((HtDisjunction) functor, expressions);
 
+            // The calls within the construct only trim the environment down to the permanent variables live on entry
+            // to it, as the variables that last occur within it may be needed by calls later on within it.
+            Integer permVarsLive = (Integer) defaultBuiltIn.getSymbolTable().get(functor.getSymbolKey(),
+                    SYMKEY_PERM_VARS_REMAINING);
+            int permVarsRemaining = (permVarsLive == null) ? 0 : permVarsLive;
+
             for (int i = 0; i < expressions.size(); i++) {
                 IFunctor expression = (IFunctor) expressions.get(i);
 
@@ -94,9 +100,9 @@
                     result.add(new HiTalkWAMInstruction(entryLabel, TrustMe));
                 }
 
-                Integer permVarsRemaining =
-                        (Integer) defaultBuiltIn.getSymbolTable().get(expression.getSymbolKey(),
-                                SYMKEY_PERM_VARS_REMAINING);
+                // Nested constructs are inside this one, so have the same variables live on entry to them.
+                defaultBuiltIn.getSymbolTable().put(expression.getSymbolKey(), SYMKEY_PERM_VARS_REMAINING,
+                        permVarsRemaining);
 
                 // Select a non-default built-in implementation to compile the functor with, if it is a built-in.
                 IPrologBuiltIn builtIn;
@@ -112,7 +118,7 @@
                 result.addAll(instructions);
 
                 // Call the body. The number of permanent variables remaining is specified for BaseApp trimming.
-                instructions = builtIn.compileBodyCall(expression, false, false, false, 0 /*permVarsRemaining*/);
+                instructions = builtIn.compileBodyCall(expression, false, false, false, permVarsRemaining);
                 result.addAll(instructions);
 
                 // Proceed if this disjunctive branch completes successfully. This does not need to be done for the last
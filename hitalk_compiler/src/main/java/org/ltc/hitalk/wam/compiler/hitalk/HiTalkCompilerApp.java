@@ -25,6 +25,7 @@ import org.ltc.hitalk.term.io.HiTalkInputStream;
 import org.ltc.hitalk.wam.compiler.*;
 import org.ltc.hitalk.wam.compiler.hilog.HiLogCompilerApp;
 import org.ltc.hitalk.wam.compiler.prolog.ICompilerObserver;
+import org.ltc.hitalk.wam.compiler.prolog.PrologPreCompiler;
 import org.ltc.hitalk.wam.compiler.prolog.PrologWAMCompiler;
 import org.ltc.hitalk.wam.task.PreCompilerTask;
 import org.slf4j.Logger;
@@ -920,13 +921,58 @@ public class HiTalkCompilerApp<T extends HtMethod, TT extends PreCompilerTask<T>
      * @param fileName
      */
     public void logtalkCompile(String fileName) throws Exception {
-        wamCompiler.compileFile(fileName, executionContext.getFlags());
+        compile(fileName, executionContext.getFlags());
 //         user, user, user, user, [], []
     }
 
+    /**
+     * Compiles a source file, or loads it from its object file if that is up to date.
+     *
+     * @param fileName The name of the source file.
+     * @param flags    The compiler flags.
+     */
     public void compile(String fileName, HtProperty[] flags) throws Exception {
-        wamCompiler.compile(PlLexer.getTokenSourceForIoFileName(fileName), flags);
+        loadOrCompile(Paths.get(fileName).toAbsolutePath(), flags);
+    }
+
+    /**
+     * @return The precompiler for HiTalk sources, which expands the entity directives through the built-in transform.
+     */
+    @Override
+    protected PrologPreCompiler<T, ?, P, Q, PC, QC> createPreCompiler() throws Exception {
+        return new HiTalkPreprocessor<>(getAppContext().getSymbolTable(),
+                interner,
+                (builtInTransform != null) ? builtInTransform : getAppContext().getBuiltInTransform(),
+                getAppContext().getDefaultBuiltIn(),
+                getAppContext().getResolverIC(),
+                getAppContext().getParser());
+    }
+
+    /**
+     * @return The instruction compiler for HiTalk sources.
+     */
+    @Override
+    protected BaseInstructionCompiler<T, P, Q, PC, QC> createInstructionCompiler() throws Exception {
+        return new HiTalkInstructionCompiler<>(getAppContext().getSymbolTable(),
+                interner,
+                getDefaultBuiltIn(),
+                getAppContext().getObserverIC(),
+                getAppContext().getParser());
+    }
 
+    /**
+     * Records the objects, protocols and categories opened by the source just compiled in its object file.
+     *
+     * @param objectFile The object file of the source.
+     */
+    @Override
+    protected void addEntities(HtObjectFile objectFile) {
+        if (builtInTransform == null) {
+            return;
+        }
+        for (HtEntityIdentifier entity : builtInTransform.takeEntitiesCompiled()) {
+            objectFile.addEntity(interner.getDeinternedFunctorName(entity.getName()), entity.getEntityKind());
+        }
     }
     //logtalkCompile(@list(sourceFile_name))
 
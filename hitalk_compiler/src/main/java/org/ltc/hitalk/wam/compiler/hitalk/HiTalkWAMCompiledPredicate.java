@@ -25,6 +25,7 @@ import com.thesett.common.util.Sizeable;
 import com.thesett.common.util.SizeableLinkedList;
 import com.thesett.common.util.SizeableList;
 import org.ltc.hitalk.entities.HtPredicate;
+import org.ltc.hitalk.wam.compiler.HtWAMClauseIndex;
 import org.ltc.hitalk.wam.compiler.IWAMOptimizeableListing;
 import org.ltc.hitalk.wam.machine.HiTalkWAMMachine;
 import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingMachine;
@@ -126,6 +127,11 @@ class HiTalkWAMCompiledPredicate extends HtPredicate
      */
     protected IdAttributeFactory <FunctorName> functorInterner;
 
+    /**
+     * Holds the demand driven index over the clauses of this predicate, if it has one.
+     */
+    protected HtWAMClauseIndex clauseIndex;
+
     /**
      * @param name
      */
@@ -135,6 +141,27 @@ class HiTalkWAMCompiledPredicate extends HtPredicate
     }
 
 
+    /**
+     * Provides the demand driven index over the clauses of this predicate, including the statistics on the modes that
+     * it has been called in.
+     *
+     * @return The clause index of this predicate, or <tt>null</tt> if it has none.
+     */
+    public
+    HtWAMClauseIndex getClauseIndex () {
+        return clauseIndex;
+    }
+
+    /**
+     * Sets the demand driven index over the clauses of this predicate.
+     *
+     * @param clauseIndex The clause index of this predicate.
+     */
+    public
+    void setClauseIndex ( HtWAMClauseIndex clauseIndex ) {
+        this.clauseIndex = clauseIndex;
+    }
+
     /**
      * Provides the interned name of this predicate.
      *
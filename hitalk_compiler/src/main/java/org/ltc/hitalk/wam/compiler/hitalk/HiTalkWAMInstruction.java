@@ -19,7 +19,6 @@ package org.ltc.hitalk.wam.compiler.hitalk;
 import com.thesett.aima.logic.fol.LinkageException;
 import com.thesett.aima.logic.fol.wam.compiler.WAMCallPoint;
 import com.thesett.aima.logic.fol.wam.machine.WAMCodeView;
-import com.thesett.common.util.Pair;
 import com.thesett.common.util.Sizeable;
 import com.thesett.common.util.SizeableLinkedList;
 import com.thesett.common.util.SizeableList;
@@ -27,14 +26,18 @@ import com.thesett.common.util.doublemaps.SymbolKey;
 import org.ltc.hitalk.compiler.IVafInterner;
 import org.ltc.hitalk.term.ITerm;
 import org.ltc.hitalk.wam.compiler.HtFunctorName;
+import org.ltc.hitalk.wam.compiler.HtObjectFile;
+import org.ltc.hitalk.wam.compiler.HtWAMClauseIndex;
 import org.ltc.hitalk.wam.compiler.HtWAMLabel;
 import org.ltc.hitalk.wam.compiler.IFunctor;
 import org.ltc.hitalk.wam.machine.HiTalkWAMMachine;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 
@@ -310,6 +313,11 @@ class HiTalkWAMInstruction implements Sizeable {
     public static final byte DEALLOCATE_CTX = CALL_INTERNAL + 12;
     public static final byte DEALLOCATE_LAST_CTX = CALL_INTERNAL + 13;
 
+    /**
+     * The demand driven multi-argument indexing instruction.
+     */
+    public static final byte JIT_INDEX = CALL_INTERNAL + 14;
+
 
     /**
      * The suspend operation.
@@ -349,6 +357,18 @@ class HiTalkWAMInstruction implements Sizeable {
      * Indicates a list data entityKind.
      */
     public static final byte LIS = 0x03;
+
+    /**
+     * The bits recording which optional fields of an instruction are written to an object file.
+     */
+    private static final int HAS_LABEL = 0x01;
+    private static final int HAS_FN = 0x02;
+    private static final int HAS_TARGET1 = 0x04;
+    private static final int HAS_TARGET2 = 0x08;
+    private static final int HAS_TARGET3 = 0x10;
+    private static final int HAS_TARGET4 = 0x20;
+    private static final int HAS_INDEX_TABLE = 0x40;
+    private static final int HAS_CLAUSE_INDEX = 0x80;
     /**
      * The optional address label of the instruction.
      */
@@ -390,9 +410,21 @@ class HiTalkWAMInstruction implements Sizeable {
      */
     protected HtWAMLabel target4;
     /**
-     * An optional list of entries for an indexing table.
+     * An optional mapping from functor names to branch labels, for an indexing table.
+     */
+    protected Map<HtFunctorName, HtWAMLabel> indexTable;
+    /**
+     * The number of slots in the hash table of an indexing instruction.
+     */
+    protected int indexSlots;
+    /**
+     * The demand driven index of a jit_index instruction.
+     */
+    protected HtWAMClauseIndex clauseIndex;
+    /**
+     * The labels of the clauses of a predicate, past their choice point instructions, for a jit_index instruction.
      */
-    protected List<Pair<Integer, HtWAMLabel>> indexTable;
+    protected HtWAMLabel[] clauseLabels;
     /**
      * Holds the symbol key of the argument that is held in the first register of this instruction.
      */
@@ -573,6 +605,231 @@ class HiTalkWAMInstruction implements Sizeable {
         this.mnemonic = mnemonic;
     }
 
+    /**
+     * Creates a switch_on_term instruction, that jumps on the type of the first argument.
+     *
+     * @param label    The instructions address label.
+     * @param var      The label to jump to when the first argument is an unbound variable.
+     * @param con      The label to jump to when the first argument is a constant.
+     * @param lis      The label to jump to when the first argument is a list.
+     * @param str      The label to jump to when the first argument is a structure.
+     */
+    public HiTalkWAMInstruction(HtWAMLabel label, HtWAMLabel var, HtWAMLabel con, HtWAMLabel lis, HtWAMLabel str) {
+        this.label = label;
+        this.mnemonic = HiTalkWAMInstructionSet.SwitchOnTerm;
+        this.target1 = var;
+        this.target2 = con;
+        this.target3 = lis;
+        this.target4 = str;
+    }
+
+    /**
+     * Creates a labelled switch_on_const or switch_on_struc instruction, that jumps on the value of the first argument
+     * through an open addressed hash table, emitted into the code area directly after the instruction, and fails when
+     * the value is not in the table.
+     *
+     * @param label      The instructions address label.
+     * @param mnemonic   The instruction mnemonic.
+     * @param indexTable The mapping from functor names to the labels of the branches to take on them.
+     */
+    public HiTalkWAMInstruction(HtWAMLabel label,
+                                HiTalkWAMInstructionSet mnemonic,
+                                Map<HtFunctorName, HtWAMLabel> indexTable) {
+        this(label, mnemonic, indexTable, null);
+    }
+
+    /**
+     * Creates a labelled switch_on_const or switch_on_struc instruction, that jumps on the value of the first argument
+     * through an open addressed hash table, emitted into the code area directly after the instruction.
+     *
+     * @param label        The instructions address label.
+     * @param mnemonic     The instruction mnemonic.
+     * @param indexTable   The mapping from functor names to the labels of the branches to take on them.
+     * @param defaultLabel The label to jump to when the value is not in the table, or <tt>null</tt> to fail.
+     */
+    public HiTalkWAMInstruction(HtWAMLabel label,
+                                HiTalkWAMInstructionSet mnemonic,
+                                Map<HtFunctorName, HtWAMLabel> indexTable,
+                                HtWAMLabel defaultLabel) {
+        this.label = label;
+        this.mnemonic = mnemonic;
+        this.indexTable = indexTable;
+        this.indexSlots = indexTableSlots(indexTable.size());
+        this.target1 = defaultLabel;
+    }
+
+    /**
+     * Creates a jit_index instruction, that indexes calls to a predicate on its most selective bound argument.
+     *
+     * @param clauseIndex  The demand driven index over the clauses of the predicate.
+     * @param clauseLabels The labels of the clauses, past their choice point instructions.
+     */
+    public HiTalkWAMInstruction(HtWAMClauseIndex clauseIndex, HtWAMLabel[] clauseLabels) {
+        this.mnemonic = HiTalkWAMInstructionSet.JitIndex;
+        this.clauseIndex = clauseIndex;
+        this.clauseLabels = clauseLabels;
+    }
+
+    /**
+     * Calculates the number of slots to use for a hash table with a given number of entries. The table is kept at most
+     * half full, and is a power of two in size, so that the probe sequence can be computed with a mask.
+     *
+     * @param entries The number of entries to hold in the table.
+     * @return The number of slots to use.
+     */
+    public static int indexTableSlots(int entries) {
+        return (entries == 0) ? 0 : Integer.highestOneBit(entries) << 2;
+    }
+
+    /**
+     * Computes the first slot to probe in an indexing hash table for a key. The key is mixed, so that interned names,
+     * which tend to be allocated sequentially, are spread over the whole table.
+     *
+     * @param key   The key to look up, an interned constant name or an encoded functor.
+     * @param slots The number of slots in the table, a power of two.
+     * @return The first slot to probe.
+     */
+    public static int indexTableHash(int key, int slots) {
+        int h = key * 0x9E3779B9;
+
+        return (h ^ (h >>> 16)) & (slots - 1);
+    }
+
+    /**
+     * Writes this instruction to an object file. Its functors and labels are written as symbols of the file rather than
+     * as interned names or code addresses, so that the instruction can be linked into any machine when it is read back.
+     *
+     * @param out  The output to write to.
+     * @param file The object file, that holds the symbols.
+     * @throws IOException If the instruction cannot be written.
+     */
+    public void writeTo(DataOutput out, HtObjectFile file) throws IOException {
+        int fields = ((label != null) ? HAS_LABEL : 0) |
+                ((fn != null) ? HAS_FN : 0) |
+                ((target1 != null) ? HAS_TARGET1 : 0) |
+                ((target2 != null) ? HAS_TARGET2 : 0) |
+                ((target3 != null) ? HAS_TARGET3 : 0) |
+                ((target4 != null) ? HAS_TARGET4 : 0) |
+                ((indexTable != null) ? HAS_INDEX_TABLE : 0) |
+                ((clauseIndex != null) ? HAS_CLAUSE_INDEX : 0);
+
+        out.writeByte(mnemonic.getCode());
+        out.writeByte(fields);
+        out.writeByte(mode1);
+        out.writeByte(reg1);
+        out.writeByte(reg2);
+
+        if (label != null) {
+            file.writeLabel(out, label);
+        }
+        if (fn != null) {
+            out.writeInt(file.symbolIndex(fn));
+        }
+        for (HtWAMLabel target : new HtWAMLabel[]{target1, target2, target3, target4}) {
+            if (target != null) {
+                file.writeLabel(out, target);
+            }
+        }
+        if (indexTable != null) {
+            out.writeInt(indexTable.size());
+            for (Map.Entry<HtFunctorName, HtWAMLabel> entry : indexTable.entrySet()) {
+                out.writeInt(file.symbolIndex(entry.getKey()));
+                file.writeLabel(out, entry.getValue());
+            }
+        }
+        if (clauseIndex != null) {
+            HtFunctorName[][] clauseKeys = clauseIndex.getClauseKeys();
+            out.writeInt(clauseKeys.length);
+            out.writeInt((clauseKeys.length == 0) ? 0 : clauseKeys[0].length);
+            for (HtFunctorName[] keys : clauseKeys) {
+                for (HtFunctorName key : keys) {
+                    out.writeInt((key == null) ? -1 : file.symbolIndex(key));
+                }
+            }
+            out.writeBoolean(clauseIndex.isFirstArgumentIndexed());
+            out.writeInt(clauseLabels.length);
+            for (HtWAMLabel clauseLabel : clauseLabels) {
+                file.writeLabel(out, clauseLabel);
+            }
+        }
+    }
+
+    /**
+     * Reads an instruction written by {@link #writeTo(DataOutput, HtObjectFile)}.
+     *
+     * @param in   The buffer to read from.
+     * @param file The object file, that holds the symbols.
+     * @return The instruction.
+     * @throws IOException If the instruction is not valid.
+     */
+    public static HiTalkWAMInstruction readFrom(ByteBuffer in, HtObjectFile file) throws IOException {
+        byte code = in.get();
+        HiTalkWAMInstructionSet mnemonic = HiTalkWAMInstructionSet.fromCode(code);
+        if (mnemonic == null) {
+            throw new IOException("Unknown instruction code " + code + ".");
+        }
+
+        HiTalkWAMInstruction instruction = new HiTalkWAMInstruction(mnemonic);
+        int fields = in.get() & 0xff;
+        instruction.mode1 = in.get();
+        instruction.reg1 = in.get();
+        instruction.reg2 = in.get();
+
+        if ((fields & HAS_LABEL) != 0) {
+            instruction.label = file.readLabel(in);
+        }
+        if ((fields & HAS_FN) != 0) {
+            instruction.fn = file.symbol(in.getInt());
+        }
+        if ((fields & HAS_TARGET1) != 0) {
+            instruction.target1 = file.readLabel(in);
+        }
+        if ((fields & HAS_TARGET2) != 0) {
+            instruction.target2 = file.readLabel(in);
+        }
+        if ((fields & HAS_TARGET3) != 0) {
+            instruction.target3 = file.readLabel(in);
+        }
+        if ((fields & HAS_TARGET4) != 0) {
+            instruction.target4 = file.readLabel(in);
+        }
+        if ((fields & HAS_INDEX_TABLE) != 0) {
+            int size = in.getInt();
+            Map<HtFunctorName, HtWAMLabel> indexTable = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+                HtFunctorName key = file.symbol(in.getInt());
+                indexTable.put(key, file.readLabel(in));
+            }
+            instruction.indexTable = indexTable;
+            instruction.indexSlots = indexTableSlots(size);
+        }
+        if ((fields & HAS_CLAUSE_INDEX) != 0) {
+            HtFunctorName[][] clauseKeys = new HtFunctorName[in.getInt()][in.getInt()];
+            for (HtFunctorName[] keys : clauseKeys) {
+                for (int i = 0; i < keys.length; i++) {
+                    int key = in.getInt();
+                    keys[i] = (key == -1) ? null : file.symbol(key);
+                }
+            }
+            instruction.clauseIndex = new HtWAMClauseIndex(clauseKeys, in.get() != 0);
+            instruction.clauseLabels = new HtWAMLabel[in.getInt()];
+            for (int i = 0; i < instruction.clauseLabels.length; i++) {
+                instruction.clauseLabels[i] = file.readLabel(in);
+            }
+        }
+
+        return instruction;
+    }
+
+    /**
+     * Provides the demand driven index of a jit_index instruction.
+     *
+     * @return The clause index, or <tt>null</tt> if this is not a jit_index instruction.
+     */
+    public HtWAMClauseIndex getClauseIndex() {
+        return clauseIndex;
+    }
+
     /**
      * Disassembles the instructions from the specified byte buffer, starting at a given location (ip). An interner for
      * the functor names encountered in the instruction buffer must also be supplied, in order to look up the functor
@@ -611,7 +868,7 @@ class HiTalkWAMInstruction implements Sizeable {
 
             result.add(instruction);
 
-            ip += instruction.mnemonic.length();
+            ip += instruction.sizeof();
         }
 
         return result;
@@ -755,13 +1012,14 @@ class HiTalkWAMInstruction implements Sizeable {
     }
 
     /**
-     * Calculates the length of this instruction in bytes.
+     * Calculates the length of this instruction in bytes. Indexing instructions are followed by their tables, which are
+     * counted as part of the instruction.
      *
      * @return The length of this instruction in bytes.
      */
     public
     long sizeof () {
-        return mnemonic.length();
+        return mnemonic.length() + (indexSlots << 3) + ((clauseLabels == null) ? 0 : (clauseLabels.length << 2));
     }
 
     /**
@@ -1281,6 +1539,12 @@ class HiTalkWAMInstruction implements Sizeable {
             void emitCode ( HiTalkWAMInstruction instruction, ByteBuffer codeBuf, HiTalkWAMMachine machine ) throws LinkageException {
                 int ip = codeBuf.position();
 
+                // Resolve any forward reference to the label for this instruction, from an index.
+                if (instruction.label != null) {
+                    int label = machine.internFunctorName(instruction.label);
+                    machine.resolveLabelPoint(label, ip);
+                }
+
                 // Intern the alternative forward label, and write it out as zero initially, for later completion.
                 int toCall = machine.internFunctorName(instruction.target1);
                 machine.reserveReferenceToLabel(toCall, ip + 1);
@@ -1474,14 +1738,21 @@ class HiTalkWAMInstruction implements Sizeable {
          * The second level indexing instruction.
          */
         SwitchOnTerm(SWITCH_ON_TERM, "switch_on_term", 17, 0x0) {
+            /** {@inheritDoc} */
+            protected void disassembleArguments ( HiTalkWAMInstruction instruction, int ip, ByteBuffer codeBuf, IVafInterner interner ) {
+                // The jump targets are addresses, which are restored as labels by the disassembler where known.
+            }
+
             /** {@inheritDoc} */
             public
             void emitCode ( HiTalkWAMInstruction instruction, ByteBuffer codeBuf, HiTalkWAMMachine machine ) throws LinkageException {
                 int ip = codeBuf.position();
 
                 // Resolve any forward reference to the label for this instruction.
-                int label = machine.internFunctorName(instruction.label);
-                machine.resolveLabelPoint(label, ip);
+                if (instruction.label != null) {
+                    int label = machine.internFunctorName(instruction.label);
+                    machine.resolveLabelPoint(label, ip);
+                }
 
                 // Intern the alternative forward labels, and write them out as zero initially, for later completion.
                 int jump = machine.internFunctorName(instruction.target1);
@@ -1498,6 +1769,9 @@ class HiTalkWAMInstruction implements Sizeable {
 
                 codeBuf.put(code);
                 codeBuf.putInt(0);
+                codeBuf.putInt(0);
+                codeBuf.putInt(0);
+                codeBuf.putInt(0);
             }
 
             /** {@inheritDoc} */
@@ -1508,64 +1782,82 @@ class HiTalkWAMInstruction implements Sizeable {
         },
 
         /**
-         * The third level indexing instruction for constants.
+         * The third level indexing instruction for constants. The hash table is keyed on the interned constant name.
+         * The instruction holds the offset of the table, its number of slots, and the address to jump to when the
+         * constant is not in the table, zero meaning fail.
          */
-        SwitchOnConst(SWITCH_ON_CONST, "switch_on_const", 9, 0x0) {
+        SwitchOnConst(SWITCH_ON_CONST, "switch_on_const", 13, 0x0) {
+            /** {@inheritDoc} */
+            protected void disassembleArguments ( HiTalkWAMInstruction instruction, int ip, ByteBuffer codeBuf, IVafInterner interner ) {
+                instruction.indexSlots = codeBuf.getInt(ip + 5);
+            }
+
             /** {@inheritDoc} */
             public
             void emitCode ( HiTalkWAMInstruction instruction, ByteBuffer codeBuf, HiTalkWAMMachine machine ) throws LinkageException {
-                int ip = codeBuf.position();
-
-                // Resolve any forward reference to the label for this instruction.
-                int label = machine.internFunctorName(instruction.label);
-                machine.resolveLabelPoint(label, ip);
+                emitCodeIndexTable(codeBuf, code, instruction, machine, false);
+            }
 
-                // Intern the alternative forward labels, and write them out as zero initially, for later completion.
-                int jump = machine.internFunctorName(instruction.target1);
-                machine.reserveReferenceToLabel(jump, ip + 1);
+            /** {@inheritDoc} */
+            public
+            String toString ( HiTalkWAMInstruction instruction ) {
+                return toStringIndexTable(pretty, instruction);
+            }
+        },
 
-                jump = machine.internFunctorName(instruction.target2);
-                machine.reserveReferenceToLabel(jump, ip + 5);
+        /**
+         * The third level indexing instruction for structures. The hash table is keyed on the encoded functor, and laid
+         * out as for {@link #SwitchOnConst}.
+         */
+        SwitchOnStruc(SWITCH_ON_STRUC, "switch_on_struc", 13, 0x0) {
+            /** {@inheritDoc} */
+            protected void disassembleArguments ( HiTalkWAMInstruction instruction, int ip, ByteBuffer codeBuf, IVafInterner interner ) {
+                instruction.indexSlots = codeBuf.getInt(ip + 5);
+            }
 
-                codeBuf.put(code);
-                codeBuf.putInt(0);
+            /** {@inheritDoc} */
+            public
+            void emitCode ( HiTalkWAMInstruction instruction, ByteBuffer codeBuf, HiTalkWAMMachine machine ) throws LinkageException {
+                emitCodeIndexTable(codeBuf, code, instruction, machine, true);
             }
 
             /** {@inheritDoc} */
             public
             String toString ( HiTalkWAMInstruction instruction ) {
-                return pretty + " " + labelToString(instruction.target1) + " / " + labelToString(instruction.target2);
+                return toStringIndexTable(pretty, instruction);
             }
         },
 
         /**
-         * The third level indexing instruction for structures.
+         * The demand driven indexing instruction, followed by a table of the addresses of the clauses of the predicate.
          */
-        SwitchOnStruc(SWITCH_ON_STRUC, "switch_on_struc", 9, 0x0) {
+        JitIndex(JIT_INDEX, "jit_index", 9, 0x0) {
+            /** {@inheritDoc} */
+            protected void disassembleArguments ( HiTalkWAMInstruction instruction, int ip, ByteBuffer codeBuf, IVafInterner interner ) {
+                instruction.clauseLabels = new HtWAMLabel[codeBuf.getInt(ip + 5)];
+            }
+
             /** {@inheritDoc} */
             public
             void emitCode ( HiTalkWAMInstruction instruction, ByteBuffer codeBuf, HiTalkWAMMachine machine ) throws LinkageException {
                 int ip = codeBuf.position();
-
-                // Resolve any forward reference to the label for this instruction.
-                int label = machine.internFunctorName(instruction.label);
-                machine.resolveLabelPoint(label, ip);
-
-                // Intern the alternative forward labels, and write them out as zero initially, for later completion.
-                int jump = machine.internFunctorName(instruction.target1);
-                machine.reserveReferenceToLabel(jump, ip + 1);
-
-                jump = machine.internFunctorName(instruction.target2);
-                machine.reserveReferenceToLabel(jump, ip + 5);
+                HtWAMLabel[] clauseLabels = instruction.clauseLabels;
 
                 codeBuf.put(code);
-                codeBuf.putInt(0);
+                codeBuf.putInt(machine.addClauseIndex(instruction.clauseIndex));
+                codeBuf.putInt(clauseLabels.length);
+
+                // Intern the clause labels, and write them out as zero initially, for later completion.
+                for (int i = 0; i < clauseLabels.length; i++) {
+                    machine.reserveReferenceToLabel(machine.internFunctorName(clauseLabels[i]), ip + 9 + (i << 2));
+                    codeBuf.putInt(0);
+                }
             }
 
             /** {@inheritDoc} */
             public
             String toString ( HiTalkWAMInstruction instruction ) {
-                return pretty + " " + labelToString(instruction.target1) + " / " + labelToString(instruction.target2);
+                return pretty + " " + instruction.clauseLabels.length;
             }
         },
 
@@ -1932,6 +2224,91 @@ class HiTalkWAMInstruction implements Sizeable {
             codeBuf.put(instruction.reg2);
         }
 
+        /**
+         * Writes out an indexing instruction, followed by its open addressed hash table. The instruction holds the offset
+         * of the table, its number of slots and the address to jump to when no key matches, which directly precedes the
+         * table. Each slot is a key and a code address, an address of zero marking an empty slot. The addresses are
+         * written as zero initially, and filled in as the branch labels are resolved.
+         *
+         * @param codeBuf     The code buffer to write to.
+         * @param code        The instruction mnemonic.
+         * @param instruction The instruction, including its arguments.
+         * @param machine     The binary machine to write the code into.
+         * @param arity       <tt>true</tt> iff the keys are to be encoded with their arity, as structures are.
+         */
+        private static void emitCodeIndexTable ( ByteBuffer codeBuf, byte code, HiTalkWAMInstruction instruction,
+                                                 HiTalkWAMMachine machine, boolean arity ) {
+            int ip = codeBuf.position();
+
+            // Resolve any forward reference to the label for this instruction.
+            if (instruction.label != null) {
+                int label = machine.internFunctorName(instruction.label);
+                machine.resolveLabelPoint(label, ip);
+            }
+
+            int t = ip + 13;
+            int n = instruction.indexSlots;
+
+            codeBuf.put(code);
+            codeBuf.putInt(t);
+            codeBuf.putInt(n);
+            codeBuf.putInt(0);
+
+            if (instruction.target1 != null) {
+                machine.reserveReferenceToLabel(machine.internFunctorName(instruction.target1), ip + 9);
+            }
+
+            for (int i = 0; i < n; i++) {
+                codeBuf.putLong(0L);
+            }
+
+            for (Map.Entry<HtFunctorName, HtWAMLabel> entry : instruction.indexTable.entrySet()) {
+                HtFunctorName fn = entry.getKey();
+                int key = machine.internFunctorName(fn) & 0x00ffffff;
+
+                if (arity) {
+                    key |= fn.getArity() << 24;
+                }
+
+                // Linear probe for a free slot.
+                int slot = indexTableHash(key, n);
+
+                while (codeBuf.getInt(t + (slot << 3) + 4) != 0) {
+                    slot = (slot + 1) & (n - 1);
+                }
+
+                codeBuf.putInt(t + (slot << 3), key);
+                codeBuf.putInt(t + (slot << 3) + 4, -1);
+                machine.reserveReferenceToLabel(machine.internFunctorName(entry.getValue()), t + (slot << 3) + 4);
+            }
+        }
+
+        /**
+         * Pretty prints an indexing instruction with its table.
+         *
+         * @param pretty      The pretty printed name of the instruction.
+         * @param instruction The instruction, including its arguments.
+         * @return A pretty printed indexing instruction.
+         */
+        private static String toStringIndexTable ( String pretty, HiTalkWAMInstruction instruction ) {
+            if (instruction.indexTable == null) {
+                return pretty + " " + instruction.indexSlots;
+            }
+
+            StringBuilder result = new StringBuilder(pretty).append(" ");
+
+            if (instruction.target1 != null) {
+                result.append("default: ").append(labelToString(instruction.target1)).append(" ");
+            }
+
+            for (Map.Entry<HtFunctorName, HtWAMLabel> entry : instruction.indexTable.entrySet()) {
+                result.append(entry.getKey().getName()).append("/").append(entry.getKey().getArity()).append(": ")
+                        .append(labelToString(entry.getValue())).append(" ");
+            }
+
+            return result.toString().trim();
+        }
+
         /**
          * Writes out the instruction plus arguments in the byte code format to the specified location within a code
          * buffer.
@@ -20,6 +20,7 @@ import org.ltc.hitalk.compiler.bktables.error.StopRequestException;
 import org.ltc.hitalk.core.BaseApp;
 import org.ltc.hitalk.core.HtVersion;
 import org.ltc.hitalk.core.IPreCompiler;
+import org.ltc.hitalk.core.IResolver;
 import org.ltc.hitalk.core.utils.HtSymbolTable;
 import org.ltc.hitalk.entities.HtProperty;
 import org.ltc.hitalk.entities.context.CompilationContext;
@@ -31,10 +32,16 @@ import org.ltc.hitalk.interpreter.HtProduct;
 import org.ltc.hitalk.parser.HtPrologParser;
 import org.ltc.hitalk.parser.IParser;
 import org.ltc.hitalk.parser.PlLexer;
+import org.ltc.hitalk.wam.compiler.BaseInstructionCompiler;
 import org.ltc.hitalk.wam.compiler.CompilerFactory;
+import org.ltc.hitalk.wam.compiler.HtDependencyGraph;
+import org.ltc.hitalk.wam.compiler.HtObjectFile;
 import org.ltc.hitalk.wam.compiler.ICompilerFactory;
 import org.ltc.hitalk.wam.compiler.Language;
 import org.ltc.hitalk.wam.compiler.Tools.Kind;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.machine.HiTalkWAMMachine;
 
 import java.io.FileReader;
 import java.io.IOException;
@@ -75,6 +82,8 @@ public class PrologCompilerApp extends BaseApp {
             new HtVersion(0, 1, 2, 1024, "", false));
     protected ICompilerObserver<P, Q> observer;
     protected IVafInterner interner = getAppContext().getInterner();
+    protected HtObjectFile objectFile;
+    protected HtDependencyGraph dependencyGraph;
 //    protected HiTalkInputStream currentInputStream;
 //    protected HiTalkOutputStream currentOutputStream;
 
@@ -287,31 +296,7 @@ public class PrologCompilerApp extends BaseApp {
         setTarget(() -> {
             try {
                 this.initialize();
-                getWAMCompiler().setInstructionCompiler(new PrologInstructionCompiler<>());
-                getWAMCompiler().setPreCompiler(new PrologPreCompiler<>());
-                getWAMCompiler().setCompilerObserver(new ICompilerObserver<P, Q>() {
-                    public void onCompilation(PlLexer tokenSource) throws Exception {
-                        final List<T> list = getWAMCompiler().getPreCompiler().preCompile(tokenSource, of(DK_IF));
-                        for (T clause : list) {
-                            getWAMCompiler().getInstructionCompiler().compile(clause);
-                        }
-                    }
-
-                    /**
-                     * @param sentence The compiled form of the sentence.
-                     */
-                    public void onCompilation(P sentence) {
-
-                    }
-
-                    /**
-                     * @param sentence The compiled query.
-                     */
-                    public void onQueryCompilation(Q sentence) {
-
-                    }
-                });
-                getWAMCompiler().compile(getTokenSourceForPath(fileName), loadContext.getProps());
+                loadOrCompile(fileName, loadContext.getProps());
             } catch (Exception e) {
                 e.printStackTrace();
                 throw new ExecutionError(PERMISSION_ERROR, null);
@@ -321,6 +306,125 @@ public class PrologCompilerApp extends BaseApp {
         getTarget().run();
     }
 
+    /**
+     * Loads a source file from its object file if the object file is up to date, or else compiles the source, reusing
+     * the code of the predicates whose inputs have not changed since the previous build, and writes its object file.
+     * Either way, the queries and directives of the source are run once its code has been linked, in the order they
+     * appear in the source.
+     *
+     * @param source The path of the source file.
+     * @param flags  The compiler flags.
+     * @throws Exception If the source cannot be compiled, or its code linked or run.
+     */
+    protected void loadOrCompile(Path source, HtProperty[] flags) throws Exception {
+        final Path objectPath = HtObjectFile.objectPathFor(source);
+        final HtObjectFile previous = readObjectFile(objectPath);
+        if (previous != null && previous.isUpToDate()) {
+            getLogger().info("Loading " + objectPath + "... ");
+            previous.link((HiTalkWAMMachine) getAppContext().getResolverIC());
+            objectFile = previous;
+            runQueries(objectFile);
+            return;
+        }
+        objectFile = new HtObjectFile();
+        dependencyGraph = new HtDependencyGraph(interner, previous);
+        final PrologPreCompiler<T, ?, P, Q, PC, QC> preCompiler = createPreCompiler();
+        preCompiler.setDependencyGraph(dependencyGraph);
+        getWAMCompiler().setInstructionCompiler(createInstructionCompiler());
+        getWAMCompiler().setPreCompiler(preCompiler);
+        // the precompiler passes on only the clauses of predicates whose inputs have changed
+        getWAMCompiler().setCompilerObserver(new ICompilerObserver<P, Q>() {
+            /**
+             * @param sentence The compiled form of the sentence.
+             */
+            public void onCompilation(P sentence) {
+                if (sentence instanceof HiTalkWAMCompiledPredicate) {
+                    objectFile.addPredicate((HiTalkWAMCompiledPredicate) sentence, interner);
+                }
+            }
+
+            /**
+             * @param sentence The compiled query.
+             */
+            public void onQueryCompilation(Q sentence) {
+                if (sentence instanceof HiTalkWAMCompiledQuery) {
+                    objectFile.addQuery((HiTalkWAMCompiledQuery) sentence, interner);
+                }
+            }
+        });
+        getWAMCompiler().compile(getTokenSourceForPath(source), flags);
+        final List<HtObjectFile.Predicate> reused = dependencyGraph.update(objectFile);
+        if (!reused.isEmpty()) {
+            HtObjectFile.link((HiTalkWAMMachine) getAppContext().getResolverIC(), reused);
+        }
+        getLogger().info("Compiled " + (objectFile.getPredicates().size() - reused.size()) +
+                " predicates, reused " + reused.size() + ".");
+        addEntities(objectFile);
+        if (!dependencyGraph.getFiles().contains(source)) {
+            objectFile.addDependency(source);
+        }
+        objectFile.write(objectPath);
+        runQueries(objectFile);
+    }
+
+    /**
+     * @return The precompiler to compile sources with.
+     * @throws Exception If the precompiler cannot be created.
+     */
+    protected PrologPreCompiler<T, ?, P, Q, PC, QC> createPreCompiler() throws Exception {
+        return new PrologPreCompiler<>();
+    }
+
+    /**
+     * @return The instruction compiler to compile sources with.
+     * @throws Exception If the instruction compiler cannot be created.
+     */
+    protected BaseInstructionCompiler<T, P, Q, PC, QC> createInstructionCompiler() throws Exception {
+        return new PrologInstructionCompiler<>();
+    }
+
+    /**
+     * Records the entities defined by the source just compiled in its object file. Plain Prolog sources define none.
+     *
+     * @param objectFile The object file of the source.
+     */
+    protected void addEntities(HtObjectFile objectFile) {
+    }
+
+    /**
+     * Runs the queries and directives of a source, once its code has been linked.
+     *
+     * @param objectFile The object file of the source.
+     * @throws Exception If a query cannot be linked or run.
+     */
+    protected void runQueries(HtObjectFile objectFile) throws Exception {
+        final IResolver<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> resolver = getAppContext().getResolverIC();
+        for (HtObjectFile.Query query : objectFile.getQueries()) {
+            resolver.setQuery(query.toCompiledQuery(interner));
+            resolver.resolve();
+        }
+    }
+
+    /**
+     * Reads the object file of the previous build of the source, whose code can be linked instead of compiling the
+     * source if it is up to date, or else be partly reused for the predicates whose inputs have not changed.
+     *
+     * @param objectPath The path of the object file.
+     * @return The object file, or <tt>null</tt> if there is no usable one, or the resolver is not a machine that its
+     * code can be linked into.
+     */
+    protected HtObjectFile readObjectFile(Path objectPath) throws Exception {
+        if (!(getAppContext().getResolverIC() instanceof HiTalkWAMMachine)) {
+            return null;
+        }
+        try {
+            return HtObjectFile.read(objectPath);
+        } catch (IOException e) {
+            getLogger().warn("Ignoring " + objectPath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * @param interner
      */
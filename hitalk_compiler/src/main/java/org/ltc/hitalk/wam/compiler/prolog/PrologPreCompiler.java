@@ -14,6 +14,7 @@ import org.ltc.hitalk.parser.PlLexer;
 import org.ltc.hitalk.term.ITerm;
 import org.ltc.hitalk.term.io.HiTalkInputStream;
 import org.ltc.hitalk.term.io.HtTermWriter;
+import org.ltc.hitalk.wam.compiler.HtDependencyGraph;
 import org.ltc.hitalk.wam.compiler.HtPositionAndOccurrenceVisitor;
 import org.ltc.hitalk.wam.compiler.HtTermWalkers;
 import org.ltc.hitalk.wam.compiler.IFunctor;
@@ -63,6 +64,11 @@ class PrologPreCompiler<T extends HtClause, TT extends PreCompilerTask<T>, P, Q,
     protected boolean isBOFPassed;
     protected boolean isEOFPassed;
 
+    /**
+     * Records what the precompiled clauses depend on, if set.
+     */
+    protected HtDependencyGraph dependencyGraph;
+
     /**
      * @param symbolTable
      * @param interner
@@ -93,6 +99,20 @@ class PrologPreCompiler<T extends HtClause, TT extends PreCompilerTask<T>, P, Q,
                 getAppContext().getParser());
     }
 
+    /**
+     * @return
+     */
+    public HtDependencyGraph getDependencyGraph() {
+        return dependencyGraph;
+    }
+
+    /**
+     * @param dependencyGraph
+     */
+    public void setDependencyGraph(HtDependencyGraph dependencyGraph) {
+        this.dependencyGraph = dependencyGraph;
+    }
+
     /**
      * @return
      */
@@ -139,6 +159,7 @@ class PrologPreCompiler<T extends HtClause, TT extends PreCompilerTask<T>, P, Q,
     public List<T> preCompile(PlLexer tokenSource, EnumSet<DirectiveKind> delims) throws Exception {
         getLogger().info("Precompiling " + tokenSource.getPath() + " ...");
         List<T> list = new ArrayList<>();
+        List<ITerm> terms = new ArrayList<>();
         while (tokenSource.isOpen()) {
             ITerm t = getParser().termSentence();
             if (!isBOFPassed) {
@@ -152,9 +173,21 @@ class PrologPreCompiler<T extends HtClause, TT extends PreCompilerTask<T>, P, Q,
                 getLogger().info("precompiled: " + term);
                 T clause = (T) parser.convert(term);
                 getLogger().info("converted: " + clause);
+                if (dependencyGraph != null) {
+                    dependencyGraph.addClause(clause, parser.getTokenSource().getPath());
+                    terms.add(term);
+                }
                 list.add(clause);
             }
         }
+        // what is unchanged is only known once all of the clauses of every predicate have been read
+        if (dependencyGraph != null) {
+            for (int i = 0; i < list.size(); i++) {
+                if (!dependencyGraph.isUnchanged(list.get(i))) {
+                    onCompilation(terms.get(i));
+                }
+            }
+        }
 
         return list;
     }
@@ -212,18 +245,32 @@ class PrologPreCompiler<T extends HtClause, TT extends PreCompilerTask<T>, P, Q,
 //            initializeSymbolTable(clause);
 //            topLevelCheck(clause);
 
-            if (observer != null) {
-                if (clause.isQuery()) {
-                    observer.onQueryCompilation((Q) clause);
-                } else {
-                    observer.onCompilation((P) clause);
-                }
+            // with a dependency graph, clauses are passed on once the whole source is read, see preCompile(PlLexer, ...)
+            if (dependencyGraph == null) {
+                onCompilation(clause);
             }
         }
 
         return clauses;
     }
 
+    /**
+     * Passes a precompiled clause on to the observer to be compiled.
+     *
+     * @param clause The precompiled clause.
+     * @throws Exception If the clause cannot be compiled.
+     */
+    @SuppressWarnings("unchecked")
+    protected void onCompilation(ITerm clause) throws Exception {
+        if (observer != null) {
+            if (clause.isQuery()) {
+                observer.onQueryCompilation((Q) clause);
+            } else {
+                observer.onCompilation((P) clause);
+            }
+        }
+    }
+
     ;
 
     private List<ITerm> preProcess(ITerm clause) throws Exception {
@@ -6,13 +6,16 @@ import com.thesett.aima.logic.fol.wam.compiler.WAMReservedLabel;
 import com.thesett.aima.logic.fol.wam.machine.WAMCodeView;
 import org.ltc.hitalk.compiler.VafInterner;
 import org.ltc.hitalk.core.utils.ISymbolTable;
+import org.ltc.hitalk.wam.compiler.HtWAMClauseIndex;
 import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
 import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public abstract
@@ -34,6 +37,11 @@ class HiTalkWAMBaseMachine extends VafInterner implements HiTalkWAMMachine, WAMC
      */
     protected Map <Integer, Integer> reverseTable = new HashMap <>();
 
+    /**
+     * Holds the demand driven clause indexes linked into the machine, by id.
+     */
+    protected List <HtWAMClauseIndex> clauseIndexes = new ArrayList <>();
+
     /**
      * Creates the base machine, providing variable and functor symbol tables.
      *
@@ -120,6 +128,17 @@ class HiTalkWAMBaseMachine extends VafInterner implements HiTalkWAMMachine, WAMC
         reverseTable.put(address, labelName);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public
+    int addClauseIndex ( HtWAMClauseIndex index ) {
+        index.link(this);
+        clauseIndexes.add(index);
+
+        return clauseIndexes.size() - 1;
+    }
+
     /**
      * Provides read access to the machines bytecode buffer.
      *
@@ -196,6 +215,7 @@ class HiTalkWAMBaseMachine extends VafInterner implements HiTalkWAMMachine, WAMC
         // Clear the entire symbol table.
         symbolTable.clear();
         reverseTable.clear();
+        clauseIndexes.clear();
     }
 
     /**
@@ -0,0 +1,918 @@
+package org.ltc.hitalk.wam.machine;
+
+import com.thesett.aima.logic.fol.wam.compiler.WAMCallPoint;
+import org.ltc.hitalk.core.utils.ISymbolTable;
+import org.ltc.hitalk.wam.compiler.HtWAMClauseIndex;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.thesett.aima.logic.fol.wam.compiler.WAMInstruction.*;
+
+/**
+ * HiTalkWAMDecodedJavaMachine is an alternative execution engine to {@link HiTalkWAMResolvingJavaMachine}, that runs
+ * the same byte code, but never reads it from the code buffer in its dispatch loop. Instead, all code is decoded once,
+ * as it is loaded into the machine, into an int array mirroring the code buffer, where the entry at each offset holds
+ * the int that starts at that offset in the code buffer. Every operand, whether it is a byte or an int and at whatever
+ * offset it lies, is then a single array read. The byte code format, and so the compiler, the linker and the
+ * disassembler, are shared with the byte buffer engine, and either engine can be chosen by the class of machine
+ * created.
+ * <p>
+ * <p/>The mirror costs four times the size of the code area in memory. It is kept up to date as code is added, as
+ * forward references to labels are filled in, and as the demand driven indexes append code at run time.
+ * <p>
+ * <p/>No claim is made that this engine is faster than the byte buffer engine, which stays the default. The two have
+ * not been timed against each other yet; WAMEngineBenchmark in hitalk_bench runs naive reverse on both, and is the
+ * place to settle it.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Decode byte code into an int array as it is loaded.
+ * <tr><td> Execute compiled WAM programs and queries from the decoded code. <td> {@link HiTalkWAMResolvingJavaMachine}.
+ * </table></pre>
+ */
+public
+class HiTalkWAMDecodedJavaMachine<PC extends HiTalkWAMCompiledPredicate, QC extends HiTalkWAMCompiledQuery>
+        extends HiTalkWAMResolvingJavaMachine<PC, QC> {
+    /**
+     * The decoded code area, holding at each offset the int that starts at that offset in the code buffer.
+     */
+    protected int[] code = new int[0];
+
+    /**
+     * Creates a decoding machine with the specified symbol table.
+     *
+     * @param symbolTable The symbol table.
+     */
+    protected HiTalkWAMDecodedJavaMachine(ISymbolTable<Integer, String, Object> symbolTable) {
+        super(symbolTable);
+    }
+
+    /**
+     * Creates a decoding machine with the specified symbol table, and sizing of its data areas.
+     *
+     * @param symbolTable  The symbol table.
+     * @param memoryConfig The sizing of the data areas.
+     */
+    protected HiTalkWAMDecodedJavaMachine(ISymbolTable<Integer, String, Object> symbolTable,
+                                          HtWAMMemoryConfig memoryConfig) {
+        super(symbolTable, memoryConfig);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() throws Exception {
+        super.reset();
+        code = new int[codeBuffer.capacity()];
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p/>Decodes the new code.
+     */
+    protected void codeAdded(ByteBuffer codeBuffer, int codeOffset, int length) {
+        decode(codeOffset, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p/>Decodes the filled in address.
+     */
+    public void emitCode(int offset, int address) {
+        super.emitCode(offset, address);
+        decode(offset, 4);
+    }
+
+    /**
+     * Decodes a range of the code buffer into the decoded code area. Every entry whose int overlaps the range is
+     * decoded, so the three entries before the range are refreshed too.
+     *
+     * @param offset The start of the range.
+     * @param length The length of the range.
+     */
+    protected void decode(int offset, int length) {
+        if (code.length < codeBuffer.capacity()) {
+            code = Arrays.copyOf(code, codeBuffer.capacity());
+        }
+
+        int end = Math.min(offset + length, codeBuffer.capacity() - 3);
+
+        for (int i = Math.max(offset - 3, 0); i < end; i++) {
+            code[i] = codeBuffer.getInt(i);
+        }
+
+        // The last few bytes of the buffer do not hold a whole int, so are decoded byte by byte.
+        for (int i = Math.max(end, offset - 3); i < Math.min(offset + length, codeBuffer.capacity()); i++) {
+            code[i] = codeBuffer.get(i);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p/>Reads the register from the decoded code.
+     */
+    protected int getRegisterOrStackSlot(byte mode) {
+        return (byte) code[ip + 2] + ((mode == STACK_ADDR) ? (ep + 3) : 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p/>Probes the decoded copy of the table.
+     */
+    protected int getHash(int val, int t, int n) {
+        if (n == 0) {
+            return code[t - 4];
+        }
+
+        for (int slot = HiTalkWAMInstruction.indexTableHash(val, n); ; slot = (slot + 1) & (n - 1)) {
+            int entry = t + (slot << 3);
+            int inst = code[entry + 4];
+
+            if (inst == 0) {
+                return code[t - 4];
+            } else if (code[entry] == val) {
+                return inst;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p/>Runs the same dispatch loop as the byte buffer engine, with every read of the code taken from the decoded
+     * code area.
+     */
+    protected boolean run(WAMCallPoint callPoint) {
+
+        boolean failed;
+
+        // Check if the machine is being woken up from being suspended, in which case immediately fail in order to
+        // trigger back-tracking to find more solutions.
+        if (suspended) {
+            failed = true;
+            suspended = false;
+        } else {
+            ip = callPoint.entryPoint;
+            uClear();
+            failed = false;
+        }
+
+        int numOfArgs = 0;
+
+        // Holds the current continuation point.
+        cp = codeBuffer.position();
+
+        // Notify any debug monitor that execution is starting.
+        if (monitor != null) {
+            monitor.onExecute(this);
+        }
+
+        startExecution();
+
+        //while (!failed && (ip < code.length))
+        while (true) {
+            // Attempt to backtrack on failure.
+            if (failed) {
+                failed = backtrack();
+
+                if (failed) {
+                    break;
+                }
+
+                // Resume in compiled code, on backtracking into a compiled predicate.
+                ip = tier2.resume(ip);
+                failed = ip == HtWAMTier2Code.FAIL;
+
+                if (failed) {
+                    continue;
+                }
+            }
+
+            // Grab next instruction and switch on it.
+            byte instruction = (byte) code[ip];
+
+            switch (instruction) {
+                // put_struc Xi, f/n:
+                case PUT_STRUC: {
+                    // grab addr, f/n
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+                    int fn = code[ip + 3];
+
+                    /*trace.fine(ip + ": PUT_STRUC " + printSlot(xi, mode) + ", " + fn);*/
+
+                    putStruc(xi, fn);
+
+                    // P <- instruction_size(P)
+                    ip += 7;
+
+                    break;
+                }
+
+                // set_var Xi:
+                case SET_VAR: {
+                    // grab addr
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+
+                    /*trace.fine(ip + ": SET_VAR " + printSlot(xi, mode));*/
+
+                    setVar(xi);
+
+                    // P <- instruction_size(P)
+                    ip += 3;
+
+                    break;
+                }
+
+                // set_val Xi:
+                case SET_VAL: {
+                    // grab addr
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+
+                    /*trace.fine(ip + ": SET_VAL " + printSlot(xi, mode));*/
+
+                    setVal(xi);
+
+                    // P <- instruction_size(P)
+                    ip += 3;
+
+                    break;
+                }
+
+                // get_struc Xi,
+                case GET_STRUC: {
+                    // grab addr, f/n
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+                    int fn = code[ip + 3];
+
+                    /*trace.fine(ip + ": GET_STRUC " + printSlot(xi, mode) + ", " + fn);*/
+
+                    failed = !getStruc(xi, fn);
+
+                    // P <- instruction_size(P)
+                    ip += 7;
+
+                    break;
+                }
+
+                // unify_var Xi:
+                case UNIFY_VAR: {
+                    // grab addr
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+
+                    /*trace.fine(ip + ": UNIFY_VAR " + printSlot(xi, mode));*/
+
+                    unifyVar(xi);
+
+                    // P <- P + instruction_size(P)
+                    ip += 3;
+
+                    break;
+                }
+
+                // unify_val Xi:
+                case UNIFY_VAL: {
+                    // grab addr
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+
+                    /*trace.fine(ip + ": UNIFY_VAL " + printSlot(xi, mode));*/
+
+                    failed = !unifyVal(xi);
+
+                    // P <- P + instruction_size(P)
+                    ip += 3;
+
+                    break;
+                }
+
+                // put_var Xn, Ai:
+                case PUT_VAR: {
+                    // grab addr, Ai
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+                    byte ai = (byte) code[ip + 3];
+
+                    /*trace.fine(ip + ": PUT_VAR " + printSlot(xi, mode) + ", A" + ai);*/
+
+                    putVar(xi, ai, mode);
+
+                    // P <- P + instruction_size(P)
+                    ip += 4;
+
+                    break;
+                }
+
+                // put_val Xn, Ai:
+                case PUT_VAL: {
+                    // grab addr, Ai
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+                    byte ai = (byte) code[ip + 3];
+
+                    /*trace.fine(ip + ": PUT_VAL " + printSlot(xi, mode) + ", A" + ai);*/
+
+                    putVal(xi, ai);
+
+                    // P <- P + instruction_size(P)
+                    ip += 4;
+
+                    break;
+                }
+
+                // get var Xn, Ai:
+                case GET_VAR: {
+                    // grab addr, Ai
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+                    byte ai = (byte) code[ip + 3];
+
+                    /*trace.fine(ip + ": GET_VAR " + printSlot(xi, mode) + ", A" + ai);*/
+
+                    getVar(xi, ai);
+
+                    // P <- P + instruction_size(P)
+                    ip += 4;
+
+                    break;
+                }
+
+                // get_val Xn, Ai:
+                case GET_VAL: {
+                    // grab addr, Ai
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+                    byte ai = (byte) code[ip + 3];
+
+                    /*trace.fine(ip + ": GET_VAL " + printSlot(xi, mode) + ", A" + ai);*/
+
+                    failed = !getVal(xi, ai);
+
+                    // P <- P + instruction_size(P)
+                    ip += 4;
+
+                    break;
+                }
+
+                case PUT_CONST: {
+                    // grab addr, f/n
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+                    int fn = code[ip + 3];
+
+                    /*trace.fine(ip + ": PUT_CONST " + printSlot(xi, mode) + ", " + fn);*/
+
+                    putConstant(xi, fn);
+
+                    // P <- instruction_size(P)
+                    ip += 7;
+
+                    break;
+                }
+
+                case GET_CONST: {
+                    // grab addr, Ai
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+                    int fn = code[ip + 3];
+
+                    /*trace.fine(ip + ": GET_CONST " + printSlot(xi, mode) + ", " + fn);*/
+
+                    failed = !getConstant(xi, fn);
+
+                    // P <- P + instruction_size(P)
+                    ip += 7;
+
+                    break;
+                }
+
+                case SET_CONST: {
+                    int fn = code[ip + 1];
+
+                    /*trace.fine(ip + ": SET_CONST " + fn);*/
+
+                    setConstant(fn);
+
+                    // P <- instruction_size(P)
+                    ip += 5;
+
+                    break;
+                }
+
+                case UNIFY_CONST: {
+                    int fn = code[ip + 1];
+
+                    /*trace.fine(ip + ": UNIFY_CONST " + fn);*/
+
+                    failed = !unifyConstant(fn);
+
+                    // P <- P + instruction_size(P)
+                    ip += 5;
+
+                    break;
+                }
+
+                case PUT_LIST: {
+                    // grab addr
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+
+                    /*trace.fine(ip + ": PUT_LIST " + printSlot(xi, mode));*/
+
+                    putList(xi);
+
+                    // P <- P + instruction_size(P)
+                    ip += 3;
+
+                    break;
+                }
+
+                case GET_LIST: {
+                    // grab addr
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+
+                    /*trace.fine(ip + ": GET_LIST " + printSlot(xi, mode));*/
+
+                    failed = !getList(xi);
+
+                    // P <- P + instruction_size(P)
+                    ip += 3;
+
+                    break;
+                }
+
+                case SET_VOID: {
+                    // grab N
+                    int n = (int) (byte) code[ip + 1];
+
+                    /*trace.fine(ip + ": SET_VOID " + n);*/
+
+                    setVoid(n);
+
+                    // P <- P + instruction_size(P)
+                    ip += 2;
+
+                    break;
+                }
+
+                case UNIFY_VOID: {
+                    // grab N
+                    int n = (int) (byte) code[ip + 1];
+
+                    /*trace.fine(ip + ": UNIFY_VOID " + n);*/
+
+                    unifyVoid(n);
+
+                    // P <- P + instruction_size(P)
+                    ip += 2;
+
+                    break;
+                }
+
+                // put_unsafe_val Yn, Ai:
+                case PUT_UNSAFE_VAL: {
+                    // grab addr, Ai
+                    byte mode = (byte) code[ip + 1];
+                    int yi = stackSlot((byte) code[ip + 2]);
+                    byte ai = (byte) code[ip + 3];
+
+                    /*trace.fine(ip + ": PUT_UNSAFE_VAL " + printSlot(yi, WAMInstruction.STACK_ADDR) + ", A" + ai);*/
+
+                    putUnsafeVal(yi, ai);
+
+                    // P <- P + instruction_size(P)
+                    ip += 4;
+
+                    break;
+                }
+
+                // set_local_val Xi:
+                case SET_LOCAL_VAL: {
+                    // grab addr
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+
+                    /*trace.fine(ip + ": SET_LOCAL_VAL " + printSlot(xi, mode));*/
+
+                    setLocalVal(xi);
+
+                    // P <- P + instruction_size(P)
+                    ip += 3;
+
+                    break;
+                }
+
+                // unify_local_val Xi:
+                case UNIFY_LOCAL_VAL: {
+                    // grab addr
+                    byte mode = (byte) code[ip + 1];
+                    int xi = getRegisterOrStackSlot(mode);
+
+                    /*trace.fine(ip + ": UNIFY_LOCAL_VAL " + printSlot(xi, mode));*/
+
+                    failed = !unifyLocalVal(xi);
+
+                    // P <- P + instruction_size(P)
+                    ip += 3;
+
+                    break;
+                }
+
+                // call @(p/n), perms:
+                case CALL: {
+                    // grab @(p/n), perms
+                    int pn = code[ip + 1];
+                    int n = (byte) code[ip + 5];
+                    int numPerms = (int) (byte) code[ip + 6];
+
+                    // num_of_args <- n
+                    numOfArgs = n;
+
+                    // Ensure that the predicate to call is known and linked in, otherwise fail.
+                    if (pn == -1) {
+                        failed = true;
+
+                        break;
+                    }
+
+                    // STACK[E + 2] <- numPerms
+                    data.put(ep + 2, numPerms);
+
+                    checkHeap(n);
+
+                    // Check the resource limits of the query, every so many steps.
+                    if (--stepCountdown <= 0) {
+                        checkLimits();
+                    }
+
+                    // CP <- P + instruction_size(P)
+                    cp = ip + 7;
+
+                    /*trace.fine(ip + ": CALL " + pn + "/" + n + ", " + numPerms + " (cp = " + cp + ")]");*/
+
+                    // B0 <- B
+                    b0 = bp;
+
+                    // P <- @(p/n), running it as compiled code once it is hot
+                    ip = tier2.call(pn);
+                    failed = ip == HtWAMTier2Code.FAIL;
+
+                    break;
+                }
+
+                // execute @(p/n):
+                case EXECUTE: {
+                    // grab @(p/n)
+                    int pn = code[ip + 1];
+                    int n = (byte) code[ip + 5];
+
+                    // num_of_args <- n
+                    numOfArgs = n;
+
+                    /*trace.fine(ip + ": EXECUTE " + pn + "/" + n + " (cp = " + cp + ")]");*/
+
+                    // Ensure that the predicate to call is known and linked in, otherwise fail.
+                    if (pn == -1) {
+                        failed = true;
+
+                        break;
+                    }
+
+                    checkHeap(n);
+
+                    // Check the resource limits of the query, every so many steps.
+                    if (--stepCountdown <= 0) {
+                        checkLimits();
+                    }
+
+                    // B0 <- B
+                    b0 = bp;
+
+                    // P <- @(p/n), running it as compiled code once it is hot
+                    ip = tier2.call(pn);
+                    failed = ip == HtWAMTier2Code.FAIL;
+
+                    break;
+                }
+
+                // proceed:
+                case PROCEED: {
+                    /*trace.fine(ip + ": PROCEED" + " (cp = " + cp + ")]");*/
+
+                    // P <- CP
+                    ip = cp;
+
+                    break;
+                }
+
+                // allocate:
+                case ALLOCATE: {
+                    allocate(0);
+
+                    /*trace.fine(ip + ": ALLOCATE");*/
+
+                    // P <- P + instruction_size(P)
+                    ip += 1;
+
+                    break;
+                }
+
+                // allocate N:
+                case ALLOCATE_N: {
+                    // grab N
+                    int n = (int) (byte) code[ip + 1];
+
+                    allocate(n);
+
+                    /*trace.fine(ip + ": ALLOCATE_N " + n);*/
+
+                    // P <- P + instruction_size(P)
+                    ip += 2;
+
+                    break;
+                }
+
+                // deallocate:
+                case DEALLOCATE: {
+                    deallocate();
+
+                    /*trace.fine(ip + ": DEALLOCATE");*/
+
+                    // P <- P + instruction_size(P)
+                    ip += 1;
+
+                    break;
+                }
+
+                // try me else L:
+                case TRY_ME_ELSE: {
+                    // grab L
+                    int l = code[ip + 1];
+
+                    tryMeElse(l, numOfArgs);
+
+                    /*trace.fine(ip + ": TRY_ME_ELSE");*/
+
+                    // P <- P + instruction_size(P)
+                    ip += 5;
+
+                    break;
+                }
+
+                // retry me else L:
+                case RETRY_ME_ELSE: {
+                    // grab L
+                    int l = code[ip + 1];
+
+                    retryMeElse(l);
+
+                    /*trace.fine(ip + ": RETRY_ME_ELSE");*/
+
+                    // P <- P + instruction_size(P)
+                    ip += 5;
+
+                    break;
+                }
+
+                // trust me (else fail):
+                case TRUST_ME: {
+                    trustMe();
+
+                    /*trace.fine(ip + ": TRUST_ME");*/
+
+                    // P <- P + instruction_size(P)
+                    ip += 1;
+
+                    break;
+                }
+
+                case SWITCH_ON_TERM: {
+                    // grab labels
+                    int v = code[ip + 1];
+                    int c = code[ip + 5];
+                    int l = code[ip + 9];
+                    int s = code[ip + 13];
+
+                    ip = switchOnTerm(v, c, l, s);
+
+                    break;
+                }
+
+                case SWITCH_ON_CONST: {
+                    // grab labels
+                    int t = code[ip + 1];
+                    int n = code[ip + 5];
+
+                    int inst = switchOnConst(t, n);
+
+                    // if found
+                    if (inst > 0) {
+                        // then P <- inst
+                        ip = inst;
+                    } else {
+                        // else backtrack
+                        failed = true;
+                    }
+
+                    break;
+                }
+
+                case SWITCH_ON_STRUC: {
+                    // grab labels
+                    int t = code[ip + 1];
+                    int n = code[ip + 5];
+
+                    int inst = switchOnStruc(t, n);
+
+                    // if found
+                    if (inst > 0) {
+                        // then P <- inst
+                        ip = inst;
+                    } else {
+                        // else backtrack
+                        failed = true;
+                    }
+
+                    break;
+                }
+
+                // jit_index id, n, C1..Cn:
+                case HiTalkWAMInstruction.JIT_INDEX: {
+                    // grab id, n
+                    HtWAMClauseIndex index = clauseIndexes.get(code[ip + 1]);
+                    int n = code[ip + 5];
+                    int table = ip + 9;
+
+                    int arg = index.selectArgument(boundArguments(index.getNumArgs()));
+
+                    // Fall through onto the clauses, when there is no index worth using.
+                    if (arg < 0) {
+                        ip = table + (n << 2);
+
+                        break;
+                    }
+
+                    int key = indexKey(arg);
+                    int branch = index.getBranch(arg, key);
+
+                    if (branch == HtWAMClauseIndex.UNCOMPILED) {
+                        branch = compileIndexBranch(index.getBucket(arg, key), table);
+                        index.setBranch(arg, key, branch);
+                    }
+
+                    if (branch == 0) {
+                        failed = true;
+                    } else {
+                        ip = branch;
+                    }
+
+                    break;
+                }
+
+                case TRY: {
+                    // grab L
+                    int l = code[ip + 1];
+
+                    // The alternative is the following retry or trust.
+                    tryMeElse(ip + 5, numOfArgs);
+
+                    /*trace.fine(ip + ": TRY");*/
+
+                    // P <- L
+                    ip = l;
+
+                    break;
+                }
+
+                case RETRY: {
+                    // grab L
+                    int l = code[ip + 1];
+
+                    // The alternative is the following retry or trust.
+                    retryMeElse(ip + 5);
+
+                    /*trace.fine(ip + ": RETRY");*/
+
+                    // P <- L
+                    ip = l;
+
+                    break;
+                }
+
+                case TRUST: {
+                    // grab L
+                    int l = code[ip + 1];
+
+                    trustMe();
+
+                    /*trace.fine(ip + ": TRUST");*/
+
+                    // P <- L
+                    ip = l;
+
+                    break;
+                }
+
+                case NECK_CUT: {
+                    neckCut();
+
+                    /*trace.fine(ip + ": NECK_CUT");*/
+
+                    ip += 1;
+
+                    break;
+                }
+
+                case GET_LEVEL: {
+                    getLevel(stackSlot((byte) code[ip + 1]));
+
+                    /*trace.fine(ip + ": GET_LEVEL " + (byte) code[ip + 1]);*/
+
+                    ip += 2;
+
+                    break;
+                }
+
+                case CUT: {
+                    cut(stackSlot((byte) code[ip + 1]));
+
+                    /*trace.fine(ip + ": CUT " + (byte) code[ip + 1]);*/
+
+                    ip += 2;
+
+                    break;
+                }
+
+                case CONTINUE: {
+                    // grab L
+                    int l = code[ip + 1];
+
+                    /*trace.fine(ip + ": CONTINUE " + l);*/
+
+                    ip = l;
+
+                    break;
+                }
+
+                case NO_OP: {
+                    /*trace.fine(ip + ": NO_OP");*/
+
+                    ip += 1;
+
+                    break;
+                }
+
+                // call_internal @(p/n), perms:
+                case CALL_INTERNAL: {
+                    // grab @(p/n), perms
+                    int pn = code[ip + 1];
+                    int n = (byte) code[ip + 5];
+                    int numPerms = (int) (byte) code[ip + 6];
+
+                    // num_of_args <- n
+                    numOfArgs = n;
+
+                    /*trace.fine(ip + ": CALL_INTERNAL " + pn + "/" + n + ", " + numPerms + " (cp = " + cp + ")]");*/
+
+                    boolean callOk = callInternal(pn, n, numPerms);
+
+                    failed = !callOk;
+
+                    break;
+                }
+
+                // suspend on success:
+                case SUSPEND: {
+                    /*trace.fine(ip + ": SUSPEND");*/
+                    ip += 1;
+                    suspended = true;
+                    stopExecution();
+
+                    return true;
+                }
+            }
+
+            // Notify any debug monitor that the machine has been stepped.
+            if (monitor != null) {
+                monitor.onStep(this);
+            }
+        }
+
+        stopExecution();
+
+        return !failed;
+    }
+}
@@ -18,6 +18,7 @@ package org.ltc.hitalk.wam.machine;
 import com.thesett.aima.logic.fol.LinkageException;
 import com.thesett.aima.logic.fol.wam.compiler.WAMCallPoint;
 import org.ltc.hitalk.compiler.IVafInterner;
+import org.ltc.hitalk.wam.compiler.HtWAMClauseIndex;
 import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
 import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
 
@@ -66,6 +67,14 @@ interface HiTalkWAMMachine extends IVafInterner {
      */
     void resolveLabelPoint ( int labelName, int address );
 
+    /**
+     * Links a demand driven clause index into the machine, for use by a jit_index instruction.
+     *
+     * @param index The clause index to link.
+     * @return The id of the index within the machine.
+     */
+    int addClauseIndex ( HtWAMClauseIndex index );
+
     /**
      * Attempts to find a label or functor name for a given address within the code area of the machine.
      *
@@ -22,11 +22,14 @@
   import com.thesett.aima.logic.fol.wam.machine.WAMMemoryLayout;
   import com.thesett.aima.logic.fol.wam.machine.WAMResolvingMachineDPIMonitor;
   import com.thesett.common.util.SequenceIterator;
+  import org.ltc.hitalk.compiler.bktables.error.ExecutionError;
   import org.ltc.hitalk.core.utils.ISymbolTable;
   import org.ltc.hitalk.term.HtVariable;
   import org.ltc.hitalk.wam.compiler.HtFunctorName;
+  import org.ltc.hitalk.wam.compiler.HtWAMClauseIndex;
   import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
   import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+  import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
 
   import java.nio.ByteBuffer;
   import java.nio.ByteOrder;
@@ -35,6 +38,7 @@
   import java.util.Set;
 
   import static com.thesett.aima.logic.fol.wam.compiler.WAMInstruction.*;
+  import static org.ltc.hitalk.compiler.bktables.error.ExecutionError.Kind.RESOURCE_ERROR;
 
   /**
    * WAMResolvingJavaMachine is a byte code interpreter for WAM written in java. This is a direct implementation of the
@@ -53,7 +57,9 @@
    * which would be complicated by having to choose amongst which of several arrays to operate on. An addressing mode has
    * had to be added to the instruction set, so that instructions loading data from registers or stack, can specify which.
    * Once addresses are resolved relative to the register or stack basis, the plain addresses offset to the base of the
-   * whole data area are used, and it is these addresses that are passed to the 'deref' and 'unify' operations.
+   * whole data area are used, and it is these addresses that are passed to the 'deref' and 'unify' operations. The single
+   * address range is backed by a segment table, see {@link HtWAMDataArea}, so that each data area can start small and
+   * grow on demand up to the limits given by a {@link HtWAMMemoryConfig}, without any addresses needing to be relocated.
    * <li>The memory layout for the WAM is described in Appendix B.3. of the book. The same layout is usd for this machine
    * with the exception that the code area is held in a separate array. This follows the x86 machine convention of
    * separating code and data segments in memory, and also caters well for the sharing of the code area with the JVM as a
@@ -68,6 +74,9 @@
    * <tr><th> Responsibilities <th> Collaborations
    * <tr><td> Execute compiled WAM programs and queries.
    * <tr><td> Provide access to the heap.
+   * <tr><td> Run hot predicates as compiled JVM code. <td> {@link HtWAMTier2Compiler}.
+   * <tr><td> Stop queries that exceed their resource limits. <td> {@link HtWAMResourceLimits}.
+   * <tr><td> Report the peak depth of the stack reached by environments and choice points.
    * </table></pre>
    *
    * @author Rupert Smith
@@ -78,8 +87,8 @@
    * need to be updated. Also, add a semaphore to all call instructions, or at the entry point of all programs,
    * this would be used to synchronize live updates to programs in a running machine, as well as to add debugging
    * break points.
-   * @todo Think about ability to grow (and shrink?) the heap. Might be best to do this at the same time as the first
-   * garbage collector.
+   * @todo Think about collecting the heap on backtracking into shallow choice points, where the top of heap is reset
+   * anyway, rather than only on calls.
    */
   public
   class HiTalkWAMResolvingJavaMachine<PC extends HiTalkWAMCompiledPredicate,
@@ -117,84 +126,145 @@
       public static final int TSHIFT = 30;
 
       /**
-       * Defines the register capacity for the virtual machine.
+       * Holds the sizing of the data areas of the machine.
        */
-      private static final int REG_SIZE = 256;
+      private final HtWAMMemoryConfig memoryConfig;
 
       /**
-       * Defines the heap size to use for the virtual machine.
+       * Defines the offset of the base of the heap in the data area.
        */
-      private static final int HEAP_SIZE = 10000000;
+      private final int heapBase;
 
       /**
-       * Defines the offset of the base of the heap in the data area.
+       * Defines the offset of the base of the stack in the data area.
        */
-      private static final int HEAP_BASE = REG_SIZE;
+      private final int stackBase;
 
       /**
-       * Defines the stack size to use for the virtual machine.
+       * Defines the offset of the base of the trail in the data area.
        */
-      private static final int STACK_SIZE = 1000000;
+      private final int trailBase;
 
       /**
-       * Defines the offset of the base of the stack in the data area.
+       * Defines the offset of the base of the unification stack in the data area.
        */
-      private static final int STACK_BASE = REG_SIZE + HEAP_SIZE;
+      private final int pdlBase;
 
       /**
-       * Defines the trail size to use for the virtual machine.
+       * Defines the highest address in the data area of the virtual machine.
        */
-      private static final int TRAIL_SIZE = 10000;
+      private final int top;
 
       /**
-       * Defines the offset of the base of the trail in the data area.
+       * Defines the amount of heap that may be used before the first garbage collection is attempted.
        */
-      private static final int TRAIL_BASE = REG_SIZE + HEAP_SIZE + STACK_SIZE;
+      private static final int GC_MIN_HEAP = 1 << 20;
 
       /**
-       * Defines the max unification stack depth for the virtual machine.
+       * Defines the highest top of heap at which the heap is considered full of live data.
        */
-      private static final int PDL_SIZE = 10000;
+      private final int heapLimit;
 
       /**
-       * Defines the highest address in the data area of the virtual machine.
+       * Holds the garbage collector for the heap.
+       */
+      private HtWAMHeapCollector collector;
+
+      /**
+       * Holds the top of heap above which a garbage collection will be run at the next call.
+       */
+      private int gcWatermark;
+
+      /**
+       * The second tier compiler, that compiles hot predicates to JVM classes.
+       */
+      protected HtWAMTier2Compiler tier2;
+
+      /**
+       * The number of calls to a predicate before it is compiled by the second tier compiler. Compilation is off until
+       * a threshold is set.
+       */
+      private int tier2Threshold;
+
+      /**
+       * Defines the number of calls between checks of the resource limits of a query.
+       */
+      private static final int LIMIT_CHECK_PERIOD = 1024;
+
+      /**
+       * Holds the resource limits placed on each query.
+       */
+      private HtWAMResourceLimits limits = HtWAMResourceLimits.NONE;
+
+      /**
+       * Holds the highest top of heap that the resource limits allow.
+       */
+      private int heapQuota;
+
+      /**
+       * Holds the number of steps taken by the current query, up to the start of the current countdown.
+       */
+      private long steps;
+
+      /**
+       * Holds the number of steps in the current countdown to the next check of the resource limits.
        */
-      private static final int TOP = REG_SIZE + HEAP_SIZE + STACK_SIZE + TRAIL_SIZE + PDL_SIZE;
+      private int stepPeriod;
 
       /**
-       * Defines the initial code area size for the virtual machine.
+       * Holds the number of steps left until the resource limits are next checked.
        */
-      private static final int CODE_SIZE = 1000000;
+      protected int stepCountdown;
+
+      /**
+       * Holds the time spent running the current query, up to the start of the current execution, in nanoseconds.
+       */
+      private long timeUsed;
+
+      /**
+       * Holds the time at which the current execution started, in nanoseconds.
+       */
+      private long executeStart;
+
+      /**
+       * Holds the greatest depth of the stack reached by an environment frame during the current query, in cells.
+       */
+      private int peakEnvironmentDepth;
+
+      /**
+       * Holds the greatest depth of the stack reached by a choice point frame during the current query, in cells.
+       */
+      private int peakChoicePointDepth;
 
       /**
        * Holds the current instruction pointer into the code.
        */
-      private int ip;
+      protected int ip;
 
       /**
        * Holds the current continuation pointer into the code.
        */
-      private int cp;
+      protected int cp;
 
       /**
        * Holds the entire data segment of the machine. All registers, heaps and stacks are held in here.
        */
-      private IntBuffer data;
+      protected HtWAMDataArea data;
 
       /**
        * Holds the heap pointer.
        */
-      private int hp;
+      protected int hp;
 
       /**
        * Holds the top of heap at the latest choice point.
        */
-      private int hbp;
+      protected int hbp;
 
       /**
        * Holds the secondary heap pointer, used for the heap address of the next term to match.
        */
-      private int sp;
+      protected int sp;
 
       /**
        * Holds the unification stack pointer.
@@ -204,42 +274,42 @@
       /**
        * Holds the environment base pointer.
        */
-      private int ep;
+      protected int ep;
 
       /**
        * Holds the choice point base pointer.
        */
-      private int bp;
+      protected int bp;
 
       /**
        * Holds the last call choice point pointer.
        */
-      private int b0;
+      protected int b0;
 
       /**
        * Holds the trail pointer.
        */
-      private int trp;
+      protected int trp;
 
       /**
        * Used to record whether the machine is in structure read or write mode.
        */
-      private boolean writeMode;
+      protected boolean writeMode;
 
       /**
        * Holds the heap cell tag from the most recent dereference.
        */
-      private byte derefTag;
+      protected byte derefTag;
 
       /**
        * Holds the heap call value from the most recent dereference.
        */
-      private int derefVal;
+      protected int derefVal;
 
       /**
        * Indicates that the machine has been suspended, upon finding a solution.
        */
-      private boolean suspended;
+      protected boolean suspended;
 
 
       /**
@@ -248,7 +318,67 @@
        * @param symbolTable The symbol table.
        */
       protected HiTalkWAMResolvingJavaMachine(ISymbolTable<Integer, String, Object> symbolTable) {
+          this(symbolTable, HtWAMMemoryConfig.DEFAULT);
+      }
+
+      /**
+       * Creates a resolving machine with the specified symbol table, and sizing of its data areas.
+       *
+       * @param symbolTable  The symbol table.
+       * @param memoryConfig The sizing of the data areas.
+       */
+      protected HiTalkWAMResolvingJavaMachine(ISymbolTable<Integer, String, Object> symbolTable,
+                                              HtWAMMemoryConfig memoryConfig) {
           super(symbolTable);
+
+          this.memoryConfig = memoryConfig;
+          heapBase = memoryConfig.getHeapBase();
+          stackBase = memoryConfig.getStackBase();
+          trailBase = memoryConfig.getTrailBase();
+          pdlBase = memoryConfig.getPdlBase();
+          top = memoryConfig.getTop();
+          heapLimit = stackBase - (memoryConfig.getHeapSize() >>> 3);
+      }
+
+      /**
+       * Creates and resets a machine, running the specified engine, with the specified symbol table and sizing of its
+       * data areas. This is how machines are created from outside of this package, as the constructors are kept for
+       * subclasses.
+       *
+       * @param engine       The engine to run the byte code with.
+       * @param symbolTable  The symbol table.
+       * @param memoryConfig The sizing of the data areas.
+       * @param <PC>         The type of compiled predicates.
+       * @param <QC>         The type of compiled queries.
+       * @return A machine, ready to have code added to it.
+       * @throws Exception If the machine cannot be reset.
+       */
+      public static <PC extends HiTalkWAMCompiledPredicate, QC extends HiTalkWAMCompiledQuery>
+      HiTalkWAMResolvingJavaMachine<PC, QC> newMachine(Engine engine,
+                                                       ISymbolTable<Integer, String, Object> symbolTable,
+                                                       HtWAMMemoryConfig memoryConfig) throws Exception {
+          HiTalkWAMResolvingJavaMachine<PC, QC> machine = (engine == Engine.DECODED) ?
+                  new HiTalkWAMDecodedJavaMachine<>(symbolTable, memoryConfig) :
+                  new HiTalkWAMResolvingJavaMachine<>(symbolTable, memoryConfig);
+          machine.reset();
+
+          return machine;
+      }
+
+      /**
+       * Engine names the execution engines that can run the byte code. They share the byte code format, and differ only
+       * in how their dispatch loops read it.
+       */
+      public enum Engine {
+          /**
+           * Reads the code from the code buffer, see {@link HiTalkWAMResolvingJavaMachine}.
+           */
+          RESOLVING,
+
+          /**
+           * Reads the code from an int array decoded from the code buffer, see {@link HiTalkWAMDecodedJavaMachine}.
+           */
+          DECODED
       }
 
       /**
@@ -261,7 +391,11 @@
        *                          resolution, or simply to fail to find a resolution.
        */
       public void addToDomain(HiTalkWAMCompiledPredicate term) throws LinkageException {
+          int entryPoint = codeBuffer.position();
           super.addToDomain(term);
+
+          int name = term.getName();
+          tier2.addPredicate(name, entryPoint, codeBuffer.position() - entryPoint, getFunctorArity(name));
       }
 
       /**
@@ -275,6 +409,7 @@
        */
       public void setQuery(HiTalkWAMCompiledQuery query) throws LinkageException {
           super.setQuery(query);
+          startQuery();
       }
 
       /**
@@ -282,15 +417,20 @@
        * and heaps.
        */
       public void reset() throws Exception {
-          // Create fresh heaps, code areas and stacks.
-          data = ByteBuffer.allocateDirect(TOP << 2).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
-          codeBuffer = ByteBuffer.allocateDirect(CODE_SIZE);
+          // Create fresh heaps, code areas and stacks. The data areas only allocate memory as they are used.
+          data = new HtWAMDataArea(memoryConfig);
+          collector = new HtWAMHeapCollector(data, memoryConfig);
+          tier2 = new HtWAMTier2Compiler(new HtWAMTier2Operations(this), tier2Threshold);
+          heapQuota = heapQuota();
+          gcWatermark = Math.min(heapBase + GC_MIN_HEAP, heapQuota);
+          startQuery();
+          codeBuffer = ByteBuffer.allocateDirect(memoryConfig.getCodeSize());
           codeBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
           // Registers are on the top of the data area, the heap comes next.
-          hp = HEAP_BASE;
-          hbp = HEAP_BASE;
-          sp = HEAP_BASE;
+          hp = heapBase;
+          hbp = heapBase;
+          sp = heapBase;
 
           // The stack comes after the heap. Pointers are zero initially, since no stack frames exist yet.
           ep = 0;
@@ -298,10 +438,10 @@
           b0 = 0;
 
           // The trail comes after the stack.
-          trp = TRAIL_BASE;
+          trp = trailBase;
 
           // The unification stack (PDL) is a push down stack at the end of the data area.
-          up = TOP;
+          up = top;
 
           // Turn off write mode.
           writeMode = false;
@@ -347,12 +487,67 @@
        * number of steps has been reached its search method should fail and return null. What exactly constitutes a single
        * step, and the granularity of the step size, is open to different interpretation by different search algorithms.
        * The guideline is that this is the maximum number of states on which the goal test should be performed.
+       * <p>
+       * <p/>For this machine a step is a call, see {@link #setResourceLimits(HtWAMResourceLimits)}.
        *
        * @param max The maximum number of states to goal test. If this is zero or less then the maximum number of steps
        *            will not be checked for.
        */
       public void setMaxSteps(int max) {
-          throw new UnsupportedOperationException("WAMResolvingJavaMachine does not support max steps limit on search.");
+          setResourceLimits(limits.withMaxSteps(Math.max(max, 0)));
+      }
+
+      /**
+       * Sets the limits on the resources that each query may use. A query that exceeds any of its limits is stopped with
+       * a resource error. The limits take effect from the next query set on the machine, except for the heap limit which
+       * takes effect straight away.
+       *
+       * @param limits The resource limits.
+       */
+      public void setResourceLimits(HtWAMResourceLimits limits) {
+          this.limits = limits;
+          heapQuota = heapQuota();
+          gcWatermark = Math.min(gcWatermark, heapQuota);
+      }
+
+      /**
+       * Provides the limits on the resources that each query may use.
+       *
+       * @return The resource limits.
+       */
+      public HtWAMResourceLimits getResourceLimits() {
+          return limits;
+      }
+
+      /**
+       * Provides the number of steps taken by the current query so far, where a step is a call.
+       *
+       * @return The number of steps taken by the current query so far.
+       */
+      public long getSteps() {
+          return steps + stepPeriod - stepCountdown;
+      }
+
+      /**
+       * Provides the greatest depth of the stack reached by an environment frame during the current query. A tail
+       * recursive loop that is properly last call optimized, and trims its environments, runs in a bounded depth no
+       * matter how many times it goes round.
+       *
+       * @return The greatest depth of the stack reached by an environment frame, in cells.
+       */
+      public int getPeakEnvironmentDepth() {
+          return peakEnvironmentDepth;
+      }
+
+      /**
+       * Provides the greatest depth of the stack reached by a choice point frame during the current query. A
+       * deterministic loop that leaves choice points behind it shows up as a depth that grows with the number of times it
+       * goes round.
+       *
+       * @return The greatest depth of the stack reached by a choice point frame, in cells.
+       */
+      public int getPeakChoicePointDepth() {
+          return peakChoicePointDepth;
       }
 
       /**
@@ -364,11 +559,43 @@
 
       }
 
+      /**
+       * Sets the number of calls to a predicate, before the predicate is compiled to a JVM class. Compilation is off
+       * by default; {@link HtWAMTier2Compiler#DEFAULT_THRESHOLD} is a reasonable threshold to turn it on with.
+       *
+       * @param threshold The number of calls to a predicate before it is compiled, zero or less to never compile.
+       */
+      public void setTier2Threshold(int threshold) {
+          tier2Threshold = threshold;
+
+          if (tier2 != null) {
+              tier2.setThreshold(threshold);
+          }
+      }
+
+      /**
+       * Provides the second tier compiler, for access to its statistics.
+       *
+       * @return The second tier compiler.
+       */
+      public HtWAMTier2Compiler getTier2Compiler() {
+          return tier2;
+      }
+
+      /**
+       * Provides the garbage collector for the heap, for access to its statistics.
+       *
+       * @return The garbage collector for the heap.
+       */
+      public HtWAMHeapCollector getHeapCollector() {
+          return collector;
+      }
+
       /**
        * {@inheritDoc}
        */
       public IntBuffer getDataBuffer() {
-          return data;
+          return data.asIntBuffer();
       }
 
       /**
@@ -382,8 +609,8 @@
        * {@inheritDoc}
        */
       public WAMMemoryLayout getMemoryLayout() {
-          return new WAMMemoryLayout(0, REG_SIZE, HEAP_BASE, HEAP_SIZE, STACK_BASE, STACK_SIZE, TRAIL_BASE, TRAIL_SIZE,
-                  TOP - PDL_SIZE, PDL_SIZE);
+          return new WAMMemoryLayout(0, memoryConfig.getRegSize(), heapBase, memoryConfig.getHeapSize(), stackBase,
+                  memoryConfig.getStackSize(), trailBase, memoryConfig.getTrailSize(), pdlBase, memoryConfig.getPdlSize());
       }
 
       /**
@@ -394,6 +621,16 @@
       protected void codeAdded(ByteBuffer codeBuffer, int codeOffset, int length) {
       }
 
+      /**
+       * {@inheritDoc}
+       * <p>
+       * <p/>Discards any compiled code that the filled in address falls within.
+       */
+      public void emitCode(int offset, int address) {
+          super.emitCode(offset, address);
+          tier2.invalidate(offset);
+      }
+
       /**
        * {@inheritDoc}
        */
@@ -405,9 +642,28 @@
 
       /**
        * {@inheritDoc}
+       * <p>
+       * <p/>A query stopped by an error, such as running out of a resource, is abandoned, so that the machine is left
+       * ready to run the next query.
+       */
+      protected final boolean execute(WAMCallPoint callPoint) {
+          try {
+              return run(callPoint);
+          } catch (ExecutionError e) {
+              abandonQuery();
+
+              throw e;
+          }
+      }
+
+      /**
+       * Runs the byte code from a call point, or backtracks into it for more solutions if the machine was suspended.
+       *
+       * @param callPoint The call point of the compiled byte code to execute.
+       * @return <tt>true</tt> iff execution succeeded.
        */
-      protected boolean execute(WAMCallPoint callPoint) {
-          /*log.fine("protected boolean execute(WAMCallPoint callPoint): called");*/
+      protected boolean run(WAMCallPoint callPoint) {
+          /*log.fine("protected boolean run(WAMCallPoint callPoint): called");*/
 
           boolean failed;
 
@@ -432,6 +688,8 @@
               monitor.onExecute(this);
           }
 
+          startExecution();
+
           //while (!failed && (ip < code.length))
           while (true) {
               // Attempt to backtrack on failure.
@@ -441,6 +699,14 @@
                   if (failed) {
                       break;
                   }
+
+                  // Resume in compiled code, on backtracking into a compiled predicate.
+                  ip = tier2.resume(ip);
+                  failed = ip == HtWAMTier2Code.FAIL;
+
+                  if (failed) {
+                      continue;
+                  }
               }
 
               // Grab next instruction and switch on it.
@@ -456,14 +722,7 @@
 
                       /*trace.fine(ip + ": PUT_STRUC " + printSlot(xi, mode) + ", " + fn);*/
 
-                      // heap[h] <- STR, h + 1
-                      data.put(hp, fn);
-
-                      // Xi <- heap[h]
-                      data.put(xi, structureAt(hp));
-
-                      // h <- h + 2
-                      hp += 1;
+                      putStruc(xi, fn);
 
                       // P <- instruction_size(P)
                       ip += 7;
@@ -479,14 +738,7 @@
 
                       /*trace.fine(ip + ": SET_VAR " + printSlot(xi, mode));*/
 
-                      // heap[h] <- REF, h
-                      data.put(hp, refTo(hp));
-
-                      // Xi <- heap[h]
-                      data.put(xi, data.get(hp));
-
-                      // h <- h + 1
-                      hp++;
+                      setVar(xi);
 
                       // P <- instruction_size(P)
                       ip += 3;
@@ -502,11 +754,7 @@
 
                       /*trace.fine(ip + ": SET_VAL " + printSlot(xi, mode));*/
 
-                      // heap[h] <- Xi
-                      data.put(hp, data.get(xi));
-
-                      // h <- h + 1
-                      hp++;
+                      setVal(xi);
 
                       // P <- instruction_size(P)
                       ip += 3;
@@ -523,57 +771,7 @@
 
                       /*trace.fine(ip + ": GET_STRUC " + printSlot(xi, mode) + ", " + fn);*/
 
-                      // addr <- deref(Xi);
-                      int addr = deref(xi);
-                      byte tag = derefTag;
-                      int a = derefVal;
-
-                      // switch STORE[addr]
-                      switch (tag) {
-                          // case REF:
-                          case REF: {
-                              // heap[h] <- STR, h + 1
-                              data.put(hp, structureAt(hp + 1));
-
-                              // heap[h+1] <- f/n
-                              data.put(hp + 1, fn);
-
-                              // bind(addr, h)
-                              bind(addr, hp);
-
-                              // h <- h + 2
-                              hp += 2;
-
-                              // mode <- write
-                              writeMode = true;
-                              /*trace.fine("-> write mode");*/
-
-                              break;
-                          }
-
-                          // case STR, a:
-                          case STR: {
-                              // if heap[a] = f/n
-                              if (data.get(a) == fn) {
-                                  // s <- a + 1
-                                  sp = a + 1;
-
-                                  // mode <- read
-                                  writeMode = false;
-                                  /*trace.fine("-> read mode");*/
-                              } else {
-                                  // fail
-                                  failed = true;
-                              }
-
-                              break;
-                          }
-
-                          default: {
-                              // fail
-                              failed = true;
-                          }
-                      }
+                      failed = !getStruc(xi, fn);
 
                       // P <- instruction_size(P)
                       ip += 7;
@@ -589,25 +787,7 @@
 
                       /*trace.fine(ip + ": UNIFY_VAR " + printSlot(xi, mode));*/
 
-                      // switch mode
-                      if (!writeMode) {
-                          // case read:
-                          // Xi <- heap[s]
-                          data.put(xi, data.get(sp));
-                      } else {
-                          // case write:
-                          // heap[h] <- REF, h
-                          data.put(hp, refTo(hp));
-
-                          // Xi <- heap[h]
-                          data.put(xi, data.get(hp));
-
-                          // h <- h + 1
-                          hp++;
-                      }
-
-                      // s <- s + 1
-                      sp++;
+                      unifyVar(xi);
 
                       // P <- P + instruction_size(P)
                       ip += 3;
@@ -623,22 +803,7 @@
 
                       /*trace.fine(ip + ": UNIFY_VAL " + printSlot(xi, mode));*/
 
-                      // switch mode
-                      if (!writeMode) {
-                          // case read:
-                          // unify (Xi, s)
-                          failed = !unify(xi, sp);
-                      } else {
-                          // case write:
-                          // heap[h] <- Xi
-                          data.put(hp, data.get(xi));
-
-                          // h <- h + 1
-                          hp++;
-                      }
-
-                      // s <- s + 1
-                      sp++;
+                      failed = !unifyVal(xi);
 
                       // P <- P + instruction_size(P)
                       ip += 3;
@@ -655,25 +820,7 @@
 
                       /*trace.fine(ip + ": PUT_VAR " + printSlot(xi, mode) + ", A" + ai);*/
 
-                      if (mode == WAMInstruction.REG_ADDR) {
-                          // heap[h] <- REF, H
-                          data.put(hp, refTo(hp));
-
-                          // Xn <- heap[h]
-                          data.put(xi, data.get(hp));
-
-                          // Ai <- heap[h]
-                          data.put(ai, data.get(hp));
-                      } else {
-                          // STACK[addr] <- REF, addr
-                          data.put(xi, refTo(xi));
-
-                          // Ai <- STACK[addr]
-                          data.put(ai, data.get(xi));
-                      }
-
-                      // h <- h + 1
-                      hp++;
+                      putVar(xi, ai, mode);
 
                       // P <- P + instruction_size(P)
                       ip += 4;
@@ -690,8 +837,7 @@
 
                       /*trace.fine(ip + ": PUT_VAL " + printSlot(xi, mode) + ", A" + ai);*/
 
-                      // Ai <- Xn
-                      data.put(ai, data.get(xi));
+                      putVal(xi, ai);
 
                       // P <- P + instruction_size(P)
                       ip += 4;
@@ -708,8 +854,7 @@
 
                       /*trace.fine(ip + ": GET_VAR " + printSlot(xi, mode) + ", A" + ai);*/
 
-                      // Xn <- Ai
-                      data.put(xi, data.get(ai));
+                      getVar(xi, ai);
 
                       // P <- P + instruction_size(P)
                       ip += 4;
@@ -726,8 +871,7 @@
 
                       /*trace.fine(ip + ": GET_VAL " + printSlot(xi, mode) + ", A" + ai);*/
 
-                      // unify (Xn, Ai)
-                      failed = !unify(xi, ai);
+                      failed = !getVal(xi, ai);
 
                       // P <- P + instruction_size(P)
                       ip += 4;
@@ -743,8 +887,7 @@
 
                       /*trace.fine(ip + ": PUT_CONST " + printSlot(xi, mode) + ", " + fn);*/
 
-                      // Xi <- heap[h]
-                      data.put(xi, constantCell(fn));
+                      putConstant(xi, fn);
 
                       // P <- instruction_size(P)
                       ip += 7;
@@ -760,12 +903,7 @@
 
                       /*trace.fine(ip + ": GET_CONST " + printSlot(xi, mode) + ", " + fn);*/
 
-                      // addr <- deref(Xi)
-                      int addr = deref(xi);
-                      int tag = derefTag;
-                      int val = derefVal;
-
-                      failed = !unifyConst(fn, xi);
+                      failed = !getConstant(xi, fn);
 
                       // P <- P + instruction_size(P)
                       ip += 7;
@@ -778,11 +916,7 @@
 
                       /*trace.fine(ip + ": SET_CONST " + fn);*/
 
-                      // heap[h] <- <CON, c>
-                      data.put(hp, constantCell(fn));
-
-                      // h <- h + 1
-                      hp++;
+                      setConstant(fn);
 
                       // P <- instruction_size(P)
                       ip += 5;
@@ -795,24 +929,7 @@
 
                       /*trace.fine(ip + ": UNIFY_CONST " + fn);*/
 
-                      // switch mode
-                      if (!writeMode) {
-                          // case read:
-                          // addr <- deref(S)
-
-                          // unifyConst(fn, addr)
-                          failed = !unifyConst(fn, sp);
-                      } else {
-                          // case write:
-                          // heap[h] <- <CON, c>
-                          data.put(hp, constantCell(fn));
-
-                          // h <- h + 1
-                          hp++;
-                      }
-
-                      // s <- s + 1
-                      sp++;
+                      failed = !unifyConstant(fn);
 
                       // P <- P + instruction_size(P)
                       ip += 5;
@@ -827,8 +944,7 @@
 
                       /*trace.fine(ip + ": PUT_LIST " + printSlot(xi, mode));*/
 
-                      // Xi <- <LIS, H>
-                      data.put(xi, listCell(hp));
+                      putList(xi);
 
                       // P <- P + instruction_size(P)
                       ip += 3;
@@ -843,47 +959,7 @@
 
                       /*trace.fine(ip + ": GET_LIST " + printSlot(xi, mode));*/
 
-                      int addr = deref(xi);
-                      int tag = derefTag;
-                      int val = derefVal;
-
-                      // case STORE[addr] of
-                      switch (tag) {
-                          case REF: {
-                              // <REF, _> :
-                              // HEAP[H] <- <LIS, H+1>
-                              data.put(hp, listCell(hp + 1));
-
-                              // bind(addr, H)
-                              bind(addr, hp);
-
-                              // H <- H + 1
-                              hp += 1;
-
-                              // mode <- write
-                              writeMode = true;
-                              /*trace.fine("-> write mode");*/
-
-                              break;
-                          }
-
-                          case LIS: {
-                              // <LIS, a> :
-                              // S <- a
-                              sp = val;
-
-                              // mode <- read
-                              writeMode = false;
-                              /*trace.fine("-> read mode");*/
-
-                              break;
-                          }
-
-                          default: {
-                              // other: fail <- true;
-                              failed = true;
-                          }
-                      }
+                      failed = !getList(xi);
 
                       // P <- P + instruction_size(P)
                       ip += 3;
@@ -897,14 +973,7 @@
 
                       /*trace.fine(ip + ": SET_VOID " + n);*/
 
-                      // for i <- H to H + n - 1 do
-                      //  HEAP[i] <- <REF, i>
-                      for (int addr = hp; addr < (hp + n); addr++) {
-                          data.put(addr, refTo(addr));
-                      }
-
-                      // H <- H + n
-                      hp += n;
+                      setVoid(n);
 
                       // P <- P + instruction_size(P)
                       ip += 2;
@@ -918,21 +987,7 @@
 
                       /*trace.fine(ip + ": UNIFY_VOID " + n);*/
 
-                      // case mode of
-                      if (!writeMode) {
-                          //  read: S <- S + n
-                          sp += n;
-                      } else {
-                          //  write:
-                          //   for i <- H to H + n -1 do
-                          //    HEAP[i] <- <REF, i>
-                          for (int addr = hp; addr < (hp + n); addr++) {
-                              data.put(addr, refTo(addr));
-                          }
-
-                          //   H <- H + n
-                          hp += n;
-                      }
+                      unifyVoid(n);
 
                       // P <- P + instruction_size(P)
                       ip += 2;
@@ -944,22 +999,12 @@
                   case PUT_UNSAFE_VAL: {
                       // grab addr, Ai
                       byte mode = codeBuffer.get(ip + 1);
-                      int yi = (int) codeBuffer.get(ip + 2) + (ep + 3);
+                      int yi = stackSlot(codeBuffer.get(ip + 2));
                       byte ai = codeBuffer.get(ip + 3);
 
                       /*trace.fine(ip + ": PUT_UNSAFE_VAL " + printSlot(yi, WAMInstruction.STACK_ADDR) + ", A" + ai);*/
 
-                      int addr = deref(yi);
-
-                      if (addr < ep) {
-                          // Ai <- Xn
-                          data.put(ai, data.get(addr));
-                      } else {
-                          data.put(hp, refTo(hp));
-                          bind(addr, hp);
-                          data.put(ai, data.get(hp));
-                          hp++;
-                      }
+                      putUnsafeVal(yi, ai);
 
                       // P <- P + instruction_size(P)
                       ip += 4;
@@ -975,17 +1020,7 @@
 
                       /*trace.fine(ip + ": SET_LOCAL_VAL " + printSlot(xi, mode));*/
 
-                      int addr = deref(xi);
-
-                      if (addr < ep) {
-                          data.put(hp, data.get(addr));
-                      } else {
-                          data.put(hp, refTo(hp));
-                          bind(addr, hp);
-                      }
-
-                      // h <- h + 1
-                      hp++;
+                      setLocalVal(xi);
 
                       // P <- P + instruction_size(P)
                       ip += 3;
@@ -1001,28 +1036,7 @@
 
                       /*trace.fine(ip + ": UNIFY_LOCAL_VAL " + printSlot(xi, mode));*/
 
-                      // switch mode
-                      if (!writeMode) {
-                          // case read:
-                          // unify (Xi, s)
-                          failed = !unify(xi, sp);
-                      } else {
-                          // case write:
-                          int addr = deref(xi);
-
-                          if (addr < ep) {
-                              data.put(hp, data.get(addr));
-                          } else {
-                              data.put(hp, refTo(hp));
-                              bind(addr, hp);
-                          }
-
-                          // h <- h + 1
-                          hp++;
-                      }
-
-                      // s <- s + 1
-                      sp++;
+                      failed = !unifyLocalVal(xi);
 
                       // P <- P + instruction_size(P)
                       ip += 3;
@@ -1050,6 +1064,13 @@
                       // STACK[E + 2] <- numPerms
                       data.put(ep + 2, numPerms);
 
+                      checkHeap(n);
+
+                      // Check the resource limits of the query, every so many steps.
+                      if (--stepCountdown <= 0) {
+                          checkLimits();
+                      }
+
                       // CP <- P + instruction_size(P)
                       cp = ip + 7;
 
@@ -1058,8 +1079,9 @@
                       // B0 <- B
                       b0 = bp;
 
-                      // P <- @(p/n)
-                      ip = pn;
+                      // P <- @(p/n), running it as compiled code once it is hot
+                      ip = tier2.call(pn);
+                      failed = ip == HtWAMTier2Code.FAIL;
 
                       break;
                   }
@@ -1082,11 +1104,19 @@
                           break;
                       }
 
+                      checkHeap(n);
+
+                      // Check the resource limits of the query, every so many steps.
+                      if (--stepCountdown <= 0) {
+                          checkLimits();
+                      }
+
                       // B0 <- B
                       b0 = bp;
 
-                      // P <- @(p/n)
-                      ip = pn;
+                      // P <- @(p/n), running it as compiled code once it is hot
+                      ip = tier2.call(pn);
+                      failed = ip == HtWAMTier2Code.FAIL;
 
                       break;
                   }
@@ -1103,26 +1133,9 @@
 
                   // allocate:
                   case ALLOCATE: {
-                      // if E > B
-                      //  then newB <- E + STACK[E + 2] + 3
-                      // else newB <- B + STACK[B] + 7
-                      int esp = nextStackFrame();
-
-                      // STACK[newE] <- E
-                      data.put(esp, ep);
-
-                      // STACK[E + 1] <- CP
-                      data.put(esp + 1, cp);
-
-                      // STACK[E + 2] <- N
-                      data.put(esp + 2, 0);
-
-                      // E <- newE
-                      // newE <- E + n + 3
-                      ep = esp;
+                      allocate(0);
 
                       /*trace.fine(ip + ": ALLOCATE");*/
-                      /*trace.fine("-> env @ " + ep + " " + traceEnvFrame());*/
 
                       // P <- P + instruction_size(P)
                       ip += 1;
@@ -1135,26 +1148,9 @@
                       // grab N
                       int n = (int) codeBuffer.get(ip + 1);
 
-                      // if E > B
-                      //  then newB <- E + STACK[E + 2] + 3
-                      // else newB <- B + STACK[B] + 7
-                      int esp = nextStackFrame();
-
-                      // STACK[newE] <- E
-                      data.put(esp, ep);
-
-                      // STACK[E + 1] <- CP
-                      data.put(esp + 1, cp);
-
-                      // STACK[E + 2] <- N
-                      data.put(esp + 2, n);
-
-                      // E <- newE
-                      // newE <- E + n + 3
-                      ep = esp;
+                      allocate(n);
 
                       /*trace.fine(ip + ": ALLOCATE_N " + n);*/
-                      /*trace.fine("-> env @ " + ep + " " + traceEnvFrame());*/
 
                       // P <- P + instruction_size(P)
                       ip += 2;
@@ -1164,16 +1160,9 @@
 
                   // deallocate:
                   case DEALLOCATE: {
-                      int newip = data.get(ep + 1);
-
-                      // E <- STACK[E]
-                      ep = data.get(ep);
+                      deallocate();
 
                       /*trace.fine(ip + ": DEALLOCATE");*/
-                      /*trace.fine("<- env @ " + ep + " " + traceEnvFrame());*/
-
-                      // CP <- STACK[E + 1]
-                      cp = newip;
 
                       // P <- P + instruction_size(P)
                       ip += 1;
@@ -1186,50 +1175,9 @@
                       // grab L
                       int l = codeBuffer.getInt(ip + 1);
 
-                      // if E > B
-                      //  then newB <- E + STACK[E + 2] + 3
-                      // else newB <- B + STACK[B] + 7
-                      int esp = nextStackFrame();
-
-                      // STACK[newB] <- num_of_args
-                      // n <- STACK[newB]
-                      int n = numOfArgs;
-                      data.put(esp, n);
-
-                      // for i <- 1 to n do STACK[newB + i] <- Ai
-                      for (int i = 0; i < n; i++) {
-                          data.put(esp + i + 1, data.get(i));
-                      }
-
-                      // STACK[newB + n + 1] <- E
-                      data.put(esp + n + 1, ep);
-
-                      // STACK[newB + n + 2] <- CP
-                      data.put(esp + n + 2, cp);
-
-                      // STACK[newB + n + 3] <- B
-                      data.put(esp + n + 3, bp);
-
-                      // STACK[newB + n + 4] <- L
-                      data.put(esp + n + 4, l);
-
-                      // STACK[newB + n + 5] <- TR
-                      data.put(esp + n + 5, trp);
-
-                      // STACK[newB + n + 6] <- H
-                      data.put(esp + n + 6, hp);
-
-                      // STACK[newB + n + 7] <- B0
-                      data.put(esp + n + 7, b0);
-
-                      // B <- new B
-                      bp = esp;
-
-                      // HB <- H
-                      hbp = hp;
+                      tryMeElse(l, numOfArgs);
 
                       /*trace.fine(ip + ": TRY_ME_ELSE");*/
-                      /*trace.fine("-> chp @ " + bp + " " + traceChoiceFrame());*/
 
                       // P <- P + instruction_size(P)
                       ip += 5;
@@ -1242,37 +1190,9 @@
                       // grab L
                       int l = codeBuffer.getInt(ip + 1);
 
-                      // n <- STACK[B]
-                      int n = data.get(bp);
-
-                      // for i <- 1 to n do Ai <- STACK[B + i]
-                      for (int i = 0; i < n; i++) {
-                          data.put(i, data.get(bp + i + 1));
-                      }
-
-                      // E <- STACK[B + n + 1]
-                      ep = data.get(bp + n + 1);
-
-                      // CP <- STACK[B + n + 2]
-                      cp = data.get(bp + n + 2);
-
-                      // STACK[B + n + 4] <- L
-                      data.put(bp + n + 4, l);
-
-                      // unwind_trail(STACK[B + n + 5], TR)
-                      unwindTrail(data.get(bp + n + 5), trp);
-
-                      // TR <- STACK[B + n + 5]
-                      trp = data.get(bp + n + 5);
-
-                      // H <- STACK[B + n + 6]
-                      hp = data.get(bp + n + 6);
-
-                      // HB <- H
-                      hbp = hp;
+                      retryMeElse(l);
 
                       /*trace.fine(ip + ": RETRY_ME_ELSE");*/
-                      /*trace.fine("-- chp @ " + bp + " " + traceChoiceFrame());*/
 
                       // P <- P + instruction_size(P)
                       ip += 5;
@@ -1282,37 +1202,9 @@
 
                   // trust me (else fail):
                   case TRUST_ME: {
-                      // n <- STACK[B]
-                      int n = data.get(bp);
-
-                      // for i <- 1 to n do Ai <- STACK[B + i]
-                      for (int i = 0; i < n; i++) {
-                          data.put(i, data.get(bp + i + 1));
-                      }
-
-                      // E <- STACK[B + n + 1]
-                      ep = data.get(bp + n + 1);
-
-                      // CP <- STACK[B + n + 2]
-                      cp = data.get(bp + n + 2);
-
-                      // unwind_trail(STACK[B + n + 5], TR)
-                      unwindTrail(data.get(bp + n + 5), trp);
-
-                      // TR <- STACK[B + n + 5]
-                      trp = data.get(bp + n + 5);
-
-                      // H <- STACK[B + n + 6]
-                      hp = data.get(bp + n + 6);
-
-                      // HB <- STACK[B + n + 6]
-                      hbp = hp;
-
-                      // B <- STACK[B + n + 3]
-                      bp = data.get(bp + n + 3);
+                      trustMe();
 
                       /*trace.fine(ip + ": TRUST_ME");*/
-                      /*trace.fine("<- chp @ " + bp + " " + traceChoiceFrame());*/
 
                       // P <- P + instruction_size(P)
                       ip += 1;
@@ -1327,35 +1219,7 @@
                       int l = codeBuffer.getInt(ip + 9);
                       int s = codeBuffer.getInt(ip + 13);
 
-                      int addr = deref(1);
-                      int tag = derefTag;
-
-                      // case STORE[deref(A1)] of
-                      switch (tag) {
-                          case REF:
-
-                              // <REF, _> : P <- V
-                              ip = v;
-                              break;
-
-                          case CON:
-
-                              // <CON, _> : P <- C
-                              ip = c;
-                              break;
-
-                          case LIS:
-
-                              // <LIS, _> : P <- L
-                              ip = l;
-                              break;
-
-                          case STR:
-
-                              // <STR, _> : P <- S
-                              ip = s;
-                              break;
-                      }
+                      ip = switchOnTerm(v, c, l, s);
 
                       break;
                   }
@@ -1365,13 +1229,7 @@
                       int t = codeBuffer.getInt(ip + 1);
                       int n = codeBuffer.getInt(ip + 5);
 
-                      // <tag, val> <- STORE[deref(A1)]
-                      deref(1);
-
-                      int val = derefVal;
-
-                      // <found, inst> <- get_hash(val, T, N)
-                      int inst = getHash(val, t, n);
+                      int inst = switchOnConst(t, n);
 
                       // if found
                       if (inst > 0) {
@@ -1390,13 +1248,7 @@
                       int t = codeBuffer.getInt(ip + 1);
                       int n = codeBuffer.getInt(ip + 5);
 
-                      // <tag, val> <- STORE[deref(A1)]
-                      deref(1);
-
-                      int val = derefVal;
-
-                      // <found, inst> <- get_hash(val, T, N)
-                      int inst = getHash(val, t, n);
+                      int inst = switchOnStruc(t, n);
 
                       // if found
                       if (inst > 0) {
@@ -1410,54 +1262,47 @@
                       break;
                   }
 
-                  case TRY: {
-                      // grab L
-                      int l = codeBuffer.getInt(ip + 1);
+                  // jit_index id, n, C1..Cn:
+                  case HiTalkWAMInstruction.JIT_INDEX: {
+                      // grab id, n
+                      HtWAMClauseIndex index = clauseIndexes.get(codeBuffer.getInt(ip + 1));
+                      int n = codeBuffer.getInt(ip + 5);
+                      int table = ip + 9;
 
-                      // if E > B
-                      //  then newB <- E + STACK[E + 2] + 3
-                      // else newB <- B + STACK[B] + 7
-                      int esp = nextStackFrame();
+                      int arg = index.selectArgument(boundArguments(index.getNumArgs()));
 
-                      // STACK[newB] <- num_of_args
-                      // n <- STACK[newB]
-                      int n = numOfArgs;
-                      data.put(esp, n);
+                      // Fall through onto the clauses, when there is no index worth using.
+                      if (arg < 0) {
+                          ip = table + (n << 2);
 
-                      // for i <- 1 to n do STACK[newB + i] <- Ai
-                      for (int i = 0; i < n; i++) {
-                          data.put(esp + i + 1, data.get(i));
+                          break;
                       }
 
-                      // STACK[newB + n + 1] <- E
-                      data.put(esp + n + 1, ep);
+                      int key = indexKey(arg);
+                      int branch = index.getBranch(arg, key);
 
-                      // STACK[newB + n + 2] <- CP
-                      data.put(esp + n + 2, cp);
-
-                      // STACK[newB + n + 3] <- B
-                      data.put(esp + n + 3, bp);
-
-                      // STACK[newB + n + 4] <- L
-                      data.put(esp + n + 4, ip + 5);
-
-                      // STACK[newB + n + 5] <- TR
-                      data.put(esp + n + 5, trp);
+                      if (branch == HtWAMClauseIndex.UNCOMPILED) {
+                          branch = compileIndexBranch(index.getBucket(arg, key), table);
+                          index.setBranch(arg, key, branch);
+                      }
 
-                      // STACK[newB + n + 6] <- H
-                      data.put(esp + n + 6, hp);
+                      if (branch == 0) {
+                          failed = true;
+                      } else {
+                          ip = branch;
+                      }
 
-                      // STACK[newB + n + 7] <- B0
-                      data.put(esp + n + 7, b0);
+                      break;
+                  }
 
-                      // B <- new B
-                      bp = esp;
+                  case TRY: {
+                      // grab L
+                      int l = codeBuffer.getInt(ip + 1);
 
-                      // HB <- H
-                      hbp = hp;
+                      // The alternative is the following retry or trust.
+                      tryMeElse(ip + 5, numOfArgs);
 
                       /*trace.fine(ip + ": TRY");*/
-                      /*trace.fine("-> chp @ " + bp + " " + traceChoiceFrame());*/
 
                       // P <- L
                       ip = l;
@@ -1469,37 +1314,10 @@
                       // grab L
                       int l = codeBuffer.getInt(ip + 1);
 
-                      // n <- STACK[B]
-                      int n = data.get(bp);
-
-                      // for i <- 1 to n do Ai <- STACK[B + i]
-                      for (int i = 0; i < n; i++) {
-                          data.put(i, data.get(bp + i + 1));
-                      }
-
-                      // E <- STACK[B + n + 1]
-                      ep = data.get(bp + n + 1);
-
-                      // CP <- STACK[B + n + 2]
-                      cp = data.get(bp + n + 2);
-
-                      // STACK[B + n + 4] <- L
-                      data.put(bp + n + 4, ip + 5);
-
-                      // unwind_trail(STACK[B + n + 5], TR)
-                      unwindTrail(data.get(bp + n + 5), trp);
-
-                      // TR <- STACK[B + n + 5]
-                      trp = data.get(bp + n + 5);
-
-                      // H <- STACK[B + n + 6]
-                      hp = data.get(bp + n + 6);
-
-                      // HB <- H
-                      hbp = hp;
+                      // The alternative is the following retry or trust.
+                      retryMeElse(ip + 5);
 
                       /*trace.fine(ip + ": RETRY");*/
-                      /*trace.fine("-- chp @ " + bp + " " + traceChoiceFrame());*/
 
                       // P <- L
                       ip = l;
@@ -1511,37 +1329,9 @@
                       // grab L
                       int l = codeBuffer.getInt(ip + 1);
 
-                      // n <- STACK[B]
-                      int n = data.get(bp);
-
-                      // for i <- 1 to n do Ai <- STACK[B + i]
-                      for (int i = 0; i < n; i++) {
-                          data.put(i, data.get(bp + i + 1));
-                      }
-
-                      // E <- STACK[B + n + 1]
-                      ep = data.get(bp + n + 1);
-
-                      // CP <- STACK[B + n + 2]
-                      cp = data.get(bp + n + 2);
-
-                      // unwind_trail(STACK[B + n + 5], TR)
-                      unwindTrail(data.get(bp + n + 5), trp);
-
-                      // TR <- STACK[B + n + 5]
-                      trp = data.get(bp + n + 5);
-
-                      // H <- STACK[B + n + 6]
-                      hp = data.get(bp + n + 6);
-
-                      // HB <- STACK[B + n + 6]
-                      hbp = hp;
-
-                      // B <- STACK[B + n + 3]
-                      bp = data.get(bp + n + 3);
+                      trustMe();
 
                       /*trace.fine(ip + ": TRUST");*/
-                      /*trace.fine("<- chp @ " + bp + " " + traceChoiceFrame());*/
 
                       // P <- L
                       ip = l;
@@ -1550,13 +1340,9 @@
                   }
 
                   case NECK_CUT: {
-                      if (bp > b0) {
-                          bp = b0;
-                          tidyTrail();
-                      }
+                      neckCut();
 
                       /*trace.fine(ip + ": NECK_CUT");*/
-                      /*trace.fine("<- chp @ " + bp + " " + traceChoiceFrame());*/
 
                       ip += 1;
 
@@ -1564,9 +1350,7 @@
                   }
 
                   case GET_LEVEL: {
-                      int yn = (int) codeBuffer.get(ip + 1) + (ep + 3);
-
-                      data.put(yn, b0);
+                      getLevel(stackSlot(codeBuffer.get(ip + 1)));
 
                       /*trace.fine(ip + ": GET_LEVEL " + codeBuffer.get(ip + 1));*/
 
@@ -1576,17 +1360,9 @@
                   }
 
                   case CUT: {
-                      int yn = (int) codeBuffer.get(ip + 1) + (ep + 3);
-
-                      int cbp = data.get(yn);
-
-                      if (bp > cbp) {
-                          bp = cbp;
-                          tidyTrail();
-                      }
+                      cut(stackSlot(codeBuffer.get(ip + 1)));
 
                       /*trace.fine(ip + ": CUT " + codeBuffer.get(ip + 1));*/
-                      /*trace.fine("<- chp @ " + bp + " " + traceChoiceFrame());*/
 
                       ip += 2;
 
@@ -1636,6 +1412,7 @@
                       /*trace.fine(ip + ": SUSPEND");*/
                       ip += 1;
                       suspended = true;
+                      stopExecution();
 
                       return true;
                   }
@@ -1647,9 +1424,791 @@
               }
           }
 
+          stopExecution();
+
           return !failed;
       }
 
+      /**
+       * Provides the address of a permanent variable in the current environment frame.
+       *
+       * @param y The offset of the variable within the environment frame.
+       * @return The address of the variable.
+       */
+      int stackSlot(int y) {
+          return y + ep + 3;
+      }
+
+      /**
+       * put_struc Xi, f/n.
+       *
+       * @param xi The address of the register or stack slot.
+       * @param fn The encoded functor.
+       */
+      void putStruc(int xi, int fn) {
+          reserveHeap(1);
+
+          // heap[h] <- STR, h + 1
+          data.put(hp, fn);
+
+          // Xi <- heap[h]
+          data.put(xi, structureAt(hp));
+
+          // h <- h + 2
+          hp += 1;
+      }
+
+      /**
+       * set_var Xi.
+       *
+       * @param xi The address of the register or stack slot.
+       */
+      void setVar(int xi) {
+          reserveHeap(1);
+
+          // heap[h] <- REF, h
+          data.put(hp, refTo(hp));
+
+          // Xi <- heap[h]
+          data.put(xi, data.get(hp));
+
+          // h <- h + 1
+          hp++;
+      }
+
+      /**
+       * set_val Xi.
+       *
+       * @param xi The address of the register or stack slot.
+       */
+      void setVal(int xi) {
+          reserveHeap(1);
+
+          // heap[h] <- Xi
+          data.put(hp, data.get(xi));
+
+          // h <- h + 1
+          hp++;
+      }
+
+      /**
+       * get_struc Xi, f/n.
+       *
+       * @param xi The address of the register or stack slot.
+       * @param fn The encoded functor.
+       * @return <tt>false</tt> iff the instruction fails.
+       */
+      boolean getStruc(int xi, int fn) {
+          // addr <- deref(Xi);
+          int addr = deref(xi);
+          byte tag = derefTag;
+          int a = derefVal;
+
+          // switch STORE[addr]
+          switch (tag) {
+              // case REF:
+              case REF: {
+                  reserveHeap(2);
+
+                  // heap[h] <- STR, h + 1
+                  data.put(hp, structureAt(hp + 1));
+
+                  // heap[h+1] <- f/n
+                  data.put(hp + 1, fn);
+
+                  // bind(addr, h)
+                  bind(addr, hp);
+
+                  // h <- h + 2
+                  hp += 2;
+
+                  // mode <- write
+                  writeMode = true;
+                  /*trace.fine("-> write mode");*/
+
+                  return true;
+              }
+
+              // case STR, a:
+              case STR: {
+                  // if heap[a] = f/n
+                  if (data.get(a) == fn) {
+                      // s <- a + 1
+                      sp = a + 1;
+
+                      // mode <- read
+                      writeMode = false;
+                      /*trace.fine("-> read mode");*/
+
+                      return true;
+                  }
+
+                  // fail
+                  return false;
+              }
+
+              default: {
+                  // fail
+                  return false;
+              }
+          }
+      }
+
+      /**
+       * unify_var Xi.
+       *
+       * @param xi The address of the register or stack slot.
+       */
+      void unifyVar(int xi) {
+          // switch mode
+          if (!writeMode) {
+              // case read:
+              // Xi <- heap[s]
+              data.put(xi, data.get(sp));
+          } else {
+              // case write:
+              reserveHeap(1);
+
+              // heap[h] <- REF, h
+              data.put(hp, refTo(hp));
+
+              // Xi <- heap[h]
+              data.put(xi, data.get(hp));
+
+              // h <- h + 1
+              hp++;
+          }
+
+          // s <- s + 1
+          sp++;
+      }
+
+      /**
+       * unify_val Xi.
+       *
+       * @param xi The address of the register or stack slot.
+       * @return <tt>false</tt> iff the instruction fails.
+       */
+      boolean unifyVal(int xi) {
+          boolean unified = true;
+
+          // switch mode
+          if (!writeMode) {
+              // case read:
+              // unify (Xi, s)
+              unified = unify(xi, sp);
+          } else {
+              // case write:
+              reserveHeap(1);
+
+              // heap[h] <- Xi
+              data.put(hp, data.get(xi));
+
+              // h <- h + 1
+              hp++;
+          }
+
+          // s <- s + 1
+          sp++;
+
+          return unified;
+      }
+
+      /**
+       * put_var Xn, Ai.
+       *
+       * @param xi   The address of the register or stack slot.
+       * @param ai   The argument register.
+       * @param mode The addressing mode of the variable, register or stack.
+       */
+      void putVar(int xi, int ai, byte mode) {
+          reserveHeap(1);
+
+          if (mode == WAMInstruction.REG_ADDR) {
+              // heap[h] <- REF, H
+              data.put(hp, refTo(hp));
+
+              // Xn <- heap[h]
+              data.put(xi, data.get(hp));
+
+              // Ai <- heap[h]
+              data.put(ai, data.get(hp));
+          } else {
+              // STACK[addr] <- REF, addr
+              data.put(xi, refTo(xi));
+
+              // Ai <- STACK[addr]
+              data.put(ai, data.get(xi));
+          }
+
+          // h <- h + 1
+          hp++;
+      }
+
+      /**
+       * put_val Xn, Ai.
+       *
+       * @param xi The address of the register or stack slot.
+       * @param ai The argument register.
+       */
+      void putVal(int xi, int ai) {
+          // Ai <- Xn
+          data.put(ai, data.get(xi));
+      }
+
+      /**
+       * get_var Xn, Ai.
+       *
+       * @param xi The address of the register or stack slot.
+       * @param ai The argument register.
+       */
+      void getVar(int xi, int ai) {
+          // Xn <- Ai
+          data.put(xi, data.get(ai));
+      }
+
+      /**
+       * get_val Xn, Ai.
+       *
+       * @param xi The address of the register or stack slot.
+       * @param ai The argument register.
+       * @return <tt>false</tt> iff the instruction fails.
+       */
+      boolean getVal(int xi, int ai) {
+          // unify (Xn, Ai)
+          return unify(xi, ai);
+      }
+
+      /**
+       * put_const Xi, c.
+       *
+       * @param xi The address of the register or stack slot.
+       * @param fn The constant.
+       */
+      void putConstant(int xi, int fn) {
+          // Xi <- heap[h]
+          data.put(xi, constantCell(fn));
+      }
+
+      /**
+       * get_const Xi, c.
+       *
+       * @param xi The address of the register or stack slot.
+       * @param fn The constant.
+       * @return <tt>false</tt> iff the instruction fails.
+       */
+      boolean getConstant(int xi, int fn) {
+          return unifyConst(fn, xi);
+      }
+
+      /**
+       * set_const c.
+       *
+       * @param fn The constant.
+       */
+      void setConstant(int fn) {
+          reserveHeap(1);
+
+          // heap[h] <- <CON, c>
+          data.put(hp, constantCell(fn));
+
+          // h <- h + 1
+          hp++;
+      }
+
+      /**
+       * unify_const c.
+       *
+       * @param fn The constant.
+       * @return <tt>false</tt> iff the instruction fails.
+       */
+      boolean unifyConstant(int fn) {
+          boolean unified = true;
+
+          // switch mode
+          if (!writeMode) {
+              // case read:
+              // addr <- deref(S)
+
+              // unifyConst(fn, addr)
+              unified = unifyConst(fn, sp);
+          } else {
+              // case write:
+              reserveHeap(1);
+
+              // heap[h] <- <CON, c>
+              data.put(hp, constantCell(fn));
+
+              // h <- h + 1
+              hp++;
+          }
+
+          // s <- s + 1
+          sp++;
+
+          return unified;
+      }
+
+      /**
+       * put_list Xi.
+       *
+       * @param xi The address of the register or stack slot.
+       */
+      void putList(int xi) {
+          // Xi <- <LIS, H>
+          data.put(xi, listCell(hp));
+      }
+
+      /**
+       * get_list Xi.
+       *
+       * @param xi The address of the register or stack slot.
+       * @return <tt>false</tt> iff the instruction fails.
+       */
+      boolean getList(int xi) {
+          int addr = deref(xi);
+          int tag = derefTag;
+          int val = derefVal;
+
+          // case STORE[addr] of
+          switch (tag) {
+              case REF: {
+                  // <REF, _> :
+                  reserveHeap(1);
+
+                  // HEAP[H] <- <LIS, H+1>
+                  data.put(hp, listCell(hp + 1));
+
+                  // bind(addr, H)
+                  bind(addr, hp);
+
+                  // H <- H + 1
+                  hp += 1;
+
+                  // mode <- write
+                  writeMode = true;
+                  /*trace.fine("-> write mode");*/
+
+                  return true;
+              }
+
+              case LIS: {
+                  // <LIS, a> :
+                  // S <- a
+                  sp = val;
+
+                  // mode <- read
+                  writeMode = false;
+                  /*trace.fine("-> read mode");*/
+
+                  return true;
+              }
+
+              default: {
+                  // other: fail <- true;
+                  return false;
+              }
+          }
+      }
+
+      /**
+       * set_void n.
+       *
+       * @param n The number of variables.
+       */
+      void setVoid(int n) {
+          reserveHeap(n);
+
+          // for i <- H to H + n - 1 do
+          //  HEAP[i] <- <REF, i>
+          for (int addr = hp; addr < (hp + n); addr++) {
+              data.put(addr, refTo(addr));
+          }
+
+          // H <- H + n
+          hp += n;
+      }
+
+      /**
+       * unify_void n.
+       *
+       * @param n The number of variables.
+       */
+      void unifyVoid(int n) {
+          // case mode of
+          if (!writeMode) {
+              //  read: S <- S + n
+              sp += n;
+          } else {
+              //  write:
+              reserveHeap(n);
+
+              //   for i <- H to H + n -1 do
+              //    HEAP[i] <- <REF, i>
+              for (int addr = hp; addr < (hp + n); addr++) {
+                  data.put(addr, refTo(addr));
+              }
+
+              //   H <- H + n
+              hp += n;
+          }
+      }
+
+      /**
+       * put_unsafe_val Yn, Ai.
+       *
+       * @param yi The address of the stack slot.
+       * @param ai The argument register.
+       */
+      void putUnsafeVal(int yi, int ai) {
+          int addr = deref(yi);
+
+          if (addr < ep) {
+              // Ai <- Xn
+              data.put(ai, data.get(addr));
+          } else {
+              reserveHeap(1);
+
+              data.put(hp, refTo(hp));
+              bind(addr, hp);
+              data.put(ai, data.get(hp));
+              hp++;
+          }
+      }
+
+      /**
+       * set_local_val Xi.
+       *
+       * @param xi The address of the register or stack slot.
+       */
+      void setLocalVal(int xi) {
+          int addr = deref(xi);
+
+          reserveHeap(1);
+
+          if (addr < ep) {
+              data.put(hp, data.get(addr));
+          } else {
+              data.put(hp, refTo(hp));
+              bind(addr, hp);
+          }
+
+          // h <- h + 1
+          hp++;
+      }
+
+      /**
+       * unify_local_val Xi.
+       *
+       * @param xi The address of the register or stack slot.
+       * @return <tt>false</tt> iff the instruction fails.
+       */
+      boolean unifyLocalVal(int xi) {
+          boolean unified = true;
+
+          // switch mode
+          if (!writeMode) {
+              // case read:
+              // unify (Xi, s)
+              unified = unify(xi, sp);
+          } else {
+              // case write:
+              reserveHeap(1);
+
+              int addr = deref(xi);
+
+              if (addr < ep) {
+                  data.put(hp, data.get(addr));
+              } else {
+                  data.put(hp, refTo(hp));
+                  bind(addr, hp);
+              }
+
+              // h <- h + 1
+              hp++;
+          }
+
+          // s <- s + 1
+          sp++;
+
+          return unified;
+      }
+
+      /**
+       * allocate N, and allocate, which is the same with no permanent variables.
+       *
+       * @param n The number of permanent variables.
+       */
+      void allocate(int n) {
+          // if E > B
+          //  then newB <- E + STACK[E + 2] + 3
+          // else newB <- B + STACK[B] + 7
+          int esp = nextStackFrame();
+
+          // STACK[newE] <- E
+          data.put(esp, ep);
+
+          // STACK[E + 1] <- CP
+          data.put(esp + 1, cp);
+
+          // STACK[E + 2] <- N
+          data.put(esp + 2, n);
+
+          // E <- newE
+          // newE <- E + n + 3
+          ep = esp;
+
+          if (esp + n + 3 - stackBase > peakEnvironmentDepth) {
+              peakEnvironmentDepth = esp + n + 3 - stackBase;
+          }
+
+          /*trace.fine("-> env @ " + ep + " " + traceEnvFrame());*/
+      }
+
+      /**
+       * deallocate.
+       */
+      void deallocate() {
+          int newip = data.get(ep + 1);
+
+          // E <- STACK[E]
+          ep = data.get(ep);
+
+          /*trace.fine("<- env @ " + ep + " " + traceEnvFrame());*/
+
+          // CP <- STACK[E + 1]
+          cp = newip;
+      }
+
+      /**
+       * try_me_else L. This also pushes the choice point for try L, with the following retry or trust as L.
+       *
+       * @param l The alternative to backtrack to.
+       * @param n The number of arguments of the predicate.
+       */
+      void tryMeElse(int l, int n) {
+          // if E > B
+          //  then newB <- E + STACK[E + 2] + 3
+          // else newB <- B + STACK[B] + 7
+          int esp = nextStackFrame();
+
+          // STACK[newB] <- num_of_args
+          // n <- STACK[newB]
+          data.put(esp, n);
+
+          // for i <- 1 to n do STACK[newB + i] <- Ai
+          for (int i = 0; i < n; i++) {
+              data.put(esp + i + 1, data.get(i));
+          }
+
+          // STACK[newB + n + 1] <- E
+          data.put(esp + n + 1, ep);
+
+          // STACK[newB + n + 2] <- CP
+          data.put(esp + n + 2, cp);
+
+          // STACK[newB + n + 3] <- B
+          data.put(esp + n + 3, bp);
+
+          // STACK[newB + n + 4] <- L
+          data.put(esp + n + 4, l);
+
+          // STACK[newB + n + 5] <- TR
+          data.put(esp + n + 5, trp);
+
+          // STACK[newB + n + 6] <- H
+          data.put(esp + n + 6, hp);
+
+          // STACK[newB + n + 7] <- B0
+          data.put(esp + n + 7, b0);
+
+          // B <- new B
+          bp = esp;
+
+          if (esp + n + 8 - stackBase > peakChoicePointDepth) {
+              peakChoicePointDepth = esp + n + 8 - stackBase;
+          }
+
+          // HB <- H
+          hbp = hp;
+
+          /*trace.fine("-> chp @ " + bp + " " + traceChoiceFrame());*/
+      }
+
+      /**
+       * retry_me_else L. This is also the choice point update for retry L, with the following retry or trust as L.
+       *
+       * @param l The alternative to backtrack to.
+       */
+      void retryMeElse(int l) {
+          // n <- STACK[B]
+          int n = data.get(bp);
+
+          // for i <- 1 to n do Ai <- STACK[B + i]
+          for (int i = 0; i < n; i++) {
+              data.put(i, data.get(bp + i + 1));
+          }
+
+          // E <- STACK[B + n + 1]
+          ep = data.get(bp + n + 1);
+
+          // CP <- STACK[B + n + 2]
+          cp = data.get(bp + n + 2);
+
+          // STACK[B + n + 4] <- L
+          data.put(bp + n + 4, l);
+
+          // unwind_trail(STACK[B + n + 5], TR)
+          unwindTrail(data.get(bp + n + 5), trp);
+
+          // TR <- STACK[B + n + 5]
+          trp = data.get(bp + n + 5);
+
+          // H <- STACK[B + n + 6]
+          hp = data.get(bp + n + 6);
+
+          // HB <- H
+          hbp = hp;
+
+          /*trace.fine("-- chp @ " + bp + " " + traceChoiceFrame());*/
+      }
+
+      /**
+       * trust_me. This is also the choice point removal for trust L.
+       */
+      void trustMe() {
+          // n <- STACK[B]
+          int n = data.get(bp);
+
+          // for i <- 1 to n do Ai <- STACK[B + i]
+          for (int i = 0; i < n; i++) {
+              data.put(i, data.get(bp + i + 1));
+          }
+
+          // E <- STACK[B + n + 1]
+          ep = data.get(bp + n + 1);
+
+          // CP <- STACK[B + n + 2]
+          cp = data.get(bp + n + 2);
+
+          // unwind_trail(STACK[B + n + 5], TR)
+          unwindTrail(data.get(bp + n + 5), trp);
+
+          // TR <- STACK[B + n + 5]
+          trp = data.get(bp + n + 5);
+
+          // H <- STACK[B + n + 6]
+          hp = data.get(bp + n + 6);
+
+          // HB <- STACK[B + n + 6]
+          hbp = hp;
+
+          // B <- STACK[B + n + 3]
+          bp = data.get(bp + n + 3);
+
+          /*trace.fine("<- chp @ " + bp + " " + traceChoiceFrame());*/
+      }
+
+      /**
+       * switch_on_term V, C, L, S.
+       *
+       * @param v The code for a variable first argument.
+       * @param c The code for a constant first argument.
+       * @param l The code for a list first argument.
+       * @param s The code for a structure first argument.
+       * @return The code to continue at.
+       */
+      int switchOnTerm(int v, int c, int l, int s) {
+          deref(0);
+
+          // case STORE[deref(A1)] of
+          switch (derefTag) {
+              case REF:
+                  // <REF, _> : P <- V
+                  return v;
+
+              case CON:
+                  // <CON, _> : P <- C
+                  return c;
+
+              case LIS:
+                  // <LIS, _> : P <- L
+                  return l;
+
+              default:
+                  // <STR, _> : P <- S
+                  return s;
+          }
+      }
+
+      /**
+       * switch_on_const T, N.
+       *
+       * @param t The address of the hash table.
+       * @param n The number of slots in the hash table.
+       * @return The code to continue at, or <tt>0</tt> if the instruction fails.
+       */
+      int switchOnConst(int t, int n) {
+          // <tag, val> <- STORE[deref(A1)]
+          deref(0);
+
+          // <found, inst> <- get_hash(val, T, N)
+          return getHash(derefVal, t, n);
+      }
+
+      /**
+       * switch_on_struc T, N.
+       *
+       * @param t The address of the hash table.
+       * @param n The number of slots in the hash table.
+       * @return The code to continue at, or <tt>0</tt> if the instruction fails.
+       */
+      int switchOnStruc(int t, int n) {
+          // <tag, val> <- STORE[deref(A1)]
+          deref(0);
+
+          // The structure is keyed on its functor cell.
+          // <found, inst> <- get_hash(val, T, N)
+          return getHash(data.get(derefVal), t, n);
+      }
+
+      /**
+       * neck_cut.
+       */
+      void neckCut() {
+          if (bp > b0) {
+              bp = b0;
+              tidyTrail();
+          }
+
+          /*trace.fine("<- chp @ " + bp + " " + traceChoiceFrame());*/
+      }
+
+      /**
+       * get_level Yn.
+       *
+       * @param yn The address of the stack slot.
+       */
+      void getLevel(int yn) {
+          data.put(yn, b0);
+      }
+
+      /**
+       * cut Yn.
+       *
+       * @param yn The address of the stack slot.
+       */
+      void cut(int yn) {
+          int cbp = data.get(yn);
+
+          if (bp > cbp) {
+              bp = cbp;
+              tidyTrail();
+          }
+
+          /*trace.fine("<- chp @ " + bp + " " + traceChoiceFrame());*/
+      }
+
       /**
        * Pretty prints the current environment frame, for debugging purposes.
        *
@@ -1741,7 +2300,7 @@
        * @param numPerms The number of permanent variables remaining in the environment.
        * @return <tt>true</tt> if the call succeeded, and <tt>false</tt> if it failed.
        */
-      private boolean callInternal(int function, int arity, int numPerms) {
+      protected boolean callInternal(int function, int arity, int numPerms) {
           switch (function) {
               case CALL_1_ID:
                   return internalCall_1(numPerms);
@@ -1860,17 +2419,101 @@
           return pn;
       }
 
+      /**
+       * Works out which of the argument registers are bound to a constant or a structure.
+       *
+       * @param n The number of argument registers to examine.
+       * @return A bit mask of the bound arguments.
+       */
+      protected int boundArguments(int n) {
+          int mask = 0;
+
+          for (int i = 0; i < n; i++) {
+              deref(i);
+
+              if ((derefTag == CON) || (derefTag == STR)) {
+                  mask |= 1 << i;
+              }
+          }
+
+          return mask;
+      }
+
+      /**
+       * Computes the index key of a bound argument register. A constant is keyed on its name, and a structure on its
+       * functor cell, so an atom keys the same whether it is held as a constant or as a structure of arity zero.
+       *
+       * @param arg The argument register.
+       * @return The index key of the argument.
+       */
+      protected int indexKey(int arg) {
+          deref(arg);
+
+          return (derefTag == CON) ? derefVal : data.get(derefVal);
+      }
+
+      /**
+       * Compiles the branch of a demand driven index into a set of clauses. No clauses gives a branch that fails, one
+       * clause jumps straight to it, and several clauses get a try, retry, trust block appended to the code area.
+       *
+       * @param clauses The positions of the clauses within the predicate.
+       * @param table   The offset of the table of clause addresses within the code area.
+       * @return The code address of the branch, or <tt>0</tt> if it fails.
+       */
+      protected int compileIndexBranch(int[] clauses, int table) {
+          if (clauses.length == 0) {
+              return 0;
+          }
+
+          if (clauses.length == 1) {
+              return codeBuffer.getInt(table + (clauses[0] << 2));
+          }
+
+          ensureCodeCapacity(clauses.length * 5);
+          int branch = codeBuffer.position();
+
+          for (int i = 0; i < clauses.length; i++) {
+              byte code = (i == 0) ? TRY : ((i < clauses.length - 1) ? RETRY : TRUST);
+
+              codeBuffer.put(code);
+              codeBuffer.putInt(codeBuffer.getInt(table + (clauses[i] << 2)));
+          }
+
+          codeAdded(codeBuffer, branch, clauses.length * 5);
+
+          return branch;
+      }
+
       /**
        * Looks up a value (an interned name referring to a constant or structure), in the hash table of size n referred
        * to.
+       * <p>
+       * <p/>The table is open addressed with linear probing, as laid down by
+       * {@link HiTalkWAMInstruction.HiTalkWAMInstructionSet#SwitchOnConst}. Each slot holds a key and a code address,
+       * and an address of zero marks an empty slot, which ends the probe sequence. The word in front of the table holds
+       * the address of the branch to take when no key matches.
        *
        * @param val The value to look up.
        * @param t   The offset of the start of the hash table.
-       * @param n   The size of the hash table in bytes.
-       * @return <tt>0</tt> iff no match is found, or a pointer into the code area of the matching branch.
+       * @param n   The number of slots in the hash table, a power of two.
+       * @return <tt>0</tt> iff no match is found and there is no default branch, or a pointer into the code area of the
+       * matching branch.
        */
-      private int getHash(int val, int t, int n) {
-          return 0;
+      protected int getHash(int val, int t, int n) {
+          if (n == 0) {
+              return codeBuffer.getInt(t - 4);
+          }
+
+          for (int slot = HiTalkWAMInstruction.indexTableHash(val, n); ; slot = (slot + 1) & (n - 1)) {
+              int entry = t + (slot << 3);
+              int inst = codeBuffer.getInt(entry + 4);
+
+              if (inst == 0) {
+                  return codeBuffer.getInt(t - 4);
+              } else if (codeBuffer.getInt(entry) == val) {
+                  return inst;
+              }
+          }
       }
 
       /**
@@ -1881,7 +2524,7 @@
        * @param addr The address of the structure.
        * @return The heap cell contents referencing the structure.
        */
-      private int structureAt(int addr) {
+      protected int structureAt(int addr) {
           return (WAMInstruction.STR << TSHIFT) | (addr & AMASK);
       }
 
@@ -1893,7 +2536,7 @@
        * @param addr The references address.
        * @return The heap cell contents containing the reference.
        */
-      private int refTo(int addr) {
+      protected int refTo(int addr) {
           return (WAMInstruction.REF << TSHIFT) | (addr & AMASK);
       }
 
@@ -1907,7 +2550,7 @@
        * @param fn The functor name and arity of the constant. Arity should always be zero.
        * @return The heap cell contents containing the constant.
        */
-      private int constantCell(int fn) {
+      protected int constantCell(int fn) {
           return (CON << TSHIFT) | (fn & CMASK);
       }
 
@@ -1919,7 +2562,7 @@
        * @param addr The address of the list contents.
        * @return The heap cell contents containing the list pointer.
        */
-      private int listCell(int addr) {
+      protected int listCell(int addr) {
           return (WAMInstruction.LIS << TSHIFT) | (addr & AMASK);
       }
 
@@ -1930,7 +2573,7 @@
        *             for stack addressing.
        * @return The contents of the register or stack slot.
        */
-      private int getRegisterOrStackSlot(byte mode) {
+      protected int getRegisterOrStackSlot(byte mode) {
           return (int) codeBuffer.get(ip + 2) + ((mode == STACK_ADDR) ? (ep + 3) : 0);
       }
 
@@ -1941,18 +2584,176 @@
        *
        * @return The start of the next stack frame.
        */
-      private int nextStackFrame() {
+      protected int nextStackFrame() {
           // if E > B
           // then newB <- E + STACK[E + 2] + 3
           // else newB <- B + STACK[B] + 7
 
+          int esp;
+
           if (ep == bp) {
-              return STACK_BASE;
+              esp = stackBase;
           } else if (ep > bp) {
-              return ep + data.get(ep + 2) + 3;
+              esp = ep + data.get(ep + 2) + 3;
           } else {
-              return bp + data.get(bp) + 8;
+              esp = bp + data.get(bp) + 8;
+          }
+
+          // The largest frame is a choice point holding all of the registers.
+          if (esp + memoryConfig.getRegSize() + 8 > trailBase) {
+              throw resourceError("stack");
           }
+
+          return esp;
+      }
+
+      /**
+       * Checks if the heap has crossed the garbage collection watermark, and collects it if so. This is only checked on
+       * calls, rather than on every cell written to the heap, as calls are the points at which the live registers are
+       * known. The heap may overrun the watermark by the size of the structures built by a single clause body before this
+       * is noticed, which is what the space between the heap limit and the stack is reserved for. A body building more
+       * than that is caught by {@link #reserveHeap(int)}, rather than running into the stack.
+       *
+       * @param numArgs The number of argument registers live at the call.
+       */
+      protected void checkHeap(int numArgs) {
+          if (hp < gcWatermark) {
+              return;
+          }
+
+          int newHp = collector.collect(hp, ep, bp, trp, numArgs, codeBuffer);
+
+          hbp = collector.forward(hbp);
+          sp = collector.forward(sp);
+          hp = newHp;
+
+          if (hp >= heapQuota) {
+              throw resourceError("heap");
+          }
+
+          // Allow the heap to grow to twice its live size before the next collection.
+          gcWatermark = heapBase + Math.min(Math.max((hp - heapBase) << 1, GC_MIN_HEAP), heapQuota - heapBase);
+      }
+
+      /**
+       * Works out the highest top of heap that the resource limits allow.
+       *
+       * @return The highest top of heap that the resource limits allow.
+       */
+      private int heapQuota() {
+          int maxHeapCells = limits.getMaxHeapCells();
+
+          return ((maxHeapCells == 0) || (maxHeapCells >= (heapLimit - heapBase))) ? heapLimit : (heapBase + maxHeapCells);
+      }
+
+      /**
+       * Starts the accounting of the resources used by a new query.
+       */
+      protected void startQuery() {
+          steps = 0;
+          timeUsed = 0;
+          peakEnvironmentDepth = 0;
+          peakChoicePointDepth = 0;
+          startCountdown();
+      }
+
+      /**
+       * Abandons the current query, after it has been stopped part way through. The heap, stacks and trail are emptied,
+       * and their memory given back, so that the next query cannot backtrack into choice points left behind by this one.
+       * The code is kept, unlike on a {@link #reset()}.
+       */
+      protected void abandonQuery() {
+          stopExecution();
+
+          hp = heapBase;
+          hbp = heapBase;
+          sp = heapBase;
+          ep = 0;
+          bp = 0;
+          b0 = 0;
+          trp = trailBase;
+          up = top;
+          writeMode = false;
+          suspended = false;
+
+          data.release(heapBase, top);
+          gcWatermark = Math.min(heapBase + GC_MIN_HEAP, heapQuota);
+      }
+
+      /**
+       * Notes the start of an execution of the current query, for the accounting of the time it uses.
+       */
+      protected void startExecution() {
+          executeStart = System.nanoTime();
+      }
+
+      /**
+       * Notes the end of an execution of the current query, for the accounting of the time it uses.
+       */
+      protected void stopExecution() {
+          timeUsed += System.nanoTime() - executeStart;
+      }
+
+      /**
+       * Checks the resource limits of the current query, once the countdown of steps to the next check has run out. The
+       * countdown is decremented on every call, so that the step limit is exact, but the clock is only read every so many
+       * calls.
+       */
+      protected void checkLimits() {
+          steps += stepPeriod;
+
+          long maxSteps = limits.getMaxSteps();
+
+          if ((maxSteps > 0) && (steps > maxSteps)) {
+              throw resourceError("steps");
+          }
+
+          long maxTime = limits.getMaxTime();
+
+          if ((maxTime > 0) && ((timeUsed + System.nanoTime() - executeStart) > (maxTime * 1000000L))) {
+              throw resourceError("time");
+          }
+
+          int maxChoicePointCells = limits.getMaxChoicePointCells();
+
+          if ((maxChoicePointCells > 0) && (bp != 0) && ((bp - stackBase) > maxChoicePointCells)) {
+              throw resourceError("choice_points");
+          }
+
+          startCountdown();
+      }
+
+      /**
+       * Starts the countdown to the next check of the resource limits. The countdown runs out on the step after the step
+       * limit, if that comes first.
+       */
+      private void startCountdown() {
+          long maxSteps = limits.getMaxSteps();
+
+          stepPeriod = (maxSteps > 0) ? (int) Math.min(LIMIT_CHECK_PERIOD, maxSteps + 1 - steps) : LIMIT_CHECK_PERIOD;
+          stepCountdown = stepPeriod;
+      }
+
+      /**
+       * Checks that some more cells can be written at the top of the heap, before the heap pointer is bumped past them.
+       * This is a single comparison against the start of the stack, so that no write to the heap can ever land in it.
+       *
+       * @param n The number of cells about to be written.
+       */
+      protected final void reserveHeap(int n) {
+          if (hp > stackBase - n) {
+              throw resourceError("heap");
+          }
+      }
+
+      /**
+       * Creates the error to raise when a data area of the machine has been exhausted.
+       *
+       * @param area The name of the data area that has been exhausted.
+       * @return The resource error.
+       */
+      private ExecutionError resourceError(String area) {
+          return new ExecutionError(RESOURCE_ERROR, new HtFunctorName(area, 0));
       }
 
       /**
@@ -1961,7 +2762,7 @@
        *
        * @return <tt>true</tt> iff this is the final failure, and there are no more choice points.
        */
-      private boolean backtrack() {
+      protected boolean backtrack() {
           // if B = bottom_of_stack
           if (bp == 0) {
               //  then fail_and_exit_program
@@ -1984,7 +2785,7 @@
        * @param a1 The address of the first potential unbound variable to bind.
        * @param a2 The address of the second potential unbound variable to bind.
        */
-      private void bind(int a1, int a2) {
+      protected void bind(int a1, int a2) {
           // <t1, _> <- STORE[a1]
           int t1 = (byte) (data.get(a1) >>> TSHIFT);
 
@@ -2018,6 +2819,10 @@
       private void trail(int addr) {
           // if (a < HB) \/ ((H < a) /\ (a < B))
           if ((addr < hbp) || ((hp < addr) && (addr < bp))) {
+              if (trp >= pdlBase) {
+                  throw resourceError("trail");
+              }
+
               //  TRAIL[TR] <- a
               data.put(trp, addr);
 
@@ -2033,7 +2838,7 @@
        * @param a1 The start address within the trail to get the first binding address to clear.
        * @param a2 The end address within the trail, this is one higher than the last address to clear.
        */
-      private void unwindTrail(int a1, int a2) {
+      protected void unwindTrail(int a1, int a2) {
           // for i <- a1 to a2 - 1 do
           for (int addr = a1; addr < a2; addr++) {
               //  STORE[TRAIL[i]] <- <REF, TRAIL[i]>
@@ -2048,12 +2853,12 @@
        * <p/>Copies trail bindings created since the choice point, into the trail as known to the previous choice point.
        * That is bindings on the heap created during the choice point (between HB and H).
        */
-      private void tidyTrail() {
+      protected void tidyTrail() {
           int i;
 
           // Check that there is a current choice point to tidy down to, otherwise tidy down to the root of the trail.
           if (bp == 0) {
-              i = TRAIL_BASE;
+              i = trailBase;
           } else {
               i = data.get(bp + data.get(bp) + 5);
           }
@@ -2078,7 +2883,7 @@
        * @param a2 The address of the second structure or reference.
        * @return <tt>true</tt> if the two structures unify, <tt>false</tt> otherwise.
        */
-      private boolean unify(int a1, int a2) {
+      protected boolean unify(int a1, int a2) {
           // pdl.push(a1)
           // pdl.push(a2)
           uPush(a1);
@@ -2160,7 +2965,7 @@
        * @param addr The address of the first constant or reference.
        * @return <tt>true</tt> if the two constant unify, <tt>false</tt> otherwise.
        */
-      private boolean unifyConst(int fn, int addr) {
+      protected boolean unifyConst(int fn, int addr) {
           boolean success;
 
           int deref = deref(addr);
@@ -2205,6 +3010,10 @@
        * @param val The value to push onto the stack.
        */
       private void uPush(int val) {
+          if (up <= pdlBase) {
+              throw resourceError("pdl");
+          }
+
           data.put(--up, val);
       }
 
@@ -2220,8 +3029,8 @@
       /**
        * Clears the unification stack.
        */
-      private void uClear() {
-          up = TOP;
+      protected void uClear() {
+          up = top;
       }
 
       /**
@@ -2230,7 +3039,7 @@
        * @return <tt>true</tt> if the unification stack is empty, <tt>false</tt> otherwise.
        */
       private boolean uEmpty() {
-          return up >= TOP;
+          return up >= top;
       }
 
       /**
@@ -2240,7 +3049,7 @@
        * @param mode The addressing mode, stack or register.
        * @return The pretty printed slot.
        */
-      private String printSlot(int xi, int mode) {
+      protected String printSlot(int xi, int mode) {
           return ((mode == STACK_ADDR) ? "Y" : "X") + ((mode == STACK_ADDR) ? (xi - ep - 3) : xi);
       }
   }
\ No newline at end of file
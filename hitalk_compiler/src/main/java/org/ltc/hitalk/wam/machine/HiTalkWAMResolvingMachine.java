@@ -34,10 +34,7 @@ import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
-import static com.sun.tools.javac.code.Kinds.NIL;
 import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.REF;
 import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.STR;
 
@@ -54,6 +51,7 @@ import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.STR;
  * <tr><th> Responsibilities <th> Collaborations
  * <tr><td> Resolve a query over a set of compiled Horn clauses in the WAM language.
  * <tr><td> Decode results into an abstract source tree from the binary heap format. <td> {@link ITerm}.
+ * <tr><td> Stream the bindings of solutions straight off the heap. <td> {@link HtWAMSolutionCursor}.
  * </table></pre>
  *
  * @author Rupert Smith
@@ -84,6 +82,27 @@ class HiTalkWAMResolvingMachine<P extends HiTalkWAMCompiledPredicate, Q extends
      */
     protected IWAMResolvingMachineDPIMonitor monitor;
 
+    /**
+     * Marks an entry on the work stack of the heap decoder as a heap address to visit, rather than a functor to build.
+     */
+    private static final int DECODE_VISIT = -1;
+
+    /**
+     * The work stack of the heap decoder, holding pairs of a heap address and {@link #DECODE_VISIT}, or of a functor
+     * name and its arity.
+     */
+    private int[] decodeTasks = new int[64];
+
+    /**
+     * The value stack of the heap decoder, holding decoded terms waiting to become the arguments of a functor.
+     */
+    private ITerm[] decodeValues = new ITerm[32];
+
+    /**
+     * The interned name of the list constructor, <tt>-1</tt> until it is first needed.
+     */
+    private int consFunctor = -1;
+
     /**
      * Creates a resolving machine with the specified symbol table.
      *
@@ -98,8 +117,9 @@ class HiTalkWAMResolvingMachine<P extends HiTalkWAMCompiledPredicate, Q extends
      */
     public void emitCode(HiTalkWAMCompiledPredicate predicate) throws LinkageException {
         // Keep track of the offset into which the code was loaded.
-        int entryPoint = codeBuffer.position();
         int length = (int) predicate.sizeof();
+        ensureCodeCapacity(length);
+        int entryPoint = codeBuffer.position();
 
         // If the code is for a program clause, store the programs entry point in the call table.
         WAMCallPoint callPoint = setCodeAddress(predicate.getName(), entryPoint, length);
@@ -123,8 +143,9 @@ class HiTalkWAMResolvingMachine<P extends HiTalkWAMCompiledPredicate, Q extends
      */
     public void emitCode(HiTalkWAMCompiledQuery query) throws LinkageException {
         // Keep track of the offset into which the code was loaded.
-        int entryPoint = codeBuffer.position();
         int length = (int) query.sizeof();
+        ensureCodeCapacity(length);
+        int entryPoint = codeBuffer.position();
 
         // If the code is for a program clause, store the programs entry point in the call table.
         WAMCallPoint callPoint = new WAMCallPoint(entryPoint, length, -1);
@@ -141,6 +162,28 @@ class HiTalkWAMResolvingMachine<P extends HiTalkWAMCompiledPredicate, Q extends
         }
     }
 
+    /**
+     * Ensures that there is room in the code area for more code, growing it by doubling if not. Code addresses are
+     * offsets into the code area, so copying the code into a larger buffer does not need to relocate anything.
+     *
+     * @param length The length of the code about to be added.
+     */
+    protected void ensureCodeCapacity(int length) {
+        if (codeBuffer.remaining() >= length) {
+            return;
+        }
+
+        int position = codeBuffer.position();
+        int capacity = Math.max(codeBuffer.capacity() << 1, position + length);
+
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity).order(codeBuffer.order());
+        codeBuffer.flip();
+        grown.put(codeBuffer);
+        grown.position(position);
+
+        codeBuffer = grown;
+    }
+
     /**
      * Extracts the raw byte code from the machine for a given call table entry.
      *
@@ -198,6 +241,40 @@ class HiTalkWAMResolvingMachine<P extends HiTalkWAMCompiledPredicate, Q extends
         return executeAndExtractBindings(currentQuery);
     }
 
+    /**
+     * Opens a cursor over the solutions to the current query, which reads their bindings straight off the heap, without
+     * decoding them into terms.
+     *
+     * @return A cursor positioned before the first solution to the current query.
+     */
+    public HtWAMSolutionCursor openCursor() {
+        // Check that a query has been set to resolve.
+        if (currentQuery == null) {
+            throw new IllegalStateException("No query set to resolve.");
+        }
+
+        return new HtWAMSolutionCursor(this, currentQuery);
+    }
+
+    /**
+     * Resolves the current query, calling back a handler with each solution as it is found, until there are no more
+     * solutions or the handler asks to stop.
+     *
+     * @param handler The handler to call back with each solution.
+     * @return The number of solutions found.
+     */
+    public long resolveEach(HtWAMSolutionHandler handler) {
+        HtWAMSolutionCursor cursor = openCursor();
+
+        while (cursor.next()) {
+            if (!handler.onSolution(cursor)) {
+                break;
+            }
+        }
+
+        return cursor.getSolutionCount();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -329,6 +406,11 @@ class HiTalkWAMResolvingMachine<P extends HiTalkWAMCompiledPredicate, Q extends
 
     /**
      * Decodes a term from the raw byte representation on the machines heap, into an abstract syntax tree.
+     * <p>
+     * <p/>The term is decoded without recursion, so that long lists and deeply nested terms cannot overflow the Java
+     * stack. Each compound term is visited on the way down, its arguments are decoded onto a stack of values, and it is
+     * built from them on the way back up, once all of its arguments are done. The work and value stacks are held by the
+     * machine and reused from one call to the next.
      *
      * @param start           The start offset of the term on the heap.
      * @param variableContext The variable context for the decoded variables. This may be shared amongst all variables
@@ -339,82 +421,127 @@ class HiTalkWAMResolvingMachine<P extends HiTalkWAMCompiledPredicate, Q extends
         /*log.fine("private Term decodeHeap(int start = " + start + ", Map<Integer, HtVariable> variableContext = " +
             variableContext + "): called");*/
 
-        // Used to hold the decoded argument in.
-        ITerm result = null;
-
-        // Dereference the initial heap pointer.
-        int addr = deref(start);
-        byte tag = getDerefTag();
-        int val = getDerefVal();
+        int tasks = 0;
+        int values = 0;
 
-        /*log.fine("addr = " + addr);*/
-        /*log.fine("tag = " + tag);*/
-        /*log.fine("val = " + val);*/
+        decodeTasks = ensureDecodeTasks(tasks + 2);
+        decodeTasks[tasks++] = start;
+        decodeTasks[tasks++] = DECODE_VISIT;
 
-        switch (tag) {
-            case REF: {
-                // Check if a variable for the address has already been created in this context, and use it if so.
-                HtVariable var = variableContext.get(val);
+        while (tasks > 0) {
+            int op = decodeTasks[--tasks];
+            int operand = decodeTasks[--tasks];
 
-                if (var == null) {
-                    var = new HtVariable(varNameId.decrementAndGet(), null, false);
+            // Build a functor from its arguments, which are the topmost values, in order.
+            if (op != DECODE_VISIT) {
+                ITerm[] arguments = new ITerm[op];
+                values -= op;
+                System.arraycopy(decodeValues, values, arguments, 0, op);
+                Arrays.fill(decodeValues, values, values + op, null);
 
-                    variableContext.put(val, var);
-                }
+                // Create a new functor to hold the decoded data.
+                decodeValues[values++] = new HtFunctor(operand, new ListTerm(Arrays.asList(arguments)));
 
-                result = var;
-                break;
+                continue;
             }
 
-            case STR: {
-                // Decode f/n from the STR data.
-                int fn = getHeap(val);
-                int f = fn & 0x00ffffff;
+            // Dereference the heap pointer.
+            deref(operand);
+            byte tag = getDerefTag();
+            int val = getDerefVal();
 
-                /*log.fine("fn = " + fn);*/
-                /*log.fine("f = " + f);*/
+            /*log.fine("tag = " + tag);*/
+            /*log.fine("val = " + val);*/
 
-                // Look up and initialize this functor name from the symbol table.
-                HtFunctorName functorName = getDeinternedFunctorName(f);
+            int f;
+            int arity;
+            int first;
 
-                // Fill in this functors name and arity and allocate storage space for its arguments.
-                int arity = functorName.getArity();
+            switch (tag) {
+                case REF: {
+                    // Check if a variable for the address has already been created in this context, and use it if so.
+                    HtVariable var = variableContext.get(val);
 
-                // Loop over all of the functors arguments, recursively decoding them.
-                List<ITerm> list = IntStream.range(0, arity).mapToObj(i -> decodeHeap(val + 1 + i, variableContext)).collect(Collectors.toList());
-                //                ITerm[] arguments = list.toArray(new ITerm[list.size()]);
+                    if (var == null) {
+                        var = new HtVariable(varNameId.decrementAndGet(), null, false);
 
-                // Create a new functor to hold the decoded data.
-                result = new HtFunctor(f, new ListTerm(list));
-                break;
-            }
-            case HiTalkWAMInstruction.CON: {
-                //Decode f/n from the CON data.
-                int f = val & 0x3fffffff;
+                        variableContext.put(val, var);
+                    }
 
-                /*log.fine("f = " + f);*/
+                    decodeValues = ensureDecodeValues(values + 1);
+                    decodeValues[values++] = var;
+                    continue;
+                }
 
-                // Create a new functor to hold the decoded data.
-                result = new HtFunctor<>(f, NIL);
-                break;
+                case HiTalkWAMInstruction.CON: {
+                    //Decode f/n from the CON data.
+                    decodeValues = ensureDecodeValues(values + 1);
+                    decodeValues[values++] = new HtFunctor(val & 0x3fffffff);
+                    continue;
+                }
+
+                case STR: {
+                    // Decode f/n from the STR data, and look up its arity from the symbol table.
+                    f = getHeap(val) & 0x00ffffff;
+                    arity = getDeinternedFunctorName(f).getArity();
+                    first = val + 1;
+                    break;
+                }
+
+                case HiTalkWAMInstruction.LIS: {
+                    // The list constructor is interned once, rather than on every list cell.
+                    if (consFunctor == -1) {
+                        consFunctor = internFunctorName(new HtFunctorName("cons", 2));
+                    }
+
+                    f = consFunctor;
+                    arity = 2;
+                    first = val;
+                    break;
+                }
+
+                default:
+                    throw new IllegalStateException("Encountered unknown tag entityKind on the heap.");
             }
-            case HiTalkWAMInstruction.LIS: {
-                HtFunctorName functorName = new HtFunctorName("cons", 2);
-                int f = internFunctorName(functorName);
-                // Fill in this functors name and arity and allocate storage space for its arguments.
-                int arity = functorName.getArity();
-                List<?> list = IntStream.range(0, arity).mapToObj(i ->
-                        decodeHeap(val + i, variableContext)).collect(Collectors.toList());
-                //                ITerm[] arguments = list.toArray(new ITerm[0]);
-//                 Loop over all of the functors arguments, recursively decoding them.
-                // Create a new functor to hold the decoded data.
-                result = new HtFunctor(f, new ListTerm<ITerm>((List<ITerm>) list));
-                break;
+
+            // Build the functor once its arguments are done, and decode the arguments first, leftmost on top.
+            decodeTasks = ensureDecodeTasks(tasks + 2 * (arity + 1));
+            decodeTasks[tasks++] = f;
+            decodeTasks[tasks++] = arity;
+
+            for (int i = arity - 1; i >= 0; i--) {
+                decodeTasks[tasks++] = first + i;
+                decodeTasks[tasks++] = DECODE_VISIT;
             }
-            default:
-                throw new IllegalStateException("Encountered unknown tag entityKind on the heap.");
         }
 
+        ITerm result = decodeValues[0];
+        decodeValues[0] = null;
+
         return result;
     }
+
+    /**
+     * Ensures that the work stack of the heap decoder has room for a number of entries, growing it by doubling if not.
+     *
+     * @param size The number of entries needed.
+     * @return The work stack.
+     */
+    private int[] ensureDecodeTasks(int size) {
+        return (decodeTasks.length >= size) ?
+                decodeTasks :
+                Arrays.copyOf(decodeTasks, Math.max(size, decodeTasks.length << 1));
+    }
+
+    /**
+     * Ensures that the value stack of the heap decoder has room for a number of entries, growing it by doubling if not.
+     *
+     * @param size The number of entries needed.
+     * @return The value stack.
+     */
+    private ITerm[] ensureDecodeValues(int size) {
+        return (decodeValues.length >= size) ?
+                decodeValues :
+                Arrays.copyOf(decodeValues, Math.max(size, decodeValues.length << 1));
+    }
 }
@@ -0,0 +1,163 @@
+package org.ltc.hitalk.wam.machine;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * HtWAMDataArea is the data segment of the WAM, holding the registers, heap, stack, trail and unification stack in a
+ * single address range, as described in Appendix B.3. of "Warren's Abstract Machine: A Tutorial Reconstruction".
+ * <p>
+ * <p/>Rather than allocating the whole address range up front, the data area is split into fixed size segments that are
+ * held in a segment table. Segments are only allocated the first time a cell within them is written to, so every data
+ * area starts small and grows on demand towards its configured maximum. Since the address range itself never moves, no
+ * addresses need to be relocated when an area grows. Reads from a segment that has never been written to see a shared,
+ * all zero segment, so that the read path needs no checks at all.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Read and write cells by address.
+ * <tr><td> Allocate backing store for segments on demand. <td> {@link HtWAMMemoryConfig}.
+ * <tr><td> Release backing store for segments no longer in use.
+ * </table></pre>
+ */
+public
+class HtWAMDataArea {
+    /**
+     * The log2 of the number of cells in a segment.
+     */
+    private final int shift;
+
+    /**
+     * The mask to extract the offset of a cell within its segment.
+     */
+    private final int mask;
+
+    /**
+     * The total number of addressable cells.
+     */
+    private final int top;
+
+    /**
+     * The shared, never written to, segment that unallocated slots in the segment table point to.
+     */
+    private final int[] empty;
+
+    /**
+     * The segment table.
+     */
+    private final int[][] segments;
+
+    /**
+     * The number of segments that currently have backing store allocated to them.
+     */
+    private int allocated;
+
+    /**
+     * Creates a data area covering the address range described by a memory configuration.
+     *
+     * @param config The memory configuration.
+     */
+    public HtWAMDataArea(HtWAMMemoryConfig config) {
+        shift = config.getSegmentShift();
+        mask = (1 << shift) - 1;
+        top = config.getTop();
+        empty = new int[1 << shift];
+        segments = new int[(top >>> shift) + 1][];
+
+        Arrays.fill(segments, empty);
+    }
+
+    /**
+     * Reads a cell.
+     *
+     * @param addr The address of the cell.
+     * @return The contents of the cell.
+     */
+    public final int get(int addr) {
+        return segments[addr >>> shift][addr & mask];
+    }
+
+    /**
+     * Writes a cell, allocating the segment that it lives in if this is the first write to it.
+     *
+     * @param addr The address of the cell.
+     * @param val  The value to write.
+     */
+    public final void put(int addr, int val) {
+        int[] segment = segments[addr >>> shift];
+
+        if (segment == empty) {
+            segment = allocate(addr >>> shift);
+        }
+
+        segment[addr & mask] = val;
+    }
+
+    /**
+     * Provides the total number of addressable cells.
+     *
+     * @return The total number of addressable cells.
+     */
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * Provides the number of cells that currently have backing store allocated to them.
+     *
+     * @return The number of cells that currently have backing store allocated to them.
+     */
+    public int getAllocatedCells() {
+        return allocated << shift;
+    }
+
+    /**
+     * Releases the backing store of all segments that lie entirely within an address range. This is used to give memory
+     * back when a data area has shrunk, for example after backtracking or garbage collection.
+     *
+     * @param from The start of the address range, inclusive.
+     * @param to   The end of the address range, exclusive.
+     */
+    public void release(int from, int to) {
+        for (int i = (from + mask) >>> shift; (i + 1) << shift <= to; i++) {
+            if (segments[i] != empty) {
+                segments[i] = empty;
+                allocated--;
+            }
+        }
+    }
+
+    /**
+     * Copies the data area into a flat buffer. This is intended for debugging monitors only, as it materializes the whole
+     * address range.
+     *
+     * @return A copy of the data area.
+     */
+    public IntBuffer asIntBuffer() {
+        int[] copy = new int[top];
+
+        for (int i = 0; i < segments.length; i++) {
+            int base = i << shift;
+
+            if ((segments[i] != empty) && (base < top)) {
+                System.arraycopy(segments[i], 0, copy, base, Math.min(1 << shift, top - base));
+            }
+        }
+
+        return IntBuffer.wrap(copy).asReadOnlyBuffer();
+    }
+
+    /**
+     * Allocates backing store for a segment.
+     *
+     * @param index The index of the segment in the segment table.
+     * @return The newly allocated segment.
+     */
+    private int[] allocate(int index) {
+        int[] segment = new int[1 << shift];
+        segments[index] = segment;
+        allocated++;
+
+        return segment;
+    }
+}
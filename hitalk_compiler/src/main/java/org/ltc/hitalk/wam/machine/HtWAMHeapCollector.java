@@ -0,0 +1,552 @@
+package org.ltc.hitalk.wam.machine;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.*;
+import static org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.AMASK;
+import static org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.TSHIFT;
+
+/**
+ * HtWAMHeapCollector is a sliding mark-compact garbage collector for the heap of a {@link HiTalkWAMResolvingJavaMachine},
+ * along the lines of the collectors described by Appleby, Carlsson, Haridi and Sahlin, and by Bevemyr and Lindgren, for
+ * the WAM. A sliding collector keeps the live cells of the heap in their original order, which is essential in the WAM,
+ * as the heap is segmented by the choice points, and the trail condition compares addresses against HB.
+ * <p>
+ * <p/>The collector runs in four phases:
+ *
+ * <ol>
+ * <li>Mark. All heap cells reachable from the argument registers, the permanent variables of every environment frame
+ * reachable from the current environment or from any choice point, the arguments saved in choice points and the trail,
+ * are marked live.</li>
+ * <li>Update. Every pointer into the heap, held either in a live heap cell or in a root, is replaced with the address
+ * that the cell pointed to will have once the heap is compacted. The saved heap tops of the choice points are also moved
+ * down, so that each choice point continues to delimit the same cells.</li>
+ * <li>Slide. Live cells are copied down over the garbage, in ascending address order.</li>
+ * <li>Release. The segments of the data area above the new top of heap are given back.</li>
+ * </ol>
+ *
+ * The number of permanent variables live in a frame is not always the count held in the frame. Environment trimming
+ * lowers that count at every call, but a frame that a choice point will return into on backtracking still needs the
+ * variables that were live at the call the choice point returns to, even if later calls trimmed them. So the count of
+ * every frame but the current one is taken from the call instruction before the continuation that returns into it.
+ * A frame may be reached by several continuations, in which case the largest count is used.
+ * <p>
+ * <p/>The heap cells holding the functor of a structure carry the arity in their top byte, so unlike the classical
+ * formulations of these algorithms there are no spare bits in the cells to hold the mark or to thread pointers through.
+ * The mark bits, and the bits flagging functor cells, are held in bitmaps on the side instead. The forwarding address of
+ * a cell is computed from the number of live cells below it, which is kept per bitmap word, so no forwarding pointers
+ * need to be stored either.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Mark the live cells of the heap from the machine roots. <td> {@link HtWAMDataArea}.
+ * <tr><td> Compact the heap, preserving cell order.
+ * <tr><td> Relocate pointers into the heap held in roots, choice points and the trail.
+ * </table></pre>
+ */
+public
+class HtWAMHeapCollector {
+    /**
+     * The data area holding the heap.
+     */
+    private final HtWAMDataArea data;
+
+    /**
+     * The base address of the heap.
+     */
+    private final int heapBase;
+
+    /**
+     * The base address of the stack.
+     */
+    private final int stackBase;
+
+    /**
+     * The base address of the trail.
+     */
+    private final int trailBase;
+
+    /**
+     * The top of the heap, before the current collection.
+     */
+    private int oldTop;
+
+    /**
+     * The number of cells found to be live by the current collection.
+     */
+    private int live;
+
+    /**
+     * Holds the live marks, one bit per heap cell.
+     */
+    private long[] marks = new long[0];
+
+    /**
+     * Holds the flags marking functor cells, one bit per heap cell.
+     */
+    private long[] functors = new long[0];
+
+    /**
+     * Holds the number of live cells below the first cell of each word of the mark bitmap.
+     */
+    private int[] ranks = new int[0];
+
+    /**
+     * Holds pending cell contents still to be scanned by the mark phase.
+     */
+    private int[] pending = new int[1024];
+
+    /**
+     * The number of entries in the pending queue.
+     */
+    private int pendingTop;
+
+    /**
+     * Holds one more than the number of permanent variables scanned by the mark phase in the environment frame at each
+     * stack cell, or zero if no frame there has been scanned.
+     */
+    private int[] frames = new int[0];
+
+    /**
+     * The code area, holding the call instructions that continuations return after.
+     */
+    private ByteBuffer code;
+
+    /**
+     * The number of collections performed.
+     */
+    private int collections;
+
+    /**
+     * The total number of cells reclaimed over all collections.
+     */
+    private long reclaimed;
+
+    /**
+     * Creates a heap collector over a data area.
+     *
+     * @param data   The data area holding the heap.
+     * @param config The layout of the data area.
+     */
+    public HtWAMHeapCollector(HtWAMDataArea data, HtWAMMemoryConfig config) {
+        this.data = data;
+        heapBase = config.getHeapBase();
+        stackBase = config.getStackBase();
+        trailBase = config.getTrailBase();
+    }
+
+    /**
+     * Collects the heap. This may only be invoked at a call, where the only live registers are the arguments to the
+     * call, and the structure read/write pointer is dead.
+     *
+     * @param hp      The top of the heap.
+     * @param ep      The current environment frame.
+     * @param bp      The current choice point frame.
+     * @param trp     The top of the trail.
+     * @param numArgs The number of live argument registers.
+     * @param code    The code area.
+     * @return The top of the heap after collection.
+     */
+    public int collect(int hp, int ep, int bp, int trp, int numArgs, ByteBuffer code) {
+        this.code = code;
+        oldTop = hp;
+        prepare(ep, bp);
+
+        mark(ep, bp, trp, numArgs);
+        computeRanks();
+        update(ep, bp, trp, numArgs);
+        slide();
+
+        int newTop = heapBase + live;
+        data.release(newTop, oldTop);
+
+        collections++;
+        reclaimed += oldTop - newTop;
+
+        return newTop;
+    }
+
+    /**
+     * Provides the address that a heap address has been moved to by the most recent collection. For addresses of
+     * garbage cells, this is the address of the first live cell above it, which is what is needed to move the heap
+     * top boundaries recorded by choice points.
+     *
+     * @param addr The address before collection.
+     * @return The address after collection.
+     */
+    public int forward(int addr) {
+        if ((addr < heapBase) || (addr >= stackBase)) {
+            return addr;
+        }
+
+        if (addr >= oldTop) {
+            return heapBase + live + (addr - oldTop);
+        }
+
+        int offset = addr - heapBase;
+        int word = offset >>> 6;
+        long below = marks[word] & ((1L << (offset & 63)) - 1);
+
+        return heapBase + ranks[word] + Long.bitCount(below);
+    }
+
+    /**
+     * @return The number of collections performed.
+     */
+    public int getCollections() {
+        return collections;
+    }
+
+    /**
+     * @return The total number of cells reclaimed over all collections.
+     */
+    public long getReclaimed() {
+        return reclaimed;
+    }
+
+    /**
+     * Sizes and clears the bitmaps for a collection.
+     *
+     * @param ep The current environment frame.
+     * @param bp The current choice point frame.
+     */
+    private void prepare(int ep, int bp) {
+        int words = ((oldTop - heapBase) >>> 6) + 1;
+
+        if (marks.length < words) {
+            marks = new long[words];
+            functors = new long[words];
+            ranks = new int[words];
+        } else {
+            Arrays.fill(marks, 0, words, 0L);
+            Arrays.fill(functors, 0, words, 0L);
+        }
+
+        int stackCells = Math.max(Math.max(ep, bp), stackBase) - stackBase + 1;
+
+        if (frames.length < stackCells) {
+            frames = new int[stackCells];
+        } else {
+            Arrays.fill(frames, 0, stackCells, 0);
+        }
+
+        live = 0;
+    }
+
+    /**
+     * Marks all heap cells reachable from the roots.
+     *
+     * @param ep      The current environment frame.
+     * @param bp      The current choice point frame.
+     * @param trp     The top of the trail.
+     * @param numArgs The number of live argument registers.
+     */
+    private void mark(int ep, int bp, int trp, int numArgs) {
+        // The argument registers.
+        for (int i = 0; i < numArgs; i++) {
+            markValue(data.get(i));
+        }
+
+        // The environment chain from the current frame, which has just been trimmed to the count of the current call.
+        if (ep >= stackBase) {
+            markEnvironments(ep, data.get(ep + 2));
+        }
+
+        // The arguments saved in choice points, and the environment chains that they restore on backtracking.
+        for (int b = bp; b >= stackBase; ) {
+            int n = data.get(b);
+
+            for (int i = 1; i <= n; i++) {
+                markValue(data.get(b + i));
+            }
+
+            int e = data.get(b + n + 1);
+
+            if (e >= stackBase) {
+                markEnvironments(e, permsBefore(data.get(b + n + 2), e));
+            }
+
+            b = data.get(b + n + 3);
+        }
+
+        // The trail. Cells on the trail may be unreachable, but are kept as they must be reset on backtracking.
+        for (int t = trailBase; t < trp; t++) {
+            markCell(data.get(t));
+        }
+
+        drain();
+    }
+
+    /**
+     * Marks the permanent variables of a chain of environment frames, stopping at any frame already scanned with at
+     * least as many variables, as the frames above it have then been scanned from the same continuations.
+     *
+     * @param e The first environment frame in the chain.
+     * @param n The number of permanent variables live in the first frame.
+     */
+    private void markEnvironments(int e, int n) {
+        while (true) {
+            int offset = e - stackBase;
+            int scanned = frames[offset] - 1;
+
+            if (n <= scanned) {
+                return;
+            }
+
+            frames[offset] = n + 1;
+
+            for (int i = Math.max(scanned, 0); i < n; i++) {
+                markValue(data.get(e + 3 + i));
+            }
+
+            int cp = data.get(e + 1);
+            e = data.get(e);
+
+            if (e < stackBase) {
+                return;
+            }
+
+            n = permsBefore(cp, e);
+        }
+    }
+
+    /**
+     * Provides the number of permanent variables live in an environment frame when a continuation returns into it. This
+     * is the count of the call instruction that the continuation follows, which may be larger than the count now held
+     * in the frame if later calls from the frame have trimmed it.
+     *
+     * @param cp The continuation.
+     * @param e  The environment frame that the continuation returns into.
+     * @return The number of permanent variables live in the frame.
+     */
+    int permsBefore(int cp, int e) {
+        int call = cp - 7;
+
+        if ((code != null) && (call >= 0) && (cp <= code.limit())) {
+            byte op = code.get(call);
+
+            if ((op == CALL) || (op == CALL_INTERNAL)) {
+                return code.get(cp - 1);
+            }
+        }
+
+        // Not the continuation of a call, such as that of the query itself, which is never trimmed.
+        return data.get(e + 2);
+    }
+
+    /**
+     * Marks the cells referenced by the contents of a cell.
+     *
+     * @param value The contents of a cell.
+     */
+    private void markValue(int value) {
+        int addr = value & AMASK;
+
+        if (!inHeap(addr)) {
+            return;
+        }
+
+        switch ((byte) (value >>> TSHIFT)) {
+            case REF:
+                markCell(addr);
+                break;
+
+            case LIS:
+                markCell(addr);
+                markCell(addr + 1);
+                break;
+
+            case STR: {
+                if (isMarked(addr)) {
+                    break;
+                }
+
+                setBit(marks, addr);
+                setBit(functors, addr);
+                live++;
+
+                int arity = (byte) (data.get(addr) >>> 24);
+
+                for (int i = 1; (i <= arity) && inHeap(addr + i); i++) {
+                    markCell(addr + i);
+                }
+
+                break;
+            }
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Marks a single heap cell live, and queues its contents to be scanned.
+     *
+     * @param addr The address of the cell.
+     */
+    private void markCell(int addr) {
+        if (!inHeap(addr) || isMarked(addr)) {
+            return;
+        }
+
+        setBit(marks, addr);
+        live++;
+        push(data.get(addr));
+    }
+
+    /**
+     * Scans queued cell contents until none are left.
+     */
+    private void drain() {
+        while (pendingTop > 0) {
+            markValue(pending[--pendingTop]);
+        }
+    }
+
+    /**
+     * Queues cell contents to be scanned.
+     *
+     * @param value The cell contents.
+     */
+    private void push(int value) {
+        if (pendingTop == pending.length) {
+            pending = Arrays.copyOf(pending, pendingTop << 1);
+        }
+
+        pending[pendingTop++] = value;
+    }
+
+    /**
+     * Counts the live cells below each word of the mark bitmap.
+     */
+    private void computeRanks() {
+        int words = ((oldTop - heapBase) >>> 6) + 1;
+        int count = 0;
+
+        for (int i = 0; i < words; i++) {
+            ranks[i] = count;
+            count += Long.bitCount(marks[i]);
+        }
+    }
+
+    /**
+     * Relocates all pointers into the heap.
+     *
+     * @param ep      The current environment frame.
+     * @param bp      The current choice point frame.
+     * @param trp     The top of the trail.
+     * @param numArgs The number of live argument registers.
+     */
+    private void update(int ep, int bp, int trp, int numArgs) {
+        for (int i = 0; i < numArgs; i++) {
+            updateCell(i);
+        }
+
+        // Every environment frame scanned by the mark phase has the number of variables scanned recorded.
+        int stackCells = Math.max(Math.max(ep, bp), stackBase) - stackBase + 1;
+
+        for (int offset = 0; offset < stackCells; offset++) {
+            int n = frames[offset] - 1;
+
+            for (int i = 0; i < n; i++) {
+                updateCell(stackBase + offset + 3 + i);
+            }
+        }
+
+        for (int b = bp; b >= stackBase; ) {
+            int n = data.get(b);
+
+            for (int i = 1; i <= n; i++) {
+                updateCell(b + i);
+            }
+
+            data.put(b + n + 6, forward(data.get(b + n + 6)));
+            b = data.get(b + n + 3);
+        }
+
+        for (int t = trailBase; t < trp; t++) {
+            data.put(t, forward(data.get(t)));
+        }
+
+        int words = ((oldTop - heapBase) >>> 6) + 1;
+
+        for (int w = 0; w < words; w++) {
+            for (long bits = marks[w] & ~functors[w]; bits != 0; bits &= bits - 1) {
+                updateCell(heapBase + (w << 6) + Long.numberOfTrailingZeros(bits));
+            }
+        }
+    }
+
+    /**
+     * Relocates the pointer held in a cell, if it holds one into the heap.
+     *
+     * @param addr The address of the cell.
+     */
+    private void updateCell(int addr) {
+        int value = data.get(addr);
+
+        if ((byte) (value >>> TSHIFT) == CON) {
+            return;
+        }
+
+        int ref = value & AMASK;
+
+        if (inHeap(ref)) {
+            data.put(addr, (value & ~AMASK) | forward(ref));
+        }
+    }
+
+    /**
+     * Slides the live cells down over the garbage, preserving their order.
+     */
+    private void slide() {
+        int words = ((oldTop - heapBase) >>> 6) + 1;
+        int to = heapBase;
+
+        for (int w = 0; w < words; w++) {
+            for (long bits = marks[w]; bits != 0; bits &= bits - 1) {
+                int from = heapBase + (w << 6) + Long.numberOfTrailingZeros(bits);
+
+                if (from != to) {
+                    data.put(to, data.get(from));
+                }
+
+                to++;
+            }
+        }
+    }
+
+    /**
+     * Checks if an address lies within the part of the heap being collected.
+     *
+     * @param addr The address to check.
+     * @return <tt>true</tt> iff the address is within the heap.
+     */
+    private boolean inHeap(int addr) {
+        return (addr >= heapBase) && (addr < oldTop);
+    }
+
+    /**
+     * Checks if a heap cell has been marked live.
+     *
+     * @param addr The address of the cell.
+     * @return <tt>true</tt> iff the cell has been marked live.
+     */
+    private boolean isMarked(int addr) {
+        int offset = addr - heapBase;
+
+        return (marks[offset >>> 6] & (1L << (offset & 63))) != 0;
+    }
+
+    /**
+     * Sets the bit for a heap cell in a bitmap.
+     *
+     * @param bitmap The bitmap.
+     * @param addr   The address of the cell.
+     */
+    private void setBit(long[] bitmap, int addr) {
+        int offset = addr - heapBase;
+        bitmap[offset >>> 6] |= 1L << (offset & 63);
+    }
+}
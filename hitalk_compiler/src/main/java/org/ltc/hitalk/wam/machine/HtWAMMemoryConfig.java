@@ -0,0 +1,261 @@
+package org.ltc.hitalk.wam.machine;
+
+/**
+ * HtWAMMemoryConfig describes the sizing of the data areas of a {@link HiTalkWAMResolvingJavaMachine}. The sizes given
+ * here are the maximum number of cells that each area may grow to; the backing store for the areas is only allocated on
+ * demand, one segment at a time, by {@link HtWAMDataArea}. A small query therefore only pays for the segments that it
+ * actually touches, whilst a large one may grow up to the configured limits without recompiling the machine.
+ * <p>
+ * <p/>The layout of the data area is fixed by the configuration, registers first, then the heap, stack, trail and finally
+ * the unification push down list at the top. As all areas keep their base address for the lifetime of the machine,
+ * growing an area never has to relocate any addresses held in heap cells or stack frames.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Hold the maximum sizes of the machines data areas.
+ * <tr><td> Compute the base address of each data area.
+ * <tr><td> Hold the segment size used to grow the data areas on demand. <td> {@link HtWAMDataArea}.
+ * </table></pre>
+ */
+public
+class HtWAMMemoryConfig {
+    /**
+     * The highest address that can be encoded in a tagged heap cell.
+     */
+    private static final int MAX_ADDRESS = HiTalkWAMResolvingJavaMachine.AMASK;
+
+    /**
+     * The default sizing, matching the fixed sizes that the machine has always used.
+     */
+    public static final HtWAMMemoryConfig DEFAULT =
+            new HtWAMMemoryConfig(256, 10000000, 1000000, 10000, 10000, 1000000, 16);
+
+    /**
+     * A sizing suitable for running many small machines in one JVM.
+     */
+    public static final HtWAMMemoryConfig SMALL =
+            new HtWAMMemoryConfig(256, 1000000, 100000, 100000, 10000, 100000, 12);
+
+    /**
+     * The number of registers.
+     */
+    private final int regSize;
+
+    /**
+     * The maximum size of the heap in cells.
+     */
+    private final int heapSize;
+
+    /**
+     * The maximum size of the stack in cells.
+     */
+    private final int stackSize;
+
+    /**
+     * The maximum size of the trail in cells.
+     */
+    private final int trailSize;
+
+    /**
+     * The maximum depth of the unification stack in cells.
+     */
+    private final int pdlSize;
+
+    /**
+     * The initial size of the code area in bytes. The code area grows by doubling when it fills up.
+     */
+    private final int codeSize;
+
+    /**
+     * The log2 of the number of cells in a single segment of the data area.
+     */
+    private final int segmentShift;
+
+    /**
+     * Creates a memory configuration.
+     *
+     * @param regSize      The number of registers.
+     * @param heapSize     The maximum size of the heap in cells.
+     * @param stackSize    The maximum size of the stack in cells.
+     * @param trailSize    The maximum size of the trail in cells.
+     * @param pdlSize      The maximum depth of the unification stack in cells.
+     * @param codeSize     The initial size of the code area in bytes.
+     * @param segmentShift The log2 of the number of cells in a single segment of the data area.
+     */
+    public HtWAMMemoryConfig(int regSize, int heapSize, int stackSize, int trailSize, int pdlSize, int codeSize,
+                             int segmentShift) {
+        if ((regSize <= 0) || (heapSize <= 0) || (stackSize <= 0) || (trailSize <= 0) || (pdlSize <= 0) ||
+                (codeSize <= 0)) {
+            throw new IllegalArgumentException("All data area sizes must be positive.");
+        }
+
+        if ((segmentShift < 8) || (segmentShift > 24)) {
+            throw new IllegalArgumentException("The segment shift must be between 8 and 24.");
+        }
+
+        if ((long) regSize + heapSize + stackSize + trailSize + pdlSize > MAX_ADDRESS) {
+            throw new IllegalArgumentException("The data area cannot be addressed by a tagged heap cell.");
+        }
+
+        this.regSize = regSize;
+        this.heapSize = heapSize;
+        this.stackSize = stackSize;
+        this.trailSize = trailSize;
+        this.pdlSize = pdlSize;
+        this.codeSize = codeSize;
+        this.segmentShift = segmentShift;
+    }
+
+    /**
+     * Creates a copy of this configuration with a different maximum heap size.
+     *
+     * @param heapSize The maximum size of the heap in cells.
+     * @return A copy of this configuration with a different maximum heap size.
+     */
+    public HtWAMMemoryConfig withHeapSize(int heapSize) {
+        return new HtWAMMemoryConfig(regSize, heapSize, stackSize, trailSize, pdlSize, codeSize, segmentShift);
+    }
+
+    /**
+     * Creates a copy of this configuration with a different maximum stack size.
+     *
+     * @param stackSize The maximum size of the stack in cells.
+     * @return A copy of this configuration with a different maximum stack size.
+     */
+    public HtWAMMemoryConfig withStackSize(int stackSize) {
+        return new HtWAMMemoryConfig(regSize, heapSize, stackSize, trailSize, pdlSize, codeSize, segmentShift);
+    }
+
+    /**
+     * Creates a copy of this configuration with a different maximum trail size.
+     *
+     * @param trailSize The maximum size of the trail in cells.
+     * @return A copy of this configuration with a different maximum trail size.
+     */
+    public HtWAMMemoryConfig withTrailSize(int trailSize) {
+        return new HtWAMMemoryConfig(regSize, heapSize, stackSize, trailSize, pdlSize, codeSize, segmentShift);
+    }
+
+    /**
+     * Creates a copy of this configuration with a different maximum unification stack depth.
+     *
+     * @param pdlSize The maximum depth of the unification stack in cells.
+     * @return A copy of this configuration with a different maximum unification stack depth.
+     */
+    public HtWAMMemoryConfig withPdlSize(int pdlSize) {
+        return new HtWAMMemoryConfig(regSize, heapSize, stackSize, trailSize, pdlSize, codeSize, segmentShift);
+    }
+
+    /**
+     * Creates a copy of this configuration with a different initial code area size.
+     *
+     * @param codeSize The initial size of the code area in bytes.
+     * @return A copy of this configuration with a different initial code area size.
+     */
+    public HtWAMMemoryConfig withCodeSize(int codeSize) {
+        return new HtWAMMemoryConfig(regSize, heapSize, stackSize, trailSize, pdlSize, codeSize, segmentShift);
+    }
+
+    /**
+     * Creates a copy of this configuration with a different segment size.
+     *
+     * @param segmentShift The log2 of the number of cells in a single segment of the data area.
+     * @return A copy of this configuration with a different segment size.
+     */
+    public HtWAMMemoryConfig withSegmentShift(int segmentShift) {
+        return new HtWAMMemoryConfig(regSize, heapSize, stackSize, trailSize, pdlSize, codeSize, segmentShift);
+    }
+
+    /**
+     * @return The number of registers.
+     */
+    public int getRegSize() {
+        return regSize;
+    }
+
+    /**
+     * @return The maximum size of the heap in cells.
+     */
+    public int getHeapSize() {
+        return heapSize;
+    }
+
+    /**
+     * @return The maximum size of the stack in cells.
+     */
+    public int getStackSize() {
+        return stackSize;
+    }
+
+    /**
+     * @return The maximum size of the trail in cells.
+     */
+    public int getTrailSize() {
+        return trailSize;
+    }
+
+    /**
+     * @return The maximum depth of the unification stack in cells.
+     */
+    public int getPdlSize() {
+        return pdlSize;
+    }
+
+    /**
+     * @return The initial size of the code area in bytes.
+     */
+    public int getCodeSize() {
+        return codeSize;
+    }
+
+    /**
+     * @return The log2 of the number of cells in a single segment of the data area.
+     */
+    public int getSegmentShift() {
+        return segmentShift;
+    }
+
+    /**
+     * @return The offset of the base of the heap in the data area.
+     */
+    public int getHeapBase() {
+        return regSize;
+    }
+
+    /**
+     * @return The offset of the base of the stack in the data area.
+     */
+    public int getStackBase() {
+        return regSize + heapSize;
+    }
+
+    /**
+     * @return The offset of the base of the trail in the data area.
+     */
+    public int getTrailBase() {
+        return regSize + heapSize + stackSize;
+    }
+
+    /**
+     * @return The offset of the base of the unification stack in the data area.
+     */
+    public int getPdlBase() {
+        return regSize + heapSize + stackSize + trailSize;
+    }
+
+    /**
+     * @return The highest address in the data area.
+     */
+    public int getTop() {
+        return regSize + heapSize + stackSize + trailSize + pdlSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return "HtWAMMemoryConfig: [ regSize = " + regSize + ", heapSize = " + heapSize + ", stackSize = " + stackSize +
+                ", trailSize = " + trailSize + ", pdlSize = " + pdlSize + ", codeSize = " + codeSize +
+                ", segmentShift = " + segmentShift + " ]";
+    }
+}
@@ -0,0 +1,144 @@
+package org.ltc.hitalk.wam.machine;
+
+/**
+ * HtWAMResourceLimits describes the limits placed on the resources that a single query may use on a
+ * {@link HiTalkWAMResolvingJavaMachine}, so that a runaway query cannot take over the machine, or the JVM that it runs
+ * in. A query that exceeds any of its limits is stopped with a resource error, naming the resource that ran out.
+ * <p>
+ * <p/>The limits are checked cooperatively by the machine on calls, rather than on every instruction, so that they
+ * cost next to nothing when they are not exceeded. Steps are counted exactly, but the time and the choice points are
+ * only checked every so many calls, and the heap is only checked when it is due to be garbage collected, so these may
+ * be overrun by a little before the query is stopped. A limit of zero means no limit.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities
+ * <tr><td> Hold the maximum number of steps that a query may take.
+ * <tr><td> Hold the maximum size of the heap whilst a query runs.
+ * <tr><td> Hold the maximum time that a query may run for.
+ * <tr><td> Hold the maximum number of stack cells that choice points may hold on to.
+ * </table></pre>
+ */
+public
+class HtWAMResourceLimits {
+    /**
+     * No limits at all.
+     */
+    public static final HtWAMResourceLimits NONE = new HtWAMResourceLimits(0, 0, 0, 0);
+
+    /**
+     * The maximum number of steps that a query may take, where a step is a call, zero for no limit.
+     */
+    private final long maxSteps;
+
+    /**
+     * The maximum number of live cells on the heap, zero for no limit.
+     */
+    private final int maxHeapCells;
+
+    /**
+     * The maximum time that a query may spend running in milliseconds, zero for no limit.
+     */
+    private final long maxTime;
+
+    /**
+     * The maximum depth of the stack at the most recent choice point in cells, zero for no limit. This counts the cells
+     * of every frame below the choice point, environments as well as choice points, rather than the number of choice
+     * points, as that is what the stack holds on to.
+     */
+    private final int maxChoicePointCells;
+
+    /**
+     * Creates a set of resource limits.
+     *
+     * @param maxSteps            The maximum number of steps that a query may take, where a step is a call.
+     * @param maxHeapCells        The maximum number of live cells on the heap.
+     * @param maxTime             The maximum time that a query may spend running in milliseconds.
+     * @param maxChoicePointCells The maximum depth of the stack at the most recent choice point in cells.
+     */
+    public HtWAMResourceLimits(long maxSteps, int maxHeapCells, long maxTime, int maxChoicePointCells) {
+        if ((maxSteps < 0) || (maxHeapCells < 0) || (maxTime < 0) || (maxChoicePointCells < 0)) {
+            throw new IllegalArgumentException("Resource limits must not be negative.");
+        }
+
+        this.maxSteps = maxSteps;
+        this.maxHeapCells = maxHeapCells;
+        this.maxTime = maxTime;
+        this.maxChoicePointCells = maxChoicePointCells;
+    }
+
+    /**
+     * Creates a copy of these limits with a different maximum number of steps.
+     *
+     * @param maxSteps The maximum number of steps that a query may take, where a step is a call.
+     * @return A copy of these limits with a different maximum number of steps.
+     */
+    public HtWAMResourceLimits withMaxSteps(long maxSteps) {
+        return new HtWAMResourceLimits(maxSteps, maxHeapCells, maxTime, maxChoicePointCells);
+    }
+
+    /**
+     * Creates a copy of these limits with a different maximum heap size.
+     *
+     * @param maxHeapCells The maximum number of live cells on the heap.
+     * @return A copy of these limits with a different maximum heap size.
+     */
+    public HtWAMResourceLimits withMaxHeapCells(int maxHeapCells) {
+        return new HtWAMResourceLimits(maxSteps, maxHeapCells, maxTime, maxChoicePointCells);
+    }
+
+    /**
+     * Creates a copy of these limits with a different maximum running time.
+     *
+     * @param maxTime The maximum time that a query may spend running in milliseconds.
+     * @return A copy of these limits with a different maximum running time.
+     */
+    public HtWAMResourceLimits withMaxTime(long maxTime) {
+        return new HtWAMResourceLimits(maxSteps, maxHeapCells, maxTime, maxChoicePointCells);
+    }
+
+    /**
+     * Creates a copy of these limits with a different maximum number of stack cells held on to by choice points.
+     *
+     * @param maxChoicePointCells The maximum depth of the stack at the most recent choice point in cells.
+     * @return A copy of these limits with a different maximum number of stack cells held on to by choice points.
+     */
+    public HtWAMResourceLimits withMaxChoicePointCells(int maxChoicePointCells) {
+        return new HtWAMResourceLimits(maxSteps, maxHeapCells, maxTime, maxChoicePointCells);
+    }
+
+    /**
+     * @return The maximum number of steps that a query may take, where a step is a call, zero for no limit.
+     */
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+
+    /**
+     * @return The maximum number of live cells on the heap, zero for no limit.
+     */
+    public int getMaxHeapCells() {
+        return maxHeapCells;
+    }
+
+    /**
+     * @return The maximum time that a query may spend running in milliseconds, zero for no limit.
+     */
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    /**
+     * @return The maximum depth of the stack at the most recent choice point in cells, zero for no limit.
+     */
+    public int getMaxChoicePointCells() {
+        return maxChoicePointCells;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return "HtWAMResourceLimits: [ maxSteps = " + maxSteps + ", maxHeapCells = " + maxHeapCells + ", maxTime = " +
+                maxTime + ", maxChoicePointCells = " + maxChoicePointCells + " ]";
+    }
+}
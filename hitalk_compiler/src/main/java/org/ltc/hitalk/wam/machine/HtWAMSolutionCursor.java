@@ -0,0 +1,306 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.ltc.hitalk.term.HtVariable;
+import org.ltc.hitalk.term.ITerm;
+import org.ltc.hitalk.wam.compiler.HtFunctorName;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.*;
+
+/**
+ * HtWAMSolutionCursor steps through the solutions to a query, and reads their bindings straight off the heap of the
+ * machine, without decoding them into terms. Each binding is given as the heap address of the term that the variable
+ * is bound to, and the term is taken apart with the typed accessors, which follow the references on the heap for
+ * themselves. Nothing is allocated per solution, so queries with very many solutions can be streamed through at the
+ * speed of the machine. Where a term is wanted after all, {@link #term(int)} decodes it.
+ * <p>
+ * <p/>Heap addresses are only valid until the cursor is moved on to the next solution, as backtracking discards the
+ * heap that they point into. A cursor is only valid for as long as its query is the current query of the machine.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Step through the solutions to a query. <td> {@link HiTalkWAMResolvingMachine}.
+ * <tr><td> Provide the heap address of the binding of each variable in the query.
+ * <tr><td> Take apart terms on the heap by address.
+ * <tr><td> Decode a binding into a term on demand. <td> {@link ITerm}.
+ * </table></pre>
+ */
+public
+class HtWAMSolutionCursor {
+    /**
+     * The machine to run the query on.
+     */
+    private final HiTalkWAMResolvingMachine<?, ?> machine;
+
+    /**
+     * The query to find the solutions to.
+     */
+    private final HiTalkWAMCompiledQuery query;
+
+    /**
+     * The registers holding the non-anonymous free variables of the query.
+     */
+    private final byte[] registers;
+
+    /**
+     * The interned names of the non-anonymous free variables of the query.
+     */
+    private final int[] names;
+
+    /**
+     * The variable context used to decode terms from the current solution.
+     */
+    private final Map<Integer, HtVariable> variableContext = new HashMap<>();
+
+    /**
+     * The number of solutions found so far.
+     */
+    private long solutions;
+
+    /**
+     * <tt>true</tt> once there are no more solutions.
+     */
+    private boolean exhausted;
+
+    /**
+     * Creates a cursor over the solutions to a query, positioned before the first solution.
+     *
+     * @param machine The machine to run the query on.
+     * @param query   The query, which must be the current query of the machine.
+     */
+    HtWAMSolutionCursor(HiTalkWAMResolvingMachine<?, ?> machine, HiTalkWAMCompiledQuery query) {
+        this.machine = machine;
+        this.query = query;
+
+        Map<Byte, Integer> varNames = query.getVarNames();
+        byte[] regs = new byte[varNames.size()];
+        int[] vars = new int[varNames.size()];
+        int n = 0;
+
+        for (Map.Entry<Byte, Integer> entry : varNames.entrySet()) {
+            if (query.getNonAnonymousFreeVariables().contains(entry.getValue())) {
+                regs[n] = entry.getKey();
+                vars[n] = entry.getValue();
+                n++;
+            }
+        }
+
+        registers = Arrays.copyOf(regs, n);
+        names = Arrays.copyOf(vars, n);
+    }
+
+    /**
+     * Moves on to the next solution, backtracking into the query for it.
+     *
+     * @return <tt>true</tt> iff there is another solution.
+     */
+    public boolean next() {
+        if (exhausted) {
+            return false;
+        }
+
+        variableContext.clear();
+
+        if (!machine.execute(query.getCallPoint())) {
+            exhausted = true;
+
+            return false;
+        }
+
+        solutions++;
+
+        return true;
+    }
+
+    /**
+     * @return The number of solutions found so far.
+     */
+    public long getSolutionCount() {
+        return solutions;
+    }
+
+    /**
+     * @return The number of non-anonymous free variables in the query.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Provides the name of a variable in the query.
+     *
+     * @param i The position of the variable, from zero up to {@link #size()}.
+     * @return The interned name of the variable.
+     */
+    public int getVariableName(int i) {
+        return names[i];
+    }
+
+    /**
+     * Finds the position of a variable in the query by name.
+     *
+     * @param name The interned name of the variable.
+     * @return The position of the variable, or <tt>-1</tt> if it is not a non-anonymous free variable of the query.
+     */
+    public int indexOf(int name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == name) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Provides the binding of a variable in the current solution.
+     *
+     * @param i The position of the variable, from zero up to {@link #size()}.
+     * @return The heap address of the term that the variable is bound to.
+     */
+    public int binding(int i) {
+        return machine.derefStack(registers[i]);
+    }
+
+    /**
+     * Provides the tag of a term on the heap.
+     *
+     * @param addr The heap address of the term.
+     * @return The tag of the term, one of REF, STR, CON or LIS.
+     */
+    public byte tag(int addr) {
+        machine.deref(addr);
+
+        return machine.getDerefTag();
+    }
+
+    /**
+     * @param addr The heap address of a term.
+     * @return <tt>true</tt> iff the term is an unbound variable.
+     */
+    public boolean isVar(int addr) {
+        return tag(addr) == REF;
+    }
+
+    /**
+     * @param addr The heap address of a term.
+     * @return <tt>true</tt> iff the term is an atom.
+     */
+    public boolean isAtom(int addr) {
+        return tag(addr) == CON;
+    }
+
+    /**
+     * @param addr The heap address of a term.
+     * @return <tt>true</tt> iff the term is a compound term other than a list cell.
+     */
+    public boolean isCompound(int addr) {
+        return tag(addr) == STR;
+    }
+
+    /**
+     * @param addr The heap address of a term.
+     * @return <tt>true</tt> iff the term is a list cell.
+     */
+    public boolean isList(int addr) {
+        return tag(addr) == LIS;
+    }
+
+    /**
+     * Provides the interned functor name of an atom or a compound term.
+     *
+     * @param addr The heap address of the term.
+     * @return The interned functor name of the term.
+     * @throws IllegalArgumentException If the term is a variable or a list cell.
+     */
+    public int functor(int addr) {
+        machine.deref(addr);
+        int val = machine.getDerefVal();
+
+        switch (machine.getDerefTag()) {
+            case CON:
+                return val & 0x3fffffff;
+            case STR:
+                return machine.getHeap(val) & 0x00ffffff;
+            default:
+                throw new IllegalArgumentException("The term at " + addr + " has no functor.");
+        }
+    }
+
+    /**
+     * Provides the functor name of an atom or a compound term.
+     *
+     * @param addr The heap address of the term.
+     * @return The functor name of the term.
+     * @throws IllegalArgumentException If the term is a variable or a list cell.
+     */
+    public HtFunctorName functorName(int addr) {
+        return machine.getDeinternedFunctorName(functor(addr));
+    }
+
+    /**
+     * Provides the name of an atom or of the functor of a compound term.
+     *
+     * @param addr The heap address of the term.
+     * @return The name of the term.
+     * @throws IllegalArgumentException If the term is a variable or a list cell.
+     */
+    public String name(int addr) {
+        return functorName(addr).getName();
+    }
+
+    /**
+     * Provides the number of arguments of a term, which is two for a list cell and none for an atom or a variable.
+     *
+     * @param addr The heap address of the term.
+     * @return The number of arguments of the term.
+     */
+    public int arity(int addr) {
+        switch (tag(addr)) {
+            case STR:
+                return functorName(addr).getArity();
+            case LIS:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Provides an argument of a compound term or a list cell, where the head of a list cell is argument zero and its
+     * tail is argument one.
+     *
+     * @param addr The heap address of the term.
+     * @param i    The position of the argument, from zero.
+     * @return The heap address of the argument.
+     * @throws IllegalArgumentException If the term has no arguments.
+     */
+    public int arg(int addr, int i) {
+        machine.deref(addr);
+        int val = machine.getDerefVal();
+
+        switch (machine.getDerefTag()) {
+            case STR:
+                return val + 1 + i;
+            case LIS:
+                return val + i;
+            default:
+                throw new IllegalArgumentException("The term at " + addr + " has no arguments.");
+        }
+    }
+
+    /**
+     * Decodes the binding of a variable in the current solution into a term. Variables shared between bindings are
+     * decoded into the same variable, for as long as the cursor stays on the solution.
+     *
+     * @param i The position of the variable, from zero up to {@link #size()}.
+     * @return The term that the variable is bound to.
+     */
+    public ITerm term(int i) {
+        return machine.decodeHeap(binding(i), variableContext);
+    }
+}
@@ -0,0 +1,23 @@
+package org.ltc.hitalk.wam.machine;
+
+/**
+ * HtWAMSolutionHandler is called back with each solution to a query, as the machine finds them, by
+ * {@link HiTalkWAMResolvingMachine#resolveEach(HtWAMSolutionHandler)}. The bindings of the solution are read through
+ * the cursor straight from the heap, and are only valid until the handler returns.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Consume a solution to a query. <td> {@link HtWAMSolutionCursor}.
+ * <tr><td> Decide whether to look for more solutions.
+ * </table></pre>
+ */
+public
+interface HtWAMSolutionHandler {
+    /**
+     * Consumes a solution to a query.
+     *
+     * @param cursor The cursor onto the bindings of the solution.
+     * @return <tt>true</tt> to look for more solutions, <tt>false</tt> to stop.
+     */
+    boolean onSolution(HtWAMSolutionCursor cursor);
+}
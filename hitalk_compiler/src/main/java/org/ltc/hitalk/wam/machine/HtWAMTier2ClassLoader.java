@@ -0,0 +1,31 @@
+package org.ltc.hitalk.wam.machine;
+
+/**
+ * HtWAMTier2ClassLoader loads the classes generated by a {@link HtWAMTier2Compiler}. Each compiler has a class loader
+ * of its own, so that the generated classes can be unloaded along with the machine, or when the machine is reset.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Define generated classes from their class files.
+ * </table></pre>
+ */
+public
+class HtWAMTier2ClassLoader extends ClassLoader {
+    /**
+     * Creates a class loader for generated classes, that can see the classes of the machine.
+     */
+    public HtWAMTier2ClassLoader() {
+        super(HtWAMTier2Code.class.getClassLoader());
+    }
+
+    /**
+     * Defines a generated class.
+     *
+     * @param name      The binary name of the class.
+     * @param classFile The class file.
+     * @return The class.
+     */
+    public Class<?> define(String name, byte[] classFile) {
+        return defineClass(name, classFile, 0, classFile.length);
+    }
+}
@@ -0,0 +1,29 @@
+package org.ltc.hitalk.wam.machine;
+
+/**
+ * HtWAMTier2Code is implemented by the JVM classes that {@link HtWAMTier2Compiler} generates for hot predicates. A
+ * compiled predicate runs on the registers and data areas of the machine that it was compiled for, through the
+ * operations of the machine, from any instruction in the predicate, until it reaches an instruction that it leaves to
+ * the interpreter, such as a call, or it fails.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Run a predicate from an instruction within it. <td> {@link HtWAMTier2Operations}.
+ * </table></pre>
+ */
+public
+interface HtWAMTier2Code {
+    /**
+     * The result of running compiled code that fails, and so must backtrack.
+     */
+    int FAIL = -1;
+
+    /**
+     * Runs the compiled predicate.
+     *
+     * @param m  The operations of the machine to run on.
+     * @param ip The code address of the instruction to start from.
+     * @return The code address of the instruction for the interpreter to continue from, or {@link #FAIL}.
+     */
+    int run(HtWAMTier2Operations m, int ip);
+}
@@ -0,0 +1,1000 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * HtWAMTier2Compiler is the second tier of execution of a {@link HiTalkWAMResolvingJavaMachine}. The interpreter counts
+ * the calls made to each predicate, and once a predicate has been called often enough, its byte code is translated into
+ * a JVM class of its own, which is loaded through a {@link HtWAMTier2ClassLoader} and run in place of the byte code from
+ * then on. The JVM then compiles the hot predicates to native code, as it would any other hot method.
+ * <p>
+ * <p/>The generated class is a switch over the addresses of the instructions of the predicate, each case being a call to
+ * the operation of the instruction, see for example {@link HtWAMTier2Operations#getStruc}, with all of its operands,
+ * the registers, stack slots, functors and constants, as literals. Jumps within the predicate become jumps within the
+ * generated method, so that the instruction fetch, decoding and dispatch of the interpreter are all gone, and the
+ * operations can be inlined and specialised on their operands by the JVM. Instructions that leave the predicate, calls,
+ * proceed and the internal functions, are left to the interpreter, so that the compiled code never nests on the Java
+ * stack, and the bookkeeping done on calls, such as garbage collection of the heap, stays in one place. Failure returns
+ * to the interpreter to backtrack; when it backtracks into a compiled predicate, it resumes in the compiled code.
+ * <p>
+ * <p/>The class file is written directly with the ASM library that groovy-all ships, so no Java compiler is needed at
+ * run time. A predicate is compiled on a background thread, from a copy of its byte code taken when it becomes hot, and
+ * the interpreter carries on running it in the meantime; the compiled code is swapped in by the machine at the next
+ * call or backtrack into the predicate once it is ready. Compilation is off unless a threshold is set.
+ * <p>
+ * <p/>The byte code is left in place, and remains the definition of the predicate. A predicate that cannot be compiled,
+ * because it is too long for the JVM to compile a method for it, or because it holds an instruction the compiler does
+ * not know, simply stays interpreted. A predicate whose byte code changes whilst it is being compiled has the result
+ * thrown away, and is compiled afresh once it is hot again.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Count the calls made to each predicate.
+ * <tr><td> Generate a JVM class for each hot predicate, in the background. <td> {@link HtWAMTier2Code}.
+ * <tr><td> Load the generated classes. <td> {@link HtWAMTier2ClassLoader}.
+ * <tr><td> Run compiled predicates on calls, and on backtracking into them. <td> {@link HtWAMTier2Operations}.
+ * </table></pre>
+ */
+public
+class HtWAMTier2Compiler {
+    /**
+     * A suggested number of calls to a predicate before it is compiled, for machines that turn compilation on.
+     */
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    /**
+     * The length in bytes of the longest predicate that is compiled. The JVM does not compile very large methods to
+     * native code, which is the whole point of generating a class.
+     */
+    public static final int MAX_PREDICATE_LENGTH = 2048;
+
+    /**
+     * The internal name of the package that generated classes are placed in.
+     */
+    private static final String PACKAGE = "org/ltc/hitalk/wam/machine/tier2/";
+
+    /**
+     * The internal name of the interface that generated classes implement.
+     */
+    private static final String CODE = "org/ltc/hitalk/wam/machine/HtWAMTier2Code";
+
+    /**
+     * The internal name of the operations that generated classes call.
+     */
+    private static final String OPS = "org/ltc/hitalk/wam/machine/HtWAMTier2Operations";
+
+    /**
+     * Used to give every generated class a distinct name.
+     */
+    private static final AtomicInteger classIds = new AtomicInteger();
+
+    /**
+     * The thread that predicates are compiled on, shared by all machines. Its thread does not keep the JVM alive.
+     */
+    private static final Executor BACKGROUND = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "HtWAMTier2Compiler");
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    /**
+     * The operations of the machine that the code is compiled for.
+     */
+    private final HtWAMTier2Operations ops;
+
+    /**
+     * The class loader for the generated classes.
+     */
+    private final HtWAMTier2ClassLoader loader = new HtWAMTier2ClassLoader();
+
+    /**
+     * The executor that predicates are compiled on.
+     */
+    private Executor executor = BACKGROUND;
+
+    /**
+     * The number of calls to a predicate before it is compiled, zero or less to never compile.
+     */
+    private int threshold;
+
+    /**
+     * The entry points and resume points of the predicates, plus one, in an open addressed hash table.
+     */
+    private int[] keys = new int[64];
+
+    /**
+     * The predicates by their entry points and resume points.
+     */
+    private Profile[] profiles = new Profile[64];
+
+    /**
+     * The number of entries in the hash table.
+     */
+    private int size;
+
+    /**
+     * The compiled predicates.
+     */
+    private final List<Profile> compiled = new ArrayList<>();
+
+    /**
+     * The predicates being compiled in the background.
+     */
+    private final List<Profile> pending = new ArrayList<>();
+
+    /**
+     * The predicates compiled in the background, waiting to be swapped in by the machine.
+     */
+    private final Queue<Promotion> promoted = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of predicates that could not be compiled.
+     */
+    private int rejected;
+
+    /**
+     * Creates a compiler for the predicates of a machine.
+     *
+     * @param ops       The operations of the machine.
+     * @param threshold The number of calls to a predicate before it is compiled, zero or less to never compile.
+     */
+    public HtWAMTier2Compiler(HtWAMTier2Operations ops, int threshold) {
+        this.ops = ops;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Sets the number of calls to a predicate before it is compiled. This does not affect predicates already compiled.
+     *
+     * @param threshold The number of calls to a predicate before it is compiled, zero or less to never compile.
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Sets the executor that predicates are compiled on, in place of the shared background thread.
+     *
+     * @param executor The executor.
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Records a predicate that has been added to the machine, so that calls to it can be counted.
+     *
+     * @param name   The interned name of the predicate.
+     * @param entry  The entry point of the predicate.
+     * @param length The length of the code of the predicate.
+     * @param arity  The arity of the predicate.
+     */
+    public void addPredicate(int name, int entry, int length, int arity) {
+        put(entry, new Profile(name, entry, length, arity));
+    }
+
+    /**
+     * Runs a called predicate as compiled code if it is compiled, starting to compile it if this call makes it hot.
+     *
+     * @param pn The entry point of the called predicate.
+     * @return The code address for the interpreter to continue from, which is the entry point if the predicate is not
+     * compiled, or {@link HtWAMTier2Code#FAIL} if the compiled code fails.
+     */
+    public int call(int pn) {
+        if ((threshold <= 0) || ops.isMonitored()) {
+            return pn;
+        }
+
+        if (!promoted.isEmpty()) {
+            install();
+        }
+
+        Profile profile = get(pn);
+
+        if ((profile == null) || (profile.entry != pn)) {
+            return pn;
+        }
+
+        HtWAMTier2Code code = profile.code;
+
+        if (code == null) {
+            if ((++profile.calls >= threshold) && !profile.rejected && !profile.pending) {
+                promote(profile);
+            }
+
+            return pn;
+        }
+
+        return code.run(ops, pn);
+    }
+
+    /**
+     * Resumes in compiled code after backtracking, if the alternative backtracked to is in a compiled predicate.
+     *
+     * @param ip The alternative backtracked to.
+     * @return The code address for the interpreter to continue from, which is the alternative if it is not compiled, or
+     * {@link HtWAMTier2Code#FAIL} if the compiled code fails.
+     */
+    public int resume(int ip) {
+        if ((size == 0) || ops.isMonitored()) {
+            return ip;
+        }
+
+        if (!promoted.isEmpty()) {
+            install();
+        }
+
+        Profile profile = get(ip);
+
+        return ((profile == null) || (profile.code == null)) ? ip : profile.code.run(ops, ip);
+    }
+
+    /**
+     * Discards the compiled code of any predicate that a change to the byte code falls in, and any compilation of it
+     * under way, so that it is compiled afresh once it is hot again.
+     *
+     * @param offset The offset of the change to the byte code.
+     */
+    public void invalidate(int offset) {
+        invalidate(compiled, offset);
+        invalidate(pending, offset);
+    }
+
+    /**
+     * @return The number of predicates that have been compiled.
+     */
+    public int getCompiledCount() {
+        return compiled.size();
+    }
+
+    /**
+     * @return The number of predicates that could not be compiled.
+     */
+    public int getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Discards the compiled code of the predicates of a list that a change to the byte code falls in.
+     *
+     * @param list   The predicates.
+     * @param offset The offset of the change to the byte code.
+     */
+    private static void invalidate(List<Profile> list, int offset) {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Profile profile = list.get(i);
+
+            if ((offset >= profile.entry) && (offset < (profile.entry + profile.length))) {
+                profile.code = null;
+                profile.calls = 0;
+                profile.pending = false;
+                profile.generation++;
+                list.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Starts to compile a hot predicate in the background, from a copy of its byte code.
+     *
+     * @param profile The predicate.
+     */
+    private void promote(Profile profile) {
+        if (profile.length > MAX_PREDICATE_LENGTH) {
+            reject(profile);
+
+            return;
+        }
+
+        ByteBuffer code = ops.code();
+        byte[] bytes = new byte[profile.length];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = code.get(profile.entry + i);
+        }
+
+        ByteBuffer copy = ByteBuffer.wrap(bytes).order(code.order());
+        int generation = profile.generation;
+
+        profile.pending = true;
+        pending.add(profile);
+
+        executor.execute(() -> {
+            String className = PACKAGE + "Predicate" + classIds.incrementAndGet();
+            List<Integer> resumePoints = new ArrayList<>();
+            HtWAMTier2Code compiledCode = load(className, generate(copy, profile, className, resumePoints));
+
+            promoted.add(new Promotion(profile, generation, compiledCode, resumePoints));
+        });
+    }
+
+    /**
+     * Swaps in the predicates compiled in the background, and registers their resume points. Compilations started
+     * before a change to the byte code of their predicate are thrown away.
+     */
+    private void install() {
+        for (Promotion promotion; (promotion = promoted.poll()) != null; ) {
+            Profile profile = promotion.profile;
+
+            if (promotion.generation != profile.generation) {
+                continue;
+            }
+
+            profile.pending = false;
+            pending.remove(profile);
+
+            if (promotion.code == null) {
+                reject(profile);
+
+                continue;
+            }
+
+            profile.code = promotion.code;
+            compiled.add(profile);
+
+            for (int resumePoint : promotion.resumePoints) {
+                put(resumePoint, profile);
+            }
+        }
+    }
+
+    /**
+     * Marks a predicate as one that cannot be compiled.
+     *
+     * @param profile The predicate.
+     */
+    private void reject(Profile profile) {
+        profile.rejected = true;
+        rejected++;
+    }
+
+    /**
+     * Loads a generated class.
+     *
+     * @param className The internal name of the class.
+     * @param classFile The class file, or <tt>null</tt> if none could be generated.
+     * @return An instance of the class, or <tt>null</tt> if it could not be loaded.
+     */
+    private HtWAMTier2Code load(String className, byte[] classFile) {
+        if (classFile == null) {
+            return null;
+        }
+
+        try {
+            Class<?> c = loader.define(className.replace('/', '.'), classFile);
+
+            return (HtWAMTier2Code) c.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Generates the class file for a predicate.
+     *
+     * @param code         A copy of the byte code of the predicate.
+     * @param profile      The predicate.
+     * @param className    The internal name of the class.
+     * @param resumePoints Receives the addresses within the predicate that backtracking can resume from.
+     * @return The class file, or <tt>null</tt> if the predicate cannot be compiled.
+     */
+    private static byte[] generate(ByteBuffer code, Profile profile, String className, List<Integer> resumePoints) {
+        int entry = profile.entry;
+        int end = entry + profile.length;
+
+        // Find the instructions of the predicate, which are the cases of the switch.
+        List<Integer> addresses = new ArrayList<>();
+
+        for (int ip = entry; ip < end; ) {
+            byte op = code.get(ip - entry);
+            HiTalkWAMInstructionSet instruction = HiTalkWAMInstructionSet.fromCode(op);
+
+            if (instruction == null) {
+                return null;
+            }
+
+            addresses.add(ip);
+
+            int next = ip + instruction.length();
+
+            if ((op == SWITCH_ON_CONST) || (op == SWITCH_ON_STRUC)) {
+                next += code.getInt(ip - entry + 5) << 3;
+            } else if (op == JIT_INDEX) {
+                next += code.getInt(ip - entry + 5) << 2;
+            }
+
+            if (next > end) {
+                return null;
+            }
+
+            if ((op == RETRY_ME_ELSE) || (op == TRUST_ME) || (op == RETRY) || (op == TRUST)) {
+                resumePoints.add(ip);
+            }
+
+            ip = next;
+        }
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, "java/lang/Object", new String[]{CODE});
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "run", "(L" + OPS + ";I)I", null, null);
+        Translator translator = new Translator(mv, code, entry, addresses);
+        mv.visitCode();
+
+        Label dispatch = translator.dispatch;
+        Label other = new Label();
+        int[] cases = new int[addresses.size()];
+        Label[] labels = new Label[addresses.size()];
+
+        for (int i = 0; i < cases.length; i++) {
+            cases[i] = addresses.get(i);
+            labels[i] = translator.label(cases[i]);
+        }
+
+        mv.visitLabel(dispatch);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitLookupSwitchInsn(other, cases, labels);
+
+        boolean fallsThrough = false;
+
+        for (int i = 0; i < cases.length; i++) {
+            int ip = cases[i];
+            int next = (i + 1 < cases.length) ? cases[i + 1] : end;
+
+            mv.visitLabel(labels[i]);
+            fallsThrough = translator.translate(ip, next, profile.arity);
+        }
+
+        // Run on into the interpreter, should the code run off the end of the predicate.
+        if (fallsThrough) {
+            translator.exit(end);
+        }
+
+        mv.visitLabel(other);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        return cw.toByteArray();
+    }
+
+    /**
+     * Looks up a predicate by its entry point or a resume point.
+     *
+     * @param address The entry point or resume point.
+     * @return The predicate, or <tt>null</tt> if there is none.
+     */
+    private Profile get(int address) {
+        int mask = keys.length - 1;
+
+        for (int i = hash(address) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == (address + 1)) {
+                return profiles[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds or replaces a predicate by its entry point or a resume point.
+     *
+     * @param address The entry point or resume point.
+     * @param profile The predicate.
+     */
+    private void put(int address, Profile profile) {
+        if ((size << 1) >= keys.length) {
+            int[] oldKeys = keys;
+            Profile[] oldProfiles = profiles;
+
+            keys = new int[oldKeys.length << 1];
+            profiles = new Profile[oldKeys.length << 1];
+            size = 0;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i] - 1, oldProfiles[i]);
+                }
+            }
+        }
+
+        int mask = keys.length - 1;
+        int i = hash(address) & mask;
+
+        while ((keys[i] != 0) && (keys[i] != (address + 1))) {
+            i = (i + 1) & mask;
+        }
+
+        if (keys[i] == 0) {
+            keys[i] = address + 1;
+            size++;
+        }
+
+        profiles[i] = profile;
+    }
+
+    /**
+     * Spreads the bits of an address for use as a hash code.
+     *
+     * @param address The address.
+     * @return The hash code.
+     */
+    private static int hash(int address) {
+        int h = address * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Translator writes the instructions of a predicate as the byte code of the run method of its class. The run method
+     * takes the operations in local 1 and the address to start from in local 2.
+     */
+    private static class Translator {
+        /**
+         * The run method being written.
+         */
+        final MethodVisitor mv;
+
+        /**
+         * A copy of the byte code of the predicate.
+         */
+        final ByteBuffer code;
+
+        /**
+         * The entry point of the predicate, which is the address of the first byte of the copy.
+         */
+        final int entry;
+
+        /**
+         * The addresses of the instructions of the predicate.
+         */
+        final List<Integer> addresses;
+
+        /**
+         * The labels of the instructions, by their position in the list of addresses.
+         */
+        final Label[] labels;
+
+        /**
+         * The switch over the address in local 2.
+         */
+        final Label dispatch = new Label();
+
+        /**
+         * Creates a translator for a predicate.
+         *
+         * @param mv        The run method to write.
+         * @param code      A copy of the byte code of the predicate.
+         * @param entry     The entry point of the predicate.
+         * @param addresses The addresses of the instructions of the predicate.
+         */
+        Translator(MethodVisitor mv, ByteBuffer code, int entry, List<Integer> addresses) {
+            this.mv = mv;
+            this.code = code;
+            this.entry = entry;
+            this.addresses = addresses;
+            labels = new Label[addresses.size()];
+
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = new Label();
+            }
+        }
+
+        /**
+         * Provides the label of an instruction.
+         *
+         * @param ip The address of the instruction.
+         * @return The label, or <tt>null</tt> if there is no instruction at that address in the predicate.
+         */
+        Label label(int ip) {
+            int i = addresses.indexOf(ip);
+
+            return (i < 0) ? null : labels[i];
+        }
+
+        /**
+         * Translates an instruction.
+         *
+         * @param ip    The address of the instruction.
+         * @param next  The address of the following instruction.
+         * @param arity The arity of the predicate.
+         * @return <tt>true</tt> iff the translation runs on into the following instruction.
+         */
+        boolean translate(int ip, int next, int arity) {
+            byte op = code.get(ip - entry);
+
+            switch (op) {
+                case PUT_STRUC:
+                    call("putStruc", "(II)V", slot(ip), integer(ip + 3));
+                    return true;
+                case SET_VAR:
+                    call("setVar", "(I)V", slot(ip));
+                    return true;
+                case SET_VAL:
+                    call("setVal", "(I)V", slot(ip));
+                    return true;
+                case GET_STRUC:
+                    failOn("getStruc", "(II)Z", slot(ip), integer(ip + 3));
+                    return true;
+                case UNIFY_VAR:
+                    call("unifyVar", "(I)V", slot(ip));
+                    return true;
+                case UNIFY_VAL:
+                    failOn("unifyVal", "(I)Z", slot(ip));
+                    return true;
+                case PUT_VAR:
+                    call("putVar", "(IIB)V", slot(ip), constant(ip + 3), constant(ip + 1));
+                    return true;
+                case PUT_VAL:
+                    call("putVal", "(II)V", slot(ip), constant(ip + 3));
+                    return true;
+                case GET_VAR:
+                    call("getVar", "(II)V", slot(ip), constant(ip + 3));
+                    return true;
+                case GET_VAL:
+                    failOn("getVal", "(II)Z", slot(ip), constant(ip + 3));
+                    return true;
+                case PUT_CONST:
+                    call("putConstant", "(II)V", slot(ip), integer(ip + 3));
+                    return true;
+                case GET_CONST:
+                    failOn("getConstant", "(II)Z", slot(ip), integer(ip + 3));
+                    return true;
+                case SET_CONST:
+                    call("setConstant", "(I)V", integer(ip + 1));
+                    return true;
+                case UNIFY_CONST:
+                    failOn("unifyConstant", "(I)Z", integer(ip + 1));
+                    return true;
+                case PUT_LIST:
+                    call("putList", "(I)V", slot(ip));
+                    return true;
+                case GET_LIST:
+                    failOn("getList", "(I)Z", slot(ip));
+                    return true;
+                case SET_VOID:
+                    call("setVoid", "(I)V", constant(ip + 1));
+                    return true;
+                case UNIFY_VOID:
+                    call("unifyVoid", "(I)V", constant(ip + 1));
+                    return true;
+                case PUT_UNSAFE_VAL:
+                    call("putUnsafeVal", "(II)V", stackSlot(ip + 2), constant(ip + 3));
+                    return true;
+                case SET_LOCAL_VAL:
+                    call("setLocalVal", "(I)V", slot(ip));
+                    return true;
+                case UNIFY_LOCAL_VAL:
+                    failOn("unifyLocalVal", "(I)Z", slot(ip));
+                    return true;
+                case ALLOCATE:
+                    call("allocate", "(I)V", value(0));
+                    return true;
+                case ALLOCATE_N:
+                    call("allocate", "(I)V", constant(ip + 1));
+                    return true;
+                case DEALLOCATE:
+                    call("deallocate", "()V");
+                    return true;
+                case TRY_ME_ELSE:
+                    call("tryMeElse", "(II)V", integer(ip + 1), value(arity));
+                    return true;
+                case RETRY_ME_ELSE:
+                    call("retryMeElse", "(I)V", integer(ip + 1));
+                    return true;
+                case TRUST_ME:
+                    call("trustMe", "()V");
+                    return true;
+                case TRY:
+                    call("tryMeElse", "(II)V", value(next), value(arity));
+                    jump(code.getInt(ip - entry + 1));
+                    return false;
+                case RETRY:
+                    call("retryMeElse", "(I)V", value(next));
+                    jump(code.getInt(ip - entry + 1));
+                    return false;
+                case TRUST:
+                    call("trustMe", "()V");
+                    jump(code.getInt(ip - entry + 1));
+                    return false;
+                case SWITCH_ON_TERM:
+                    call("switchOnTerm", "(IIII)I",
+                            integer(ip + 1), integer(ip + 5), integer(ip + 9), integer(ip + 13));
+                    mv.visitVarInsn(ISTORE, 2);
+                    mv.visitJumpInsn(GOTO, dispatch);
+                    return false;
+                case SWITCH_ON_CONST:
+                    switchOn("switchOnConst", ip);
+                    return false;
+                case SWITCH_ON_STRUC:
+                    switchOn("switchOnStruc", ip);
+                    return false;
+                case NECK_CUT:
+                    call("neckCut", "()V");
+                    return true;
+                case GET_LEVEL:
+                    call("getLevel", "(I)V", stackSlot(ip + 1));
+                    return true;
+                case CUT:
+                    call("cut", "(I)V", stackSlot(ip + 1));
+                    return true;
+                case CONTINUE:
+                    jump(code.getInt(ip - entry + 1));
+                    return false;
+                case NO_OP:
+                    return true;
+                default:
+                    // Leave this instruction to the interpreter.
+                    exit(ip);
+                    return false;
+            }
+        }
+
+        /**
+         * Writes a call to an operation.
+         *
+         * @param name       The name of the operation.
+         * @param descriptor The descriptor of the operation.
+         * @param args       Write the arguments of the operation.
+         */
+        void call(String name, String descriptor, Runnable... args) {
+            mv.visitVarInsn(ALOAD, 1);
+
+            for (Runnable arg : args) {
+                arg.run();
+            }
+
+            mv.visitMethodInsn(INVOKEVIRTUAL, OPS, name, descriptor, false);
+        }
+
+        /**
+         * Writes a call to an operation that may fail, returning {@link HtWAMTier2Code#FAIL} if it does.
+         *
+         * @param name       The name of the operation.
+         * @param descriptor The descriptor of the operation.
+         * @param args       Write the arguments of the operation.
+         */
+        void failOn(String name, String descriptor, Runnable... args) {
+            Label succeeded = new Label();
+
+            call(name, descriptor, args);
+            mv.visitJumpInsn(IFNE, succeeded);
+            exit(HtWAMTier2Code.FAIL);
+            mv.visitLabel(succeeded);
+        }
+
+        /**
+         * Writes a switch on a constant or structure, which fails if it finds no case.
+         *
+         * @param name The name of the operation.
+         * @param ip   The address of the instruction.
+         */
+        void switchOn(String name, int ip) {
+            call(name, "(II)I", integer(ip + 1), integer(ip + 5));
+            mv.visitInsn(DUP);
+            mv.visitVarInsn(ISTORE, 2);
+            mv.visitJumpInsn(IFGT, dispatch);
+            exit(HtWAMTier2Code.FAIL);
+        }
+
+        /**
+         * Writes a jump. Jumps out of the predicate are taken by the interpreter.
+         *
+         * @param target The address to jump to.
+         */
+        void jump(int target) {
+            Label label = label(target);
+
+            if (label == null) {
+                exit(target);
+            } else {
+                mv.visitJumpInsn(GOTO, label);
+            }
+        }
+
+        /**
+         * Writes a return to the interpreter.
+         *
+         * @param ip The code address for the interpreter to continue from.
+         */
+        void exit(int ip) {
+            push(ip);
+            mv.visitInsn(IRETURN);
+        }
+
+        /**
+         * Writes the register or stack slot operand of an instruction.
+         *
+         * @param ip The address of the instruction.
+         */
+        Runnable slot(int ip) {
+            return (code.get(ip - entry + 1) == STACK_ADDR) ? stackSlot(ip + 2) : constant(ip + 2);
+        }
+
+        /**
+         * Writes the address of the stack slot of a byte operand.
+         *
+         * @param at The address of the operand.
+         */
+        Runnable stackSlot(int at) {
+            return () -> call("stackSlot", "(I)I", constant(at));
+        }
+
+        /**
+         * Writes a byte operand.
+         *
+         * @param at The address of the operand.
+         */
+        Runnable constant(int at) {
+            return value(code.get(at - entry));
+        }
+
+        /**
+         * Writes an int operand.
+         *
+         * @param at The address of the operand.
+         */
+        Runnable integer(int at) {
+            return value(code.getInt(at - entry));
+        }
+
+        /**
+         * Writes a value.
+         *
+         * @param value The value.
+         */
+        Runnable value(int value) {
+            return () -> push(value);
+        }
+
+        /**
+         * Pushes an int onto the operand stack, with the shortest instruction that will do.
+         *
+         * @param value The int.
+         */
+        void push(int value) {
+            if ((value >= -1) && (value <= 5)) {
+                mv.visitInsn(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                mv.visitIntInsn(BIPUSH, value);
+            } else if (value == (short) value) {
+                mv.visitIntInsn(SIPUSH, value);
+            } else {
+                mv.visitLdcInsn(value);
+            }
+        }
+    }
+
+    /**
+     * Profile holds the call count and compiled code of a predicate.
+     */
+    private static class Profile {
+        /**
+         * The interned name of the predicate.
+         */
+        final int name;
+
+        /**
+         * The entry point of the predicate.
+         */
+        final int entry;
+
+        /**
+         * The length of the code of the predicate.
+         */
+        final int length;
+
+        /**
+         * The arity of the predicate.
+         */
+        final int arity;
+
+        /**
+         * The number of calls made to the predicate whilst it was interpreted.
+         */
+        int calls;
+
+        /**
+         * <tt>true</tt> iff the predicate could not be compiled.
+         */
+        boolean rejected;
+
+        /**
+         * <tt>true</tt> iff the predicate is being compiled in the background.
+         */
+        boolean pending;
+
+        /**
+         * The number of times the code of the predicate has been discarded, so that a compilation started before then
+         * can be told apart.
+         */
+        int generation;
+
+        /**
+         * The compiled code, or <tt>null</tt> if the predicate is not compiled.
+         */
+        HtWAMTier2Code code;
+
+        /**
+         * Creates the profile of a predicate.
+         *
+         * @param name   The interned name of the predicate.
+         * @param entry  The entry point of the predicate.
+         * @param length The length of the code of the predicate.
+         * @param arity  The arity of the predicate.
+         */
+        Profile(int name, int entry, int length, int arity) {
+            this.name = name;
+            this.entry = entry;
+            this.length = length;
+            this.arity = arity;
+        }
+    }
+
+    /**
+     * Promotion holds a predicate compiled in the background, until the machine swaps it in.
+     */
+    private static class Promotion {
+        /**
+         * The predicate.
+         */
+        final Profile profile;
+
+        /**
+         * The generation of the predicate that was compiled.
+         */
+        final int generation;
+
+        /**
+         * The compiled code, or <tt>null</tt> if the predicate could not be compiled.
+         */
+        final HtWAMTier2Code code;
+
+        /**
+         * The addresses within the predicate that backtracking can resume from.
+         */
+        final List<Integer> resumePoints;
+
+        /**
+         * Creates a compiled predicate.
+         *
+         * @param profile      The predicate.
+         * @param generation   The generation of the predicate that was compiled.
+         * @param code         The compiled code, or <tt>null</tt> if the predicate could not be compiled.
+         * @param resumePoints The addresses within the predicate that backtracking can resume from.
+         */
+        Promotion(Profile profile, int generation, HtWAMTier2Code code, List<Integer> resumePoints) {
+            this.profile = profile;
+            this.generation = generation;
+            this.code = code;
+            this.resumePoints = resumePoints;
+        }
+    }
+}
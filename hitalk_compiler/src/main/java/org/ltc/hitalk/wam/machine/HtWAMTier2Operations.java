@@ -0,0 +1,279 @@
+package org.ltc.hitalk.wam.machine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HtWAMTier2Operations gives the classes generated by a {@link HtWAMTier2Compiler} access to the operations of the
+ * instructions of a {@link HiTalkWAMResolvingJavaMachine}, which are package private to the machine. The generated
+ * classes are loaded by a class loader of their own, so they cannot call package private methods; they are handed an
+ * instance of this class instead, which only the machine can create, and which does nothing but delegate to the
+ * machine. The JVM inlines the delegation, so that compiled code calls the operations as directly as the interpreter
+ * does.
+ *
+ * <pre><p/><table id="crc"><caption>CRC Card</caption>
+ * <tr><th> Responsibilities <th> Collaborations
+ * <tr><td> Run the operations of instructions for compiled code. <td> {@link HiTalkWAMResolvingJavaMachine}.
+ * <tr><td> Provide the byte code of the machine to the compiler.
+ * </table></pre>
+ */
+public
+class HtWAMTier2Operations {
+    /**
+     * The machine that the operations are run on.
+     */
+    private final HiTalkWAMResolvingJavaMachine<?, ?> machine;
+
+    /**
+     * Creates the operations of a machine.
+     *
+     * @param machine The machine.
+     */
+    HtWAMTier2Operations(HiTalkWAMResolvingJavaMachine<?, ?> machine) {
+        this.machine = machine;
+    }
+
+    /**
+     * @return The code buffer of the machine.
+     */
+    ByteBuffer code() {
+        return machine.codeBuffer;
+    }
+
+    /**
+     * @return <tt>true</tt> iff a debug monitor is attached to the machine, in which case nothing is run compiled.
+     */
+    boolean isMonitored() {
+        return machine.monitor != null;
+    }
+
+    /**
+     * Provides the address of a permanent variable in the current environment frame.
+     */
+    public int stackSlot(int y) {
+        return machine.stackSlot(y);
+    }
+
+    /**
+     * put_struc Xi, f/n.
+     */
+    public void putStruc(int xi, int fn) {
+        machine.putStruc(xi, fn);
+    }
+
+    /**
+     * set_var Xi.
+     */
+    public void setVar(int xi) {
+        machine.setVar(xi);
+    }
+
+    /**
+     * set_val Xi.
+     */
+    public void setVal(int xi) {
+        machine.setVal(xi);
+    }
+
+    /**
+     * get_struc Xi, f/n.
+     */
+    public boolean getStruc(int xi, int fn) {
+        return machine.getStruc(xi, fn);
+    }
+
+    /**
+     * unify_var Xi.
+     */
+    public void unifyVar(int xi) {
+        machine.unifyVar(xi);
+    }
+
+    /**
+     * unify_val Xi.
+     */
+    public boolean unifyVal(int xi) {
+        return machine.unifyVal(xi);
+    }
+
+    /**
+     * put_var Xi, Ai.
+     */
+    public void putVar(int xi, int ai, byte mode) {
+        machine.putVar(xi, ai, mode);
+    }
+
+    /**
+     * put_val Xi, Ai.
+     */
+    public void putVal(int xi, int ai) {
+        machine.putVal(xi, ai);
+    }
+
+    /**
+     * get_var Xi, Ai.
+     */
+    public void getVar(int xi, int ai) {
+        machine.getVar(xi, ai);
+    }
+
+    /**
+     * get_val Xi, Ai.
+     */
+    public boolean getVal(int xi, int ai) {
+        return machine.getVal(xi, ai);
+    }
+
+    /**
+     * put_const Xi, c.
+     */
+    public void putConstant(int xi, int fn) {
+        machine.putConstant(xi, fn);
+    }
+
+    /**
+     * get_const Xi, c.
+     */
+    public boolean getConstant(int xi, int fn) {
+        return machine.getConstant(xi, fn);
+    }
+
+    /**
+     * set_const c.
+     */
+    public void setConstant(int fn) {
+        machine.setConstant(fn);
+    }
+
+    /**
+     * unify_const c.
+     */
+    public boolean unifyConstant(int fn) {
+        return machine.unifyConstant(fn);
+    }
+
+    /**
+     * put_list Xi.
+     */
+    public void putList(int xi) {
+        machine.putList(xi);
+    }
+
+    /**
+     * get_list Xi.
+     */
+    public boolean getList(int xi) {
+        return machine.getList(xi);
+    }
+
+    /**
+     * set_void n.
+     */
+    public void setVoid(int n) {
+        machine.setVoid(n);
+    }
+
+    /**
+     * unify_void n.
+     */
+    public void unifyVoid(int n) {
+        machine.unifyVoid(n);
+    }
+
+    /**
+     * put_unsafe_val Yi, Ai.
+     */
+    public void putUnsafeVal(int yi, int ai) {
+        machine.putUnsafeVal(yi, ai);
+    }
+
+    /**
+     * set_local_val Xi.
+     */
+    public void setLocalVal(int xi) {
+        machine.setLocalVal(xi);
+    }
+
+    /**
+     * unify_local_val Xi.
+     */
+    public boolean unifyLocalVal(int xi) {
+        return machine.unifyLocalVal(xi);
+    }
+
+    /**
+     * allocate N.
+     */
+    public void allocate(int n) {
+        machine.allocate(n);
+    }
+
+    /**
+     * deallocate.
+     */
+    public void deallocate() {
+        machine.deallocate();
+    }
+
+    /**
+     * try_me_else L.
+     */
+    public void tryMeElse(int l, int n) {
+        machine.tryMeElse(l, n);
+    }
+
+    /**
+     * retry_me_else L.
+     */
+    public void retryMeElse(int l) {
+        machine.retryMeElse(l);
+    }
+
+    /**
+     * trust_me.
+     */
+    public void trustMe() {
+        machine.trustMe();
+    }
+
+    /**
+     * switch_on_term V, C, L, S.
+     */
+    public int switchOnTerm(int v, int c, int l, int s) {
+        return machine.switchOnTerm(v, c, l, s);
+    }
+
+    /**
+     * switch_on_const T, N.
+     */
+    public int switchOnConst(int t, int n) {
+        return machine.switchOnConst(t, n);
+    }
+
+    /**
+     * switch_on_struc T, N.
+     */
+    public int switchOnStruc(int t, int n) {
+        return machine.switchOnStruc(t, n);
+    }
+
+    /**
+     * neck_cut.
+     */
+    public void neckCut() {
+        machine.neckCut();
+    }
+
+    /**
+     * get_level Yn.
+     */
+    public void getLevel(int yn) {
+        machine.getLevel(yn);
+    }
+
+    /**
+     * cut Yn.
+     */
+    public void cut(int yn) {
+        machine.cut(yn);
+    }
+}
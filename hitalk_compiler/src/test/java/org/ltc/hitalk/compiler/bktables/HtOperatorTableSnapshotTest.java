@@ -0,0 +1,86 @@
+package org.ltc.hitalk.compiler.bktables;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ltc.hitalk.compiler.VafInterner;
+import org.ltc.hitalk.term.OpSymbolFunctor;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.core.BaseApp.appContext;
+import static org.ltc.hitalk.core.Components.INTERNER;
+import static org.ltc.hitalk.term.OpSymbolFunctor.Associativity.*;
+import static org.ltc.hitalk.term.OpSymbolFunctor.Fixity.*;
+
+/**
+ * Checks that operators are found by the atom ids of their names, however large the ids are, and that a snapshot does
+ * not change when the next version is made from it.
+ */
+public class HtOperatorTableSnapshotTest {
+    @Before
+    public void setUp() {
+        // Operators intern their own names through the interner of the application.
+        appContext.putIfAbsent(INTERNER, new VafInterner("Test_Variable_namespace", "Test_Functor_namespace"));
+    }
+
+    private static OpSymbolFunctor op(String name, int priority, OpSymbolFunctor.Associativity associativity) {
+        return new OpSymbolFunctor(0, name, associativity, priority, false);
+    }
+
+    /**
+     * The ids of atoms only grow as atoms are interned, so a table of the operators of a few atoms with large ids must
+     * not be sized by the ids.
+     */
+    @Test
+    public void operatorsOfLargeAtomIdsAreFound() {
+        OpSymbolFunctor plus = op("+", 500, yfx);
+        OpSymbolFunctor minus = op("-", 200, fy);
+        int large = Integer.MAX_VALUE - 1;
+
+        HtOperatorTableSnapshot table = HtOperatorTableSnapshot.EMPTY
+                .with(large, plus)
+                .with(large - 1, minus)
+                .with(3, plus);
+
+        assertSame(plus, table.getOperator(large, In));
+        assertNull(table.getOperator(large, Pre));
+        assertSame(minus, table.getOperator(large - 1, Pre));
+        assertSame(plus, table.getOperator(3, In));
+        assertNull(table.getOperator(large - 2, In));
+        assertNull(table.getOperator(Integer.MAX_VALUE, In));
+        assertNull(table.getOperator(-1, In));
+        assertSame(plus, table.getOperators(large).get(In));
+    }
+
+    @Test
+    public void removingAnOperatorKeepsTheOthers() {
+        OpSymbolFunctor plus = op("+", 500, yfx);
+        OpSymbolFunctor minus = op("-", 200, fy);
+        HtOperatorTableSnapshot table = HtOperatorTableSnapshot.EMPTY;
+
+        for (int name = 0; name < 1000; name += 7) {
+            table = table.with(name, plus).with(name, minus);
+        }
+        for (int name = 0; name < 1000; name += 14) {
+            table = table.without(name, In).without(name, Pre);
+        }
+
+        for (int name = 0; name < 1000; name++) {
+            boolean defined = name % 7 == 0 && name % 14 != 0;
+            assertSame(defined ? plus : null, table.getOperator(name, In));
+            assertSame(defined ? minus : null, table.getOperator(name, Pre));
+            assertEquals(defined ? 2 : 0, table.getOperators(name).size());
+        }
+    }
+
+    @Test
+    public void snapshotDoesNotSeeLaterVersions() {
+        OpSymbolFunctor plus = op("+", 500, yfx);
+        HtOperatorTableSnapshot first = HtOperatorTableSnapshot.EMPTY.with(5, plus);
+        HtOperatorTableSnapshot second = first.without(5, In);
+
+        assertSame(plus, first.getOperator(5, In));
+        assertNull(second.getOperator(5, In));
+        assertEquals(first.getVersion() + 1, second.getVersion());
+        assertSame(second, second.without(5, In));
+    }
+}
@@ -0,0 +1,69 @@
+package org.ltc.hitalk.gnu.prolog.database;
+
+import org.junit.Test;
+import org.ltc.hitalk.term.io.HtSourceBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * checks that the text of a file is read whole, in the encoding asked for
+ * rather than the platform default
+ */
+public class ParallelPrologTextLoaderTest
+{
+	private static final String CLAUSE = "name('déjà vu', λ).\n";
+
+	@Test
+	public void readsTheEncodingAskedFor() throws Exception
+	{
+		byte[] bytes = CLAUSE.getBytes(StandardCharsets.UTF_8);
+
+		char[] text = ParallelPrologTextLoader.readText(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8);
+
+		assertEquals(CLAUSE, new String(text));
+	}
+
+	@Test
+	public void readsLatin1AsLatin1() throws Exception
+	{
+		String clause = "name('déjà vu').\n";
+		byte[] bytes = clause.getBytes(StandardCharsets.ISO_8859_1);
+
+		char[] text = ParallelPrologTextLoader.readText(new ByteArrayInputStream(bytes), StandardCharsets.ISO_8859_1);
+
+		assertEquals(clause, new String(text));
+	}
+
+	/**
+	 * a file several buffers long, with chars of more than one byte across the
+	 * buffer boundaries
+	 */
+	@Test
+	public void readsAWholeFile() throws Exception
+	{
+		StringBuilder expected = new StringBuilder();
+		while (expected.length() < 3 * HtSourceBuffer.BUFFER_SIZE)
+		{
+			expected.append(CLAUSE);
+		}
+		File file = File.createTempFile("parallel", ".pl");
+		try
+		{
+			Files.write(file.toPath(), expected.toString().getBytes(StandardCharsets.UTF_8));
+
+			char[] text = ParallelPrologTextLoader.readText(new FileInputStream(file), PrologTextLoader.ENCODING);
+
+			assertEquals(expected.toString(), new String(text));
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.ltc.hitalk.gnu.prolog.io;
+
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.io.Operator.SPECIFIER;
+import org.ltc.hitalk.gnu.prolog.term.AtomTerm;
+import org.ltc.hitalk.gnu.prolog.term.CompoundTermTag;
+
+import static org.junit.Assert.*;
+
+/**
+ * checks that operators are found by the ids of their atoms
+ */
+public class OperatorSetTest
+{
+	@Test
+	public void findsDefaultOperatorsByAtom()
+	{
+		OperatorSet set = new OperatorSet();
+		Operator plus = set.lookupXf(AtomTerm.get("+"));
+
+		assertEquals(500, plus.priority);
+		assertSame(SPECIFIER.yfx, plus.specifier);
+		assertSame(plus, set.lookupXf("+"));
+		assertSame(Operator.nonOperator, set.lookupFx(AtomTerm.get("+")));
+		assertSame(plus, set.getOperatorForTag(CompoundTermTag.get("+", 2)));
+	}
+
+	@Test
+	public void addsAndRemovesOperatorsOfNewAtoms()
+	{
+		OperatorSet set = new OperatorSet();
+		AtomTerm name = AtomTerm.get("operator_set_test");
+		long version = set.getVersion();
+
+		Operator op = set.add(700, SPECIFIER.xfx, name.value);
+		assertSame(op, set.lookupXf(name));
+		assertSame(Operator.nonOperator, set.lookupFx(name));
+		assertTrue(set.getVersion() > version);
+		assertTrue(set.getOperators().contains(op));
+
+		set.remove(SPECIFIER.xfx, name.value);
+		assertSame(Operator.nonOperator, set.lookupXf(name));
+		assertFalse(set.getOperators().contains(op));
+	}
+
+	@Test
+	public void copyDoesNotSeeLaterChanges()
+	{
+		OperatorSet set = new OperatorSet();
+		OperatorSet copy = set.copy();
+
+		set.add(200, SPECIFIER.fy, "operator_set_copy_test");
+
+		assertNotSame(Operator.nonOperator, set.lookupFx("operator_set_copy_test"));
+		assertSame(Operator.nonOperator, copy.lookupFx("operator_set_copy_test"));
+	}
+
+	@Test
+	public void tableGrowsWithTheOperatorsNotWithTheAtomIds()
+	{
+		OperatorSet set = new OperatorSet();
+		int size = set.table.names.length;
+		for (int i = 0; i < 100000; i++)
+		{
+			AtomTerm.get("operator_set_filler_" + i);
+		}
+		AtomTerm name = AtomTerm.get("operator_set_large_id_test");
+
+		Operator op = set.add(700, SPECIFIER.xfx, name.value);
+		assertSame(op, set.lookupXf(name));
+		assertTrue(name.id * OperatorSet.SLOTS > set.table.ops.length);
+		assertTrue(set.table.names.length <= 2 * size);
+		assertEquals(set.table.names.length * OperatorSet.SLOTS, set.table.ops.length);
+	}
+
+	@Test
+	public void removingAnOperatorKeepsTheOthers()
+	{
+		OperatorSet set = new OperatorSet();
+		int size = set.table.names.length;
+		AtomTerm[] names = new AtomTerm[64];
+		for (int i = 0; i < names.length; i++)
+		{
+			names[i] = AtomTerm.get("operator_set_remove_test_" + i);
+			set.add(100 + i, SPECIFIER.fy, names[i].value);
+			set.add(100 + i, SPECIFIER.xfx, names[i].value);
+		}
+		for (int i = 0; i < names.length; i += 2)
+		{
+			set.remove(SPECIFIER.fy, names[i].value);
+			set.remove(SPECIFIER.xfx, names[i].value);
+		}
+
+		for (int i = 0; i < names.length; i++)
+		{
+			if (i % 2 == 0)
+			{
+				assertSame(Operator.nonOperator, set.lookupFx(names[i]));
+				assertSame(Operator.nonOperator, set.lookupXf(names[i]));
+			}
+			else
+			{
+				assertEquals(100 + i, set.lookupFx(names[i]).priority);
+				assertEquals(100 + i, set.lookupXf(names[i]).priority);
+			}
+		}
+		// the names left with no operators were dropped from the table
+		for (int i = 1; i < names.length; i += 2)
+		{
+			set.remove(SPECIFIER.fy, names[i].value);
+			set.remove(SPECIFIER.xfx, names[i].value);
+		}
+		assertTrue(set.table.names.length <= size);
+	}
+
+	@Test
+	public void copySharesTheTable()
+	{
+		OperatorSet set = new OperatorSet();
+		assertSame(set.table, set.copy().table);
+	}
+}
@@ -0,0 +1,181 @@
+package org.ltc.hitalk.gnu.prolog.term;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * checks that threads interning the same atoms and tags at the same time all
+ * get the same objects, and that an object which was collected is interned
+ * again
+ */
+public class WeakInternTableTest
+{
+	private static final int THREADS = 8;
+	private static final int NAMES = 2000;
+	private static final int ARITIES = 6;
+
+	/**
+	 * run a task on many threads at once
+	 *
+	 * @return the results of the threads
+	 */
+	private static <T> List<T> onAllThreads(final Callable<T> task) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		final CountDownLatch start = new CountDownLatch(1);
+		try
+		{
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for (int i = 0; i < THREADS; i++)
+			{
+				futures.add(executor.submit(new Callable<T>()
+				{
+					public T call() throws Exception
+					{
+						start.await();
+						return task.call();
+					}
+				}));
+			}
+			start.countDown();
+			List<T> results = new ArrayList<T>();
+			for (Future<T> future : futures)
+			{
+				results.add(future.get());
+			}
+			return results;
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * collect garbage until a reference is cleared
+	 */
+	private static void collect(WeakReference<?> ref)
+	{
+		for (int i = 0; i < 100 && ref.get() != null; i++)
+		{
+			System.gc();
+			byte[][] garbage = new byte[64][];
+			for (int j = 0; j < garbage.length; j++)
+			{
+				garbage[j] = new byte[64 << 10];
+			}
+		}
+		assertNull("the object was not collected", ref.get());
+	}
+
+	@Test
+	public void threadsInterningTheSameKeysGetTheSameObjects() throws Exception
+	{
+		final WeakInternTable<Integer, Object> table = new WeakInternTable<Integer, Object>(16);
+		List<Object[]> results = onAllThreads(new Callable<Object[]>()
+		{
+			public Object[] call()
+			{
+				Object[] values = new Object[NAMES];
+				for (int i = 0; i < NAMES; i++)
+				{
+					values[i] = table.intern(i, new Object());
+				}
+				return values;
+			}
+		});
+
+		for (Object[] values : results)
+		{
+			for (int i = 0; i < NAMES; i++)
+			{
+				assertSame(results.get(0)[i], values[i]);
+				assertSame(values[i], table.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void threadsGetTheSameAtomsAndTags() throws Exception
+	{
+		final String prefix = "concurrent_" + System.nanoTime() + "_";
+		List<CompoundTermTag[]> results = onAllThreads(new Callable<CompoundTermTag[]>()
+		{
+			public CompoundTermTag[] call()
+			{
+				CompoundTermTag[] tags = new CompoundTermTag[NAMES * ARITIES];
+				for (int i = 0; i < NAMES; i++)
+				{
+					// each thread adds the arities in an order of its own
+					for (int a = 0; a < ARITIES; a++)
+					{
+						int arity = (a + i + (int) Thread.currentThread().getId()) % ARITIES;
+						tags[i * ARITIES + arity] = CompoundTermTag.get(prefix + i, arity);
+					}
+				}
+				return tags;
+			}
+		});
+
+		for (int i = 0; i < NAMES; i++)
+		{
+			AtomTerm atom = AtomTerm.get(prefix + i);
+			// no tag was lost or added twice when threads added tags to the same atom
+			assertEquals(ARITIES, atom.tags.length);
+			for (int arity = 0; arity < ARITIES; arity++)
+			{
+				CompoundTermTag tag = results.get(0)[i * ARITIES + arity];
+				assertSame(atom, tag.functor);
+				assertEquals(arity, tag.arity);
+				assertSame(tag, CompoundTermTag.get(atom, arity));
+				for (CompoundTermTag[] tags : results)
+				{
+					assertSame(tag, tags[i * ARITIES + arity]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void collectedObjectIsInternedAgain()
+	{
+		WeakInternTable<String, Object> table = new WeakInternTable<String, Object>(16);
+		WeakReference<Object> ref = new WeakReference<Object>(table.intern("key", new Object()));
+		collect(ref);
+
+		assertNull(table.get("key"));
+		Object value = new Object();
+		assertSame(value, table.intern("key", value));
+		assertSame(value, table.get("key"));
+		assertSame(value, table.intern("key", new Object()));
+	}
+
+	@Test
+	public void collectedAtomIsInternedAgainWithANewId()
+	{
+		String name = "collected_" + System.nanoTime();
+		AtomTerm atom = AtomTerm.get(name);
+		int id = atom.id;
+		CompoundTermTag.get(atom, 2);
+		WeakReference<AtomTerm> ref = new WeakReference<AtomTerm>(atom);
+		atom = null;
+		collect(ref);
+
+		AtomTerm again = AtomTerm.get(name);
+		assertTrue(again.id != id);
+		assertSame(again, AtomTerm.get(name));
+		// the tags of the collected atom went with it
+		assertNull(again.tags);
+		assertSame(again, CompoundTermTag.get(name, 2).functor);
+	}
+}
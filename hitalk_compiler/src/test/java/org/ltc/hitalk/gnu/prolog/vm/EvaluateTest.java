@@ -0,0 +1,90 @@
+package org.ltc.hitalk.gnu.prolog.vm;
+
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.term.*;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * checks that shifts by any count give a bounded result, or a representation
+ * error when the result would be too big
+ */
+public class EvaluateTest
+{
+	private static final Term HUGE = BigIntegerTerm.valueOf(BigInteger.ONE.shiftLeft(100));
+	private static final Term MINUS_HUGE = BigIntegerTerm.valueOf(BigInteger.ONE.shiftLeft(100).negate());
+	private static final BigInteger BIG = BigInteger.ONE.shiftLeft(80).add(BigInteger.ONE);
+
+	private static Term eval(CompoundTermTag tag, Term arg0, Term arg1) throws PrologException
+	{
+		return Evaluate.evaluate(new CompoundTerm(tag, new Term[] { arg0, arg1 }));
+	}
+
+	private static Term eval(CompoundTermTag tag, long arg0, long arg1) throws PrologException
+	{
+		return eval(tag, BigIntegerTerm.valueOf(arg0), BigIntegerTerm.valueOf(arg1));
+	}
+
+	private static BigInteger value(Term term)
+	{
+		return BigIntegerTerm.toBigInteger(term);
+	}
+
+	private static void assertTooBig(CompoundTermTag tag, Term arg0, Term arg1)
+	{
+		try
+		{
+			eval(tag, arg0, arg1);
+			fail("the result is too big");
+		}
+		catch (PrologException ex)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void shiftsAsBefore() throws PrologException
+	{
+		assertEquals(BigInteger.ONE.shiftLeft(100), value(eval(Evaluate.blshift2, 1, 100)));
+		assertEquals(BigInteger.valueOf(40), value(eval(Evaluate.blshift2, 5, 3)));
+		assertEquals(BigInteger.valueOf(-3), value(eval(Evaluate.brshift2, -5, 1)));
+		assertEquals(BigInteger.valueOf(1L << 33), value(eval(Evaluate.brshift2, 2, -32)));
+		assertEquals(BIG.shiftLeft(3), value(eval(Evaluate.blshift2, BigIntegerTerm.valueOf(BIG), IntegerTerm.get(3))));
+	}
+
+	@Test
+	public void leftShiftPastTheLimitIsAnError()
+	{
+		assertTooBig(Evaluate.blshift2, IntegerTerm.get(1), IntegerTerm.get(Integer.MAX_VALUE));
+		assertTooBig(Evaluate.blshift2, IntegerTerm.get(1), IntegerTerm.get(Evaluate.MAX_SHIFT_BITS));
+		assertTooBig(Evaluate.blshift2, IntegerTerm.get(1), HUGE);
+		assertTooBig(Evaluate.blshift2, BigIntegerTerm.valueOf(BIG), HUGE);
+	}
+
+	@Test
+	public void rightShiftByMinValueIsAnError()
+	{
+		assertTooBig(Evaluate.brshift2, IntegerTerm.get(1), IntegerTerm.get(Integer.MIN_VALUE));
+		assertTooBig(Evaluate.brshift2, IntegerTerm.get(1), MINUS_HUGE);
+	}
+
+	@Test
+	public void shiftingRightPastTheBitsLeavesTheSign() throws PrologException
+	{
+		assertEquals(BigInteger.ZERO, value(eval(Evaluate.blshift2, 1, Integer.MIN_VALUE)));
+		assertEquals(BigInteger.ONE.negate(), value(eval(Evaluate.blshift2, -1, Integer.MIN_VALUE)));
+		assertEquals(BigInteger.ZERO, value(eval(Evaluate.brshift2, BigIntegerTerm.valueOf(BIG), HUGE)));
+		assertEquals(BigInteger.ONE.negate(), value(eval(Evaluate.brshift2, BigIntegerTerm.valueOf(BIG.negate()), HUGE)));
+		assertEquals(BigInteger.ZERO, value(eval(Evaluate.blshift2, BigIntegerTerm.valueOf(BIG), MINUS_HUGE)));
+	}
+
+	@Test
+	public void shiftingZeroIsZero() throws PrologException
+	{
+		assertEquals(BigInteger.ZERO, value(eval(Evaluate.blshift2, IntegerTerm.get(0), HUGE)));
+		assertEquals(BigInteger.ZERO, value(eval(Evaluate.brshift2, IntegerTerm.get(0), IntegerTerm.get(Integer.MIN_VALUE))));
+	}
+}
@@ -0,0 +1,151 @@
+package org.ltc.hitalk.gnu.prolog.vm;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.term.AtomTerm;
+import org.ltc.hitalk.gnu.prolog.term.CompoundTerm;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+import org.ltc.hitalk.gnu.prolog.term.VariableTerm;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.FAIL;
+
+/**
+ * checks which bindings the interpreter trails, and that undoing still resets
+ * every binding made after the position undone to
+ */
+public class InterpreterTest
+{
+	private static final AtomTerm a = AtomTerm.get("a");
+
+	private Interpreter interpreter;
+
+	@Before
+	public void setUp()
+	{
+		interpreter = new Environment().createInterpreter();
+	}
+
+	/**
+	 * the length of the trail, which taking an entry position does not change
+	 */
+	private int trailLength()
+	{
+		return interpreter.getEntryUndoPosition();
+	}
+
+	private BacktrackInfo enter()
+	{
+		BacktrackInfo bi = new BacktrackInfo(interpreter.getEntryUndoPosition(), -1);
+		interpreter.pushBacktrackInfo(bi);
+		return bi;
+	}
+
+	private BacktrackInfo choicePoint()
+	{
+		BacktrackInfo bi = new BacktrackInfo(interpreter.getChoicePointUndoPosition(), -1);
+		interpreter.pushBacktrackInfo(bi);
+		return bi;
+	}
+
+	private void bind(VariableTerm variable) throws PrologException
+	{
+		interpreter.simpleUnify(variable, a);
+	}
+
+	@Test
+	public void entryDoesNotTrail() throws Exception
+	{
+		VariableTerm x = interpreter.createVariable();
+		int length = trailLength();
+		enter();
+		bind(x);
+
+		assertEquals(length, trailLength());
+	}
+
+	@Test
+	public void choicePointTrailsOlderVariables() throws Exception
+	{
+		VariableTerm x = interpreter.createVariable();
+		BacktrackInfo bi = choicePoint();
+		bind(x);
+
+		assertEquals(bi.undoPosition + 1, trailLength());
+		interpreter.undo(bi.undoPosition);
+		assertNull(x.value);
+	}
+
+	@Test
+	public void cutDropsBindingsNoChoicePointNeeds() throws Exception
+	{
+		BacktrackInfo cutPoint = enter();
+		VariableTerm x = interpreter.createVariable();
+		VariableTerm outer = new VariableTerm();
+		choicePoint();
+		bind(x);
+		bind(outer);
+		assertEquals(cutPoint.undoPosition + 2, trailLength());
+
+		interpreter.popBacktrackInfoUntil(cutPoint);
+
+		assertEquals(cutPoint.undoPosition + 1, trailLength());
+		interpreter.undo(cutPoint.undoPosition);
+		assertNull(outer.value);
+		assertSame(a, x.value);
+		// and x is not trailed again
+		x.value = null;
+		bind(x);
+		assertEquals(cutPoint.undoPosition, trailLength());
+	}
+
+	@Test
+	public void deterministicExitDropsBindings() throws Exception
+	{
+		enter();
+		VariableTerm x = interpreter.createVariable();
+		int length = trailLength();
+		BacktrackInfo call = enter();
+		choicePoint();
+		bind(x);
+		// the last clause is tried, and the call exits
+		interpreter.popBacktrackInfo();
+		assertSame(call, interpreter.popDeterministicBacktrackInfo());
+
+		assertEquals(length, trailLength());
+	}
+
+	/**
+	 * an undo position taken by code which undoes to it itself, like findall/3,
+	 * survives a cut of the choice points taken after it
+	 */
+	@Test
+	public void cutKeepsBindingsAnUndoPositionNeeds() throws Exception
+	{
+		BacktrackInfo cutPoint = enter();
+		VariableTerm x = interpreter.createVariable();
+		int position = interpreter.getUndoPosition();
+		choicePoint();
+		interpreter.popBacktrackInfoUntil(cutPoint);
+		bind(x);
+
+		interpreter.undo(position);
+		assertNull(x.value);
+	}
+
+	@Test
+	public void failedUnifyIsUndone() throws Exception
+	{
+		VariableTerm x = interpreter.createVariable();
+		// the last arguments unify first
+		Term t1 = new CompoundTerm("f", new Term[] { a, x });
+		Term t2 = new CompoundTerm("f", new Term[] { AtomTerm.get("b"), a });
+
+		assertEquals(FAIL, interpreter.unify(t1, t2));
+		assertNull(x.value);
+		// and x is not trailed afterwards
+		int length = trailLength();
+		bind(x);
+		assertEquals(length, trailLength());
+	}
+}
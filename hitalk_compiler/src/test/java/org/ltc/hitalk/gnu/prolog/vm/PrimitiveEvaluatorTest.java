@@ -0,0 +1,256 @@
+package org.ltc.hitalk.gnu.prolog.vm;
+
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.term.*;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * checks that the fast paths of the primitive evaluator give the results and
+ * errors of {@link Evaluate} on the same expressions, in particular on the
+ * edges of the 64 bit slot where they have to hand over to big integers
+ */
+public class PrimitiveEvaluatorTest
+{
+	private static final long MAX = Long.MAX_VALUE;
+	private static final long MIN = Long.MIN_VALUE;
+	private static final BigInteger TWO_TO_63 = BigInteger.ONE.shiftLeft(63);
+
+	private final PrimitiveEvaluator evaluator = new PrimitiveEvaluator();
+
+	private static Term i(long value)
+	{
+		return BigIntegerTerm.valueOf(value);
+	}
+
+	private static Term i(BigInteger value)
+	{
+		return BigIntegerTerm.valueOf(value);
+	}
+
+	private static Term f(double value)
+	{
+		return new FloatTerm(value);
+	}
+
+	private static Term op(CompoundTermTag tag, Term... args)
+	{
+		return new CompoundTerm(tag, args);
+	}
+
+	private static Term op(CompoundTermTag tag, long arg0, long arg1)
+	{
+		return op(tag, i(arg0), i(arg1));
+	}
+
+	/**
+	 * check that the evaluator gives what {@link Evaluate} gives, or raises the
+	 * same error
+	 *
+	 * @return the result
+	 */
+	private Term assertSameAsEvaluate(Term expression) throws PrologException
+	{
+		Term expected;
+		try
+		{
+			expected = Evaluate.evaluate(expression);
+		}
+		catch (PrologException ex)
+		{
+			try
+			{
+				evaluator.evaluate(expression);
+				fail(expression + " is an error");
+			}
+			catch (PrologException ex2)
+			{
+				assertEquals(expression.toString(), ex.getTerm().toString(), ex2.getTerm().toString());
+			}
+			return null;
+		}
+		Term actual = evaluator.evaluate(expression);
+		assertSame(expression.toString(), expected.getClass(), actual.getClass());
+		if (expected instanceof FloatTerm)
+		{
+			assertEquals(expression.toString(), ((FloatTerm) expected).value, ((FloatTerm) actual).value, 0.0);
+		}
+		else
+		{
+			assertEquals(expression.toString(), BigIntegerTerm.toBigInteger(expected),
+					BigIntegerTerm.toBigInteger(actual));
+		}
+		return actual;
+	}
+
+	/**
+	 * check that an expression overflows the 64 bit slot into a big integer
+	 */
+	private void assertBig(BigInteger expected, Term expression) throws PrologException
+	{
+		Term actual = assertSameAsEvaluate(expression);
+		assertTrue(expression.toString(), actual instanceof BigIntegerTerm);
+		assertTrue(expression.toString(), expected.bitLength() >= 64);
+		assertEquals(expression.toString(), expected, ((BigIntegerTerm) actual).value);
+	}
+
+	@Test
+	public void addOverflowsIntoBigIntegers() throws PrologException
+	{
+		assertBig(TWO_TO_63, op(Evaluate.add2, MAX, 1));
+		assertBig(TWO_TO_63.negate().subtract(BigInteger.ONE), op(Evaluate.add2, MIN, -1));
+		assertBig(BigInteger.valueOf(MAX).shiftLeft(1), op(Evaluate.add2, MAX, MAX));
+		assertBig(TWO_TO_63.shiftLeft(1).negate(), op(Evaluate.add2, MIN, MIN));
+		assertSameAsEvaluate(op(Evaluate.add2, MAX, -1));
+		assertSameAsEvaluate(op(Evaluate.add2, MIN, MAX));
+		assertSameAsEvaluate(op(Evaluate.add2, Integer.MAX_VALUE, 1));
+		assertSameAsEvaluate(op(Evaluate.add2, i(MAX), f(1)));
+	}
+
+	@Test
+	public void subOverflowsIntoBigIntegers() throws PrologException
+	{
+		assertBig(TWO_TO_63.negate().subtract(BigInteger.ONE), op(Evaluate.sub2, MIN, 1));
+		assertBig(TWO_TO_63, op(Evaluate.sub2, MAX, -1));
+		assertBig(TWO_TO_63, op(Evaluate.sub2, 0, MIN));
+		assertBig(TWO_TO_63.shiftLeft(1).subtract(BigInteger.ONE), op(Evaluate.sub2, MAX, MIN));
+		assertSameAsEvaluate(op(Evaluate.sub2, MIN, MIN));
+		assertSameAsEvaluate(op(Evaluate.sub2, -1, MIN));
+		assertSameAsEvaluate(op(Evaluate.sub2, Integer.MIN_VALUE, 1));
+		assertSameAsEvaluate(op(Evaluate.sub2, f(0.5), i(MIN)));
+	}
+
+	@Test
+	public void mulOverflowsIntoBigIntegers() throws PrologException
+	{
+		assertBig(BigInteger.valueOf(MAX).shiftLeft(1), op(Evaluate.mul2, MAX, 2));
+		assertBig(TWO_TO_63, op(Evaluate.mul2, MIN, -1));
+		assertBig(TWO_TO_63, op(Evaluate.mul2, 1L << 31, 1L << 32));
+		assertBig(BigInteger.ONE.shiftLeft(64), op(Evaluate.mul2, 1L << 32, 1L << 32));
+		assertBig(BigInteger.valueOf(3037000500L).pow(2), op(Evaluate.mul2, 3037000500L, 3037000500L));
+		// just fits
+		assertSameAsEvaluate(op(Evaluate.mul2, -(1L << 31), 1L << 32));
+		assertSameAsEvaluate(op(Evaluate.mul2, 3037000499L, 3037000499L));
+		assertSameAsEvaluate(op(Evaluate.mul2, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		assertSameAsEvaluate(op(Evaluate.mul2, i(MAX), f(2)));
+	}
+
+	@Test
+	public void negationAndAbsOfTheLeastLong() throws PrologException
+	{
+		assertBig(TWO_TO_63, op(Evaluate.neg1, i(MIN)));
+		assertBig(TWO_TO_63, op(Evaluate.abs1, i(MIN)));
+		assertSameAsEvaluate(op(Evaluate.neg1, i(MAX)));
+		assertSameAsEvaluate(op(Evaluate.abs1, i(MIN + 1)));
+		assertSameAsEvaluate(op(Evaluate.neg1, i(Integer.MIN_VALUE)));
+		assertSameAsEvaluate(op(Evaluate.abs1, i(Integer.MIN_VALUE)));
+		assertSameAsEvaluate(op(Evaluate.abs1, i(-5)));
+		assertSameAsEvaluate(op(Evaluate.neg1, i(TWO_TO_63)));
+		assertSameAsEvaluate(op(Evaluate.abs1, f(-2.5)));
+	}
+
+	@Test
+	public void intDivByMinusOne() throws PrologException
+	{
+		assertBig(TWO_TO_63, op(Evaluate.intdiv2, MIN, -1));
+		assertSameAsEvaluate(op(Evaluate.intdiv2, MAX, -1));
+		assertSameAsEvaluate(op(Evaluate.intdiv2, MIN, 1));
+		assertSameAsEvaluate(op(Evaluate.intdiv2, Integer.MIN_VALUE, -1));
+		assertSameAsEvaluate(op(Evaluate.intdiv2, -7, 2));
+		assertSameAsEvaluate(op(Evaluate.rem2, MIN, -1));
+		assertSameAsEvaluate(op(Evaluate.mod2, MIN, -1));
+		assertSameAsEvaluate(op(Evaluate.mod2, -7, 2));
+		// the errors are those of Evaluate
+		assertNull(assertSameAsEvaluate(op(Evaluate.intdiv2, MIN, 0)));
+		assertNull(assertSameAsEvaluate(op(Evaluate.intdiv2, i(7), f(2))));
+	}
+
+	@Test
+	public void leftShiftDetectsShiftedOutBits() throws PrologException
+	{
+		assertSameAsEvaluate(op(Evaluate.blshift2, 1, 62));
+		assertSameAsEvaluate(op(Evaluate.blshift2, -1, 63));
+		assertSameAsEvaluate(op(Evaluate.blshift2, 1L << 31, 31));
+		assertSameAsEvaluate(op(Evaluate.blshift2, 5, -1));
+		assertSameAsEvaluate(op(Evaluate.blshift2, MIN, -63));
+		assertSameAsEvaluate(op(Evaluate.blshift2, MIN, -100));
+		assertBig(TWO_TO_63, op(Evaluate.blshift2, 1, 63));
+		assertBig(BigInteger.valueOf(3).shiftLeft(62), op(Evaluate.blshift2, 3, 62));
+		assertBig(BigInteger.valueOf(MAX).shiftLeft(1), op(Evaluate.blshift2, MAX, 1));
+		assertBig(BigInteger.valueOf(-MAX).shiftLeft(1), op(Evaluate.blshift2, -MAX, 1));
+		assertBig(BigInteger.valueOf(MIN).shiftLeft(1), op(Evaluate.blshift2, MIN, 1));
+		assertBig(BigInteger.valueOf(1L << 40).shiftLeft(30), op(Evaluate.blshift2, 1L << 40, 30));
+		assertBig(BigInteger.ONE.shiftLeft(100), op(Evaluate.blshift2, 1, 100));
+		assertSameAsEvaluate(op(Evaluate.brshift2, MIN, 63));
+		assertSameAsEvaluate(op(Evaluate.brshift2, MIN, 100));
+		assertSameAsEvaluate(op(Evaluate.brshift2, 1, -63));
+	}
+
+	@Test
+	public void nestedExpressionsKeepTheirSlots() throws PrologException
+	{
+		// MAX + 1 - 1 only fits again after the big step
+		assertSameAsEvaluate(op(Evaluate.sub2, op(Evaluate.add2, MAX, 1), i(1)));
+		assertSameAsEvaluate(op(Evaluate.mul2, op(Evaluate.neg1, i(MIN)), i(0)));
+		assertSameAsEvaluate(op(Evaluate.add2, op(Evaluate.mul2, MAX, MAX), f(1)));
+	}
+
+	/**
+	 * compare the values of two expressions as {@link Evaluate} would, on the
+	 * terms it gives
+	 */
+	private static int compareEvaluated(Term term0, Term term1) throws PrologException
+	{
+		Term value0 = Evaluate.evaluate(term0);
+		Term value1 = Evaluate.evaluate(term1);
+		if (!(value0 instanceof FloatTerm) && !(value1 instanceof FloatTerm))
+		{
+			int res = BigIntegerTerm.compare(value0, value1);
+			return res < 0 ? PrimitiveEvaluator.LESS : res > 0 ? PrimitiveEvaluator.GREATER : PrimitiveEvaluator.EQUAL;
+		}
+		double d0 = toDouble(value0);
+		double d1 = toDouble(value1);
+		return d0 < d1 ? PrimitiveEvaluator.LESS : d0 > d1 ? PrimitiveEvaluator.GREATER : d0 == d1
+				? PrimitiveEvaluator.EQUAL : PrimitiveEvaluator.UNORDERED;
+	}
+
+	private static double toDouble(Term value)
+	{
+		if (value instanceof FloatTerm)
+		{
+			return ((FloatTerm) value).value;
+		}
+		return BigIntegerTerm.toBigInteger(value).doubleValue();
+	}
+
+	private void assertCompare(int expected, Term term0, Term term1) throws PrologException
+	{
+		String comparison = term0 + " and " + term1;
+		assertEquals(comparison, compareEvaluated(term0, term1), evaluator.compare(term0, term1));
+		assertEquals(comparison, expected, evaluator.compare(term0, term1));
+		assertEquals(comparison, -expected, evaluator.compare(term1, term0));
+	}
+
+	@Test
+	public void comparesAcrossIntBigAndFloat() throws PrologException
+	{
+		Term big = i(TWO_TO_63);
+		Term bigger = i(TWO_TO_63.add(BigInteger.ONE));
+
+		assertCompare(PrimitiveEvaluator.LESS, i(1), i(2));
+		assertCompare(PrimitiveEvaluator.EQUAL, i(MAX), i(MAX));
+		assertCompare(PrimitiveEvaluator.LESS, i(MAX), big);
+		assertCompare(PrimitiveEvaluator.GREATER, i(MIN), i(TWO_TO_63.negate().subtract(BigInteger.ONE)));
+		assertCompare(PrimitiveEvaluator.LESS, big, bigger);
+		assertCompare(PrimitiveEvaluator.EQUAL, op(Evaluate.add2, MAX, 1), big);
+		assertCompare(PrimitiveEvaluator.LESS, i(1), f(1.5));
+		assertCompare(PrimitiveEvaluator.EQUAL, i(2), f(2));
+		assertCompare(PrimitiveEvaluator.GREATER, f(-0.5), i(MIN));
+		assertCompare(PrimitiveEvaluator.EQUAL, big, f(0x1p63));
+		assertCompare(PrimitiveEvaluator.LESS, big, f(0x1p64));
+		assertCompare(PrimitiveEvaluator.GREATER, i(BigInteger.ONE.shiftLeft(100)), f(1e20));
+		assertCompare(PrimitiveEvaluator.EQUAL, op(Evaluate.mul2, i(3), f(0.5)), f(1.5));
+	}
+}
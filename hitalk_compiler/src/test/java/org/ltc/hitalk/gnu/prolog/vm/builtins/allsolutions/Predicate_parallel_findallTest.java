@@ -0,0 +1,186 @@
+package org.ltc.hitalk.gnu.prolog.vm.builtins.allsolutions;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.database.Predicate;
+import org.ltc.hitalk.gnu.prolog.io.PrologStream;
+import org.ltc.hitalk.gnu.prolog.io.TextOutputPrologStream;
+import org.ltc.hitalk.gnu.prolog.term.*;
+import org.ltc.hitalk.gnu.prolog.vm.Environment;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologCode;
+import org.ltc.hitalk.gnu.prolog.vm.PrologException;
+import org.ltc.hitalk.gnu.prolog.vm.TermConstants;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.FAIL;
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.SUCCESS_LAST;
+
+/**
+ * checks that parallel_findall/3 finds what findall/3 finds
+ */
+public class Predicate_parallel_findallTest
+{
+	private static final int CLAUSES = 4 * Predicate_parallel_findall.MIN_CLAUSES;
+
+	private static final CompoundTermTag pTag = CompoundTermTag.get("p", 1);
+	private static final CompoundTermTag findallTag = CompoundTermTag.get("findall", 3);
+	private static final CompoundTermTag parallelFindallTag = CompoundTermTag.get("parallel_findall", 3);
+	private static final CompoundTermTag identicalTag = CompoundTermTag.get("==", 2);
+
+	private Environment environment;
+	private Interpreter interpreter;
+	private Predicate p;
+
+	/**
+	 * defines p/1 with a fact for each number below {@link #CLAUSES}, and with
+	 * a rule for every tenth of them, which doubles it
+	 */
+	@Before
+	public void setUp()
+	{
+		environment = new Environment();
+		interpreter = environment.createInterpreter();
+		// which also has the environment follow updates of predicates
+		environment.runInitialization(interpreter);
+		p = environment.getModule().createDefinedPredicate(pTag);
+		p.setType(Predicate.TYPE.USER_DEFINED);
+		for (int i = 0; i < CLAUSES; i++)
+		{
+			addClause(i);
+		}
+	}
+
+	private void addClause(int i)
+	{
+		Term head = new CompoundTerm(pTag, IntegerTerm.get(i));
+		if (i % 10 == 0)
+		{
+			VariableTerm x = new VariableTerm("X");
+			Term body = new CompoundTerm(CompoundTermTag.get("is", 2), x, new CompoundTerm(CompoundTermTag.get("*", 2),
+					IntegerTerm.get(i), IntegerTerm.get(2)));
+			head = new CompoundTerm(TermConstants.clauseTag, new CompoundTerm(pTag, x), body);
+		}
+		p.addClauseLast(Predicate.prepareClause(head));
+	}
+
+	/**
+	 * run findall/3 and parallel_findall/3 on p/1, and check they find the same
+	 */
+	private void assertSameAsFindall() throws Exception
+	{
+		VariableTerm x = new VariableTerm("X");
+		VariableTerm all = new VariableTerm("All");
+		VariableTerm parallel = new VariableTerm("Parallel");
+		Term goal = CompoundTerm.getConjunction(
+				new CompoundTerm(findallTag, x, new CompoundTerm(pTag, x), all),
+				CompoundTerm.getConjunction(
+						new CompoundTerm(parallelFindallTag, x, new CompoundTerm(pTag, x), parallel),
+						new CompoundTerm(identicalTag, all, parallel)));
+
+		assertEquals(SUCCESS_LAST, interpreter.runOnce(goal));
+	}
+
+	@Test
+	public void findsWhatFindallFinds() throws Exception
+	{
+		assertSameAsFindall();
+	}
+
+	@Test
+	public void failsOnAListWhichDoesNotMatch() throws Exception
+	{
+		VariableTerm x = new VariableTerm("X");
+		Term list = CompoundTerm.getList(IntegerTerm.get(0), CompoundTerm.getList(AtomTerm.get("none"),
+				new VariableTerm("Rest")));
+
+		assertEquals(FAIL, interpreter.runOnce(new CompoundTerm(parallelFindallTag, x, new CompoundTerm(pTag, x), list)));
+	}
+
+	/**
+	 * all parts run before the result is unified, so an error in the last part
+	 * is raised, as findall/3 raises it, even though the result would not have
+	 * matched the solutions of the first part
+	 */
+	@Test
+	public void errorInALaterPartIsRaisedOnAListWhichDoesNotMatch() throws Exception
+	{
+		VariableTerm y = new VariableTerm("Y");
+		p.addClauseLast(Predicate.prepareClause(new CompoundTerm(TermConstants.clauseTag, new CompoundTerm(pTag, y),
+				new CompoundTerm(CompoundTermTag.get("is", 2), y, new CompoundTerm(CompoundTermTag.get("+", 2),
+						AtomTerm.get("none"), IntegerTerm.get(1))))));
+		VariableTerm x = new VariableTerm("X");
+		Term list = CompoundTerm.getList(AtomTerm.get("none"), new VariableTerm("Rest"));
+
+		try
+		{
+			interpreter.runOnce(new CompoundTerm(parallelFindallTag, x, new CompoundTerm(pTag, x), list));
+			fail("none + 1 is not evaluable");
+		}
+		catch (PrologException ex)
+		{
+			Term error = ((CompoundTerm) ex.getTerm().dereference()).args[0].dereference();
+			assertEquals(CompoundTermTag.get("type_error", 2), ((CompoundTerm) error).tag);
+		}
+	}
+
+	/**
+	 * the compiled parts are kept between calls, and dropped when the predicate
+	 * changes
+	 */
+	@Test
+	public void keepsPartsUntilUpdated() throws Exception
+	{
+		assertSameAsFindall();
+		PrologCode code = environment.getPrologCode(parallelFindallTag);
+		assertTrue(code instanceof Predicate_parallel_findall);
+		PrologCode[] parts = ((Predicate_parallel_findall) code).tag2parts.get(pTag);
+		assertNotNull(parts);
+		assertTrue(parts.length > 1);
+
+		assertSameAsFindall();
+		assertSame(parts, ((Predicate_parallel_findall) code).tag2parts.get(pTag));
+
+		addClause(CLAUSES);
+		assertNull(((Predicate_parallel_findall) code).tag2parts.get(pTag));
+		assertSameAsFindall();
+	}
+
+	/**
+	 * the parts run on pool threads, which must see the current output of the
+	 * caller rather than user output
+	 */
+	@Test
+	public void partsSeeTheCurrentOutputOfTheCaller() throws Exception
+	{
+		CompoundTermTag qTag = CompoundTermTag.get("q", 1);
+		Predicate q = environment.getModule().createDefinedPredicate(qTag);
+		q.setType(Predicate.TYPE.USER_DEFINED);
+		for (int i = 0; i < CLAUSES; i++)
+		{
+			VariableTerm s = new VariableTerm("S");
+			q.addClauseLast(Predicate.prepareClause(new CompoundTerm(TermConstants.clauseTag, new CompoundTerm(qTag, s),
+					new CompoundTerm(CompoundTermTag.get("current_output", 1), s))));
+		}
+		PrologStream.OpenOptions options = new PrologStream.OpenOptions(AtomTerm.get("captured"),
+				PrologStream.appendAtom, environment);
+		PrologStream output = new TextOutputPrologStream(options, new StringWriter());
+		environment.setCurrentOutput(output);
+
+		VariableTerm s = new VariableTerm("S");
+		VariableTerm streams = new VariableTerm("Streams");
+		assertEquals(SUCCESS_LAST, interpreter.runOnce(new CompoundTerm(parallelFindallTag, s, new CompoundTerm(qTag, s),
+				streams)));
+
+		int count = 0;
+		for (Term list = streams.dereference(); list != TermConstants.emptyListAtom; list = ((CompoundTerm) list).args[1]
+				.dereference())
+		{
+			assertSame(output.getStreamTerm(), ((CompoundTerm) list).args[0].dereference());
+			count++;
+		}
+		assertEquals(CLAUSES, count);
+	}
+}
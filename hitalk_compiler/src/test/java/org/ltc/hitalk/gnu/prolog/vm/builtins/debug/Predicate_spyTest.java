@@ -0,0 +1,95 @@
+package org.ltc.hitalk.gnu.prolog.vm.builtins.debug;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.term.*;
+import org.ltc.hitalk.gnu.prolog.vm.Environment;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result;
+import org.ltc.hitalk.gnu.prolog.vm.PrologException;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.SUCCESS_LAST;
+
+/**
+ * checks that the trace_all flag and the predicates spied on decide which
+ * predicates are traced independently of each other
+ */
+public class Predicate_spyTest
+{
+	private static final CompoundTermTag pTag = CompoundTermTag.get("p", 1);
+	private static final CompoundTermTag qTag = CompoundTermTag.get("q", 0);
+
+	private Environment environment;
+	private Interpreter interpreter;
+
+	@Before
+	public void setUp()
+	{
+		environment = new Environment();
+		interpreter = environment.createInterpreter();
+	}
+
+	private Result call(String name, Term arg) throws Exception
+	{
+		return environment.getPrologCode(CompoundTermTag.get(name, 1)).execute(interpreter, false, new Term[] { arg });
+	}
+
+	@Test
+	public void tracesAllByDefault()
+	{
+		assertSame(Environment.onAtom, environment.getPrologFlag(Environment.traceAllAtom));
+		assertTrue(environment.isTraced(pTag));
+		assertTrue(environment.isTraced(qTag));
+	}
+
+	@Test
+	public void tracesOnlySpiedWithoutTraceAll() throws Exception
+	{
+		environment.setPrologFlag(Environment.traceAllAtom, Environment.offAtom);
+		assertFalse(environment.isTraced(pTag));
+
+		assertEquals(SUCCESS_LAST, call("spy", pTag.getPredicateIndicator()));
+
+		assertTrue(environment.isTraced(pTag));
+		assertFalse(environment.isTraced(qTag));
+	}
+
+	/**
+	 * removing the last spied predicate must not turn into tracing all of them
+	 */
+	@Test
+	public void nospyOfTheLastSpiedTracesNothing() throws Exception
+	{
+		environment.setPrologFlag(Environment.traceAllAtom, Environment.offAtom);
+		call("spy", pTag.getPredicateIndicator());
+
+		assertEquals(SUCCESS_LAST, call("nospy", pTag.getPredicateIndicator()));
+
+		assertFalse(environment.isTraced(pTag));
+		assertFalse(environment.isTraced(qTag));
+	}
+
+	@Test
+	public void spiedStayAcrossTraceAll() throws Exception
+	{
+		call("spy", pTag.getPredicateIndicator());
+		environment.setPrologFlag(Environment.traceAllAtom, Environment.offAtom);
+		assertTrue(environment.isTraced(pTag));
+
+		environment.setPrologFlag(Environment.traceAllAtom, Environment.onAtom);
+		assertTrue(environment.isTraced(qTag));
+	}
+
+	@Test(expected = PrologException.class)
+	public void traceAllIsOnOrOff() throws Exception
+	{
+		environment.setPrologFlag(Environment.traceAllAtom, AtomTerm.get("some"));
+	}
+
+	@Test(expected = PrologException.class)
+	public void spyNeedsAPredicateIndicator() throws Exception
+	{
+		call("spy", AtomTerm.get("p"));
+	}
+}
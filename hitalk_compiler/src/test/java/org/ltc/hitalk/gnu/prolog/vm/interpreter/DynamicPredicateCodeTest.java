@@ -0,0 +1,200 @@
+package org.ltc.hitalk.gnu.prolog.vm.interpreter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.database.Predicate;
+import org.ltc.hitalk.gnu.prolog.term.*;
+import org.ltc.hitalk.gnu.prolog.vm.*;
+import org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result;
+import org.ltc.hitalk.gnu.prolog.vm.interpreter.DynamicPredicateCode.Clause;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.*;
+
+/**
+ * checks that assert and retract change dynamic code in place, and that a call
+ * sees the clauses of the predicate as they were when it started
+ */
+public class DynamicPredicateCodeTest
+{
+	private static final CompoundTermTag pTag = CompoundTermTag.get("p", 1);
+	private static final CompoundTermTag assertzTag = CompoundTermTag.get("assertz", 1);
+	private static final CompoundTermTag retractTag = CompoundTermTag.get("retract", 1);
+
+	private Environment environment;
+	private Interpreter interpreter;
+
+	@Before
+	public void setUp()
+	{
+		environment = new Environment();
+		interpreter = environment.createInterpreter();
+		// which also has the environment follow updates of predicates
+		environment.runInitialization(interpreter);
+		interpreter.pushBacktrackInfo(new BacktrackInfo(interpreter.getEntryUndoPosition(), -1));
+	}
+
+	private static Term p(int i)
+	{
+		return new CompoundTerm(pTag, IntegerTerm.get(i));
+	}
+
+	/**
+	 * call a builtin once, cutting away any choice point it leaves
+	 */
+	private Result once(CompoundTermTag tag, Term arg) throws Exception
+	{
+		BacktrackInfo cutPoint = interpreter.peekBacktrackInfo();
+		Result rc = environment.getPrologCode(tag).execute(interpreter, false, new Term[] { arg });
+		interpreter.popBacktrackInfoUntil(cutPoint);
+		return rc;
+	}
+
+	private static long value(Term x)
+	{
+		return ((IntegerTerm) x.dereference()).value;
+	}
+
+	/**
+	 * @return the values of X of all solutions of p(X)
+	 */
+	private List<Long> solutions(PrologCode code) throws Exception
+	{
+		List<Long> values = new ArrayList<Long>();
+		Term[] args = new Term[] { new VariableTerm() };
+		Result rc = code.execute(interpreter, false, args);
+		while (rc != FAIL)
+		{
+			values.add(value(args[0]));
+			if (rc == SUCCESS_LAST)
+			{
+				break;
+			}
+			rc = code.execute(interpreter, true, args);
+		}
+		return values;
+	}
+
+	@Test
+	public void callSeesClausesAsTheyWereWhenItStarted() throws Exception
+	{
+		for (int i = 1; i <= 3; i++)
+		{
+			assertEquals(SUCCESS_LAST, once(assertzTag, p(i)));
+		}
+		PrologCode code = environment.getPrologCode(pTag);
+		assertTrue(code instanceof DynamicPredicateCode);
+
+		Term[] args = new Term[] { new VariableTerm() };
+		assertEquals(SUCCESS, code.execute(interpreter, false, args));
+		assertEquals(1, value(args[0]));
+
+		assertEquals(SUCCESS, once(retractTag, p(2)));
+		assertEquals(SUCCESS_LAST, once(assertzTag, p(4)));
+		// the code was changed in place rather than reloaded
+		assertSame(code, environment.getPrologCode(pTag));
+
+		// the removed clause is still tried, and the added one is not
+		assertEquals(SUCCESS, code.execute(interpreter, true, args));
+		assertEquals(2, value(args[0]));
+		assertEquals(SUCCESS_LAST, code.execute(interpreter, true, args));
+		assertEquals(3, value(args[0]));
+
+		// while a new call sees both changes
+		assertEquals(Arrays.asList(1L, 3L, 4L), solutions(code));
+	}
+
+	@Test
+	public void retractRemovesTheVeryClauseUnified() throws Exception
+	{
+		once(assertzTag, p(1));
+		once(assertzTag, p(1));
+		DynamicPredicateCode code = (DynamicPredicateCode) environment.getPrologCode(pTag);
+		Predicate p = environment.getModule().getDefinedPredicate(pTag);
+		Term second = p.getClauses().get(1);
+
+		assertEquals(SUCCESS, once(retractTag, p(1)));
+
+		assertEquals(1, p.getClauses().size());
+		assertSame(second, p.getClauses().get(0));
+		assertSame(second, code.first.term);
+		assertNull(code.first.next);
+		assertEquals(Arrays.asList(1L), solutions(code));
+	}
+
+	@Test
+	public void retractWalksTheClausesAsTheyWereWhenItStarted() throws Exception
+	{
+		for (int i = 1; i <= 4; i++)
+		{
+			once(assertzTag, p(i));
+		}
+		DynamicPredicateCode code = (DynamicPredicateCode) environment.getPrologCode(pTag);
+		Predicate p = environment.getModule().getDefinedPredicate(pTag);
+		PrologCode retract = environment.getPrologCode(retractTag);
+		Term[] args = new Term[] { new CompoundTerm(pTag, new VariableTerm()) };
+
+		assertEquals(SUCCESS, retract.execute(interpreter, false, args));
+		assertEquals(1, value(((CompoundTerm) args[0].dereference()).args[0]));
+
+		// removed by someone else, so skipped without being unified, and added
+		// after the call started, so not seen
+		assertTrue(p.removeClause(code.firstVisible(code.getGeneration()).getTerm()));
+		assertFalse(p.removeClause(p(2)));
+		once(assertzTag, p(5));
+
+		assertEquals(SUCCESS, retract.execute(interpreter, true, args));
+		assertEquals(3, value(((CompoundTerm) args[0].dereference()).args[0]));
+		assertEquals(SUCCESS_LAST, retract.execute(interpreter, true, args));
+		assertEquals(4, value(((CompoundTerm) args[0].dereference()).args[0]));
+
+		assertSame(code, environment.getPrologCode(pTag));
+		assertEquals(Arrays.asList(5L), solutions(code));
+		assertEquals(1, p.getClauses().size());
+	}
+
+	@Test
+	public void clauseIsRemovedOnce() throws Exception
+	{
+		once(assertzTag, p(1));
+		once(assertzTag, p(2));
+		DynamicPredicateCode code = (DynamicPredicateCode) environment.getPrologCode(pTag);
+		Predicate p = environment.getModule().getDefinedPredicate(pTag);
+		Clause first = code.firstVisible(code.getGeneration());
+
+		assertTrue(p.removeClause(first.getTerm()));
+		assertTrue(first.isRemoved());
+		assertFalse(p.removeClause(first.getTerm()));
+		assertEquals(Arrays.asList(2L), solutions(code));
+		assertEquals(1, p.getClauses().size());
+		assertFalse(p.getClauses().contains(first.getTerm()));
+	}
+
+	@Test
+	public void retractOfUnknownPredicateFails() throws Exception
+	{
+		assertEquals(FAIL, once(retractTag, p(1)));
+	}
+
+	@Test
+	public void assertOnStaticPredicateIsAPermissionError() throws Exception
+	{
+		Predicate q = environment.getModule().createDefinedPredicate(CompoundTermTag.get("q", 0));
+		q.setType(Predicate.TYPE.USER_DEFINED);
+		q.addClauseLast(Predicate.prepareClause(AtomTerm.get("q")));
+
+		try
+		{
+			once(assertzTag, AtomTerm.get("q"));
+			fail("q/0 is static");
+		}
+		catch (PrologException ex)
+		{
+			assertEquals(1, q.getClauses().size());
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package org.ltc.hitalk.gnu.prolog.vm.interpreter;
+
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.term.AtomTerm;
+import org.ltc.hitalk.gnu.prolog.term.CompoundTerm;
+import org.ltc.hitalk.gnu.prolog.term.FloatTerm;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+import org.ltc.hitalk.gnu.prolog.vm.Environment;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologCode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.SUCCESS_LAST;
+
+/**
+ * checks which code an indexed call selects
+ */
+public class IndexedPredicateCodeTest
+{
+	/** code of the whole predicate, which counts its calls */
+	private static class AllCode implements PrologCode
+	{
+		final AtomicInteger calls = new AtomicInteger();
+
+		public Result execute(Interpreter interpreter, boolean backtrackMode, Term... args)
+		{
+			calls.incrementAndGet();
+			return SUCCESS_LAST;
+		}
+
+		public void install(Environment env)
+		{
+		}
+
+		public void uninstall(Environment env)
+		{
+		}
+	}
+
+	private static Term fact(Term arg)
+	{
+		return new CompoundTerm("p", new Term[] { arg });
+	}
+
+	private static List<Term> clauses(Term... args)
+	{
+		List<Term> clauses = new ArrayList<Term>();
+		for (Term arg : args)
+		{
+			clauses.add(fact(arg));
+		}
+		return clauses;
+	}
+
+	@Test
+	public void floatsAreNotKeys()
+	{
+		assertNull(IndexedPredicateCode.getKey(new FloatTerm(1.0)));
+		assertFalse(IndexedPredicateCode.isIndexable(clauses(new FloatTerm(1.0), new FloatTerm(2.0))));
+	}
+
+	/**
+	 * a float which unifies with a clause head within the tolerance, but is not
+	 * equal to it, must still reach that clause
+	 */
+	@Test
+	public void floatCallRunsAllClauses() throws Exception
+	{
+		AllCode allCode = new AllCode();
+		IndexedPredicateCode code = new IndexedPredicateCode(
+				clauses(new FloatTerm(1.0), AtomTerm.get("a"), AtomTerm.get("b")), allCode);
+
+		assertEquals(SUCCESS_LAST, code.execute(null, false, new Term[] { new FloatTerm(1.0 + 1e-9) }));
+		assertEquals(1, allCode.calls.get());
+	}
+
+	@Test
+	public void concurrentCallsShareOneBucket() throws Exception
+	{
+		final IndexedPredicateCode code = new IndexedPredicateCode(
+				clauses(AtomTerm.get("a"), AtomTerm.get("b"), AtomTerm.get("c")), new AllCode());
+		final Object key = IndexedPredicateCode.getKey(AtomTerm.get("a"));
+		final CyclicBarrier start = new CyclicBarrier(8);
+		List<Callable<PrologCode>> calls = new ArrayList<Callable<PrologCode>>();
+		for (int i = 0; i < 8; i++)
+		{
+			calls.add(new Callable<PrologCode>()
+			{
+				public PrologCode call() throws Exception
+				{
+					start.await();
+					return code.getCode(key);
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try
+		{
+			PrologCode first = null;
+			for (Future<PrologCode> result : executor.invokeAll(calls))
+			{
+				if (first == null)
+				{
+					first = result.get();
+				}
+				assertSame(first, result.get());
+			}
+			assertSame(first, code.getCode(key));
+			assertEquals(Arrays.asList(first), new ArrayList<PrologCode>(code.keyCodes.values()));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}
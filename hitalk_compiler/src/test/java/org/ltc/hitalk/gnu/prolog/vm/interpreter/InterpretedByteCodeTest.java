@@ -0,0 +1,102 @@
+package org.ltc.hitalk.gnu.prolog.vm.interpreter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ltc.hitalk.gnu.prolog.term.AtomTerm;
+import org.ltc.hitalk.gnu.prolog.term.CompoundTerm;
+import org.ltc.hitalk.gnu.prolog.term.Term;
+import org.ltc.hitalk.gnu.prolog.term.VariableTerm;
+import org.ltc.hitalk.gnu.prolog.vm.Environment;
+import org.ltc.hitalk.gnu.prolog.vm.Interpreter;
+import org.ltc.hitalk.gnu.prolog.vm.PrologCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.gnu.prolog.vm.PrologCode.Result.*;
+
+/**
+ * checks that interpreted code reuses the backtrack info it pushes on entry
+ * once it has popped it for the last time, and only then
+ */
+public class InterpretedByteCodeTest
+{
+	private Interpreter interpreter;
+
+	@Before
+	public void setUp()
+	{
+		interpreter = new Environment().createInterpreter();
+	}
+
+	/**
+	 * code of the facts p(A1). p(A2). ... without indexing
+	 */
+	private static PrologCode facts(String... args) throws Exception
+	{
+		List<Term> clauses = new ArrayList<Term>();
+		for (String arg : args)
+		{
+			clauses.add(new CompoundTerm("p", new Term[] { AtomTerm.get(arg) }));
+		}
+		return new InterpretedCodeCompiler(clauses).compilePredicate();
+	}
+
+	private EnterBacktrackInfo released()
+	{
+		EnterBacktrackInfo entry = new EnterBacktrackInfo(0);
+		interpreter.releaseEntryBacktrackInfo(entry);
+		return entry;
+	}
+
+	@Test
+	public void deterministicExitReleasesEntry() throws Exception
+	{
+		PrologCode code = facts("a");
+		EnterBacktrackInfo entry = released();
+
+		assertEquals(SUCCESS_LAST, code.execute(interpreter, false, new Term[] { new VariableTerm() }));
+		assertSame(entry, interpreter.reuseEntryBacktrackInfo());
+		assertNull(interpreter.reuseEntryBacktrackInfo());
+	}
+
+	@Test
+	public void failureReleasesEntry() throws Exception
+	{
+		PrologCode code = facts("a");
+		EnterBacktrackInfo entry = released();
+
+		assertEquals(FAIL, code.execute(interpreter, false, new Term[] { AtomTerm.get("b") }));
+		assertSame(entry, interpreter.reuseEntryBacktrackInfo());
+	}
+
+	/**
+	 * the entry stays on the stack below the choice point of the second clause,
+	 * so it is released only once the redo exits for the last time
+	 */
+	@Test
+	public void nondeterministicExitKeepsEntry() throws Exception
+	{
+		PrologCode code = facts("a", "b");
+		EnterBacktrackInfo entry = released();
+		Term[] args = new Term[] { new VariableTerm() };
+
+		assertEquals(SUCCESS, code.execute(interpreter, false, args));
+		assertNull(interpreter.reuseEntryBacktrackInfo());
+
+		assertEquals(SUCCESS_LAST, code.execute(interpreter, true, args));
+		assertSame(AtomTerm.get("b"), args[0].dereference());
+		assertSame(entry, interpreter.reuseEntryBacktrackInfo());
+	}
+
+	@Test
+	public void reusedEntryTakesCurrentUndoPosition() throws Exception
+	{
+		EnterBacktrackInfo entry = released();
+		entry.undoPosition = -1;
+
+		assertSame(entry, interpreter.reuseEntryBacktrackInfo());
+		assertEquals(interpreter.getEntryUndoPosition(), entry.undoPosition);
+	}
+}
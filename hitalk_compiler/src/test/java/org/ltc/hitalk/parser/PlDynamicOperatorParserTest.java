@@ -0,0 +1,82 @@
+package org.ltc.hitalk.parser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ltc.hitalk.compiler.IVafInterner;
+import org.ltc.hitalk.compiler.VafInterner;
+import org.ltc.hitalk.term.OpSymbolFunctor;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.core.BaseApp.appContext;
+import static org.ltc.hitalk.core.Components.INTERNER;
+import static org.ltc.hitalk.term.OpSymbolFunctor.Associativity.*;
+import static org.ltc.hitalk.term.OpSymbolFunctor.Fixity.*;
+
+/**
+ * Checks that operators are keyed by the interned atom ids of their names, so that a parser that has interned a token
+ * finds its operators of each fixity by array reads.
+ */
+public class PlDynamicOperatorParserTest {
+    private IVafInterner interner;
+    private PlDynamicOperatorParser table;
+
+    @Before
+    public void setUp() {
+        // Operators intern their own names through the interner of the application.
+        appContext.putIfAbsent(INTERNER, new VafInterner("Test_Variable_namespace", "Test_Functor_namespace"));
+        interner = appContext.getInterner();
+        table = new PlDynamicOperatorParser(interner);
+    }
+
+    private int op(String name, int priority, OpSymbolFunctor.Associativity associativity) {
+        int id = table.getName(name);
+        table.setOperator(id, name, priority, associativity);
+
+        return id;
+    }
+
+    @Test
+    public void namesAreInternedAtomIds() {
+        assertEquals(interner.internFunctorName("+", 0), table.getName("+"));
+    }
+
+    @Test
+    public void looksOperatorsUpByInternedName() {
+        int plus = op("+", 500, yfx);
+
+        assertTrue(table.isOperator(plus));
+        assertEquals(500, table.getOperator(plus, In).getPriority());
+        assertNull(table.getOperator(plus, Pre));
+        assertEquals(500, table.getPriority(plus, yfx));
+        assertEquals(-1, table.getPriority(plus, xfx));
+        assertEquals(500, table.getPriority("+", yfx));
+        assertSame(table.getOperator(plus, In), table.getOperatorsMatchingNameByFixity("+").get(In));
+    }
+
+    @Test
+    public void tokensThatCannotBeOperatorsAreNotFound() {
+        op("+", 500, yfx);
+
+        assertFalse(table.isOperator(-1));
+        assertFalse(table.isOperator(table.getName("foo")));
+        assertEquals(-1, table.getPriority(-1, yfx));
+    }
+
+    @Test
+    public void priorityZeroRemovesTheOperatorOfThatFixity() {
+        int minus = op("-", 500, yfx);
+        op("-", 200, fy);
+
+        op("-", 0, yfx);
+
+        assertNull(table.getOperator(minus, In));
+        assertEquals(200, table.getOperator(minus, Pre).getPriority());
+        assertTrue(table.isOperator(minus));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void postfixCannotShareANameWithInfix() {
+        op("$", 500, xfx);
+        op("$", 500, xf);
+    }
+}
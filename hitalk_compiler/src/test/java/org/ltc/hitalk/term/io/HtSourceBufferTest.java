@@ -0,0 +1,171 @@
+package org.ltc.hitalk.term.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a source is decoded whole, and that lines and columns are counted right, across the edges of the char
+ * array and of the mapped windows of a file, with chars of several bytes and all three kinds of line ends falling on
+ * those edges.
+ */
+public class HtSourceBufferTest {
+    /**
+     * A window size which splits many of the chars of several bytes across windows.
+     */
+    private static final int SMALL_MAP_SIZE = 4099;
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("HtSourceBufferTest", ".pl");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Makes a text of lines of ascii chars and chars of two, three and four bytes in UTF-8, ended by line feeds,
+     * carriage returns and both, which is longer than several char arrays.
+     */
+    private static String text(long seed) {
+        String[] chars = {"a", "é", "€", "😀"};
+        String[] ends = {"\n", "\r\n", "\r"};
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+
+        while (text.length() < 3 * HtSourceBuffer.BUFFER_SIZE) {
+            for (int n = random.nextInt(80); n > 0; n--) {
+                text.append(chars[random.nextInt(chars.length)]);
+            }
+            text.append(ends[random.nextInt(ends.length)]);
+        }
+
+        return text.toString();
+    }
+
+    private HtSourceBuffer file(String text, int mapSize) throws IOException {
+        Files.write(path, text.getBytes(UTF_8));
+
+        return new HtSourceBuffer(FileChannel.open(path, READ), UTF_8, mapSize);
+    }
+
+    private static HtSourceBuffer channel(byte[] bytes) {
+        return new HtSourceBuffer(Channels.newChannel(new ByteArrayInputStream(bytes)), UTF_8);
+    }
+
+    /**
+     * Reads a source to its end, checking every char, and the line and column before it, against the text.
+     */
+    private static void assertReads(String text, HtSourceBuffer buffer) throws IOException {
+        int line = 0;
+        int column = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            String at = "at " + i;
+            assertEquals(at, i, buffer.getOffset());
+            assertEquals(at, line, buffer.getLineNumber());
+            assertEquals(at, column, buffer.getColumnNumber());
+
+            char c = text.charAt(i);
+            assertEquals(at, c, buffer.read());
+
+            if (c == '\r' || c == '\n' && (i == 0 || text.charAt(i - 1) != '\r')) {
+                line++;
+                column = 0;
+            } else if (c == '\n') {
+                column = 0;
+            } else {
+                column++;
+            }
+        }
+
+        assertEquals(-1, buffer.read());
+        assertEquals(line, buffer.getLineNumber());
+        buffer.close();
+    }
+
+    @Test
+    public void channelIsReadAcrossTheCharArray() throws IOException {
+        for (long seed = 0; seed < 4; seed++) {
+            String text = text(seed);
+            assertReads(text, channel(text.getBytes(UTF_8)));
+        }
+    }
+
+    @Test
+    public void fileIsReadAcrossTheWindowsAndTheCharArray() throws IOException {
+        for (long seed = 0; seed < 4; seed++) {
+            String text = text(seed);
+            assertReads(text, file(text, SMALL_MAP_SIZE));
+        }
+    }
+
+    @Test
+    public void fileIsReadInOneWindow() throws IOException {
+        String text = text(0);
+        assertReads(text, file(text, HtSourceBuffer.MAP_SIZE));
+    }
+
+    /**
+     * Every window of a file of three byte chars, mapped seven bytes at a time, ends inside a char, so the next window
+     * has to start at the bytes of that char which were not decoded yet.
+     */
+    @Test
+    public void windowStartingInsideACharDecodesItWhole() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append('€');
+        }
+
+        assertReads(text.toString(), file(text.toString(), 7));
+    }
+
+    /**
+     * A line feed which is the first char of the array, after a carriage return which was moved out of it, ends no
+     * line of its own.
+     */
+    @Test
+    public void lineFeedAfterTheArrayEdgeEndsNoLine() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int shift = 0; shift < 2 * HtSourceBuffer.PUSHBACK; shift++) {
+            text.setLength(0);
+            for (int i = 0; i < shift; i++) {
+                text.append('a');
+            }
+            for (int i = 0; i < 2 * HtSourceBuffer.BUFFER_SIZE; i++) {
+                text.append((i % 2 == 0) ? '\r' : '\n');
+            }
+            assertReads(text.toString(), channel(text.toString().getBytes(UTF_8)));
+        }
+    }
+
+    /**
+     * An incomplete char at the end of the source is flushed out of the decoder as a replacement char.
+     */
+    @Test
+    public void incompleteCharAtTheEndIsFlushed() throws IOException {
+        byte[] euro = "€".getBytes(UTF_8);
+        byte[] bytes = {'a', '\n', euro[0], euro[1]};
+
+        assertReads("a\n\uFFFD", channel(bytes));
+
+        Files.write(path, bytes);
+        assertReads("a\n\uFFFD", new HtSourceBuffer(FileChannel.open(path, READ), UTF_8, 3));
+    }
+}
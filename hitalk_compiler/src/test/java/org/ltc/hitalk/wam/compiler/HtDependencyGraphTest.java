@@ -0,0 +1,127 @@
+package org.ltc.hitalk.wam.compiler;
+
+import org.junit.Test;
+import org.ltc.hitalk.parser.HtClause;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a rebuild compiles only the clauses of predicates whose inputs have changed, and takes the code of the
+ * others from the object file of the previous build.
+ */
+public class HtDependencyGraphTest {
+    private static final Path FILE = Paths.get("test.pl");
+
+    /**
+     * A dependency graph over clauses that carry their own name and text, so that no parser is needed.
+     */
+    private static class Graph extends HtDependencyGraph {
+        private final Map<HtClause, String[]> sources = new IdentityHashMap<>();
+
+        Graph(HtObjectFile previous) {
+            super(null, previous);
+        }
+
+        HtClause add(String name, int arity, String text) throws Exception {
+            HtClause clause = new HtClause();
+            sources.put(clause, new String[]{name, Integer.toString(arity), text});
+            addClause(clause, FILE);
+
+            return clause;
+        }
+
+        @Override
+        protected HtFunctorName nameOf(HtClause clause) {
+            String[] source = sources.get(clause);
+            return new HtFunctorName(source[0], Integer.parseInt(source[1]));
+        }
+
+        @Override
+        protected String textOf(HtClause clause) {
+            return sources.get(clause)[2];
+        }
+    }
+
+    /**
+     * Does what the precompiler does once the source is read, compiling the clauses of changed predicates into the
+     * object file of the build.
+     *
+     * @return The names of the predicates compiled, once per clause.
+     */
+    private static List<String> compile(Graph graph, List<HtClause> clauses, HtObjectFile current) {
+        List<String> compiled = new ArrayList<>();
+        for (HtClause clause : clauses) {
+            if (!graph.isUnchanged(clause)) {
+                HtFunctorName name = graph.nameOf(clause);
+                compiled.add(name.name + '/' + name.arity);
+                if (current.getPredicate(name) == null) {
+                    current.addPredicate(new HtObjectFile.Predicate(name, new ArrayList<>()));
+                }
+            }
+        }
+
+        return compiled;
+    }
+
+    private static HtObjectFile firstBuild() throws Exception {
+        Graph graph = new Graph(null);
+        List<HtClause> clauses = Arrays.asList(
+                graph.add("p", 1, "p(a)"),
+                graph.add("q", 0, "q"),
+                graph.add("p", 1, "p(b)"));
+        HtObjectFile objectFile = new HtObjectFile();
+
+        assertEquals(Arrays.asList("p/1", "q/0", "p/1"), compile(graph, clauses, objectFile));
+        assertTrue(graph.update(objectFile).isEmpty());
+
+        return objectFile;
+    }
+
+    @Test
+    public void unchangedPredicateIsNotRecompiled() throws Exception {
+        HtObjectFile previous = firstBuild();
+
+        Graph graph = new Graph(previous);
+        List<HtClause> clauses = Arrays.asList(
+                graph.add("p", 1, "p(a)"),
+                graph.add("q", 0, "q :- true"),
+                graph.add("p", 1, "p(b)"));
+        HtObjectFile current = new HtObjectFile();
+
+        assertEquals(Collections.singletonList("q/0"), compile(graph, clauses, current));
+
+        List<HtObjectFile.Predicate> reused = graph.update(current);
+        assertEquals(1, reused.size());
+        assertSame(previous.getPredicate(new HtFunctorName("p", 1)), reused.get(0));
+        assertNotNull(current.getPredicate(new HtFunctorName("p", 1)));
+    }
+
+    /**
+     * The last clause of a predicate can come after the first question about it, so nothing is unchanged until all of
+     * its clauses have been hashed.
+     */
+    @Test
+    public void laterClauseChangesPredicate() throws Exception {
+        HtObjectFile previous = firstBuild();
+
+        Graph graph = new Graph(previous);
+        List<HtClause> clauses = Arrays.asList(
+                graph.add("p", 1, "p(a)"),
+                graph.add("q", 0, "q"),
+                graph.add("p", 1, "p(c)"));
+
+        assertEquals(Arrays.asList("p/1", "p/1"), compile(graph, clauses, new HtObjectFile()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void clauseCannotBeAddedAfterSealing() throws Exception {
+        Graph graph = new Graph(null);
+        graph.add("p", 1, "p(a)");
+        graph.seal();
+        graph.add("p", 1, "p(b)");
+    }
+}
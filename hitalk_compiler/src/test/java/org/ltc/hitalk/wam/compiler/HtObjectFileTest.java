@@ -0,0 +1,164 @@
+package org.ltc.hitalk.wam.compiler;
+
+import org.junit.Test;
+import org.ltc.hitalk.core.utils.HtSymbolTable;
+import org.ltc.hitalk.entities.HtEntityKind;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.Engine;
+import org.ltc.hitalk.wam.machine.HtWAMMemoryConfig;
+
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.REG_ADDR;
+
+/**
+ * Checks that an object file reads back what was written to it, the predicates, entities, queries and directives and
+ * the sources it was compiled from, and that its code runs once linked into a machine.
+ */
+public class HtObjectFileTest {
+    private static final HtFunctorName A = new HtFunctorName("a", 0);
+    private static final HtFunctorName B = new HtFunctorName("b", 0);
+    private static final HtFunctorName P = new HtFunctorName("p", 1);
+
+    private static HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> newMachine()
+            throws Exception {
+        return HiTalkWAMResolvingJavaMachine.newMachine(Engine.RESOLVING, new HtSymbolTable<>(),
+                HtWAMMemoryConfig.DEFAULT);
+    }
+
+    /**
+     * p(a). p(b).
+     */
+    private static List<HiTalkWAMInstruction> p() {
+        HtWAMLabel first = new HtWAMLabel(P, 0);
+        HtWAMLabel second = new HtWAMLabel(P, 1);
+
+        return Arrays.asList(
+                new HiTalkWAMInstruction(first, TryMeElse, second),
+                new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 0, A),
+                new HiTalkWAMInstruction(Proceed),
+                new HiTalkWAMInstruction(second, TrustMe),
+                new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 0, B),
+                new HiTalkWAMInstruction(Proceed));
+    }
+
+    /**
+     * ?- p(X).
+     */
+    private static HiTalkWAMCompiledQuery query(HiTalkWAMResolvingJavaMachine<?, ?> machine) {
+        int x = machine.internVariableName("X");
+        HiTalkWAMCompiledQuery query = new HiTalkWAMCompiledQuery(Collections.singletonMap((byte) 1, x),
+                Collections.singleton(x));
+        query.addInstructions(Arrays.asList(
+                new HiTalkWAMInstruction(AllocateN, REG_ADDR, (byte) 0),
+                new HiTalkWAMInstruction(PutVar, REG_ADDR, (byte) 1, (byte) 0),
+                new HiTalkWAMInstruction(Call, (byte) 0, P),
+                new HiTalkWAMInstruction(Suspend),
+                new HiTalkWAMInstruction(Deallocate)));
+
+        return query;
+    }
+
+    private static List<String> listing(List<HiTalkWAMInstruction> instructions) {
+        List<String> listing = new ArrayList<>();
+        for (HiTalkWAMInstruction instruction : instructions) {
+            listing.add(instruction.toString());
+        }
+
+        return listing;
+    }
+
+    private static HtObjectFile build(Path source) throws Exception {
+        HiTalkWAMResolvingJavaMachine<?, ?> machine = newMachine();
+        HtObjectFile file = new HtObjectFile();
+        file.addPredicate(new HtObjectFile.Predicate(P, p()));
+        file.addEntity(new HtFunctorName("stack", 1), HtEntityKind.OBJECT);
+        file.addEntity(new HtFunctorName("stacking", 0), HtEntityKind.PROTOCOL);
+        file.addQuery(query(machine), machine);
+        file.addDependency(source);
+
+        return file;
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        Path dir = Files.createTempDirectory("hto");
+        Path source = Files.write(dir.resolve("stack.pl"), "p(a). p(b). :- p(X).".getBytes(UTF_8));
+        Path objectPath = HtObjectFile.objectPathFor(source);
+        build(source).write(objectPath);
+
+        HtObjectFile file = HtObjectFile.read(objectPath);
+
+        assertNotNull(file);
+        assertEquals(1, file.getPredicates().size());
+        assertEquals(listing(p()), listing(file.getPredicate(P).getInstructions()));
+
+        assertEquals(2, file.getEntities().size());
+        assertEquals("stack", file.getEntities().get(0).getName().name);
+        assertEquals(1, file.getEntities().get(0).getName().arity);
+        assertEquals(HtEntityKind.OBJECT, file.getEntities().get(0).getKind());
+        assertEquals(HtEntityKind.PROTOCOL, file.getEntities().get(1).getKind());
+
+        assertEquals(1, file.getQueries().size());
+        HtObjectFile.Query query = file.getQueries().get(0);
+        assertEquals(listing(query(newMachine()).getInstructions()), listing(query.getInstructions()));
+        assertEquals(Collections.singletonMap((byte) 1, "X"), query.getVarNames());
+        assertEquals(Collections.singleton("X"), query.getFreeVarNames());
+
+        assertEquals(1, file.getDependencies().size());
+        assertEquals(source.toAbsolutePath().normalize(), file.getDependencies().get(0).getPath());
+        assertTrue(file.isUpToDate());
+    }
+
+    @Test
+    public void isNotUpToDateOnceTheSourceChanges() throws Exception {
+        Path dir = Files.createTempDirectory("hto");
+        Path source = Files.write(dir.resolve("stack.pl"), "p(a).".getBytes(UTF_8));
+        Path objectPath = HtObjectFile.objectPathFor(source);
+        build(source).write(objectPath);
+
+        Files.write(source, "p(b).".getBytes(UTF_8));
+
+        assertFalse(HtObjectFile.read(objectPath).isUpToDate());
+    }
+
+    @Test
+    public void ignoresAnotherVersion() throws Exception {
+        Path objectPath = Files.createTempDirectory("hto").resolve("stack.hto");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(objectPath))) {
+            out.writeInt(HtObjectFile.MAGIC);
+            out.writeInt(HtObjectFile.VERSION - 1);
+        }
+
+        assertNull(HtObjectFile.read(objectPath));
+    }
+
+    /**
+     * The code read back is linked into a fresh machine, and the query read back finds both solutions of p/1 there.
+     */
+    @Test
+    public void runsTheQueryReadBackOnTheCodeReadBack() throws Exception {
+        Path dir = Files.createTempDirectory("hto");
+        Path source = Files.write(dir.resolve("stack.pl"), "p(a). p(b). :- p(X).".getBytes(UTF_8));
+        Path objectPath = HtObjectFile.objectPathFor(source);
+        build(source).write(objectPath);
+
+        HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> machine = newMachine();
+        HtObjectFile file = HtObjectFile.read(objectPath);
+        file.link(machine);
+        HiTalkWAMCompiledQuery query = file.getQueries().get(0).toCompiledQuery(machine);
+        machine.setQuery(query);
+
+        assertEquals("X", machine.getVariableName(query.getVarNames().get((byte) 1)));
+        assertEquals(2, machine.resolveEach(cursor -> true));
+    }
+}
@@ -0,0 +1,243 @@
+package org.ltc.hitalk.wam.compiler;
+
+import org.junit.Test;
+import org.ltc.hitalk.core.utils.HtSymbolTable;
+import org.ltc.hitalk.term.HtVariable;
+import org.ltc.hitalk.term.IntTerm;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.Engine;
+import org.ltc.hitalk.wam.machine.HtWAMMemoryConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.wam.compiler.HtWAMClauseIndex.BUILD_THRESHOLD;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.REG_ADDR;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.STACK_ADDR;
+
+/**
+ * Checks the demand driven index over the arguments of a predicate. The keys of the clause arguments must be taken from
+ * the terms in the clause heads, the call modes of the predicate must be counted, and once an argument has been bound
+ * on {@link HtWAMClauseIndex#BUILD_THRESHOLD} calls, calls with it bound must go through the jit_index instruction
+ * straight to the clauses that can match, finding the same answers as the chain of choice points does.
+ */
+public class HtWAMClauseIndexTest {
+    private static final HtFunctorName P = new HtFunctorName("p", 2);
+
+    private HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> machine;
+    private HtWAMClauseIndex index;
+
+    private static HtFunctorName atom(String name) {
+        return new HtFunctorName(name, 0);
+    }
+
+    /**
+     * Adds p/2 as the facts p(a0, C0), p(a1, C1), ..., with the jit_index instruction in front of them, as the
+     * compiler lays it out. A colour of <tt>null</tt> stands for a variable.
+     */
+    private void addTable(Engine engine, boolean firstArgumentIndexed, String... colours) throws Exception {
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(engine, new HtSymbolTable<>(), HtWAMMemoryConfig.DEFAULT);
+
+        HtFunctorName[][] keys = new HtFunctorName[colours.length][];
+        HtWAMLabel[] labels = new HtWAMLabel[colours.length];
+
+        for (int i = 0; i < colours.length; i++) {
+            keys[i] = new HtFunctorName[]{atom("a" + i), (colours[i] == null) ? null : atom(colours[i])};
+            labels[i] = new HtWAMLabel("p_cls", 2, i);
+        }
+
+        index = new HtWAMClauseIndex(keys, firstArgumentIndexed);
+
+        List<HiTalkWAMInstruction> instructions = new ArrayList<>();
+        instructions.add(new HiTalkWAMInstruction(index, labels));
+
+        for (int i = 0; i < colours.length; i++) {
+            HtWAMLabel entry = new HtWAMLabel(P, i);
+
+            if (i == 0) {
+                instructions.add(new HiTalkWAMInstruction(entry, TryMeElse, new HtWAMLabel(P, i + 1)));
+            } else if (i < colours.length - 1) {
+                instructions.add(new HiTalkWAMInstruction(entry, RetryMeElse, new HtWAMLabel(P, i + 1)));
+            } else {
+                instructions.add(new HiTalkWAMInstruction(entry, TrustMe));
+            }
+
+            instructions.add(new HiTalkWAMInstruction(labels[i], NoOp));
+            instructions.add(new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 0, atom("a" + i)));
+
+            if (colours[i] != null) {
+                instructions.add(new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 1, atom(colours[i])));
+            }
+
+            instructions.add(new HiTalkWAMInstruction(Proceed));
+        }
+
+        HiTalkWAMCompiledPredicate predicate = new HiTalkWAMCompiledPredicate(machine.internFunctorName(P));
+        predicate.addInstructions(instructions);
+        machine.addToDomain(predicate);
+    }
+
+    /**
+     * Runs ?- p(X, C), with the second argument bound to a colour.
+     *
+     * @return The bindings of X in the solutions, in order.
+     */
+    private List<String> solve(String colour) throws Exception {
+        int x = machine.internVariableName("X");
+        HiTalkWAMCompiledQuery query = new HiTalkWAMCompiledQuery(Collections.singletonMap((byte) 0, x),
+                Collections.singleton(x));
+        query.addInstructions(Arrays.asList(
+                new HiTalkWAMInstruction(AllocateN, REG_ADDR, (byte) 1),
+                new HiTalkWAMInstruction(PutVar, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(PutConstant, REG_ADDR, (byte) 1, atom(colour)),
+                new HiTalkWAMInstruction(Call, (byte) 1, P),
+                new HiTalkWAMInstruction(Suspend),
+                new HiTalkWAMInstruction(Deallocate)));
+        machine.setQuery(query);
+
+        List<String> answers = new ArrayList<>();
+        machine.resolveEach(cursor -> answers.add(cursor.name(cursor.binding(0))));
+
+        return answers;
+    }
+
+    /**
+     * Runs ?- p(A, C), with both arguments bound.
+     *
+     * @return The number of solutions.
+     */
+    private long count(String a, String colour) throws Exception {
+        HiTalkWAMCompiledQuery query = new HiTalkWAMCompiledQuery(Collections.emptyMap(), Collections.emptySet());
+        query.addInstructions(Arrays.asList(
+                new HiTalkWAMInstruction(AllocateN, REG_ADDR, (byte) 0),
+                new HiTalkWAMInstruction(PutConstant, REG_ADDR, (byte) 0, atom(a)),
+                new HiTalkWAMInstruction(PutConstant, REG_ADDR, (byte) 1, atom(colour)),
+                new HiTalkWAMInstruction(Call, (byte) 0, P),
+                new HiTalkWAMInstruction(Suspend),
+                new HiTalkWAMInstruction(Deallocate)));
+        machine.setQuery(query);
+
+        return machine.resolveEach(cursor -> true);
+    }
+
+    @Test
+    public void keysComeFromTheClauseArguments() throws Exception {
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(Engine.RESOLVING, new HtSymbolTable<>(),
+                HtWAMMemoryConfig.DEFAULT);
+        HtFunctorName f = new HtFunctorName("f", 2);
+
+        assertEquals(atom("red"),
+                BaseInstructionCompiler.indexKey(machine, new HtFunctor(machine.internFunctorName(atom("red")), 0)));
+        assertEquals(f, BaseInstructionCompiler.indexKey(machine, new HtFunctor(machine.internFunctorName(f), 2)));
+        assertNull(BaseInstructionCompiler.indexKey(machine, new HtVariable(machine.internVariableName("Y"), null,
+                false)));
+        assertNull(BaseInstructionCompiler.indexKey(machine, new IntTerm(7)));
+    }
+
+    @Test
+    public void countsTheCallModes() throws Exception {
+        addTable(Engine.RESOLVING, false, "red", "green", "red", "blue", "green");
+
+        solve("red");
+        solve("green");
+        count("a1", "green");
+
+        assertEquals(3, index.getCalls());
+        assertEquals(1, index.getBoundCount(0));
+        assertEquals(3, index.getBoundCount(1));
+        assertFalse(index.isIndexed(0));
+        assertFalse(index.isIndexed(1));
+    }
+
+    /**
+     * Calls with the second argument bound run down the chain until the threshold is reached, and go straight to the
+     * only matching clause from then on.
+     */
+    private void buildsAtTheThreshold(Engine engine) throws Exception {
+        addTable(engine, false, "red", "green", "red", "blue", "green");
+
+        for (int call = 1; call < BUILD_THRESHOLD; call++) {
+            assertEquals(Collections.singletonList("a3"), solve("blue"));
+            assertTrue(machine.getPeakChoicePointDepth() != 0);
+            assertFalse(index.isIndexed(1));
+        }
+
+        assertEquals(Collections.singletonList("a3"), solve("blue"));
+        assertTrue(index.isIndexed(1));
+        assertEquals(0, machine.getPeakChoicePointDepth());
+
+        assertEquals(Collections.singletonList("a3"), solve("blue"));
+        assertEquals(0, machine.getPeakChoicePointDepth());
+    }
+
+    @Test
+    public void indexIsBuiltAtTheThreshold() throws Exception {
+        buildsAtTheThreshold(Engine.RESOLVING);
+        buildsAtTheThreshold(Engine.DECODED);
+    }
+
+    /**
+     * The branches for keys matching several clauses are appended to the code area, after the predicate and the
+     * queries run so far, and must find the same answers, in the same order, every time they are taken.
+     */
+    private void appendedBranches(Engine engine) throws Exception {
+        addTable(engine, false, "red", "green", null, "red", "blue", "green");
+
+        for (int call = 1; call < BUILD_THRESHOLD; call++) {
+            solve("red");
+        }
+
+        assertEquals(Arrays.asList("a0", "a2", "a3"), solve("red"));
+        assertTrue(index.isIndexed(1));
+        assertEquals(Arrays.asList("a1", "a2", "a5"), solve("green"));
+        assertEquals(Arrays.asList("a2", "a4"), solve("blue"));
+
+        // A colour no clause has goes to the clause with a variable alone.
+        assertEquals(Collections.singletonList("a2"), solve("purple"));
+        assertEquals(0, machine.getPeakChoicePointDepth());
+
+        // The cached branches are taken again, after more queries have been placed after them.
+        assertEquals(Arrays.asList("a0", "a2", "a3"), solve("red"));
+        assertEquals(Arrays.asList("a1", "a2", "a5"), solve("green"));
+        assertEquals(1, count("a3", "red"));
+        assertEquals(0, count("a3", "green"));
+    }
+
+    @Test
+    public void appendedBranchesGiveTheChainAnswers() throws Exception {
+        appendedBranches(Engine.RESOLVING);
+        appendedBranches(Engine.DECODED);
+    }
+
+    @Test
+    public void firstArgumentIsLeftToSwitchOnTerm() throws Exception {
+        HtWAMClauseIndex first = new HtWAMClauseIndex(new HtFunctorName[][]{
+                {atom("a"), atom("red")},
+                {atom("b"), atom("green")},
+                {atom("c"), null},
+                {atom("d"), atom("red")}}, true);
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(Engine.RESOLVING, new HtSymbolTable<>(),
+                HtWAMMemoryConfig.DEFAULT);
+        first.link(machine);
+
+        for (int call = 1; call < BUILD_THRESHOLD; call++) {
+            assertEquals(-1, first.selectArgument(0x3));
+        }
+
+        assertEquals(1, first.selectArgument(0x3));
+        assertFalse(first.isIndexed(0));
+        assertTrue(first.isIndexed(1));
+        assertEquals(BUILD_THRESHOLD, first.getBoundCount(0));
+
+        int red = machine.internFunctorName(atom("red")) & 0x00ffffff;
+        assertArrayEquals(new int[]{0, 2, 3}, first.getBucket(1, red));
+        assertArrayEquals(new int[]{2}, first.getBucket(1, 0x00ffffff));
+    }
+}
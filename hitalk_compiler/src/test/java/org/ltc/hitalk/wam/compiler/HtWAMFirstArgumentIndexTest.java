@@ -0,0 +1,207 @@
+package org.ltc.hitalk.wam.compiler;
+
+import org.junit.Test;
+import org.ltc.hitalk.core.utils.HtSymbolTable;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.Engine;
+import org.ltc.hitalk.wam.machine.HtWAMMemoryConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.REG_ADDR;
+
+/**
+ * Checks the first argument index that the compiler places in front of a predicate, by running fact tables, keyed on
+ * their first argument, through the index that {@link BaseInstructionCompiler} compiles for them. A bound first
+ * argument must go straight to the clauses that can match it, without leaving a choice point behind when there is only
+ * one, and a clause with a variable as its first argument must be reached whatever the first argument is.
+ */
+public class HtWAMFirstArgumentIndexTest {
+    private static final HtFunctorName P = new HtFunctorName("p", 2);
+    private static final HtFunctorName F = new HtFunctorName("f", 1);
+    private static final HtFunctorName G = new HtFunctorName("g", 1);
+
+    private static HtFunctorName atom(String name) {
+        return new HtFunctorName(name, 0);
+    }
+
+    private HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> machine;
+
+    /**
+     * Adds p/2 as a table of facts p(K, V), compiled with its first argument index, as the compiler lays it out. A
+     * key of <tt>null</tt> stands for a variable, and a key with an arity for the structure with that functor and
+     * <tt>a</tt> as its arguments.
+     */
+    private void addTable(Engine engine, HtFunctorName[] keys, String[] values) throws Exception {
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(engine, new HtSymbolTable<>(), HtWAMMemoryConfig.DEFAULT);
+
+        List<HiTalkWAMInstruction> instructions = new ArrayList<>(
+                BaseInstructionCompiler.compileIndex(P, keys, new boolean[keys.length]));
+
+        for (int i = 0; i < keys.length; i++) {
+            HtWAMLabel entry = new HtWAMLabel(P, i);
+
+            if (i == 0) {
+                instructions.add(new HiTalkWAMInstruction(entry, TryMeElse, new HtWAMLabel(P, i + 1)));
+            } else if (i < keys.length - 1) {
+                instructions.add(new HiTalkWAMInstruction(entry, RetryMeElse, new HtWAMLabel(P, i + 1)));
+            } else {
+                instructions.add(new HiTalkWAMInstruction(entry, TrustMe));
+            }
+
+            instructions.add(new HiTalkWAMInstruction(new HtWAMLabel("p_cls", 2, i), NoOp));
+
+            if (keys[i] == null) {
+                // A variable first argument binds to anything, so there is nothing to check.
+            } else if (keys[i].getArity() == 0) {
+                instructions.add(new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 0, keys[i]));
+            } else {
+                instructions.add(new HiTalkWAMInstruction(GetStruc, REG_ADDR, (byte) 0, keys[i]));
+                for (int arg = 0; arg < keys[i].getArity(); arg++) {
+                    instructions.add(new HiTalkWAMInstruction(UnifyConstant, atom("a")));
+                }
+            }
+
+            instructions.add(new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 1, atom(values[i])));
+            instructions.add(new HiTalkWAMInstruction(Proceed));
+        }
+
+        HiTalkWAMCompiledPredicate predicate = new HiTalkWAMCompiledPredicate(machine.internFunctorName(P));
+        predicate.addInstructions(instructions);
+        machine.addToDomain(predicate);
+    }
+
+    /**
+     * Runs ?- p(K, V), with K an atom or a structure over <tt>a</tt>, and V an atom.
+     *
+     * @return The number of solutions.
+     */
+    private long count(HtFunctorName key, String value) throws Exception {
+        List<HiTalkWAMInstruction> instructions = new ArrayList<>();
+        instructions.add(new HiTalkWAMInstruction(AllocateN, REG_ADDR, (byte) 0));
+
+        if (key.getArity() == 0) {
+            instructions.add(new HiTalkWAMInstruction(PutConstant, REG_ADDR, (byte) 0, key));
+        } else {
+            instructions.add(new HiTalkWAMInstruction(PutStruc, REG_ADDR, (byte) 0, key));
+            for (int arg = 0; arg < key.getArity(); arg++) {
+                instructions.add(new HiTalkWAMInstruction(SetConstant, atom("a")));
+            }
+        }
+
+        instructions.addAll(Arrays.asList(
+                new HiTalkWAMInstruction(PutConstant, REG_ADDR, (byte) 1, atom(value)),
+                new HiTalkWAMInstruction(Call, (byte) 0, P),
+                new HiTalkWAMInstruction(Suspend),
+                new HiTalkWAMInstruction(Deallocate)));
+
+        HiTalkWAMCompiledQuery query = new HiTalkWAMCompiledQuery(Collections.emptyMap(), Collections.emptySet());
+        query.addInstructions(instructions);
+        machine.setQuery(query);
+
+        return machine.resolveEach(cursor -> true);
+    }
+
+    /**
+     * p(a, va). p(b, vb). p(c, vc). p(d, vd). p(e, ve).
+     */
+    private void atomTable(Engine engine) throws Exception {
+        addTable(engine,
+                new HtFunctorName[]{atom("a"), atom("b"), atom("c"), atom("d"), atom("e")},
+                new String[]{"va", "vb", "vc", "vd", "ve"});
+
+        assertEquals(1, count(atom("c"), "vc"));
+        assertEquals(0, machine.getPeakChoicePointDepth());
+
+        assertEquals(1, count(atom("e"), "ve"));
+        assertEquals(0, machine.getPeakChoicePointDepth());
+
+        assertEquals(0, count(atom("c"), "vd"));
+        assertEquals(0, count(atom("z"), "va"));
+    }
+
+    @Test
+    public void hashProbeFindsTheClauseOnItsAtom() throws Exception {
+        atomTable(Engine.RESOLVING);
+        atomTable(Engine.DECODED);
+    }
+
+    /**
+     * p(a, va). p(b, vb). p(X, vx). p(c, vc). p(f(a), vf).
+     */
+    private void variableInEveryBucket(Engine engine) throws Exception {
+        addTable(engine,
+                new HtFunctorName[]{atom("a"), atom("b"), null, atom("c"), F},
+                new String[]{"va", "vb", "vx", "vc", "vf"});
+
+        assertEquals(1, count(atom("b"), "vb"));
+        assertEquals(1, count(atom("b"), "vx"));
+        assertEquals(1, count(atom("c"), "vc"));
+        assertEquals(1, count(F, "vf"));
+        assertEquals(1, count(F, "vx"));
+        assertEquals(0, count(F, "va"));
+
+        // A key in no table goes to the clause on a variable alone, without a choice point.
+        assertEquals(1, count(atom("z"), "vx"));
+        assertEquals(0, machine.getPeakChoicePointDepth());
+        assertEquals(1, count(G, "vx"));
+        assertEquals(0, machine.getPeakChoicePointDepth());
+        assertEquals(0, count(G, "vf"));
+    }
+
+    @Test
+    public void clauseOnVariableIsInEveryBucket() throws Exception {
+        variableInEveryBucket(Engine.RESOLVING);
+        variableInEveryBucket(Engine.DECODED);
+    }
+
+    /**
+     * p(f(a), vf). p(g(a), vg). p(a, va). p(f(a), vf2).
+     */
+    private void structureTable(Engine engine) throws Exception {
+        addTable(engine,
+                new HtFunctorName[]{F, G, atom("a"), F},
+                new String[]{"vf", "vg", "va", "vf2"});
+
+        assertEquals(1, count(G, "vg"));
+        assertEquals(0, machine.getPeakChoicePointDepth());
+        assertEquals(1, count(F, "vf"));
+        assertEquals(1, count(F, "vf2"));
+        assertEquals(0, count(F, "vg"));
+        assertEquals(1, count(atom("a"), "va"));
+
+        // Nothing can match a key in no table.
+        assertEquals(0, count(atom("z"), "va"));
+        assertEquals(0, count(new HtFunctorName("h", 1), "vf"));
+    }
+
+    @Test
+    public void hashProbeFindsTheClausesOnTheirStructure() throws Exception {
+        structureTable(Engine.RESOLVING);
+        structureTable(Engine.DECODED);
+    }
+
+    @Test
+    public void defaultBranchIsTheClausesOnVariables() {
+        HtFunctorName[] keys = {atom("a"), null, F, null};
+        boolean[] lists = {false, false, false, true};
+
+        List<HiTalkWAMInstruction> index = new ArrayList<>(BaseInstructionCompiler.compileIndex(P, keys, lists));
+
+        // A list goes to the clauses on variables and lists, as does a structure not in the table, and an atom not in
+        // the table goes to the clause on a variable alone.
+        assertEquals("switch_on_term p/2_0 / p_con/2_0 / p_blk/2_6 / p_str/2_0", index.get(0).toString());
+        assertEquals("switch_on_const default: p_cls/2_1 a/0: p_blk/2_0", index.get(1).toString());
+        assertEquals("switch_on_struc default: p_blk/2_6 a/0: p_blk/2_2 f/1: p_blk/2_4", index.get(2).toString());
+        assertEquals(Try, index.get(9).getMnemonic());
+        assertEquals(Trust, index.get(10).getMnemonic());
+    }
+}
@@ -0,0 +1,57 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.junit.Test;
+import org.ltc.hitalk.core.utils.HtSymbolTable;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.Engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.REG_ADDR;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.STACK_ADDR;
+
+/**
+ * Checks that machines are created running the engine asked for, and that the decoding engine reads its operands from
+ * the decoded code rather than from the code buffer.
+ */
+public class HiTalkWAMDecodedJavaMachineTest {
+    private static HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> newMachine(
+            Engine engine) throws Exception {
+        return HiTalkWAMResolvingJavaMachine.newMachine(engine, new HtSymbolTable<>(), HtWAMMemoryConfig.DEFAULT);
+    }
+
+    @Test
+    public void createsTheEngineAskedFor() throws Exception {
+        assertSame(HiTalkWAMResolvingJavaMachine.class, newMachine(Engine.RESOLVING).getClass());
+        assertSame(HiTalkWAMDecodedJavaMachine.class, newMachine(Engine.DECODED).getClass());
+    }
+
+    /**
+     * The register is taken from the decoded code, so a change to the code buffer that has not been decoded is not
+     * seen.
+     */
+    @Test
+    public void readsTheRegisterFromTheDecodedCode() throws Exception {
+        HiTalkWAMDecodedJavaMachine<?, ?> machine = (HiTalkWAMDecodedJavaMachine<?, ?>) newMachine(Engine.DECODED);
+        machine.ip = 16;
+        machine.ep = 100;
+
+        machine.codeBuffer.put(18, (byte) 5);
+        machine.decode(16, 3);
+        machine.codeBuffer.put(18, (byte) 7);
+
+        assertEquals(5, machine.getRegisterOrStackSlot(REG_ADDR));
+        assertEquals(5 + 100 + 3, machine.getRegisterOrStackSlot(STACK_ADDR));
+    }
+
+    @Test
+    public void readsANegativeRegisterAsAByte() throws Exception {
+        HiTalkWAMDecodedJavaMachine<?, ?> machine = (HiTalkWAMDecodedJavaMachine<?, ?>) newMachine(Engine.DECODED);
+        machine.codeBuffer.put(2, (byte) -2);
+        machine.codeBuffer.put(3, (byte) 1);
+        machine.decode(0, 8);
+
+        assertEquals(-2, machine.getRegisterOrStackSlot(REG_ADDR));
+    }
+}
@@ -0,0 +1,134 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.*;
+import static org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.AMASK;
+import static org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.TSHIFT;
+
+/**
+ * Checks that the heap collector keeps the cells that a machine can still reach, on the current path and on
+ * backtracking, and relocates the pointers to them.
+ */
+public class HtWAMHeapCollectorTest {
+    private static final int GARBAGE = 10000;
+    private static final int FUNCTOR = (1 << 24) | 42;
+    private static final int ATOM = (CON << TSHIFT) | 7;
+
+    private final HtWAMMemoryConfig config = HtWAMMemoryConfig.SMALL;
+    private HtWAMDataArea data;
+    private HtWAMHeapCollector collector;
+    private ByteBuffer code;
+    private int hp;
+
+    @Before
+    public void setUp() {
+        data = new HtWAMDataArea(config);
+        collector = new HtWAMHeapCollector(data, config);
+        code = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        hp = config.getHeapBase();
+    }
+
+    /**
+     * Builds f(a) on the heap above some garbage, so that collecting the heap moves it.
+     *
+     * @return The cell pointing to the structure.
+     */
+    private int garbageThenStructure() {
+        for (int i = 0; i < GARBAGE; i++) {
+            data.put(hp++, ATOM);
+        }
+
+        int str = hp;
+        data.put(hp++, FUNCTOR);
+        data.put(hp++, ATOM);
+
+        return (STR << TSHIFT) | str;
+    }
+
+    /**
+     * Writes a call instruction, returning the continuation after it.
+     */
+    private int call(int at, int numPerms) {
+        code.put(at, CALL);
+        code.putInt(at + 1, 0);
+        code.put(at + 5, (byte) 0);
+        code.put(at + 6, (byte) numPerms);
+
+        return at + 7;
+    }
+
+    /**
+     * Checks that a cell points to f(a), kept below the new top of the heap.
+     */
+    private void assertStructure(int cell, int newHp) {
+        assertEquals(STR, (byte) (cell >>> TSHIFT));
+        int addr = cell & AMASK;
+        assertTrue("structure was collected", (addr >= config.getHeapBase()) && (addr + 1 < newHp));
+        assertEquals(FUNCTOR, data.get(addr));
+        assertEquals(ATOM, data.get(addr + 1));
+    }
+
+    @Test
+    public void keepsVariablesOfTheCurrentFrame() {
+        int y0 = garbageThenStructure();
+
+        int e = config.getStackBase();
+        data.put(e, 0);
+        data.put(e + 1, 0);
+        data.put(e + 2, 1);
+        data.put(e + 3, y0);
+
+        int newHp = collector.collect(hp, e, 0, config.getTrailBase(), 0, code);
+
+        assertEquals(config.getHeapBase() + 2, newHp);
+        assertStructure(data.get(e + 3), newHp);
+    }
+
+    /**
+     * A frame holds two permanent variables, and a call from it leaves a choice point behind that returns after the call
+     * with both variables live. A later call trims the frame to one variable before the heap is collected. Backtracking
+     * into the choice point must still find the trimmed variable pointing at its structure.
+     */
+    @Test
+    public void keepsVariablesTrimmedAfterAChoicePoint() {
+        int y1 = garbageThenStructure();
+
+        // The frame, with the continuation of the call that the choice point returns to.
+        int cp = call(0, 2);
+        int e = config.getStackBase();
+        data.put(e, 0);
+        data.put(e + 1, 0);
+        data.put(e + 2, 2);
+        data.put(e + 3, ATOM);
+        data.put(e + 4, y1);
+
+        // The choice point, with no saved arguments.
+        int b = e + 5;
+        data.put(b, 0);
+        data.put(b + 1, e);
+        data.put(b + 2, cp);
+        data.put(b + 3, 0);
+        data.put(b + 4, 0);
+        data.put(b + 5, config.getTrailBase());
+        data.put(b + 6, config.getHeapBase());
+        data.put(b + 7, 0);
+
+        // A later call from the frame trims it to one variable.
+        call(7, 1);
+        data.put(e + 2, 1);
+
+        int newHp = collector.collect(hp, e, b, config.getTrailBase(), 0, code);
+
+        // Backtrack into the choice point, and read the trimmed variable of the frame it restores.
+        int restored = data.get(b + 1);
+        assertEquals(e, restored);
+        assertStructure(data.get(restored + 4), newHp);
+    }
+}
@@ -0,0 +1,80 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ltc.hitalk.compiler.bktables.error.ExecutionError;
+import org.ltc.hitalk.core.utils.HtSymbolTable;
+import org.ltc.hitalk.wam.compiler.HtFunctorName;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.compiler.bktables.error.ExecutionError.Kind.RESOURCE_ERROR;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet.SetVoid;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet.Suspend;
+
+/**
+ * Checks that building terms at the top of the heap raises a resource error as soon as the heap would run into the
+ * stack, rather than only at the next call, and that the stack is left untouched when it does.
+ */
+public class HtWAMHeapOverflowTest {
+    private static final int HEAP_SIZE = 1000;
+
+    private final HtWAMMemoryConfig config = HtWAMMemoryConfig.SMALL.withHeapSize(HEAP_SIZE);
+    private HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> machine;
+
+    @Before
+    public void setUp() throws Exception {
+        machine = new HiTalkWAMResolvingJavaMachine<>(new HtSymbolTable<>(), config);
+        machine.reset();
+    }
+
+    /**
+     * Sets a query that writes the specified number of fresh variables to the heap, in set_void instructions of at most
+     * 127 cells each.
+     */
+    private void setQuery(int cells) throws Exception {
+        List<HiTalkWAMInstruction> instructions = new ArrayList<>();
+
+        for (int n = cells; n > 0; n -= 127) {
+            instructions.add(new HiTalkWAMInstruction(SetVoid, (byte) 0, (byte) Math.min(n, 127), (HtFunctorName) null));
+        }
+        instructions.add(new HiTalkWAMInstruction(Suspend, (HtFunctorName) null));
+
+        HiTalkWAMCompiledQuery query = new HiTalkWAMCompiledQuery(Collections.emptyMap(), Collections.emptySet());
+        query.addInstructions(instructions);
+        machine.setQuery(query);
+    }
+
+    private int stackCell() {
+        return machine.getDataBuffer().get(config.getStackBase());
+    }
+
+    @Test
+    public void fillsTheHeapUpToTheStack() throws Exception {
+        setQuery(HEAP_SIZE);
+
+        assertNotNull(machine.resolve());
+        assertTrue(machine.getDataBuffer().get(config.getStackBase() - 1) != 0);
+        assertEquals(0, stackCell());
+    }
+
+    @Test
+    public void cellPastTheHeapIsAnError() throws Exception {
+        setQuery(HEAP_SIZE + 1);
+
+        try {
+            machine.resolve();
+            fail("the heap ran into the stack");
+        } catch (ExecutionError e) {
+            assertEquals(RESOURCE_ERROR, e.getKind());
+        }
+
+        assertEquals(0, stackCell());
+    }
+}
@@ -0,0 +1,142 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.junit.Test;
+import org.ltc.hitalk.compiler.bktables.error.ExecutionError;
+import org.ltc.hitalk.core.utils.HtSymbolTable;
+import org.ltc.hitalk.wam.compiler.HtFunctorName;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.Engine;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.compiler.bktables.error.ExecutionError.Kind.RESOURCE_ERROR;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.STACK_ADDR;
+import static org.ltc.hitalk.wam.machine.HtWAMTestPrograms.*;
+
+/**
+ * Checks that tail recursive loops run in bounded stack for a million iterations, on both engines. The loops never
+ * end, so each is stopped by a step limit, and the peak depths of the stack that the query reached are checked once it
+ * has been stopped.
+ */
+public class HtWAMLastCallTest {
+    private static final int ITERATIONS = 1000000;
+
+    /**
+     * The greatest depth of stack, in cells, that a loop running in bounded stack may reach. This is the frames of the
+     * query and of one iteration, with room to spare.
+     */
+    private static final int BOUND = 64;
+
+    private HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> machine;
+
+    /**
+     * Runs a query calling a loop, until it is stopped by the step limit.
+     *
+     * @param loop  The loop to call, with a as its argument if it takes one.
+     * @param steps The number of steps to stop the loop after.
+     */
+    private void run(HtFunctorName loop, int steps) throws Exception {
+        machine.setMaxSteps(steps);
+        setQuery(machine, loop);
+
+        try {
+            machine.resolveEach(cursor -> true);
+            fail("The loop ended.");
+        } catch (ExecutionError e) {
+            assertEquals(RESOURCE_ERROR, e.getKind());
+        }
+    }
+
+    private void assertBounded(String loop) {
+        String depths = loop + " reached an environment depth of " + machine.getPeakEnvironmentDepth() +
+                " and a choice point depth of " + machine.getPeakChoicePointDepth();
+
+        assertTrue(depths, machine.getPeakEnvironmentDepth() <= BOUND);
+        assertTrue(depths, machine.getPeakChoicePointDepth() <= BOUND);
+    }
+
+    /**
+     * loop :- loop.
+     */
+    private void chainLoop(Engine engine) throws Exception {
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(engine, new HtSymbolTable<>(), HtWAMMemoryConfig.DEFAULT);
+        add(machine, LOOP_0, new HiTalkWAMInstruction(Execute, LOOP_0));
+
+        run(LOOP_0, ITERATIONS);
+        assertBounded("loop/0");
+    }
+
+    @Test
+    public void chainLoopRunsInBoundedStack() throws Exception {
+        chainLoop(Engine.RESOLVING);
+        chainLoop(Engine.DECODED);
+    }
+
+    /**
+     * loop(X) :- p(X), loop(X).
+     */
+    private void environmentLoop(Engine engine) throws Exception {
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(engine, new HtSymbolTable<>(), HtWAMMemoryConfig.DEFAULT);
+        addP(machine);
+        add(machine, LOOP_1,
+                new HiTalkWAMInstruction(Allocate),
+                new HiTalkWAMInstruction(GetVar, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(PutVal, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(Call, (byte) 1, P),
+                new HiTalkWAMInstruction(PutVal, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(Deallocate),
+                new HiTalkWAMInstruction(Execute, LOOP_1));
+
+        run(LOOP_1, 2 * ITERATIONS);
+        assertBounded("loop/1 calling p/1");
+    }
+
+    @Test
+    public void environmentLoopRunsInBoundedStack() throws Exception {
+        environmentLoop(Engine.RESOLVING);
+        environmentLoop(Engine.DECODED);
+    }
+
+    /**
+     * loop(X) :- q(X), !, loop(X).
+     */
+    private void cutLoop(Engine engine) throws Exception {
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(engine, new HtSymbolTable<>(), HtWAMMemoryConfig.DEFAULT);
+        addQ(machine);
+        add(machine, LOOP_1,
+                new HiTalkWAMInstruction(Allocate),
+                new HiTalkWAMInstruction(GetLevel, (byte) 1),
+                new HiTalkWAMInstruction(GetVar, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(PutVal, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(Call, (byte) 2, Q),
+                new HiTalkWAMInstruction(Cut, (byte) 1),
+                new HiTalkWAMInstruction(PutVal, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(Deallocate),
+                new HiTalkWAMInstruction(Execute, LOOP_1));
+
+        run(LOOP_1, 2 * ITERATIONS);
+        assertBounded("loop/1 cutting q/1");
+    }
+
+    @Test
+    public void cutLoopRunsInBoundedStack() throws Exception {
+        cutLoop(Engine.RESOLVING);
+        cutLoop(Engine.DECODED);
+    }
+
+    /**
+     * loop(X) :- q(X), loop(X), which leaves a choice point behind on every iteration, so must show up as unbounded.
+     */
+    @Test
+    public void loopLeavingChoicePointsIsNotBounded() throws Exception {
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(Engine.RESOLVING, new HtSymbolTable<>(),
+                HtWAMMemoryConfig.DEFAULT);
+        addQ(machine);
+        addChoicePointLoop(machine);
+
+        run(LOOP_1, 2000);
+        assertTrue(machine.getPeakChoicePointDepth() > 100 * BOUND);
+    }
+}
@@ -0,0 +1,86 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.junit.Test;
+import org.ltc.hitalk.compiler.bktables.error.ExecutionError;
+import org.ltc.hitalk.core.utils.HtSymbolTable;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.Engine;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.compiler.bktables.error.ExecutionError.Kind.RESOURCE_ERROR;
+import static org.ltc.hitalk.wam.machine.HtWAMTestPrograms.*;
+
+/**
+ * Checks that the choice point limit is a number of stack cells, and that a query stopped by a resource error is
+ * abandoned, so that the next query neither runs on top of its stacks nor backtracks into its choice points.
+ */
+public class HtWAMResourceLimitsTest {
+    private static final int MAX_CHOICE_POINT_CELLS = 10000;
+
+    private final HtWAMMemoryConfig config = HtWAMMemoryConfig.DEFAULT;
+    private HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> machine;
+
+    /**
+     * p(a). q(a). q(a). loop(X) :- q(X), loop(X), which leaves a choice point behind on every iteration.
+     */
+    private void newMachine(Engine engine) throws Exception {
+        machine = HiTalkWAMResolvingJavaMachine.newMachine(engine, new HtSymbolTable<>(), config);
+
+        addP(machine);
+        addQ(machine);
+        addChoicePointLoop(machine);
+
+        machine.setResourceLimits(HtWAMResourceLimits.NONE.withMaxChoicePointCells(MAX_CHOICE_POINT_CELLS));
+    }
+
+    private void runOutOfChoicePoints() throws Exception {
+        setQuery(machine, LOOP_1);
+
+        try {
+            machine.resolveEach(cursor -> true);
+            fail("The loop ended.");
+        } catch (ExecutionError e) {
+            assertEquals(RESOURCE_ERROR, e.getKind());
+        }
+    }
+
+    private void stopsAtTheCellLimit(Engine engine) throws Exception {
+        newMachine(engine);
+
+        runOutOfChoicePoints();
+
+        // Checked every so many calls, so it is overrun by a little, but by far less than the ten thousand choice
+        // points that a limit on their number would let through.
+        assertTrue(machine.getPeakChoicePointDepth() > MAX_CHOICE_POINT_CELLS);
+        assertTrue(machine.getPeakChoicePointDepth() < 3 * MAX_CHOICE_POINT_CELLS);
+    }
+
+    @Test
+    public void choicePointLimitIsInCells() throws Exception {
+        stopsAtTheCellLimit(Engine.RESOLVING);
+        stopsAtTheCellLimit(Engine.DECODED);
+    }
+
+    private void abandonsTheQuery(Engine engine) throws Exception {
+        newMachine(engine);
+
+        runOutOfChoicePoints();
+
+        assertEquals(0, machine.bp);
+        assertEquals(0, machine.ep);
+        assertEquals(config.getHeapBase(), machine.hp);
+        assertEquals(config.getTrailBase(), machine.trp);
+        assertFalse(machine.suspended);
+
+        // p(a) has one solution, and would have many more if the choice points of the loop were still there.
+        setQuery(machine, P);
+        assertEquals(1, machine.resolveEach(cursor -> true));
+    }
+
+    @Test
+    public void errorAbandonsTheQuery() throws Exception {
+        abandonsTheQuery(Engine.RESOLVING);
+        abandonsTheQuery(Engine.DECODED);
+    }
+}
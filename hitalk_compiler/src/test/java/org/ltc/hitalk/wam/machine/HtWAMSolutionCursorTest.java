@@ -0,0 +1,361 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.junit.Test;
+import org.ltc.hitalk.core.utils.HtSymbolTable;
+import org.ltc.hitalk.term.HtVariable;
+import org.ltc.hitalk.term.ITerm;
+import org.ltc.hitalk.term.ListTerm;
+import org.ltc.hitalk.wam.compiler.HtFunctor;
+import org.ltc.hitalk.wam.compiler.HtFunctorName;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+import org.ltc.hitalk.wam.machine.HiTalkWAMResolvingJavaMachine.Engine;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet.*;
+
+/**
+ * Checks that the typed accessors of {@link HtWAMSolutionCursor} take apart the bindings of a solution on the heap, and
+ * that the heap decoder, which no longer recurses, decodes long lists and deeply nested terms into the same terms as the
+ * recursive decoder it replaced.
+ */
+public class HtWAMSolutionCursorTest {
+    private static final HtFunctorName NIL = new HtFunctorName("[]", 0);
+    private static final HtFunctorName A = new HtFunctorName("a", 0);
+    private static final HtFunctorName B = new HtFunctorName("b", 0);
+    private static final HtFunctorName F = new HtFunctorName("f", 3);
+    private static final HtFunctorName G = new HtFunctorName("g", 2);
+
+    /**
+     * Deep enough for a list of this length to overflow the Java stack of a recursive decoder.
+     */
+    private static final int DEEP = 100000;
+
+    /**
+     * Shallow enough for the recursive decoder to decode.
+     */
+    private static final int SHALLOW = 500;
+
+    private static HiTalkWAMResolvingJavaMachine<HiTalkWAMCompiledPredicate, HiTalkWAMCompiledQuery> newMachine(
+            Engine engine) throws Exception {
+        return HiTalkWAMResolvingJavaMachine.newMachine(engine, new HtSymbolTable<>(),
+                HtWAMMemoryConfig.DEFAULT.withCodeSize(1 << 24));
+    }
+
+    /**
+     * Sets the query ?- X = T, where the code building T into X1 is given.
+     */
+    private static void setQuery(HiTalkWAMResolvingJavaMachine<?, ?> machine, List<HiTalkWAMInstruction> build)
+            throws Exception {
+        int x = machine.internVariableName("X");
+        HiTalkWAMCompiledQuery query = new HiTalkWAMCompiledQuery(Collections.singletonMap((byte) 0, x),
+                Collections.singleton(x));
+        List<HiTalkWAMInstruction> instructions = new ArrayList<>();
+        instructions.add(new HiTalkWAMInstruction(AllocateN, REG_ADDR, (byte) 1));
+        instructions.add(new HiTalkWAMInstruction(PutVar, STACK_ADDR, (byte) 0, (byte) 0));
+        instructions.addAll(build);
+        instructions.add(new HiTalkWAMInstruction(GetVal, STACK_ADDR, (byte) 0, (byte) 1));
+        instructions.add(new HiTalkWAMInstruction(Suspend));
+        instructions.add(new HiTalkWAMInstruction(Deallocate));
+        query.addInstructions(instructions);
+        machine.setQuery(query);
+    }
+
+    /**
+     * Builds the list [a, a, ..., a] of a length into X1.
+     */
+    private static List<HiTalkWAMInstruction> list(int length) {
+        List<HiTalkWAMInstruction> build = new ArrayList<>();
+        build.add(new HiTalkWAMInstruction(PutConstant, REG_ADDR, (byte) 1, NIL));
+
+        for (int i = 0; i < length; i++) {
+            build.add(new HiTalkWAMInstruction(PutList, REG_ADDR, (byte) 2));
+            build.add(new HiTalkWAMInstruction(SetConstant, A));
+            build.add(new HiTalkWAMInstruction(SetVal, REG_ADDR, (byte) 1));
+            build.add(new HiTalkWAMInstruction(GetVar, REG_ADDR, (byte) 1, (byte) 2));
+        }
+
+        return build;
+    }
+
+    /**
+     * Builds g(V, [a|g(V, [a|...V...])]) nested to a depth into X1, with the one variable V all the way down.
+     */
+    private static List<HiTalkWAMInstruction> nested(int depth) {
+        List<HiTalkWAMInstruction> build = new ArrayList<>();
+        build.add(new HiTalkWAMInstruction(PutVar, REG_ADDR, (byte) 1, (byte) 3));
+
+        for (int i = 0; i < depth; i++) {
+            build.add(new HiTalkWAMInstruction(PutList, REG_ADDR, (byte) 2));
+            build.add(new HiTalkWAMInstruction(SetConstant, A));
+            build.add(new HiTalkWAMInstruction(SetVal, REG_ADDR, (byte) 1));
+            build.add(new HiTalkWAMInstruction(PutStruc, REG_ADDR, (byte) 1, G));
+            build.add(new HiTalkWAMInstruction(SetVal, REG_ADDR, (byte) 3));
+            build.add(new HiTalkWAMInstruction(SetVal, REG_ADDR, (byte) 2));
+        }
+
+        return build;
+    }
+
+    /**
+     * The heap decoder as it was before it was made iterative, recursing on the arguments of each term.
+     */
+    private static ITerm decodeRecursively(HiTalkWAMResolvingMachine<?, ?> machine, int start,
+                                           Map<Integer, HtVariable> variableContext) {
+        machine.deref(start);
+        byte tag = machine.getDerefTag();
+        int val = machine.getDerefVal();
+
+        switch (tag) {
+            case REF: {
+                HtVariable var = variableContext.get(val);
+
+                if (var == null) {
+                    var = new HtVariable(HiTalkWAMResolvingMachine.varNameId.decrementAndGet(), null, false);
+                    variableContext.put(val, var);
+                }
+
+                return var;
+            }
+            case STR: {
+                int f = machine.getHeap(val) & 0x00ffffff;
+                int arity = machine.getDeinternedFunctorName(f).getArity();
+                List<ITerm> list = new ArrayList<>();
+
+                for (int i = 0; i < arity; i++) {
+                    list.add(decodeRecursively(machine, val + 1 + i, variableContext));
+                }
+
+                return new HtFunctor(f, new ListTerm(list));
+            }
+            case CON:
+                return new HtFunctor(val & 0x3fffffff);
+            case LIS: {
+                int f = machine.internFunctorName(new HtFunctorName("cons", 2));
+                List<ITerm> list = new ArrayList<>();
+
+                for (int i = 0; i < 2; i++) {
+                    list.add(decodeRecursively(machine, val + i, variableContext));
+                }
+
+                return new HtFunctor(f, new ListTerm(list));
+            }
+            default:
+                throw new IllegalStateException("Encountered unknown tag entityKind on the heap.");
+        }
+    }
+
+    /**
+     * Writes out a term without recursing, naming its variables by the order they first appear in, so that two terms
+     * write out the same iff they are the same up to the names of their variables.
+     */
+    private static String write(ITerm term) {
+        StringBuilder out = new StringBuilder();
+        Map<ITerm, Integer> vars = new IdentityHashMap<>();
+        Deque<Object> todo = new ArrayDeque<>();
+        todo.push(term);
+
+        while (!todo.isEmpty()) {
+            Object next = todo.pop();
+
+            if (next instanceof String) {
+                out.append(next);
+            } else if (next instanceof HtVariable) {
+                Integer n = vars.get(next);
+
+                if (n == null) {
+                    n = vars.size();
+                    vars.put((ITerm) next, n);
+                }
+
+                out.append('_').append(n);
+            } else {
+                HtFunctor functor = (HtFunctor) next;
+                List<?> arguments = functor.getArguments();
+                out.append(functor.getName());
+
+                if (!arguments.isEmpty()) {
+                    out.append('(');
+                    todo.push(")");
+
+                    for (int i = arguments.size() - 1; i >= 0; i--) {
+                        todo.push(arguments.get(i));
+
+                        if (i > 0) {
+                            todo.push(",");
+                        }
+                    }
+                }
+            }
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Runs the query set on a machine, checking each binding against the recursive decoder.
+     */
+    private static void assertDecodesAsRecursively(HiTalkWAMResolvingJavaMachine<?, ?> machine) {
+        HtWAMSolutionCursor cursor = machine.openCursor();
+        assertTrue(cursor.next());
+
+        ITerm expected = decodeRecursively(machine, cursor.binding(0), new HashMap<>());
+        assertEquals(write(expected), write(cursor.term(0)));
+
+        // The stacks of the decoder are reused, and must leave nothing behind for the next term.
+        assertEquals(write(expected), write(cursor.term(0)));
+        assertFalse(cursor.next());
+    }
+
+    private void decodesAsRecursively(Engine engine) throws Exception {
+        HiTalkWAMResolvingJavaMachine<?, ?> machine = newMachine(engine);
+
+        setQuery(machine, list(SHALLOW));
+        assertDecodesAsRecursively(machine);
+
+        setQuery(machine, nested(SHALLOW));
+        assertDecodesAsRecursively(machine);
+    }
+
+    @Test
+    public void decodesListsAndNestedTermsAsTheRecursiveDecoderDid() throws Exception {
+        decodesAsRecursively(Engine.RESOLVING);
+        decodesAsRecursively(Engine.DECODED);
+    }
+
+    private void decodesDeepTerms(Engine engine) throws Exception {
+        HiTalkWAMResolvingJavaMachine<?, ?> machine = newMachine(engine);
+        int cons = machine.internFunctorName(new HtFunctorName("cons", 2));
+        int a = machine.internFunctorName(A);
+        int g = machine.internFunctorName(G);
+
+        setQuery(machine, list(DEEP));
+        HtWAMSolutionCursor cursor = machine.openCursor();
+        assertTrue(cursor.next());
+
+        ITerm term = cursor.term(0);
+        for (int i = 0; i < DEEP; i++) {
+            HtFunctor cell = (HtFunctor) term;
+            assertEquals(cons, cell.getName());
+            assertEquals(a, ((HtFunctor) cell.getArgument(0)).getName());
+            term = (ITerm) cell.getArgument(1);
+        }
+        assertEquals(machine.internFunctorName(NIL), ((HtFunctor) term).getName());
+
+        setQuery(machine, nested(DEEP));
+        cursor = machine.openCursor();
+        assertTrue(cursor.next());
+
+        term = cursor.term(0);
+        ITerm var = (ITerm) ((HtFunctor) term).getArgument(0);
+        assertTrue(var instanceof HtVariable);
+        for (int i = 0; i < DEEP; i++) {
+            HtFunctor functor = (HtFunctor) term;
+            assertEquals(g, functor.getName());
+            assertSame(var, functor.getArgument(0));
+            HtFunctor cell = (HtFunctor) functor.getArgument(1);
+            assertEquals(cons, cell.getName());
+            term = (ITerm) cell.getArgument(1);
+        }
+        assertSame(var, term);
+    }
+
+    @Test
+    public void decodesDeepTermsWithoutRecursing() throws Exception {
+        decodesDeepTerms(Engine.RESOLVING);
+        decodesDeepTerms(Engine.DECODED);
+    }
+
+    private void takesTermsApart(Engine engine) throws Exception {
+        HiTalkWAMResolvingJavaMachine<?, ?> machine = newMachine(engine);
+
+        // ?- X = f(a, [b|V], V).
+        setQuery(machine, Arrays.asList(
+                new HiTalkWAMInstruction(PutVar, REG_ADDR, (byte) 3, (byte) 4),
+                new HiTalkWAMInstruction(PutList, REG_ADDR, (byte) 2),
+                new HiTalkWAMInstruction(SetConstant, B),
+                new HiTalkWAMInstruction(SetVal, REG_ADDR, (byte) 3),
+                new HiTalkWAMInstruction(PutStruc, REG_ADDR, (byte) 1, F),
+                new HiTalkWAMInstruction(SetConstant, A),
+                new HiTalkWAMInstruction(SetVal, REG_ADDR, (byte) 2),
+                new HiTalkWAMInstruction(SetVal, REG_ADDR, (byte) 3)));
+
+        HtWAMSolutionCursor cursor = machine.openCursor();
+        assertEquals(1, cursor.size());
+        assertEquals(0, cursor.indexOf(machine.internVariableName("X")));
+        assertTrue(cursor.next());
+
+        int f = cursor.binding(0);
+        assertEquals(STR, cursor.tag(f));
+        assertTrue(cursor.isCompound(f));
+        assertEquals(machine.internFunctorName(F), cursor.functor(f));
+        assertEquals(F, cursor.functorName(f));
+        assertEquals("f", cursor.name(f));
+        assertEquals(3, cursor.arity(f));
+
+        int a = cursor.arg(f, 0);
+        assertEquals(CON, cursor.tag(a));
+        assertTrue(cursor.isAtom(a));
+        assertEquals(machine.internFunctorName(A), cursor.functor(a));
+        assertEquals("a", cursor.name(a));
+        assertEquals(0, cursor.arity(a));
+
+        int list = cursor.arg(f, 1);
+        assertEquals(LIS, cursor.tag(list));
+        assertTrue(cursor.isList(list));
+        assertEquals(2, cursor.arity(list));
+        assertEquals("b", cursor.name(cursor.arg(list, 0)));
+
+        int tail = cursor.arg(list, 1);
+        int v = cursor.arg(f, 2);
+        assertEquals(REF, cursor.tag(v));
+        assertTrue(cursor.isVar(v));
+        assertTrue(cursor.isVar(tail));
+        assertEquals(0, cursor.arity(v));
+
+        // Both occurrences of V decode to the one variable.
+        HtFunctor term = (HtFunctor) cursor.term(0);
+        assertSame(term.getArgument(2), ((HtFunctor) term.getArgument(1)).getArgument(1));
+
+        assertFalse(cursor.next());
+        assertFalse(cursor.next());
+        assertEquals(1, cursor.getSolutionCount());
+    }
+
+    @Test
+    public void accessorsTakeTermsApart() throws Exception {
+        takesTermsApart(Engine.RESOLVING);
+        takesTermsApart(Engine.DECODED);
+    }
+
+    @Test
+    public void accessorsRejectTermsOfTheWrongKind() throws Exception {
+        HiTalkWAMResolvingJavaMachine<?, ?> machine = newMachine(Engine.RESOLVING);
+
+        // ?- X = [a].
+        setQuery(machine, list(1));
+        HtWAMSolutionCursor cursor = machine.openCursor();
+        assertTrue(cursor.next());
+
+        int list = cursor.binding(0);
+        int a = cursor.arg(list, 0);
+
+        try {
+            cursor.functor(list);
+            fail("A list cell has no functor.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            cursor.arg(a, 0);
+            fail("An atom has no arguments.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.ltc.hitalk.wam.compiler.HtFunctorName;
+import org.ltc.hitalk.wam.compiler.HtWAMLabel;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledPredicate;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMCompiledQuery;
+import org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.HiTalkWAMInstructionSet.*;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.REG_ADDR;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.STACK_ADDR;
+
+/**
+ * HtWAMTestPrograms holds the small programs, assembled by hand, that the machine tests load, so that the tests do not
+ * depend on the compiler.
+ */
+final class HtWAMTestPrograms {
+    static final HtFunctorName A = new HtFunctorName("a", 0);
+    static final HtFunctorName LOOP_0 = new HtFunctorName("loop", 0);
+    static final HtFunctorName LOOP_1 = new HtFunctorName("loop", 1);
+    static final HtFunctorName P = new HtFunctorName("p", 1);
+    static final HtFunctorName Q = new HtFunctorName("q", 1);
+
+    private HtWAMTestPrograms() {
+    }
+
+    /**
+     * Adds a predicate to a machine.
+     *
+     * @param machine      The machine to add the predicate to.
+     * @param name         The name of the predicate.
+     * @param instructions The code of the predicate.
+     */
+    static void add(HiTalkWAMResolvingJavaMachine<?, ?> machine, HtFunctorName name,
+                    HiTalkWAMInstruction... instructions) throws Exception {
+        HiTalkWAMCompiledPredicate predicate = new HiTalkWAMCompiledPredicate(machine.internFunctorName(name));
+        predicate.addInstructions(Arrays.asList(instructions));
+        machine.addToDomain(predicate);
+    }
+
+    /**
+     * p(a).
+     */
+    static void addP(HiTalkWAMResolvingJavaMachine<?, ?> machine) throws Exception {
+        add(machine, P,
+                new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 0, A),
+                new HiTalkWAMInstruction(Proceed));
+    }
+
+    /**
+     * q(a). q(a).
+     */
+    static void addQ(HiTalkWAMResolvingJavaMachine<?, ?> machine) throws Exception {
+        HtWAMLabel first = new HtWAMLabel(Q, 0);
+        HtWAMLabel second = new HtWAMLabel(Q, 1);
+
+        add(machine, Q,
+                new HiTalkWAMInstruction(first, TryMeElse, second),
+                new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 0, A),
+                new HiTalkWAMInstruction(Proceed),
+                new HiTalkWAMInstruction(second, TrustMe),
+                new HiTalkWAMInstruction(GetConstant, REG_ADDR, (byte) 0, A),
+                new HiTalkWAMInstruction(Proceed));
+    }
+
+    /**
+     * loop(X) :- q(X), loop(X), which leaves a choice point behind on every iteration. q/1 must be added too.
+     */
+    static void addChoicePointLoop(HiTalkWAMResolvingJavaMachine<?, ?> machine) throws Exception {
+        add(machine, LOOP_1,
+                new HiTalkWAMInstruction(Allocate),
+                new HiTalkWAMInstruction(GetVar, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(PutVal, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(Call, (byte) 1, Q),
+                new HiTalkWAMInstruction(PutVal, STACK_ADDR, (byte) 0, (byte) 0),
+                new HiTalkWAMInstruction(Deallocate),
+                new HiTalkWAMInstruction(Execute, LOOP_1));
+    }
+
+    /**
+     * Sets a query calling a predicate, with a as its argument if it takes one.
+     *
+     * @param machine The machine to set the query on.
+     * @param name    The name of the predicate to call.
+     */
+    static void setQuery(HiTalkWAMResolvingJavaMachine<?, ?> machine, HtFunctorName name) throws Exception {
+        HiTalkWAMCompiledQuery query = new HiTalkWAMCompiledQuery(Collections.emptyMap(), Collections.emptySet());
+        query.addInstructions(Arrays.asList(
+                new HiTalkWAMInstruction(AllocateN, REG_ADDR, (byte) 0),
+                new HiTalkWAMInstruction(PutConstant, REG_ADDR, (byte) 0, A),
+                new HiTalkWAMInstruction(Call, (byte) 0, name),
+                new HiTalkWAMInstruction(Suspend),
+                new HiTalkWAMInstruction(Deallocate)));
+        machine.setQuery(query);
+    }
+}
@@ -0,0 +1,173 @@
+package org.ltc.hitalk.wam.machine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.ltc.hitalk.wam.compiler.hitalk.HiTalkWAMInstruction.*;
+
+/**
+ * Checks that hot predicates are compiled in the background, without holding up the calls that make them hot, and that
+ * the compiled code runs the operations of their instructions once it is swapped in.
+ */
+public class HtWAMTier2CompilerTest {
+    private static final int ENTRY = 0;
+    private static final int FIRST_PROCEED = 12;
+    private static final int SECOND_CLAUSE = 13;
+    private static final int SECOND_PROCEED = 21;
+    private static final int LENGTH = 22;
+
+    /**
+     * The operations of a machine that record the operations run, over the byte code of p(42). p(43).
+     */
+    private static class Operations extends HtWAMTier2Operations {
+        final ByteBuffer code = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        final List<String> run = new ArrayList<>();
+        boolean unifies = true;
+
+        Operations() {
+            super(null);
+
+            code.put(ENTRY, TRY_ME_ELSE);
+            code.putInt(ENTRY + 1, SECOND_CLAUSE);
+            getConst(ENTRY + 5, 42);
+            code.put(FIRST_PROCEED, PROCEED);
+            code.put(SECOND_CLAUSE, TRUST_ME);
+            getConst(SECOND_CLAUSE + 1, 43);
+            code.put(SECOND_PROCEED, PROCEED);
+        }
+
+        private void getConst(int at, int constant) {
+            code.put(at, GET_CONST);
+            code.put(at + 1, REG_ADDR);
+            code.put(at + 2, (byte) 1);
+            code.putInt(at + 3, constant);
+        }
+
+        ByteBuffer code() {
+            return code;
+        }
+
+        boolean isMonitored() {
+            return false;
+        }
+
+        public boolean getConstant(int xi, int fn) {
+            run.add("get_const X" + xi + ", " + fn);
+            return unifies;
+        }
+
+        public void tryMeElse(int l, int n) {
+            run.add("try_me_else " + l + ", " + n);
+        }
+
+        public void trustMe() {
+            run.add("trust_me");
+        }
+    }
+
+    private final List<Runnable> tasks = new ArrayList<>();
+    private Operations ops;
+
+    private HtWAMTier2Compiler compiler(int threshold) {
+        HtWAMTier2Compiler compiler = new HtWAMTier2Compiler(ops, threshold);
+        compiler.setExecutor(tasks::add);
+        compiler.addPredicate(1, ENTRY, LENGTH, 1);
+
+        return compiler;
+    }
+
+    private void runTasks() {
+        for (Runnable task : tasks) {
+            task.run();
+        }
+
+        tasks.clear();
+    }
+
+    @Before
+    public void setUp() {
+        ops = new Operations();
+    }
+
+    @Test
+    public void compilesNothingWithoutAThreshold() {
+        HtWAMTier2Compiler compiler = compiler(0);
+
+        for (int i = 0; i < 10 * HtWAMTier2Compiler.DEFAULT_THRESHOLD; i++) {
+            assertEquals(ENTRY, compiler.call(ENTRY));
+        }
+
+        assertEquals(Collections.emptyList(), tasks);
+        assertEquals(0, compiler.getCompiledCount());
+    }
+
+    /**
+     * The call that makes a predicate hot is interpreted whilst the predicate is compiled, and the next call after the
+     * compiled code is ready runs it.
+     */
+    @Test
+    public void compilesInTheBackground() {
+        HtWAMTier2Compiler compiler = compiler(2);
+
+        assertEquals(ENTRY, compiler.call(ENTRY));
+        assertEquals(ENTRY, compiler.call(ENTRY));
+        assertEquals(1, tasks.size());
+        assertEquals(ENTRY, compiler.call(ENTRY));
+        assertEquals(0, compiler.getCompiledCount());
+
+        runTasks();
+
+        assertEquals(FIRST_PROCEED, compiler.call(ENTRY));
+        assertEquals(1, compiler.getCompiledCount());
+        assertEquals(Arrays.asList("try_me_else " + SECOND_CLAUSE + ", 1", "get_const X1, 42"), ops.run);
+        assertEquals(Collections.emptyList(), tasks);
+    }
+
+    @Test
+    public void resumesInCompiledCode() {
+        HtWAMTier2Compiler compiler = compiler(1);
+        compiler.call(ENTRY);
+        runTasks();
+
+        assertEquals(SECOND_PROCEED, compiler.resume(SECOND_CLAUSE));
+        assertEquals(Arrays.asList("trust_me", "get_const X1, 43"), ops.run);
+    }
+
+    @Test
+    public void failsWhenAnOperationFails() {
+        HtWAMTier2Compiler compiler = compiler(1);
+        compiler.call(ENTRY);
+        runTasks();
+        ops.unifies = false;
+
+        assertEquals(HtWAMTier2Code.FAIL, compiler.call(ENTRY));
+    }
+
+    /**
+     * Code compiled from byte code that has changed since the compilation started is thrown away.
+     */
+    @Test
+    public void discardsCodeCompiledBeforeAChange() {
+        HtWAMTier2Compiler compiler = compiler(1);
+        compiler.call(ENTRY);
+        compiler.invalidate(ENTRY + 5);
+        runTasks();
+
+        assertEquals(ENTRY, compiler.call(ENTRY));
+        assertEquals(0, compiler.getCompiledCount());
+        assertEquals(Collections.emptyList(), ops.run);
+
+        runTasks();
+
+        assertEquals(FIRST_PROCEED, compiler.call(ENTRY));
+        assertEquals(1, compiler.getCompiledCount());
+    }
+}